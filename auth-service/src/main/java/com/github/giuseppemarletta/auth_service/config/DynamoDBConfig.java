@@ -1,8 +1,15 @@
 package com.github.giuseppemarletta.auth_service.config;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkClientException;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
@@ -22,6 +29,7 @@ import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.github.giuseppemarletta.auth_service.util.ParallelScanner;
 
 
 
@@ -43,6 +51,16 @@ public class DynamoDBConfig {
 
     @Value("${amazon.dynamodb.endpoint}")
     private String endpoint;
+
+    @Value("${amazon.dynamodb.max-connections:50}")
+    private int maxConnections;
+
+    // Longest wait for a free connection of the gated client before the call fails
+    @Value("${amazon.dynamodb.connection-acquisition-timeout:10s}")
+    private Duration connectionAcquisitionTimeout;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
     
 
     @Bean
@@ -59,11 +77,47 @@ public class DynamoDBConfig {
         AmazonDynamoDB amazonDynamoDB = AmazonDynamoDBClientBuilder.standard()
                 .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(awsAccessKeyId, awsSecretKey)))
                 .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, "us-west-2"))
+                .withClientConfiguration(new ClientConfiguration().withMaxConnections(maxConnections))
                 .build();
+        if (virtualThreads) {
+            amazonDynamoDB = gated(amazonDynamoDB, maxConnections, connectionAcquisitionTimeout);
+        }
         createTableIfNotExists(amazonDynamoDB); // Create the table if it doesn't exist
+        createCheckpointTableIfNotExists(amazonDynamoDB);
         return amazonDynamoDB;
     }
 
+    /**
+     * Limita le chiamate in corso al numero di connessioni del pool. Un virtual thread che aspetta una
+     * connessione libera dentro Apache HttpClient blocca anche il suo carrier (la lease avviene in un blocco
+     * synchronized) e, con tutti i carrier bloccati, chi tiene le connessioni non può restituirle: l'attesa
+     * avviene invece su un Semaphore, al più per acquisitionTimeout. Le risposte di DynamoDB vengono lette per intero, quindi la connessione
+     * è già tornata nel pool quando la chiamata ritorna.
+     */
+    private static AmazonDynamoDB gated(AmazonDynamoDB client, int maxConnections, Duration acquisitionTimeout) {
+        Semaphore permits = new Semaphore(maxConnections);
+        return (AmazonDynamoDB) Proxy.newProxyInstance(AmazonDynamoDB.class.getClassLoader(),
+                new Class<?>[] { AmazonDynamoDB.class }, (proxy, method, args) -> {
+                    if (!permits.tryAcquire(acquisitionTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                        throw new SdkClientException("Timed out after " + acquisitionTimeout.toMillis()
+                                + " ms waiting for a DynamoDB connection");
+                    }
+                    try {
+                        return method.invoke(client, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        permits.release();
+                    }
+                });
+    }
+
+    @Bean
+    public ParallelScanner parallelScanner(AmazonDynamoDB amazonDynamoDB,
+                                           @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        return new ParallelScanner(amazonDynamoDB, virtualThreads);
+    }
+
     /* 
     @Bean
     @Primary 
@@ -96,4 +150,20 @@ public class DynamoDBConfig {
         }
     }
 
+    // Resume points of the ParallelScanner jobs, one row per job and segment
+    private void createCheckpointTableIfNotExists(AmazonDynamoDB amazonDynamoDB) {
+        try {
+            amazonDynamoDB.describeTable(ParallelScanner.CHECKPOINT_TABLE);
+        } catch (ResourceNotFoundException e) {
+            amazonDynamoDB.createTable(new CreateTableRequest()
+                    .withTableName(ParallelScanner.CHECKPOINT_TABLE)
+                    .withKeySchema(new KeySchemaElement("checkpointId", KeyType.HASH))
+                    .withAttributeDefinitions(new AttributeDefinition("checkpointId", ScalarAttributeType.S))
+                    .withProvisionedThroughput(new ProvisionedThroughput(5L, 5L)));
+            System.out.println("Table " + ParallelScanner.CHECKPOINT_TABLE + " created successfully.");
+        } catch (Exception e) {
+            System.out.println("Failed to create table " + ParallelScanner.CHECKPOINT_TABLE + ": " + e.getMessage());
+        }
+    }
+
 }
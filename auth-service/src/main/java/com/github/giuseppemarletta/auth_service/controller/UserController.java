@@ -1,5 +1,7 @@
 package com.github.giuseppemarletta.auth_service.controller;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.springframework.http.ResponseEntity;
@@ -13,6 +15,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import com.github.giuseppemarletta.auth_service.security.annotation.RequireRole;
 import com.github.giuseppemarletta.auth_service.Repository.UserRepository;
 import com.github.giuseppemarletta.auth_service.model.User;
+import com.github.giuseppemarletta.auth_service.util.ParallelScanner;
 
 @RestController
 @RequestMapping("/users")
@@ -21,12 +24,24 @@ public class UserController {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private ParallelScanner parallelScanner;
+
     @RequireRole({"ADMIN", "MODERATOR"})
     @GetMapping
     public ResponseEntity<List<String>> getAllUsers() {
         System.out.println("Getting all users");
-        List<String> users = List.of("admin@example.com", "mod@example.com", "user@example.com");  //mock data
-        return ResponseEntity.ok(users);
+        // Every row is needed: segmented parallel scan reading only the email attribute
+        List<String> users = Collections.synchronizedList(new ArrayList<>());
+        parallelScanner.run(ParallelScanner.ScanJob.builder()
+                .tableName("users")
+                .projectionExpression("email")
+                .build(), (segment, items) -> items.stream()
+                        .filter(item -> item.containsKey("email"))
+                        .forEach(item -> users.add(item.get("email").getS())));
+        List<String> sorted = new ArrayList<>(users);
+        Collections.sort(sorted);
+        return ResponseEntity.ok(sorted);
     }
 
     @RequireRole({"ADMIN"})
@@ -0,0 +1,334 @@
+package com.github.giuseppemarletta.auth_service.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.RequestLimitExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Scansione parallela di un'intera tabella DynamoDB per i job che devono leggere tutte le righe
+ * (reindicizzazioni, audit, migrazioni), al posto della scansione sequenziale di findAll().
+ *
+ * La tabella viene divisa in {@code segments} segmenti (Segment/TotalSegments) letti da al massimo
+ * {@code parallelism} thread. Con un {@code checkpointId} la posizione di ogni segmento viene salvata
+ * nella tabella ScanCheckpoint dopo ogni pagina elaborata: un job interrotto riprende da lì, e una pagina
+ * può quindi essere elaborata due volte. A job completato i checkpoint vengono cancellati.
+ *
+ * Con {@code readCapacityPerSecond} le letture vengono distribuite nel tempo in base alla capacità
+ * effettivamente consumata da ogni pagina; se DynamoDB limita comunque le richieste, il ritmo viene
+ * dimezzato e poi fatto risalire gradualmente.
+ */
+public class ParallelScanner {
+
+    public static final String CHECKPOINT_TABLE = "ScanCheckpoint";
+
+    private static final String CHECKPOINT_ID = "checkpointId";
+    private static final String TOTAL_SEGMENTS = "totalSegments";
+    private static final String LAST_KEY = "lastKey";
+    private static final String DONE = "done";
+    private static final String UPDATED_AT = "updatedAt";
+
+    private static final int MAX_THROTTLE_RETRIES = 10;
+    private static final long MAX_BACKOFF_MS = 20_000;
+
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final boolean virtualThreads;
+
+    public ParallelScanner(AmazonDynamoDB amazonDynamoDB) {
+        this(amazonDynamoDB, false);
+    }
+
+    /**
+     * @param virtualThreads se true i segmenti vengono letti da virtual thread invece che da thread di piattaforma
+     */
+    public ParallelScanner(AmazonDynamoDB amazonDynamoDB, boolean virtualThreads) {
+        this.amazonDynamoDB = amazonDynamoDB;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Parametri di una scansione.
+     */
+    @Getter
+    @Builder
+    public static class ScanJob {
+        private final String tableName;
+        @Builder.Default
+        private final int segments = 8;
+        @Builder.Default
+        private final int parallelism = 4;
+        private final Integer pageSize; // Scan Limit, null for the 1 MB default
+        private final String projectionExpression;
+        private final String filterExpression;
+        private final Map<String, String> expressionAttributeNames;
+        private final Map<String, AttributeValue> expressionAttributeValues;
+        private final String checkpointId; // Null for a job that is not resumable
+        @Builder.Default
+        private final double readCapacityPerSecond = 0; // 0 for no pacing
+    }
+
+    /**
+     * Riceve le righe di un segmento una pagina alla volta; può essere chiamato da più thread insieme,
+     * mai per lo stesso segmento.
+     */
+    @FunctionalInterface
+    public interface PageHandler {
+        void accept(int segment, List<Map<String, AttributeValue>> items) throws Exception;
+    }
+
+    public record ScanReport(long items, long scannedItems, double consumedCapacity, int resumedSegments) {
+    }
+
+    /**
+     * Esegue la scansione e ritorna quando tutti i segmenti sono stati letti.
+     *
+     * @throws IllegalStateException se un segmento fallisce: gli altri si fermano alla pagina corrente e,
+     *         con un checkpointId, il job può essere rilanciato per riprendere
+     */
+    public ScanReport run(ScanJob job, PageHandler handler) {
+        if (job.getSegments() < 1 || job.getParallelism() < 1) {
+            throw new IllegalArgumentException("segments and parallelism must be positive");
+        }
+        Map<Integer, Map<String, AttributeValue>> checkpoints = loadCheckpoints(job);
+        Pacer pacer = new Pacer(job.getReadCapacityPerSecond());
+        AtomicBoolean failed = new AtomicBoolean();
+        AtomicLong items = new AtomicLong();
+        AtomicLong scanned = new AtomicLong();
+        DoubleAdder consumed = new DoubleAdder();
+        int resumed = 0;
+
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = virtualThreads
+                ? Thread.ofVirtual().name("scan-" + job.getTableName() + "-", 1).factory()
+                : r -> {
+                    Thread t = new Thread(r, "scan-" + job.getTableName() + "-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                };
+        // The pool size still bounds the parallelism, virtual threads only make a blocked worker cheaper
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(job.getParallelism(), job.getSegments()), threadFactory);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int segment = 0; segment < job.getSegments(); segment++) {
+                Map<String, AttributeValue> checkpoint = checkpoints.get(segment);
+                if (checkpoint != null) {
+                    resumed++;
+                    if (checkpoint.containsKey(DONE)) {
+                        continue;
+                    }
+                }
+                int current = segment;
+                Map<String, AttributeValue> startKey = checkpoint != null && checkpoint.containsKey(LAST_KEY)
+                        ? checkpoint.get(LAST_KEY).getM() : null;
+                futures.add(workers.submit(() -> {
+                    scanSegment(job, current, startKey, handler, pacer, failed, items, scanned, consumed);
+                    return null;
+                }));
+            }
+
+            Throwable failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.set(true);
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Scan of " + job.getTableName() + " failed: " + failure.getMessage(), failure);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (job.getCheckpointId() != null) {
+            for (int segment = 0; segment < job.getSegments(); segment++) {
+                amazonDynamoDB.deleteItem(new DeleteItemRequest()
+                        .withTableName(CHECKPOINT_TABLE)
+                        .withKey(Map.of(CHECKPOINT_ID, new AttributeValue(checkpointKey(job, segment)))));
+            }
+        }
+        return new ScanReport(items.get(), scanned.get(), consumed.sum(), resumed);
+    }
+
+    private void scanSegment(ScanJob job, int segment, Map<String, AttributeValue> startKey, PageHandler handler,
+                             Pacer pacer, AtomicBoolean failed, AtomicLong items, AtomicLong scanned,
+                             DoubleAdder consumed) throws Exception {
+        Map<String, AttributeValue> exclusiveStartKey = startKey;
+        try {
+            do {
+                if (failed.get()) {
+                    return; // Another segment failed, stop at a page boundary
+                }
+                ScanResult result = scanPage(job, segment, exclusiveStartKey, pacer);
+                double units = result.getConsumedCapacity() != null && result.getConsumedCapacity().getCapacityUnits() != null
+                        ? result.getConsumedCapacity().getCapacityUnits() : 0;
+                pacer.consumed(units);
+                consumed.add(units);
+                scanned.addAndGet(result.getScannedCount() != null ? result.getScannedCount() : 0);
+
+                if (!result.getItems().isEmpty()) {
+                    handler.accept(segment, result.getItems());
+                    items.addAndGet(result.getItems().size());
+                }
+                exclusiveStartKey = result.getLastEvaluatedKey() == null || result.getLastEvaluatedKey().isEmpty()
+                        ? null : result.getLastEvaluatedKey();
+                saveCheckpoint(job, segment, exclusiveStartKey);
+            } while (exclusiveStartKey != null);
+        } catch (Exception e) {
+            failed.set(true);
+            throw e;
+        }
+    }
+
+    private ScanResult scanPage(ScanJob job, int segment, Map<String, AttributeValue> exclusiveStartKey, Pacer pacer)
+            throws InterruptedException {
+        ScanRequest request = new ScanRequest()
+                .withTableName(job.getTableName())
+                .withSegment(segment)
+                .withTotalSegments(job.getSegments())
+                .withLimit(job.getPageSize())
+                .withProjectionExpression(job.getProjectionExpression())
+                .withFilterExpression(job.getFilterExpression())
+                .withExpressionAttributeNames(job.getExpressionAttributeNames())
+                .withExpressionAttributeValues(job.getExpressionAttributeValues())
+                .withExclusiveStartKey(exclusiveStartKey)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        for (int attempt = 1; ; attempt++) {
+            pacer.acquire();
+            try {
+                return amazonDynamoDB.scan(request);
+            } catch (ProvisionedThroughputExceededException | RequestLimitExceededException e) {
+                // Still throttled after the SDK retries: slow the whole job down and try the page again
+                pacer.throttled();
+                if (attempt == MAX_THROTTLE_RETRIES) {
+                    throw e;
+                }
+                Thread.sleep(Math.min(MAX_BACKOFF_MS, 100L << attempt));
+            }
+        }
+    }
+
+    private Map<Integer, Map<String, AttributeValue>> loadCheckpoints(ScanJob job) {
+        Map<Integer, Map<String, AttributeValue>> checkpoints = new HashMap<>();
+        if (job.getCheckpointId() == null) {
+            return checkpoints;
+        }
+        List<Map<String, AttributeValue>> keys = new ArrayList<>();
+        for (int segment = 0; segment < job.getSegments(); segment++) {
+            keys.add(Map.of(CHECKPOINT_ID, new AttributeValue(checkpointKey(job, segment))));
+        }
+        // BatchGetItem takes at most 100 keys
+        for (int from = 0; from < keys.size(); from += 100) {
+            Map<String, KeysAndAttributes> request = Map.of(CHECKPOINT_TABLE,
+                    new KeysAndAttributes().withKeys(keys.subList(from, Math.min(keys.size(), from + 100))).withConsistentRead(true));
+            while (request != null && !request.isEmpty()) {
+                var result = amazonDynamoDB.batchGetItem(new BatchGetItemRequest().withRequestItems(request));
+                for (Map<String, AttributeValue> item : result.getResponses().getOrDefault(CHECKPOINT_TABLE, List.of())) {
+                    if (Integer.parseInt(item.get(TOTAL_SEGMENTS).getN()) != job.getSegments()) {
+                        throw new IllegalStateException("Checkpoint " + job.getCheckpointId() + " was taken with "
+                                + item.get(TOTAL_SEGMENTS).getN() + " segments");
+                    }
+                    String id = item.get(CHECKPOINT_ID).getS();
+                    checkpoints.put(Integer.parseInt(id.substring(id.lastIndexOf('#') + 1)), item);
+                }
+                request = result.getUnprocessedKeys();
+            }
+        }
+        return checkpoints;
+    }
+
+    private void saveCheckpoint(ScanJob job, int segment, Map<String, AttributeValue> lastKey) {
+        if (job.getCheckpointId() == null) {
+            return;
+        }
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(CHECKPOINT_ID, new AttributeValue(checkpointKey(job, segment)));
+        item.put(TOTAL_SEGMENTS, new AttributeValue().withN(Integer.toString(job.getSegments())));
+        item.put(UPDATED_AT, new AttributeValue(Instant.now().toString()));
+        if (lastKey != null) {
+            item.put(LAST_KEY, new AttributeValue().withM(lastKey));
+        } else {
+            item.put(DONE, new AttributeValue().withBOOL(true));
+        }
+        amazonDynamoDB.putItem(new PutItemRequest().withTableName(CHECKPOINT_TABLE).withItem(item));
+    }
+
+    private static String checkpointKey(ScanJob job, int segment) {
+        return job.getCheckpointId() + "#" + segment;
+    }
+
+    /**
+     * Ritmo comune a tutti i segmenti: ogni pagina sposta in avanti l'istante della prossima richiesta
+     * in proporzione alle unità di lettura consumate.
+     */
+    private static final class Pacer {
+        private final double target;
+        private double rate;
+        private long nextRequestNanos = System.nanoTime();
+
+        Pacer(double target) {
+            this.target = target;
+            this.rate = target;
+        }
+
+        void acquire() throws InterruptedException {
+            if (target <= 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                wait = nextRequestNanos - System.nanoTime();
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        synchronized void consumed(double units) {
+            if (target <= 0) {
+                return;
+            }
+            nextRequestNanos = Math.max(nextRequestNanos, System.nanoTime()) + (long) (units / rate * 1_000_000_000L);
+            rate = Math.min(target, rate + target * 0.05); // Additive recovery after a throttle
+        }
+
+        synchronized void throttled() {
+            if (target > 0) {
+                rate = Math.max(target / 64, rate / 2);
+            }
+        }
+    }
+}
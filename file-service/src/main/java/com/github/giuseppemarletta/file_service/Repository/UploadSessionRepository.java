@@ -0,0 +1,12 @@
+package com.github.giuseppemarletta.file_service.Repository;
+
+import org.socialsignin.spring.data.dynamodb.repository.EnableScan;
+import org.springframework.data.repository.CrudRepository;
+
+import com.github.giuseppemarletta.file_service.model.UploadSession;
+
+@EnableScan
+public interface UploadSessionRepository extends CrudRepository<UploadSession, String> {
+
+
+}
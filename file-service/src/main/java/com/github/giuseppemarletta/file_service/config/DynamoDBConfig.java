@@ -1,6 +1,8 @@
 package com.github.giuseppemarletta.file_service.config;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkClientException;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
@@ -19,11 +21,40 @@ import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateGlobalSecondaryIndexAction;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexUpdate;
+
+import com.github.giuseppemarletta.file_service.service.CsvStatsService;
+import com.github.giuseppemarletta.file_service.service.FileVersionService;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 
 
 import org.springframework.beans.factory.annotation.Value;
 
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+
 @Configuration
 @EnableDynamoDBRepositories(basePackages = "com.github.giuseppemarletta.file_service.Repository") // Enable DynamoDB repositories
 public class DynamoDBConfig {
@@ -38,38 +69,190 @@ public class DynamoDBConfig {
     @Value("${amazon.dynamodb.endpoint}")
     private String endpoint;
 
+    @Value("${amazon.dynamodb.max-connections:50}")
+    private int maxConnections;
+
+    // Longest wait for a free connection of the gated client before the call fails
+    @Value("${amazon.dynamodb.connection-acquisition-timeout:10s}")
+    private Duration connectionAcquisitionTimeout;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    @Value("${amazon.async.max-concurrency:1000}")
+    private int asyncMaxConcurrency;
+
     @Bean
     public AmazonDynamoDB amazonDynamoDB() {
         AmazonDynamoDB amazonDynamoDB = AmazonDynamoDBClientBuilder.standard()
                 .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(awsAccessKeyId, awsSecretKey)))
                 .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, "us-west-2"))
+                .withClientConfiguration(new ClientConfiguration().withMaxConnections(maxConnections))
                 .build();
-        createTableIfNotExists(amazonDynamoDB); // Create the table if it doesn't exist
+        if (virtualThreads) {
+            amazonDynamoDB = gated(amazonDynamoDB, maxConnections, connectionAcquisitionTimeout);
+        }
+        // Create the tables if they don't exist
+        // Indexes behind /files/visible: the caller's own files, the public files, see FileIndexService
+        if (createTableIfNotExists(amazonDynamoDB, "FileMetadata", "fileId", null, fileMetadataIndexes())) {
+            // One row per (allowed role, file) of the ROLE_BASED files
+            createTableIfNotExists(amazonDynamoDB, "FileRoleIndex", "role", "sortKey");
+            createTableIfNotExists(amazonDynamoDB, "UploadSession", "uploadId", null);
+            // Sparse index holding only the blobs no file references anymore, see BlobStore
+            createTableIfNotExists(amazonDynamoDB, "FileBlob", "contentHash", null,
+                    globalSecondaryIndex("orphaned-index", "orphaned", "lastReleasedAt"));
+            // Resume points of the ParallelScanner jobs, one row per job and segment
+            createTableIfNotExists(amazonDynamoDB, ParallelScanner.CHECKPOINT_TABLE, "checkpointId", null);
+            // Bytes and files stored by each user, see QuotaService
+            createTableIfNotExists(amazonDynamoDB, "UserQuota", "ownerId", null);
+            // Column statistics of the CSV objects, see CsvStatsService
+            createTableIfNotExists(amazonDynamoDB, CsvStatsService.TABLE_NAME, "s3Key", null);
+            // Versions of the re-uploaded files, by number, see FileVersionService
+            createTableIfNotExists(amazonDynamoDB, FileVersionService.TABLE_NAME, "fileId", "versionKey");
+        }
         return amazonDynamoDB;
     }
 
+    /**
+     * Client non bloccante (SDK v2) per le letture e scritture di /files/async, accanto al client v1 usato dai
+     * repository. Le tabelle sono create dal client v1, da cui dipende.
+     */
+    @Bean
+    public DynamoDbAsyncClient dynamoDbAsyncClient(AmazonDynamoDB amazonDynamoDB) {
+        return DynamoDbAsyncClient.builder()
+                .region(Region.US_WEST_2)
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(awsAccessKeyId, awsSecretKey)))
+                .endpointOverride(URI.create(endpoint))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(asyncMaxConcurrency))
+                .build();
+    }
 
-    private void createTableIfNotExists(AmazonDynamoDB amazonDynamoDB) {
+    /**
+     * Limita le chiamate in corso al numero di connessioni del pool. Un virtual thread che aspetta una
+     * connessione libera dentro Apache HttpClient blocca anche il suo carrier (la lease avviene in un blocco
+     * synchronized) e, con tutti i carrier bloccati, chi tiene le connessioni non può restituirle: l'attesa
+     * avviene invece su un Semaphore, al più per acquisitionTimeout. Le risposte di DynamoDB vengono lette per intero, quindi la connessione
+     * è già tornata nel pool quando la chiamata ritorna.
+     */
+    private static AmazonDynamoDB gated(AmazonDynamoDB client, int maxConnections, Duration acquisitionTimeout) {
+        Semaphore permits = new Semaphore(maxConnections);
+        return (AmazonDynamoDB) Proxy.newProxyInstance(AmazonDynamoDB.class.getClassLoader(),
+                new Class<?>[] { AmazonDynamoDB.class }, (proxy, method, args) -> {
+                    if (!permits.tryAcquire(acquisitionTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                        throw new SdkClientException("Timed out after " + acquisitionTimeout.toMillis()
+                                + " ms waiting for a DynamoDB connection");
+                    }
+                    try {
+                        return method.invoke(client, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        permits.release();
+                    }
+                });
+    }
+
+    @Bean
+    public ParallelScanner parallelScanner(AmazonDynamoDB amazonDynamoDB,
+                                           @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        return new ParallelScanner(amazonDynamoDB, virtualThreads);
+    }
+
+
+    /**
+     * Crea la tabella se non esiste; se esiste già le aggiunge gli indici secondari che le mancano.
+     *
+     * @param rangeKey la sort key della tabella, null se la tabella ha solo la partition key
+     * @return false if DynamoDB could not be reached, so the remaining tables are not attempted
+     */
+    private boolean createTableIfNotExists(AmazonDynamoDB amazonDynamoDB, String tableName, String hashKey, String rangeKey,
+                                           GlobalSecondaryIndex... indexes) {
         DynamoDB dynamoDB = new DynamoDB(amazonDynamoDB);
-        Table table = dynamoDB.getTable("FileMetadata");
+        Table table = dynamoDB.getTable(tableName);
 
         try {
-            table.describe();
+            addMissingIndexes(amazonDynamoDB, table.describe(), indexes);
         } catch (Exception e) {
             if (e instanceof ResourceNotFoundException) {
                 CreateTableRequest createTableRequest = new CreateTableRequest()
-                        .withTableName("FileMetadata")
-                        .withKeySchema(new KeySchemaElement("fileId", KeyType.HASH)) // Partition key
-                        .withAttributeDefinitions(new AttributeDefinition("fileId", ScalarAttributeType.S)) // Define the attribute type
+                        .withTableName(tableName)
+                        .withKeySchema(new KeySchemaElement(hashKey, KeyType.HASH)) // Partition key
+                        .withAttributeDefinitions(new AttributeDefinition(hashKey, ScalarAttributeType.S)) // Define the attribute type
                         .withProvisionedThroughput(new ProvisionedThroughput(5L, 5L)); // Set read and write capacity units
+                if (rangeKey != null) {
+                    // The with* methods append to the key schema and attribute definitions
+                    createTableRequest.withKeySchema(new KeySchemaElement(rangeKey, KeyType.RANGE)) // Sort key
+                            .withAttributeDefinitions(new AttributeDefinition(rangeKey, ScalarAttributeType.S));
+                }
+                if (indexes.length > 0) {
+                    createTableRequest.withGlobalSecondaryIndexes(indexes);
+                    // Index keys are all strings
+                    Arrays.stream(indexes)
+                            .flatMap(index -> index.getKeySchema().stream())
+                            .map(KeySchemaElement::getAttributeName)
+                            .distinct()
+                            .filter(name -> !name.equals(hashKey) && !name.equals(rangeKey))
+                            .forEach(name -> createTableRequest.withAttributeDefinitions(new AttributeDefinition(name, ScalarAttributeType.S)));
+                }
                 amazonDynamoDB.createTable(createTableRequest);
                 //table.waitForActive();
-                System.out.println("Table created successfully.");
+                System.out.println("Table " + tableName + " created successfully.");
             } else {
-                System.out.println("Failed to create table: " + e.getMessage());
+                System.out.println("Failed to create table " + tableName + ": " + e.getMessage());
+                return false;
             }
         }
+        return true;
     }
 
-}
+    public static GlobalSecondaryIndex[] fileMetadataIndexes() {
+        return new GlobalSecondaryIndex[] {
+                globalSecondaryIndex("owner-index", "ownerId", "uploadDate"),
+                globalSecondaryIndex("visibility-index", "visibility", "uploadDate")
+        };
+    }
+
+    /**
+     * Aggiunge a una tabella esistente gli indici che non ha ancora. DynamoDB costruisce un solo indice
+     * alla volta per tabella: quelli rifiutati vanno riproposti più tardi, lo fa FileIndexService finché
+     * gli indici di FileMetadata non sono tutti ACTIVE.
+     */
+    public static void addMissingIndexes(AmazonDynamoDB amazonDynamoDB, TableDescription description, GlobalSecondaryIndex... indexes) {
+        Set<String> existing = description.getGlobalSecondaryIndexes() == null ? Set.of()
+                : description.getGlobalSecondaryIndexes().stream()
+                        .map(index -> index.getIndexName())
+                        .collect(Collectors.toSet());
+
+        for (GlobalSecondaryIndex index : indexes) {
+            if (existing.contains(index.getIndexName())) {
+                continue;
+            }
+            List<AttributeDefinition> definitions = new ArrayList<>();
+            index.getKeySchema().forEach(key -> definitions.add(new AttributeDefinition(key.getAttributeName(), ScalarAttributeType.S)));
+            try {
+                amazonDynamoDB.updateTable(new UpdateTableRequest()
+                        .withTableName(description.getTableName())
+                        .withAttributeDefinitions(definitions)
+                        .withGlobalSecondaryIndexUpdates(new GlobalSecondaryIndexUpdate()
+                                .withCreate(new CreateGlobalSecondaryIndexAction()
+                                        .withIndexName(index.getIndexName())
+                                        .withKeySchema(index.getKeySchema())
+                                        .withProjection(index.getProjection())
+                                        .withProvisionedThroughput(index.getProvisionedThroughput()))));
+                System.out.println("Index " + index.getIndexName() + " added to table " + description.getTableName() + ".");
+            } catch (Exception e) {
+                System.out.println("Failed to add index " + index.getIndexName() + " to table "
+                        + description.getTableName() + ": " + e.getMessage());
+            }
+        }
+    }
 
+    private static GlobalSecondaryIndex globalSecondaryIndex(String indexName, String hashKey, String rangeKey) {
+        return new GlobalSecondaryIndex()
+                .withIndexName(indexName)
+                .withKeySchema(new KeySchemaElement(hashKey, KeyType.HASH), new KeySchemaElement(rangeKey, KeyType.RANGE))
+                .withProjection(new Projection().withProjectionType(ProjectionType.ALL))
+                .withProvisionedThroughput(new ProvisionedThroughput(5L, 5L));
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.github.giuseppemarletta.file_service.config;
+
+import org.springframework.amqp.core.AnonymousQueue;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.FanoutExchange;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.github.giuseppemarletta.file_service.service.AclIndex;
+import com.github.giuseppemarletta.file_service.service.ContentIndexService;
+import com.github.giuseppemarletta.file_service.service.FileMetadataCache;
+
+/**
+ * Notifica tra le istanze del servizio dei file caricati o cancellati, per la cache dei metadati,
+ * l'AclIndex e l'indice del contenuto: ogni istanza ha una coda anonima, cancellata quando si disconnette, collegata a un
+ * exchange fanout comune. Il messaggio è l'id dell'istanza che lo pubblica e il fileId, separati da '/'.
+ */
+@Configuration
+@ConditionalOnProperty(name = "file.metadata.cache.broadcast.enabled", havingValue = "true")
+public class MetadataCacheConfig {
+
+    public static final String INVALIDATION_EXCHANGE = "file-metadata-invalidation";
+
+    @Bean
+    public FanoutExchange metadataInvalidationExchange() {
+        return new FanoutExchange(INVALIDATION_EXCHANGE);
+    }
+
+    @Bean
+    public Queue metadataInvalidationQueue() {
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    public Binding metadataInvalidationBinding(Queue metadataInvalidationQueue, FanoutExchange metadataInvalidationExchange) {
+        return BindingBuilder.bind(metadataInvalidationQueue).to(metadataInvalidationExchange);
+    }
+
+    @Bean
+    public MetadataInvalidationListener metadataInvalidationListener(FileMetadataCache fileMetadataCache, AclIndex aclIndex,
+                                                                     ContentIndexService contentIndexService) {
+        return new MetadataInvalidationListener(fileMetadataCache, aclIndex, contentIndexService);
+    }
+
+    public static class MetadataInvalidationListener {
+
+        private final FileMetadataCache fileMetadataCache;
+        private final AclIndex aclIndex;
+        private final ContentIndexService contentIndexService;
+
+        MetadataInvalidationListener(FileMetadataCache fileMetadataCache, AclIndex aclIndex,
+                                     ContentIndexService contentIndexService) {
+            this.fileMetadataCache = fileMetadataCache;
+            this.aclIndex = aclIndex;
+            this.contentIndexService = contentIndexService;
+        }
+
+        // Our own messages come back too: the change is already applied here, and evicting the entry we just
+        // wrote would only cost another read
+        @RabbitListener(queues = "#{metadataInvalidationQueue.name}")
+        public void onInvalidation(String message) {
+            String fileId = fileMetadataCache.fromOtherInstance(message);
+            if (fileId == null) {
+                return;
+            }
+            fileMetadataCache.evict(fileId);
+            aclIndex.refresh(fileId);
+            contentIndexService.refresh(fileId);
+        }
+    }
+}
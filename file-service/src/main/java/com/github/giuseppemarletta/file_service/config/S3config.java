@@ -1,17 +1,25 @@
 package com.github.giuseppemarletta.file_service.config;
 
 import java.net.URI;
+import java.time.Duration;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.beans.factory.annotation.Value;
 
+import com.github.giuseppemarletta.file_service.util.GatedSdkHttpClient;
+
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 @Configuration
 public class S3config {
@@ -28,6 +36,19 @@ public class S3config {
     @Value("${amazon.s3.region}")
     private String region;
 
+    @Value("${amazon.s3.max-connections:50}")
+    private int maxConnections;
+
+    // Longest wait for a pooled connection before the call fails
+    @Value("${amazon.s3.connection-acquisition-timeout:10s}")
+    private Duration connectionAcquisitionTimeout;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    @Value("${amazon.async.max-concurrency:1000}")
+    private int asyncMaxConcurrency;
+
     @Bean
     public S3Client s3Client() {
         S3Configuration config = S3Configuration.builder()
@@ -41,6 +62,18 @@ public class S3config {
                 )
                 .serviceConfiguration(config);
 
+        if (virtualThreads) {
+            // Virtual threads wait for a free connection outside the pool, see GatedSdkHttpClient
+            builder.httpClient(new GatedSdkHttpClient(ApacheHttpClient.builder()
+                    .maxConnections(maxConnections)
+                    .connectionAcquisitionTimeout(connectionAcquisitionTimeout)
+                    .build(), maxConnections, connectionAcquisitionTimeout));
+        } else {
+            builder.httpClientBuilder(ApacheHttpClient.builder()
+                    .maxConnections(maxConnections)
+                    .connectionAcquisitionTimeout(connectionAcquisitionTimeout));
+        }
+
         if (endpoint != null && !endpoint.isEmpty()) {
             builder.endpointOverride(URI.create(endpoint));
         }
@@ -48,4 +81,50 @@ public class S3config {
         return builder.build();
     }
 
+    /**
+     * Client non bloccante per /files/async: le richieste sono gestite dagli event loop Netty, senza un thread
+     * per richiesta in corso. max-concurrency limita le connessioni aperte verso S3.
+     */
+    @Bean
+    public S3AsyncClient s3AsyncClient() {
+        S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                .region(Region.of(region))
+                .credentialsProvider(
+                    StaticCredentialsProvider.create(AwsBasicCredentials.create(awsAccessKeyId, awsSecretKey))
+                )
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(asyncMaxConcurrency))
+                .serviceConfiguration(S3Configuration.builder()
+                        .pathStyleAccessEnabled(true)
+                        .build());
+
+        if (endpoint != null && !endpoint.isEmpty()) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Presigner condiviso: costruirne uno per ogni URL risolve ogni volta credenziali, regione ed endpoint.
+     * Spring lo chiude allo shutdown.
+     */
+    @Bean
+    public S3Presigner s3Presigner() {
+        S3Presigner.Builder builder = S3Presigner.builder()
+                .region(Region.of(region))
+                .credentialsProvider(
+                    StaticCredentialsProvider.create(AwsBasicCredentials.create(awsAccessKeyId, awsSecretKey))
+                )
+                // Same addressing as the client: the bucket goes in the path, not in the host name
+                .serviceConfiguration(S3Configuration.builder()
+                        .pathStyleAccessEnabled(true)
+                        .build());
+
+        if (endpoint != null && !endpoint.isEmpty()) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+
+        return builder.build();
+    }
+
 }
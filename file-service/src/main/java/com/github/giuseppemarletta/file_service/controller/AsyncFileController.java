@@ -0,0 +1,108 @@
+package com.github.giuseppemarletta.file_service.controller;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.service.AsyncFileService;
+import com.github.giuseppemarletta.file_service.util.JwtUtil;
+import com.github.giuseppemarletta.file_service.util.ServletBodyPublisher;
+
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Varianti non bloccanti di upload e download: il thread della richiesta torna subito al container e la
+ * risposta viene scritta quando la pipeline asincrona termina.
+ */
+@RestController
+@RequestMapping("/files/async")
+@RequiredArgsConstructor
+public class AsyncFileController {
+
+    // Larger files need a multipart upload, see the upload sessions
+    private static final long MAX_SINGLE_PUT_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final Object UPLOAD_INTERCEPTOR_KEY = AsyncFileController.class.getName() + ".upload";
+
+    private final AsyncFileService asyncFileService;
+    private final JwtUtil jwtUtil;
+
+    // A slow client may take much longer than spring.mvc.async.request-timeout to send a large file
+    @Value("${upload.async.timeout:1h}")
+    private Duration uploadTimeout;
+
+    // The body is the file itself, its Content-Type is the file type; Content-Length is required
+    @PutMapping("/upload")
+    public DeferredResult<ResponseEntity<FileMetadata>> uploadFile(
+            @RequestParam("fileName") String fileName,
+            @RequestParam("visibility") String visibility,
+            @RequestParam(value = "allowedRoles", required = false) String[] allowedRoles,
+            @RequestHeader("Authorization") String tokenHeader,
+            HttpServletRequest request) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+
+        long contentLength = request.getContentLengthLong();
+        if (contentLength < 0) {
+            throw new ResponseStatusException(HttpStatus.LENGTH_REQUIRED, "Content-Length is required");
+        }
+        if (contentLength > MAX_SINGLE_PUT_SIZE) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Use an upload session for files larger than 5GB");
+        }
+        String contentType = request.getContentType() != null ? request.getContentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        List<String> rolesList = allowedRoles != null ? Arrays.asList(allowedRoles) : null;
+
+        DeferredResult<ResponseEntity<FileMetadata>> result = new DeferredResult<>(uploadTimeout.toMillis());
+        WebAsyncUtils.getAsyncManager(request).registerDeferredResultInterceptor(UPLOAD_INTERCEPTOR_KEY,
+                new DeferredResultProcessingInterceptor() {
+                    @Override
+                    public <T> void preProcess(NativeWebRequest webRequest, DeferredResult<T> deferredResult) throws IOException {
+                        // Non-blocking reads need the request in async mode, which starts after the handler returns
+                        CompletableFuture<FileMetadata> upload = asyncFileService.upload(
+                                new ServletBodyPublisher(request.getInputStream(), contentLength), contentLength,
+                                contentType, userId, fileName, visibility, rolesList);
+                        result.onTimeout(() -> upload.cancel(true));
+                        upload.whenComplete((saved, e) -> {
+                            if (e != null) {
+                                result.setErrorResult(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                            } else {
+                                result.setResult(ResponseEntity.status(HttpStatus.CREATED).body(saved));
+                            }
+                        });
+                    }
+                });
+        return result;
+    }
+
+    @GetMapping("/download/{fileId}")
+    public CompletableFuture<ResponseEntity<String>> downloadFile(
+            @PathVariable String fileId,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        return asyncFileService.getDownloadUrl(fileId, userId, rolesList).thenApply(ResponseEntity::ok);
+    }
+}
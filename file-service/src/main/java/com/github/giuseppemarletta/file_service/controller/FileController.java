@@ -8,21 +8,65 @@ import org.springframework.web.multipart.MultipartFile;
 import lombok.RequiredArgsConstructor;
 
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Map;
 
+import org.springframework.beans.factory.annotation.Value;
+
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.github.giuseppemarletta.file_service.service.BulkDeleteService;
+import com.github.giuseppemarletta.file_service.service.FileIndexService;
+import com.github.giuseppemarletta.file_service.service.ContentIndexService;
+import com.github.giuseppemarletta.file_service.service.FileProxyService;
+import com.github.giuseppemarletta.file_service.service.FileSearchService;
 import com.github.giuseppemarletta.file_service.service.FileStorageService;
+import com.github.giuseppemarletta.file_service.service.QuotaService;
+import com.github.giuseppemarletta.file_service.service.UploadSessionService;
+import com.github.giuseppemarletta.file_service.service.VisibleFilesCursor;
+import com.github.giuseppemarletta.file_service.service.ZipArchiveService;
 import com.github.giuseppemarletta.file_service.util.JwtUtil;
+import com.github.giuseppemarletta.file_service.dto.BulkDeleteRequest;
+import com.github.giuseppemarletta.file_service.dto.BulkDeleteResult;
+import com.github.giuseppemarletta.file_service.dto.BulkDownloadRequest;
+import com.github.giuseppemarletta.file_service.dto.ContentSearchHit;
+import com.github.giuseppemarletta.file_service.dto.CsvStatsDto;
+import com.github.giuseppemarletta.file_service.dto.DirectUploadDto;
+import com.github.giuseppemarletta.file_service.dto.DownloadUrlResult;
 import com.github.giuseppemarletta.file_service.dto.FileMetadataDto;
+import com.github.giuseppemarletta.file_service.dto.FileSearchResponse;
+import com.github.giuseppemarletta.file_service.dto.FileVersionDto;
+import com.github.giuseppemarletta.file_service.dto.StorageUsageDto;
+import com.github.giuseppemarletta.file_service.dto.UploadChunkDto;
+import com.github.giuseppemarletta.file_service.dto.UploadSessionDto;
+import com.github.giuseppemarletta.file_service.dto.UploadSessionRequest;
 import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.model.UploadSession;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 
 @RestController
@@ -30,7 +74,24 @@ import com.github.giuseppemarletta.file_service.model.FileMetadata;
 @RequiredArgsConstructor
 public class FileController {
     private final FileStorageService fileStorageService;
+    private final UploadSessionService uploadSessionService;
+    private final ZipArchiveService zipArchiveService;
+    private final FileProxyService fileProxyService;
+    private final FileSearchService fileSearchService;
+    private final ContentIndexService contentIndexService;
+    private final QuotaService quotaService;
+    private final BulkDeleteService bulkDeleteService;
     private final JwtUtil jwtUtil;
+    private final ObjectMapper objectMapper;
+
+    private static final int MAX_VISIBLE_FILES_LIMIT = 1000;
+    private static final int MAX_CONTENT_SEARCH_LIMIT = 100;
+
+    @Value("${download.bulk.max-files:500}")
+    private int maxBulkDownloadFiles;
+
+    @Value("${file.bulk-delete.max-files:1000}")
+    private int maxBulkDeleteFiles;
 
     // Define endpoints for file upload, download, and metadata retrieval here
     @PostMapping("/upload")
@@ -38,14 +99,17 @@ public class FileController {
             @RequestPart("file") MultipartFile file, 
             @RequestPart("visibility") String visibility, 
             @RequestParam(value = "allowedRoles", required = false) String[] allowedRoles, 
+            @RequestParam(value = "encrypted", required = false) Boolean encrypted,
             @RequestHeader("Authorization") String tokenHeader) {
         try {
             String token = tokenHeader.replace("Bearer ", "");
             String userId = jwtUtil.extractUserIdFromToken(token);
 
             List<String> rolesList = allowedRoles != null ? Arrays.asList(allowedRoles) : null;
-            FileMetadata saved = fileStorageService.uploadFile(file, userId, visibility, rolesList);
+            FileMetadata saved = fileStorageService.uploadFile(file, userId, visibility, rolesList, encrypted);
             return ResponseEntity.status(HttpStatus.CREATED).body(saved);
+        } catch (ResponseStatusException e) {
+            throw e; // e.g. 413 when the file does not fit the owner's quota
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("File upload failed: " + e.getMessage());
         }
@@ -62,17 +126,380 @@ public class FileController {
         String downloadUrl = fileStorageService.getDownloadUrl(fileId, userId, rolesList);
         return ResponseEntity.ok(downloadUrl);
     }
+
+    // Bulk variant of /download/{fileId}: one round trip for many files, errors are reported per file
+    @PostMapping("/download-urls")
+    public ResponseEntity<Map<String, DownloadUrlResult>> downloadFiles(
+        @RequestBody BulkDownloadRequest request,
+        @RequestHeader("Authorization") String tokenHeader) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        if (request.getFileIds() == null || request.getFileIds().isEmpty() || request.getFileIds().size() > maxBulkDownloadFiles) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "fileIds must contain between 1 and " + maxBulkDownloadFiles + " ids");
+        }
+        return ResponseEntity.ok(fileStorageService.getDownloadUrls(request.getFileIds(), userId, rolesList));
+    }
     
 
-    @GetMapping("/visible")
-    public ResponseEntity<List<FileMetadataDto>> getVisibleFiles(@RequestHeader("Authorization") String token) {
+    // Proxied download for clients that cannot follow the presigned URL: Range and conditional GET are answered by S3
+    // or, for objects in the local disk cache, by the service itself
+    @GetMapping("/{fileId}/content")
+    public void downloadContent(
+        @PathVariable String fileId,
+        @RequestHeader("Authorization") String tokenHeader,
+        HttpServletRequest request,
+        HttpServletResponse response) throws IOException {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        long ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+        FileProxyService.FileContent content = fileProxyService.open(fileId, userId, rolesList,
+            request.getHeader(HttpHeaders.RANGE),
+            request.getHeader(HttpHeaders.IF_NONE_MATCH),
+            ifModifiedSince >= 0 ? Instant.ofEpochMilli(ifModifiedSince) : null,
+            request.getHeader(HttpHeaders.IF_RANGE));
+
+        response.setStatus(content.status());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (content.eTag() != null) {
+            response.setHeader(HttpHeaders.ETAG, content.eTag());
+        }
+        if (content.lastModified() != null) {
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED, content.lastModified().toEpochMilli());
+        }
+        if (content.status() == HttpStatus.NOT_MODIFIED.value()) {
+            return;
+        }
+
+        FileMetadata file = content.file();
+        response.setContentType(file.getFileType() != null ? file.getFileType() : MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+            .filename(file.getFileName() != null ? file.getFileName() : fileId, StandardCharsets.UTF_8).build().toString());
+        if (content.contentRange() != null) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, content.contentRange());
+        }
+        if (content.contentLength() != null) {
+            response.setContentLengthLong(content.contentLength());
+        }
+        if (content.cached() != null) {
+            fileProxyService.sendCached(content, request, response);
+            return;
+        }
+        InputStream in = content.content();
+        try {
+            // Copied through a small buffer, the object is never held in memory
+            in.transferTo(response.getOutputStream());
+        } catch (IOException | RuntimeException e) {
+            // Client gone: drop the S3 connection before anything closes the stream, close() would drain the rest
+            content.content().abort();
+            throw e;
+        }
+        in.close();
+    }
+
+    // ZIP of the chosen files, or of every visible file when no fileIds are given, streamed straight from S3
+    @PostMapping(value = "/archive", produces = "application/zip")
+    public void downloadArchive(
+        @RequestBody(required = false) BulkDownloadRequest request,
+        @RequestHeader("Authorization") String tokenHeader,
+        HttpServletResponse response) throws IOException {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        List<FileMetadata> files = null;
+        if (request != null && request.getFileIds() != null && !request.getFileIds().isEmpty()) {
+            if (request.getFileIds().size() > maxBulkDownloadFiles) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "fileIds must contain at most " + maxBulkDownloadFiles + " ids");
+            }
+            // Checked before the first byte is written, an error later can only truncate the archive
+            files = zipArchiveService.resolveFiles(request.getFileIds(), userId, rolesList);
+        }
+
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename("files.zip").build().toString());
+        // Written synchronously: an async StreamingResponseBody would be cut by the request timeout on large archives
+        if (files != null) {
+            zipArchiveService.writeArchive(files, response.getOutputStream());
+        } else {
+            zipArchiveService.writeVisibleArchive(userId, rolesList, response.getOutputStream());
+        }
+    }
+
+    // Presigned URL of a thumbnail, e.g. thumb-512; 404 until DerivativeService has rendered it
+    @GetMapping("/{fileId}/derivatives/{name}")
+    public ResponseEntity<String> getDerivative(
+            @PathVariable String fileId,
+            @PathVariable String name,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        return ResponseEntity.ok(fileStorageService.getDerivativeUrl(fileId, name, userId, rolesList));
+    }
+
+    // Column statistics of a CSV; 404 until CsvStatsService has computed them
+    @GetMapping("/{fileId}/stats")
+    public ResponseEntity<CsvStatsDto> getCsvStats(
+            @PathVariable String fileId,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        return ResponseEntity.ok(fileStorageService.getCsvStats(fileId, userId, rolesList));
+    }
+
+    // New content for an existing file: same fileId, visibility and roles, the previous content stays as a version
+    @PostMapping("/{fileId}/versions")
+    public ResponseEntity<?> uploadVersion(
+            @PathVariable String fileId,
+            @RequestPart("file") MultipartFile file,
+            @RequestHeader("Authorization") String tokenHeader) {
+        try {
+            String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+            return ResponseEntity.status(HttpStatus.CREATED).body(fileStorageService.uploadVersion(fileId, file, userId));
+        } catch (ResponseStatusException e) {
+            throw e; // e.g. 409 when another version was uploaded concurrently
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("File upload failed: " + e.getMessage());
+        }
+    }
+
+    // Versions of a file, newest first; the next page starts with before = the last version returned
+    @GetMapping("/{fileId}/versions")
+    public ResponseEntity<List<FileVersionDto>> listVersions(
+            @PathVariable String fileId,
+            @RequestParam(value = "limit", defaultValue = "50") int limit,
+            @RequestParam(value = "before", required = false) Long before,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        if (limit < 1 || limit > MAX_VISIBLE_FILES_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_VISIBLE_FILES_LIMIT);
+        }
+        return ResponseEntity.ok(fileStorageService.listVersions(fileId, userId, rolesList, limit, before));
+    }
+
+    @GetMapping("/{fileId}/versions/{version}/download")
+    public ResponseEntity<String> downloadVersion(
+            @PathVariable String fileId,
+            @PathVariable long version,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        return ResponseEntity.ok(fileStorageService.getVersionDownloadUrl(fileId, version, userId, rolesList));
+    }
+
+    // 202 while an archived file is being restored, 200 once it can be downloaded
+    @PostMapping("/{fileId}/restore")
+    public ResponseEntity<String> restoreFile(
+            @PathVariable String fileId,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        return fileStorageService.restoreFile(fileId, userId, rolesList)
+                ? ResponseEntity.status(HttpStatus.ACCEPTED).body("Restore in progress, retry the download later")
+                : ResponseEntity.ok("File is available");
+    }
+
+    // Storage used by the caller and their quota
+    @GetMapping("/usage")
+    public ResponseEntity<StorageUsageDto> getUsage(@RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        return ResponseEntity.ok(quotaService.getUsage(userId));
+    }
+
+    @DeleteMapping("/{fileId}")
+    public ResponseEntity<Void> deleteFile(
+        @PathVariable String fileId,
+        @RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        fileStorageService.deleteFile(fileId, userId);
+        return ResponseEntity.noContent().build();
+    }
+
+    // Bulk variant of DELETE /files/{fileId}: batched writes to DynamoDB and S3, errors are reported per file
+    @PostMapping("/bulk-delete")
+    public ResponseEntity<Map<String, BulkDeleteResult>> deleteFiles(
+        @RequestBody BulkDeleteRequest request,
+        @RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+
+        if (request.getFileIds() == null || request.getFileIds().isEmpty() || request.getFileIds().size() > maxBulkDeleteFiles) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "fileIds must contain between 1 and " + maxBulkDeleteFiles + " ids");
+        }
+        return ResponseEntity.ok(bulkDeleteService.deleteFiles(request.getFileIds(), userId));
+    }
+
+    // Streamed as it is produced; with limit or nextToken the array is wrapped in a page with the continuation token
+    @GetMapping(value = "/visible", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> getVisibleFiles(
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "nextToken", required = false) String nextToken,
+            @RequestHeader("Authorization") String token) {
         String jwt = token.replace("Bearer ", "");
         String userId = jwtUtil.extractUserIdFromToken(jwt);
 
         List<String> userRoles = jwtUtil.extractUserRolesFromToken(jwt);
 
-        return ResponseEntity.ok(fileStorageService.getVisibleFiles(userId, userRoles));
+        if (limit != null && (limit < 1 || limit > MAX_VISIBLE_FILES_LIMIT)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_VISIBLE_FILES_LIMIT);
+        }
+        // Validated here so that a bad token is still a 400 and not a truncated stream
+        VisibleFilesCursor cursor = fileStorageService.openVisibleFilesCursor(nextToken, userId);
+        boolean paged = limit != null || cursor != null;
+
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+                if (paged) {
+                    json.writeStartObject();
+                    json.writeFieldName("files");
+                }
+                json.writeStartArray();
+                String next = fileStorageService.streamVisibleFiles(userId, userRoles, limit, cursor, new FileIndexService.VisibleFileSink() {
+                    @Override
+                    public void accept(FileMetadataDto file) throws IOException {
+                        json.writeObject(file);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        json.flush();
+                    }
+                });
+                json.writeEndArray();
+                if (paged) {
+                    json.writeStringField("nextToken", next);
+                    json.writeEndObject();
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    // Search among the visible files by name prefix, type, size and upload date, newest first
+    @GetMapping("/search")
+    public ResponseEntity<FileSearchResponse> searchFiles(
+            @RequestParam(value = "q", required = false) String text,
+            @RequestParam(value = "type", required = false) String type,
+            @RequestParam(value = "minSize", required = false) Long minSize,
+            @RequestParam(value = "maxSize", required = false) Long maxSize,
+            @RequestParam(value = "from", required = false) String from,
+            @RequestParam(value = "to", required = false) String to,
+            @RequestParam(value = "limit", defaultValue = "50") int limit,
+            @RequestParam(value = "nextToken", required = false) String nextToken,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        if (limit < 1 || limit > MAX_VISIBLE_FILES_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_VISIBLE_FILES_LIMIT);
+        }
+        return ResponseEntity.ok(fileSearchService.search(userId, rolesList, text, type, minSize, maxSize, from, to, limit, nextToken));
+    }
+
+    // Full-text search in the content of the text files visible to the user, most relevant first
+    @GetMapping("/search/content")
+    public ResponseEntity<List<ContentSearchHit>> searchContent(
+            @RequestParam("q") String query,
+            @RequestParam(value = "limit", defaultValue = "20") int limit,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String token = tokenHeader.replace("Bearer ", "");
+        String userId = jwtUtil.extractUserIdFromToken(token);
+        List<String> rolesList = jwtUtil.extractUserRolesFromToken(token);
+
+        if (limit < 1 || limit > MAX_CONTENT_SEARCH_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_CONTENT_SEARCH_LIMIT);
+        }
+        return ResponseEntity.ok(contentIndexService.search(userId, rolesList, query, limit));
+    }
+
+    // Resumable upload sessions: init, PUT numbered chunks in any order, check received chunks, commit
+    @PostMapping("/uploads")
+    public ResponseEntity<UploadSessionDto> initUploadSession(
+            @RequestBody UploadSessionRequest request,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        UploadSession session = uploadSessionService.initSession(request, userId);
+        return ResponseEntity.status(HttpStatus.CREATED).body(new UploadSessionDto(
+            session.getUploadId(), session.getFileName(), session.getStatus(), session.getExpiresAt()));
+    }
+
+    @PutMapping(value = "/uploads/{uploadId}/chunks/{chunkNumber}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<UploadChunkDto> uploadChunk(
+            @PathVariable String uploadId,
+            @PathVariable int chunkNumber,
+            @RequestHeader("Authorization") String tokenHeader,
+            HttpServletRequest request) throws IOException {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        // The raw request body is streamed straight to S3
+        try (InputStream in = request.getInputStream()) {
+            return ResponseEntity.ok(uploadSessionService.uploadChunk(uploadId, userId, chunkNumber, in, request.getContentLengthLong()));
+        }
+    }
+
+    // Presigned URL to PUT a chunk straight to S3 instead of through this service
+    @GetMapping("/uploads/{uploadId}/chunks/{chunkNumber}/url")
+    public ResponseEntity<String> getChunkUploadUrl(
+            @PathVariable String uploadId,
+            @PathVariable int chunkNumber,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        return ResponseEntity.ok(uploadSessionService.getChunkUploadUrl(uploadId, userId, chunkNumber));
+    }
+
+    @GetMapping("/uploads/{uploadId}/chunks")
+    public ResponseEntity<List<UploadChunkDto>> getReceivedChunks(
+            @PathVariable String uploadId,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        return ResponseEntity.ok(uploadSessionService.getReceivedChunks(uploadId, userId));
+    }
+
+    @PostMapping("/uploads/{uploadId}/commit")
+    public ResponseEntity<FileMetadata> commitUploadSession(
+            @PathVariable String uploadId,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        return ResponseEntity.status(HttpStatus.CREATED).body(uploadSessionService.commit(uploadId, userId));
     }
 
+    @DeleteMapping("/uploads/{uploadId}")
+    public ResponseEntity<Void> abortUploadSession(
+            @PathVariable String uploadId,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        uploadSessionService.abort(uploadId, userId);
+        return ResponseEntity.noContent().build();
+    }
+
+    // Direct-to-S3 upload: the client PUTs the file to the presigned URL, then finalizes it here
+    @PostMapping("/direct-uploads")
+    public ResponseEntity<DirectUploadDto> initDirectUpload(
+            @RequestBody UploadSessionRequest request,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        return ResponseEntity.status(HttpStatus.CREATED).body(uploadSessionService.initDirectUpload(request, userId));
+    }
+
+    @PostMapping("/direct-uploads/{uploadId}/finalize")
+    public ResponseEntity<FileMetadata> finalizeDirectUpload(
+            @PathVariable String uploadId,
+            @RequestHeader("Authorization") String tokenHeader) {
+        String userId = jwtUtil.extractUserIdFromToken(tokenHeader.replace("Bearer ", ""));
+        return ResponseEntity.status(HttpStatus.CREATED).body(uploadSessionService.finalizeDirectUpload(uploadId, userId));
+    }
 
 }
@@ -0,0 +1,15 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class BulkDeleteRequest {
+
+    private List<String> fileIds;
+}
@@ -0,0 +1,22 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class BulkDeleteResult {
+
+    private int status; // HTTP status the single-file endpoint would have returned
+    private String error;
+
+    public static BulkDeleteResult ok() {
+        return new BulkDeleteResult(204, null);
+    }
+
+    public static BulkDeleteResult error(int status, String error) {
+        return new BulkDeleteResult(status, error);
+    }
+}
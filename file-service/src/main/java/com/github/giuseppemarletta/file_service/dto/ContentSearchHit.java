@@ -0,0 +1,14 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ContentSearchHit {
+
+    private FileMetadataDto file;
+    private double score; // BM25, only comparable within the same response
+}
@@ -0,0 +1,26 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class CsvColumnStatsDto {
+
+    private String name;
+    private String type; // numeric when every non-null value is a number, text otherwise, empty with no values
+    private Long count; // Non-null values
+    private Long nulls; // Empty, NULL or missing in a short row
+    private Long distinct; // Approximate, HyperLogLog
+    // Over the numeric values only, null when there are none
+    private Long numericCount;
+    private Double min;
+    private Double max;
+    private Double mean;
+    private Double stddev; // Sample standard deviation
+    private Map<String, Double> quantiles; // Approximate, p01 to p99
+}
@@ -0,0 +1,19 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class CsvStatsDto {
+
+    private String fileId;
+    private Long rows; // Header excluded
+    private Integer ignoredColumns; // Beyond csv.stats.max-columns
+    private String computedAt;
+    private List<CsvColumnStatsDto> columns;
+}
@@ -0,0 +1,16 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DirectUploadDto {
+
+    private String uploadId;
+    private String uploadUrl; // Presigned PUT URL, the client uploads the file straight to S3
+    private String urlExpiresAt;
+    private String expiresAt; // The upload must be finalized before this
+}
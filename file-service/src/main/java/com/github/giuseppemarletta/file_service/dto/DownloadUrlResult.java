@@ -0,0 +1,23 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DownloadUrlResult {
+
+    private int status; // HTTP status the single-file endpoint would have returned
+    private String url; // Presigned URL, null on error
+    private String error;
+
+    public static DownloadUrlResult ok(String url) {
+        return new DownloadUrlResult(200, url, null);
+    }
+
+    public static DownloadUrlResult error(int status, String error) {
+        return new DownloadUrlResult(status, null, error);
+    }
+}
@@ -0,0 +1,16 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class FileSearchResponse {
+
+    private List<FileMetadataDto> files;
+    private String nextToken; // Null on the last page
+}
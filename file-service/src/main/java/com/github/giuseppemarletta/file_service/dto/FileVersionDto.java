@@ -0,0 +1,19 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class FileVersionDto {
+
+    private long version;
+    private String fileName;
+    private String fileType;
+    private Long fileSize;
+    private String contentHash;
+    private String uploadDate; // When this version was uploaded, ISO 8601
+    private boolean current;
+}
@@ -0,0 +1,18 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class StorageUsageDto {
+
+    private String ownerId;
+    private Long usedBytes;
+    private Long fileCount;
+    private Long reservedBytes; // Uploads in progress on the instance that answered
+    private Long maxBytes;
+    private Long maxFiles; // Null when the number of files is not limited
+}
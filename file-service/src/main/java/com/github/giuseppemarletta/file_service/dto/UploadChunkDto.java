@@ -0,0 +1,15 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class UploadChunkDto {
+
+    private Integer chunkNumber;
+    private Long size;
+    private String eTag;
+}
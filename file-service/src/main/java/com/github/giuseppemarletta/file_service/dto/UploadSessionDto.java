@@ -0,0 +1,16 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class UploadSessionDto {
+
+    private String uploadId;
+    private String fileName;
+    private String status;
+    private String expiresAt;
+}
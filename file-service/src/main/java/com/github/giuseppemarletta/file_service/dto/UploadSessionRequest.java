@@ -0,0 +1,19 @@
+package com.github.giuseppemarletta.file_service.dto;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class UploadSessionRequest {
+
+    private String fileName;
+    private String fileType;
+    private Long fileSize;
+    private String visibility;
+    private List<String> allowedRoles;
+}
@@ -4,7 +4,10 @@ import java.util.List;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBIndexHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBIndexRangeKey;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -13,7 +16,7 @@ import lombok.NoArgsConstructor;
 
 @DynamoDBTable(tableName = "FileMetadata")
 @Data
-@Builder
+@Builder(toBuilder = true)
 @AllArgsConstructor
 @NoArgsConstructor
 public class FileMetadata {
@@ -21,7 +24,7 @@ public class FileMetadata {
     @DynamoDBHashKey(attributeName = "fileId")
     private String fileId;
 
-    @DynamoDBAttribute(attributeName = "ownerId")
+    @DynamoDBIndexHashKey(attributeName = "ownerId", globalSecondaryIndexName = "owner-index")
     private String ownerId;
 
     @DynamoDBAttribute(attributeName = "fileName")
@@ -33,15 +36,43 @@ public class FileMetadata {
     @DynamoDBAttribute(attributeName = "fileSize")
     private Long fileSize;
 
-    @DynamoDBAttribute(attributeName = "uploadDate")
+    @DynamoDBIndexRangeKey(attributeName = "uploadDate", globalSecondaryIndexNames = {"owner-index", "visibility-index"})
     private String uploadDate; // ISO 8601 format (e.g., "2023-10-01T12:00:00Z")
 
     @DynamoDBAttribute(attributeName = "s3Key")
     private String s3Key; // The key used to store the file in S3
 
-    @DynamoDBAttribute(attributeName = "visibility")
+    @DynamoDBAttribute(attributeName = "contentHash")
+    private String contentHash; // SHA-256 of the content when s3Key is a shared blob (see BlobStore), null otherwise
+
+    @DynamoDBIndexHashKey(attributeName = "visibility", globalSecondaryIndexName = "visibility-index")
     private String visibility; // e.g., "public", "private", "restricted ROLE_BASED"
     
     @DynamoDBAttribute(attributeName = "allowedRoles")
     private List<String> allowedRoles; // List of roles allowed to access the file, if visibility is ROLE_BASED
+
+    @DynamoDBAttribute(attributeName = "lastAccessAt")
+    private String lastAccessAt; // ISO 8601, last read recorded by AccessTracker; null if never read
+
+    @DynamoDBAttribute(attributeName = "accessCount")
+    private Long accessCount; // Approximate number of reads, see AccessTracker
+
+    @DynamoDBAttribute(attributeName = "storageClass")
+    private String storageClass; // S3 storage class set by StorageTieringService, null for STANDARD
+
+    @DynamoDBAttribute(attributeName = "derivatives")
+    private List<String> derivatives; // Thumbnails ready under derived/<s3Key>/, see DerivativeService; empty if none can be made
+
+    @DynamoDBAttribute(attributeName = "statsComputedAt")
+    private String statsComputedAt; // ISO 8601, set when CsvStatsService has stored the column statistics (or the parse error) of a CSV
+
+    @DynamoDBAttribute(attributeName = "version")
+    private Long version; // Current version, see FileVersionService; null for a file never re-uploaded (version 1)
+
+    @JsonIgnore
+    @DynamoDBAttribute(attributeName = "encryptedKey")
+    private String encryptedKey; // Data key of a file encrypted by EncryptionService, wrapped with the master key; null if stored in clear
+
+    @DynamoDBAttribute(attributeName = "encryptionChunkSize")
+    private Integer encryptionChunkSize; // Plaintext bytes per AES-GCM chunk of an encrypted file
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package com.github.giuseppemarletta.file_service.model;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBRangeKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Riga dell'indice dei file ROLE_BASED: una per ogni coppia (ruolo ammesso, file).
+ * DynamoDB non può indicizzare gli elementi di una lista, quindi allowedRoles viene espanso qui
+ * insieme ai campi mostrati in /files/visible, così la lista si ottiene con una sola query per ruolo.
+ */
+@DynamoDBTable(tableName = "FileRoleIndex")
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class FileRoleEntry {
+
+    @DynamoDBHashKey(attributeName = "role")
+    private String role;
+
+    @DynamoDBRangeKey(attributeName = "sortKey")
+    private String sortKey; // uploadDate#fileId, newest files last
+
+    @DynamoDBAttribute(attributeName = "fileId")
+    private String fileId;
+
+    @DynamoDBAttribute(attributeName = "fileName")
+    private String fileName;
+
+    @DynamoDBAttribute(attributeName = "fileType")
+    private String fileType;
+
+    @DynamoDBAttribute(attributeName = "fileSize")
+    private Long fileSize;
+
+    @DynamoDBAttribute(attributeName = "uploadDate")
+    private String uploadDate;
+
+    @DynamoDBAttribute(attributeName = "visibility")
+    private String visibility;
+}
@@ -0,0 +1,59 @@
+package com.github.giuseppemarletta.file_service.model;
+
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@DynamoDBTable(tableName = "UploadSession")
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class UploadSession {
+
+    @DynamoDBHashKey(attributeName = "uploadId")
+    private String uploadId;
+
+    @DynamoDBAttribute(attributeName = "ownerId")
+    private String ownerId;
+
+    @DynamoDBAttribute(attributeName = "fileName")
+    private String fileName;
+
+    @DynamoDBAttribute(attributeName = "fileType")
+    private String fileType;
+
+    @DynamoDBAttribute(attributeName = "fileSize")
+    private Long fileSize; // Declared by the client at init, optional
+
+    @DynamoDBAttribute(attributeName = "visibility")
+    private String visibility;
+
+    @DynamoDBAttribute(attributeName = "allowedRoles")
+    private List<String> allowedRoles;
+
+    @DynamoDBAttribute(attributeName = "s3Key")
+    private String s3Key; // Key the object will have once the session is committed
+
+    @DynamoDBAttribute(attributeName = "uploadMode")
+    private String uploadMode; // MULTIPART (chunks, also via presigned part URLs) or DIRECT (single presigned PUT)
+
+    @DynamoDBAttribute(attributeName = "s3UploadId")
+    private String s3UploadId; // Id of the S3 multipart upload backing this session, MULTIPART mode only
+
+    @DynamoDBAttribute(attributeName = "status")
+    private String status; // IN_PROGRESS, COMMITTING, COMMITTED or ABORTING, see UploadSessionService
+
+    @DynamoDBAttribute(attributeName = "createdAt")
+    private String createdAt; // ISO 8601 format
+
+    @DynamoDBAttribute(attributeName = "expiresAt")
+    private String expiresAt; // ISO 8601 format, after this the reaper aborts the session
+}
@@ -0,0 +1,143 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Conta le letture dei file (URL di download, contenuto in streaming, archivi ZIP) per il tiering dello
+ * storage, vedi StorageTieringService.
+ *
+ * Una lettura incrementa solo il contatore in memoria del file (un LongAdder): nessuna scrittura né lock sul
+ * percorso del download. Ogni access.tracking.flush-interval i contatori vengono sostituiti con una mappa
+ * vuota e, per ogni file letto, il conteggio viene aggiunto a accessCount su FileMetadata insieme a
+ * lastAccessAt. Quando la mappa arriva a access.tracking.max-tracked-files file viene sostituita e scritta
+ * subito in background, senza aspettare la fine dell'intervallo, così la memoria resta limitata senza perdere
+ * letture; lastAccessAt è l'ora del flush, quindi in ritardo al più di un intervallo.
+ */
+@Service
+@RequiredArgsConstructor
+public class AccessTracker {
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+
+    private final AmazonDynamoDB amazonDynamoDB;
+
+    @Value("${access.tracking.enabled:true}")
+    private boolean enabled;
+
+    @Value("${access.tracking.flush-interval:PT1M}")
+    private Duration flushInterval;
+
+    // A map holding this many files is flushed early, so it stays bounded
+    @Value("${access.tracking.max-tracked-files:100000}")
+    private int maxTrackedFiles;
+
+    private final AtomicReference<Map<String, LongAdder>> counts = new AtomicReference<>(new ConcurrentHashMap<>());
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    void init() {
+        // One UpdateItem per file read: a thread of its own, not the shared scheduler
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "access-tracker-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void record(FileMetadata file) {
+        if (!enabled) {
+            return;
+        }
+        while (true) {
+            Map<String, LongAdder> current = counts.get();
+            // get() does not lock, computeIfAbsent() only for the first read of the file in the interval
+            LongAdder count = current.get(file.getFileId());
+            if (count == null) {
+                if (current.size() >= maxTrackedFiles) {
+                    // Only the reader that swaps the full map flushes it, the read goes to the new one
+                    if (counts.compareAndSet(current, new ConcurrentHashMap<>())) {
+                        flushEarly(current);
+                    }
+                    continue;
+                }
+                count = current.computeIfAbsent(file.getFileId(), fileId -> new LongAdder());
+            }
+            count.increment();
+            return;
+        }
+    }
+
+    /**
+     * Scrive su FileMetadata le letture dell'ultimo intervallo. Una lettura contata sulla mappa precedente
+     * mentre veniva sostituita può andare persa: il conteggio è comunque approssimato.
+     */
+    public void flush() {
+        if (counts.get().isEmpty()) {
+            return;
+        }
+        write(counts.getAndSet(new ConcurrentHashMap<>()));
+    }
+
+    private void flushEarly(Map<String, LongAdder> full) {
+        try {
+            flusher.execute(() -> write(full));
+        } catch (RejectedExecutionException e) {
+            write(full); // Shutting down
+        }
+    }
+
+    private synchronized void write(Map<String, LongAdder> flushed) {
+        String now = Instant.now().toString();
+        int written = 0;
+        for (Map.Entry<String, LongAdder> entry : flushed.entrySet()) {
+            String fileId = entry.getKey();
+            try {
+                amazonDynamoDB.updateItem(new UpdateItemRequest()
+                        .withTableName(FILE_METADATA_TABLE)
+                        .withKey(Map.of("fileId", new AttributeValue(fileId)))
+                        .withUpdateExpression("SET lastAccessAt = :now ADD accessCount :count")
+                        // Deleted in the meantime: do not recreate the item
+                        .withConditionExpression("attribute_exists(fileId)")
+                        .withExpressionAttributeValues(Map.of(
+                                ":now", new AttributeValue(now),
+                                ":count", new AttributeValue().withN(Long.toString(entry.getValue().sum())))));
+                written++;
+            } catch (ConditionalCheckFailedException e) {
+                // Deleted file
+            } catch (RuntimeException e) {
+                System.out.println("Failed to record the accesses of " + fileId + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Recorded the accesses of " + written + " files.");
+    }
+
+    @PreDestroy
+    void flushOnShutdown() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(30, TimeUnit.SECONDS);
+        flush();
+    }
+}
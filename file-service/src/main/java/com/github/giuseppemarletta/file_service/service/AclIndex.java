@@ -0,0 +1,405 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+/**
+ * Indice in memoria dei permessi di lettura di tutti i file, per calcolare i file visibili a un utente
+ * senza interrogare DynamoDB.
+ *
+ * Ogni file ha un numero (ordinale) e ogni ruolo e proprietario un id interno; per ogni proprietario,
+ * ruolo e visibilità l'indice tiene il BitSet dei file corrispondenti, così l'insieme dei file visibili
+ * è l'unione di pochi BitSet. Le regole sono quelle di {@link #canRead}, usato anche dove i permessi si
+ * controllano su un singolo file, così lista e download non possono divergere.
+ *
+ * L'indice viene caricato all'avvio con una scansione parallela e ricaricato periodicamente; nel frattempo è
+ * aggiornato dagli upload e dalle cancellazioni di questa istanza e, con il broadcast abilitato,
+ * di quelle delle altre istanze (vedi FileMetadataCache).
+ */
+@Service
+public class AclIndex {
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final byte PUBLIC = 1;
+    private static final byte PRIVATE = 2;
+    private static final byte ROLE_BASED = 3;
+
+    private final ParallelScanner parallelScanner;
+    private final DynamoDBMapper dynamoDBMapper;
+
+    @Value("${file.acl.enabled:true}")
+    private boolean enabled;
+
+    @Value("${file.acl.scan-segments:4}")
+    private int scanSegments;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private State state = new State();
+    private volatile boolean ready;
+    // Changes applied while a reload is scanning the table, replayed on the new state
+    private List<Change> reloadJournal;
+
+    private record Change(String fileId, FileMetadata file) {
+    }
+
+    public AclIndex(AmazonDynamoDB amazonDynamoDB, ParallelScanner parallelScanner) {
+        this.parallelScanner = parallelScanner;
+        // The notification can arrive before an eventually consistent read would see the change
+        this.dynamoDBMapper = new DynamoDBMapper(amazonDynamoDB, DynamoDBMapperConfig.ConsistentReads.CONSISTENT.config());
+    }
+
+    /**
+     * La regola di lettura di un file: PUBLIC per tutti, PRIVATE solo per il proprietario, ROLE_BASED per
+     * chi ha almeno uno dei ruoli ammessi.
+     */
+    public static boolean canRead(FileMetadata file, String userId, List<String> userRoles) {
+        String visibility = file.getVisibility() == null ? "" : file.getVisibility().toUpperCase(Locale.ROOT);
+        return switch (visibility) {
+            case "PUBLIC" -> true;
+            case "PRIVATE" -> file.getOwnerId() != null && file.getOwnerId().equals(userId);
+            case "ROLE_BASED" -> file.getAllowedRoles() != null && userRoles != null
+                    && userRoles.stream().anyMatch(file.getAllowedRoles()::contains);
+            default -> false;
+        };
+    }
+
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    /**
+     * Aggiunge o aggiorna un file.
+     */
+    public void put(FileMetadata file) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            state.remove(file.getFileId());
+            state.add(file);
+            if (reloadJournal != null) {
+                reloadJournal.add(new Change(file.getFileId(), file));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String fileId) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            state.remove(fileId);
+            if (reloadJournal != null) {
+                reloadJournal.add(new Change(fileId, null));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rilegge un file da DynamoDB dopo una modifica fatta da un'altra istanza.
+     */
+    public void refresh(String fileId) {
+        if (enabled) {
+            FileMetadata file = dynamoDBMapper.load(FileMetadata.class, fileId);
+            if (file != null) {
+                put(file);
+            } else {
+                remove(fileId);
+            }
+        }
+    }
+
+    /**
+     * Restituisce i file visibili all'utente più recenti di {@code position}, dal più recente.
+     *
+     * @param position la chiave uploadDate#fileId dell'ultimo file già restituito, null dall'inizio
+     * @param limit il numero massimo di file, null per tutti
+     * @return le chiavi uploadDate#fileId dei file
+     */
+    public List<String> visibleSortKeys(String userId, List<String> userRoles, String position, Integer limit) {
+        lock.readLock().lock();
+        try {
+            return state.newest(state.visible(userId, userRoles), position, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Filtra i fileId lasciando quelli visibili all'utente, nello stesso ordine. I file assenti dall'indice
+     * vengono tolti.
+     */
+    public List<String> visibleFileIds(String userId, List<String> userRoles, List<String> fileIds) {
+        lock.readLock().lock();
+        try {
+            BitSet visible = state.visible(userId, userRoles);
+            List<String> result = new ArrayList<>();
+            for (String fileId : fileIds) {
+                Integer ordinal = state.fileIds.get(fileId);
+                if (ordinal != null && visible.get(ordinal)) {
+                    result.add(fileId);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Come visibleSortKeys, limitato ai file che soddisfano la ricerca.
+     */
+    public List<String> searchSortKeys(String userId, List<String> userRoles, FileSearchIndex.Query query,
+                                       String position, int limit) {
+        lock.readLock().lock();
+        try {
+            BitSet files = state.visible(userId, userRoles);
+            state.search.filter(files, query);
+            return state.newest(files, position, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ricostruisce l'indice da una scansione di FileMetadata, all'avvio e poi periodicamente per recuperare
+     * eventuali modifiche di altre istanze non ricevute.
+     */
+    @Scheduled(initialDelayString = "${file.acl.initial-delay:PT5S}", fixedDelayString = "${file.acl.refresh-interval:PT10M}")
+    public void reload() {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            reloadJournal = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        State loaded = new State();
+        try {
+            ParallelScanner.ScanReport report = parallelScanner.run(ParallelScanner.ScanJob.builder()
+                    .tableName(FILE_METADATA_TABLE)
+                    .projectionExpression("fileId, ownerId, visibility, allowedRoles, uploadDate, fileName, fileType, fileSize")
+                    .segments(scanSegments)
+                    .parallelism(scanSegments)
+                    .build(), (segment, items) -> {
+                        List<FileMetadata> files = items.stream()
+                                .map(item -> FileMetadata.builder()
+                                        .fileId(item.get("fileId").getS())
+                                        .ownerId(stringValue(item.get("ownerId")))
+                                        .visibility(stringValue(item.get("visibility")))
+                                        .allowedRoles(roles(item.get("allowedRoles")))
+                                        .uploadDate(stringValue(item.get("uploadDate")))
+                                        .fileName(stringValue(item.get("fileName")))
+                                        .fileType(stringValue(item.get("fileType")))
+                                        .fileSize(item.containsKey("fileSize") ? Long.valueOf(item.get("fileSize").getN()) : null)
+                                        .build())
+                                .toList();
+                        synchronized (loaded) {
+                            files.forEach(loaded::add);
+                        }
+                    });
+            System.out.println("ACL index scanned " + report.items() + " files using " + report.consumedCapacity() + " read units.");
+        } catch (RuntimeException e) {
+            System.out.println("ACL index reload failed: " + e.getMessage());
+            lock.writeLock().lock();
+            try {
+                reloadJournal = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (Change change : reloadJournal) {
+                loaded.remove(change.fileId());
+                if (change.file() != null) {
+                    loaded.add(change.file());
+                }
+            }
+            reloadJournal = null;
+            state = loaded;
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        System.out.println("ACL index loaded with " + loaded.fileIds.size() + " files.");
+    }
+
+    private static List<String> roles(AttributeValue value) {
+        if (value == null) {
+            return null;
+        }
+        // Written as a list by the mapper, accept a string set as well
+        return value.getL() != null ? value.getL().stream().map(AttributeValue::getS).toList() : value.getSS();
+    }
+
+    private static String stringValue(AttributeValue value) {
+        return value != null ? value.getS() : null;
+    }
+
+    /**
+     * Il contenuto dell'indice, protetto dal lock di AclIndex.
+     */
+    private static final class State {
+        private final Map<String, Integer> roleIds = new HashMap<>(); // Interned roles
+        private final Map<String, Integer> ownerIds = new HashMap<>();
+        private final Map<String, Integer> fileIds = new HashMap<>(); // fileId -> ordinal
+        private final List<String> sortKeys = new ArrayList<>(); // ordinal -> uploadDate#fileId, null when free
+        private final List<Integer> ownerOf = new ArrayList<>();
+        private final List<BitSet> rolesOf = new ArrayList<>(); // Allowed role ids of ROLE_BASED files
+        private final BitSet freeOrdinals = new BitSet();
+        private final BitSet publicFiles = new BitSet();
+        private final BitSet privateFiles = new BitSet();
+        private final List<BitSet> filesByOwner = new ArrayList<>();
+        private final List<BitSet> filesByRole = new ArrayList<>();
+        private final FileSearchIndex search = new FileSearchIndex();
+
+        void add(FileMetadata file) {
+            String visibility = file.getVisibility() == null ? "" : file.getVisibility().toUpperCase(Locale.ROOT);
+            byte kind = switch (visibility) {
+                case "PUBLIC" -> PUBLIC;
+                case "PRIVATE" -> PRIVATE;
+                case "ROLE_BASED" -> ROLE_BASED;
+                default -> 0;
+            };
+            if (kind == 0 || file.getUploadDate() == null) {
+                return; // Readable by nobody
+            }
+
+            int ordinal = freeOrdinals.nextSetBit(0);
+            if (ordinal >= 0) {
+                freeOrdinals.clear(ordinal);
+                sortKeys.set(ordinal, file.getUploadDate() + "#" + file.getFileId());
+            } else {
+                ordinal = sortKeys.size();
+                sortKeys.add(file.getUploadDate() + "#" + file.getFileId());
+                ownerOf.add(null);
+                rolesOf.add(null);
+            }
+            fileIds.put(file.getFileId(), ordinal);
+            search.add(ordinal, file);
+
+            int owner = intern(ownerIds, filesByOwner, file.getOwnerId() != null ? file.getOwnerId() : "");
+            ownerOf.set(ordinal, owner);
+            filesByOwner.get(owner).set(ordinal);
+            if (kind == PUBLIC) {
+                publicFiles.set(ordinal);
+            } else if (kind == PRIVATE) {
+                privateFiles.set(ordinal);
+            } else if (file.getAllowedRoles() != null) {
+                BitSet roles = new BitSet();
+                for (String role : file.getAllowedRoles()) {
+                    int roleId = intern(roleIds, filesByRole, role);
+                    roles.set(roleId);
+                    filesByRole.get(roleId).set(ordinal);
+                }
+                rolesOf.set(ordinal, roles);
+            }
+        }
+
+        void remove(String fileId) {
+            Integer ordinal = fileIds.remove(fileId);
+            if (ordinal == null) {
+                return;
+            }
+            filesByOwner.get(ownerOf.get(ordinal)).clear(ordinal);
+            BitSet roles = rolesOf.get(ordinal);
+            if (roles != null) {
+                for (int role = roles.nextSetBit(0); role >= 0; role = roles.nextSetBit(role + 1)) {
+                    filesByRole.get(role).clear(ordinal);
+                }
+            }
+            search.remove(ordinal);
+            publicFiles.clear(ordinal);
+            privateFiles.clear(ordinal);
+            sortKeys.set(ordinal, null);
+            ownerOf.set(ordinal, null);
+            rolesOf.set(ordinal, null);
+            freeOrdinals.set(ordinal);
+        }
+
+        List<String> newest(BitSet files, String position, Integer limit) {
+            if (limit == null) {
+                List<String> keys = new ArrayList<>(files.cardinality());
+                for (int i = files.nextSetBit(0); i >= 0; i = files.nextSetBit(i + 1)) {
+                    String key = sortKeys.get(i);
+                    if (position == null || key.compareTo(position) < 0) {
+                        keys.add(key);
+                    }
+                }
+                keys.sort(Comparator.reverseOrder());
+                return keys;
+            }
+            // Keeps the newest `limit` keys: O(files * log limit) without sorting them all
+            PriorityQueue<String> newest = new PriorityQueue<>(limit + 1);
+            for (int i = files.nextSetBit(0); i >= 0; i = files.nextSetBit(i + 1)) {
+                String key = sortKeys.get(i);
+                if ((position == null || key.compareTo(position) < 0)
+                        && (newest.size() < limit || key.compareTo(newest.peek()) > 0)) {
+                    newest.add(key);
+                    if (newest.size() > limit) {
+                        newest.poll();
+                    }
+                }
+            }
+            List<String> keys = new ArrayList<>(newest);
+            keys.sort(Comparator.reverseOrder());
+            return keys;
+        }
+
+        BitSet visible(String userId, List<String> userRoles) {
+            BitSet visible = (BitSet) publicFiles.clone();
+            Integer owner = ownerIds.get(userId);
+            if (owner != null) {
+                BitSet own = (BitSet) filesByOwner.get(owner).clone();
+                own.and(privateFiles);
+                visible.or(own);
+            }
+            if (userRoles != null) {
+                for (String role : userRoles) {
+                    Integer roleId = roleIds.get(role);
+                    if (roleId != null) {
+                        visible.or(filesByRole.get(roleId));
+                    }
+                }
+            }
+            return visible;
+        }
+
+        private static int intern(Map<String, Integer> ids, List<BitSet> postings, String value) {
+            return ids.computeIfAbsent(value, v -> {
+                postings.add(new BitSet());
+                return postings.size() - 1;
+            });
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.model.FileRoleEntry;
+import com.github.giuseppemarletta.file_service.util.ServletBodyPublisher;
+
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+/**
+ * Upload e download come pipeline asincrone, per /files/async: il body della richiesta va a S3 con
+ * S3AsyncClient man mano che arriva, poi i metadati vengono salvati con DynamoDbAsyncClient; per il
+ * download la lettura dei metadati (dalla cache o da DynamoDB) è seguita dalla firma dell'URL. Nessun
+ * passaggio tiene fermo un thread in attesa di rete.
+ *
+ * A differenza di POST /files/upload il contenuto non è deduplicato, perché l'hash si conosce solo alla
+ * fine del trasferimento: il file ha una chiave S3 propria, come gli upload riprendibili.
+ */
+@Service
+@RequiredArgsConstructor
+public class AsyncFileService {
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final String FILE_ROLE_INDEX_TABLE = "FileRoleIndex";
+    private static final int BATCH_WRITE_LIMIT = 25;
+
+    private final S3AsyncClient s3AsyncClient;
+    private final DynamoDbAsyncClient dynamoDbAsyncClient;
+    private final FileStorageService fileStorageService;
+    private final FileMetadataCache fileMetadataCache;
+    private final QuotaService quotaService;
+    private final EncryptionService encryptionService;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    /**
+     * Carica su S3 il body della richiesta e ne salva i metadati.
+     *
+     * @param body il body della richiesta, letto solo quando S3 è pronto a riceverlo
+     * @return il file salvato; il future fallisce se il file supera la quota dell'utente o se gli upload vanno
+     *         cifrati (prima di leggere il body), se il client si disconnette, se S3 o DynamoDB falliscono
+     */
+    public CompletableFuture<FileMetadata> upload(ServletBodyPublisher body, long contentLength, String contentType,
+                                                  String userId, String fileName, String visibility, List<String> allowedRoles) {
+        QuotaService.Reservation reservation;
+        try {
+            encryptionService.requireCleartextAllowed();
+            reservation = quotaService.reserve(userId, contentLength);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        String key = fileStorageService.newObjectKey(fileName);
+        FileMetadata file = FileMetadata.builder()
+                .fileId(UUID.randomUUID().toString())
+                .ownerId(userId)
+                .fileName(fileName)
+                .fileType(contentType)
+                .fileSize(contentLength)
+                .s3Key(key)
+                .visibility(visibility.toUpperCase())
+                .allowedRoles("ROLE_BASED".equalsIgnoreCase(visibility)
+                        ? (allowedRoles != null ? allowedRoles : new ArrayList<>()) : null)
+                .build();
+
+        CompletableFuture<PutObjectResponse> put = s3AsyncClient.putObject(PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType(contentType)
+                .contentLength(contentLength)
+                .build(), AsyncRequestBody.fromPublisher(body));
+        CompletableFuture<FileMetadata> result = put
+                .exceptionally(e -> {
+                    // The SDK retry of a broken body fails with its own error, report the original one
+                    if (body.getError() != null) {
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Upload interrupted: " + body.getError().getMessage());
+                    }
+                    throw new CompletionException(unwrap(e));
+                })
+                .thenCompose(response -> {
+                    // Same as saveMetadata: the upload date is the time the content is stored
+                    file.setUploadDate(Instant.now().toString());
+                    return saveMetadata(file).exceptionallyCompose(e -> deleteObject(key)
+                            .<FileMetadata>thenApply(deleted -> {
+                                throw new CompletionException(unwrap(e));
+                            }));
+                })
+                .thenApply(saved -> {
+                    fileStorageService.registerSaved(saved);
+                    return saved;
+                });
+        // Cancelling the result, on a request timeout, aborts the transfer to S3
+        result.whenComplete((saved, e) -> {
+            reservation.close();
+            if (result.isCancelled()) {
+                put.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * L'URL presigned di un file, con gli stessi permessi di GET /files/download/{fileId}.
+     */
+    public CompletableFuture<String> getDownloadUrl(String fileId, String userId, List<String> userRoles) {
+        return findById(fileId).thenApply(file -> {
+            try {
+                fileStorageService.checkDownloadAccess(file, userId, userRoles);
+            } catch (RuntimeException e) {
+                throw new ResponseStatusException(HttpStatus.FORBIDDEN, e.getMessage());
+            }
+            return fileStorageService.getDownloadUrl(file, userId, userRoles);
+        });
+    }
+
+    private CompletableFuture<FileMetadata> findById(String fileId) {
+        FileMetadata cached = fileMetadataCache.getIfPresent(fileId).orElse(null);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return dynamoDbAsyncClient.getItem(GetItemRequest.builder()
+                        .tableName(FILE_METADATA_TABLE)
+                        .key(Map.of("fileId", AttributeValue.fromS(fileId)))
+                        .build())
+                .thenApply(response -> {
+                    if (!response.hasItem() || response.item().isEmpty()) {
+                        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found");
+                    }
+                    FileMetadata file = fromItem(response.item());
+                    fileMetadataCache.fill(file);
+                    return file;
+                });
+    }
+
+    private CompletableFuture<FileMetadata> saveMetadata(FileMetadata file) {
+        CompletableFuture<?> saved = dynamoDbAsyncClient.putItem(PutItemRequest.builder()
+                .tableName(FILE_METADATA_TABLE)
+                .item(toItem(file))
+                .build());
+        List<FileRoleEntry> entries = FileIndexService.roleEntries(file);
+        if (!entries.isEmpty()) {
+            // Written next to the metadata instead of after it, the listing reads both tables anyway
+            List<CompletableFuture<?>> writes = new ArrayList<>();
+            writes.add(saved);
+            for (int from = 0; from < entries.size(); from += BATCH_WRITE_LIMIT) {
+                List<WriteRequest> requests = entries.subList(from, Math.min(entries.size(), from + BATCH_WRITE_LIMIT)).stream()
+                        .map(entry -> WriteRequest.builder().putRequest(PutRequest.builder().item(toItem(entry)).build()).build())
+                        .toList();
+                writes.add(dynamoDbAsyncClient.batchWriteItem(BatchWriteItemRequest.builder()
+                                .requestItems(Map.of(FILE_ROLE_INDEX_TABLE, requests))
+                                .build())
+                        .thenAccept(response -> {
+                            if (response.hasUnprocessedItems() && !response.unprocessedItems().isEmpty()) {
+                                System.out.println("FileRoleIndex batch write left unprocessed items for " + file.getFileId());
+                            }
+                        }));
+            }
+            saved = CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new));
+        }
+        return saved.thenApply(ignored -> file);
+    }
+
+    private CompletableFuture<Void> deleteObject(String key) {
+        return s3AsyncClient.deleteObject(DeleteObjectRequest.builder().bucket(bucketName).key(key).build())
+                .handle((response, e) -> {
+                    if (e != null) {
+                        System.out.println("Failed to delete " + key + " after a failed metadata save: " + e.getMessage());
+                    }
+                    return null;
+                });
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    // Same attributes as the DynamoDBMapper annotations on FileMetadata
+    private static Map<String, AttributeValue> toItem(FileMetadata file) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("fileId", AttributeValue.fromS(file.getFileId()));
+        putString(item, "ownerId", file.getOwnerId());
+        putString(item, "fileName", file.getFileName());
+        putString(item, "fileType", file.getFileType());
+        if (file.getFileSize() != null) {
+            item.put("fileSize", AttributeValue.fromN(file.getFileSize().toString()));
+        }
+        putString(item, "uploadDate", file.getUploadDate());
+        putString(item, "s3Key", file.getS3Key());
+        putString(item, "contentHash", file.getContentHash());
+        putString(item, "visibility", file.getVisibility());
+        if (file.getAllowedRoles() != null) {
+            item.put("allowedRoles", AttributeValue.fromL(file.getAllowedRoles().stream().map(AttributeValue::fromS).toList()));
+        }
+        return item;
+    }
+
+    private static Map<String, AttributeValue> toItem(FileRoleEntry entry) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("role", AttributeValue.fromS(entry.getRole()));
+        item.put("sortKey", AttributeValue.fromS(entry.getSortKey()));
+        putString(item, "fileId", entry.getFileId());
+        putString(item, "fileName", entry.getFileName());
+        putString(item, "fileType", entry.getFileType());
+        if (entry.getFileSize() != null) {
+            item.put("fileSize", AttributeValue.fromN(entry.getFileSize().toString()));
+        }
+        putString(item, "uploadDate", entry.getUploadDate());
+        putString(item, "visibility", entry.getVisibility());
+        return item;
+    }
+
+    private static FileMetadata fromItem(Map<String, AttributeValue> item) {
+        AttributeValue roles = item.get("allowedRoles");
+        return FileMetadata.builder()
+                .fileId(stringValue(item.get("fileId")))
+                .ownerId(stringValue(item.get("ownerId")))
+                .fileName(stringValue(item.get("fileName")))
+                .fileType(stringValue(item.get("fileType")))
+                .fileSize(item.containsKey("fileSize") ? Long.valueOf(item.get("fileSize").n()) : null)
+                .uploadDate(stringValue(item.get("uploadDate")))
+                .s3Key(stringValue(item.get("s3Key")))
+                .contentHash(stringValue(item.get("contentHash")))
+                .visibility(stringValue(item.get("visibility")))
+                .lastAccessAt(stringValue(item.get("lastAccessAt")))
+                .accessCount(item.containsKey("accessCount") ? Long.valueOf(item.get("accessCount").n()) : null)
+                .storageClass(stringValue(item.get("storageClass")))
+                .derivatives(item.containsKey("derivatives") ? item.get("derivatives").l().stream().map(AttributeValue::s).toList() : null)
+                .statsComputedAt(stringValue(item.get("statsComputedAt")))
+                .version(item.containsKey("version") ? Long.valueOf(item.get("version").n()) : null)
+                .encryptedKey(stringValue(item.get("encryptedKey")))
+                .encryptionChunkSize(item.containsKey("encryptionChunkSize") ? Integer.valueOf(item.get("encryptionChunkSize").n()) : null)
+                // Written as a list by the mapper, accept a string set as well
+                .allowedRoles(roles == null ? null : roles.hasL() ? roles.l().stream().map(AttributeValue::s).toList() : roles.ss())
+                .build();
+    }
+
+    private static void putString(Map<String, AttributeValue> item, String name, String value) {
+        if (value != null) {
+            item.put(name, AttributeValue.fromS(value));
+        }
+    }
+
+    private static String stringValue(AttributeValue value) {
+        return value != null ? value.s() : null;
+    }
+}
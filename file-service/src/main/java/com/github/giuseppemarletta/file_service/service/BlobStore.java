@@ -0,0 +1,275 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+
+/**
+ * Archivio dei blob indirizzati per contenuto.
+ * Ogni blob è salvato su S3 sotto una chiave derivata dal suo hash SHA-256 e ha un contatore
+ * di riferimenti nella tabella FileBlob: caricare un file già presente crea solo un nuovo riferimento.
+ *
+ * Un blob senza più riferimenti non viene cancellato subito ma entra nell'indice sparso "orphaned-index";
+ * dopo il periodo di grazia il garbage collector lo rivendica (deletingSince), cancella l'oggetto S3 e poi l'item.
+ * Un nuovo upload dello stesso contenuto durante il periodo di grazia riusa il blob esistente.
+ */
+@Service
+@RequiredArgsConstructor
+public class BlobStore {
+
+    private static final String TABLE_NAME = "FileBlob";
+    private static final String ORPHANED_INDEX = "orphaned-index";
+
+    private static final String CONTENT_HASH = "contentHash";
+    private static final String S3_KEY = "s3Key";
+    private static final String FILE_SIZE = "fileSize";
+    private static final String REF_COUNT = "refCount";
+    private static final String CREATED_AT = "createdAt";
+    private static final String ORPHANED = "orphaned"; // Set only while refCount is 0, key of the sparse index
+    private static final String LAST_RELEASED_AT = "lastReleasedAt";
+    private static final String DELETING_SINCE = "deletingSince";
+    private static final String STORAGE_CLASS = "storageClass"; // Set by StorageTieringService, absent for STANDARD
+
+    private static final int MAX_ACQUIRE_ATTEMPTS = 10;
+    private static final long ACQUIRE_BACKOFF_MS = 200;
+
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final S3Client s3Client;
+    private final DiskObjectCache diskObjectCache;
+    private final DerivativeService derivativeService;
+    private final CsvStatsService csvStatsService;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${blob.gc.grace-period:1h}")
+    private Duration gracePeriod;
+
+    /**
+     * Scrive il contenuto del blob su S3 sotto la chiave indicata.
+     */
+    @FunctionalInterface
+    public interface BlobWriter {
+        void write(String s3Key) throws IOException;
+    }
+
+    public static String blobKey(String contentHash) {
+        return "blobs/" + contentHash.substring(0, 2) + "/" + contentHash;
+    }
+
+    /**
+     * Acquisisce un riferimento al blob con l'hash indicato.
+     * Se il blob esiste già viene solo incrementato il contatore, altrimenti il contenuto viene scritto con il writer.
+     * Un blob esistente ma archiviato (GLACIER, DEEP_ARCHIVE) viene riscritto in STANDARD, dato che il contenuto
+     * è a disposizione: il nuovo file è subito leggibile, e con lui quelli che condividono il blob.
+     *
+     * @return true se il blob esisteva già e non è stato caricato nulla su S3
+     */
+    public boolean acquire(String contentHash, long fileSize, BlobWriter writer) throws IOException {
+        for (int attempt = 0; attempt < MAX_ACQUIRE_ATTEMPTS; attempt++) {
+            Map<String, AttributeValue> existing = tryIncrement(contentHash);
+            if (existing != null) {
+                if (existing.containsKey(STORAGE_CLASS) && StorageTieringService.needsRestore(existing.get(STORAGE_CLASS).getS())) {
+                    try {
+                        writer.write(blobKey(contentHash));
+                    } catch (IOException | RuntimeException e) {
+                        release(contentHash);
+                        throw e;
+                    }
+                    amazonDynamoDB.updateItem(new UpdateItemRequest()
+                            .withTableName(TABLE_NAME)
+                            .withKey(key(contentHash))
+                            .withUpdateExpression("REMOVE " + STORAGE_CLASS));
+                    return false;
+                }
+                return true;
+            }
+            if (getItem(contentHash) == null) {
+                writer.write(blobKey(contentHash));
+                if (tryCreate(contentHash, fileSize)) {
+                    return false;
+                }
+                // Created concurrently by an identical upload: retry the increment
+                continue;
+            }
+            // The garbage collector is deleting this blob, wait until the item is gone and upload it again
+            try {
+                Thread.sleep(ACQUIRE_BACKOFF_MS * (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for blob " + contentHash, e);
+            }
+        }
+        throw new IllegalStateException("Blob " + contentHash + " is being deleted, retry later");
+    }
+
+    /**
+     * Rilascia un riferimento al blob. Quando il contatore arriva a zero il blob diventa orfano
+     * e verrà cancellato dal garbage collector dopo il periodo di grazia.
+     */
+    public void release(String contentHash) {
+        release(contentHash, 1);
+    }
+
+    /**
+     * Rilascia count riferimenti al blob con una sola scrittura, per i file cancellati insieme.
+     */
+    public void release(String contentHash, int count) {
+        Map<String, AttributeValue> updated;
+        try {
+            updated = amazonDynamoDB.updateItem(new UpdateItemRequest()
+                    .withTableName(TABLE_NAME)
+                    .withKey(key(contentHash))
+                    .withUpdateExpression("ADD " + REF_COUNT + " :released")
+                    .withConditionExpression("attribute_exists(" + CONTENT_HASH + ")")
+                    .withExpressionAttributeValues(Map.of(":released", new AttributeValue().withN(Integer.toString(-count))))
+                    .withReturnValues(ReturnValue.UPDATED_NEW))
+                    .getAttributes();
+        } catch (ConditionalCheckFailedException e) {
+            System.out.println("Released unknown blob " + contentHash);
+            return;
+        }
+
+        if (Long.parseLong(updated.get(REF_COUNT).getN()) <= 0) {
+            try {
+                amazonDynamoDB.updateItem(new UpdateItemRequest()
+                        .withTableName(TABLE_NAME)
+                        .withKey(key(contentHash))
+                        .withUpdateExpression("SET " + ORPHANED + " = :one, " + LAST_RELEASED_AT + " = :now")
+                        .withConditionExpression(REF_COUNT + " <= :zero")
+                        .withExpressionAttributeValues(Map.of(
+                                ":one", new AttributeValue("1"),
+                                ":now", new AttributeValue(Instant.now().toString()),
+                                ":zero", new AttributeValue().withN("0"))));
+            } catch (ConditionalCheckFailedException e) {
+                // Referenced again in the meantime
+            }
+        }
+    }
+
+    /**
+     * Cancella i blob orfani da più del periodo di grazia.
+     */
+    @Scheduled(initialDelayString = "${blob.gc.interval:PT10M}", fixedDelayString = "${blob.gc.interval:PT10M}")
+    public void collectGarbage() {
+        String cutoff = Instant.now().minus(gracePeriod).toString();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        try {
+            do {
+                QueryResult result = amazonDynamoDB.query(new QueryRequest()
+                        .withTableName(TABLE_NAME)
+                        .withIndexName(ORPHANED_INDEX)
+                        .withKeyConditionExpression(ORPHANED + " = :one AND " + LAST_RELEASED_AT + " < :cutoff")
+                        .withExpressionAttributeValues(Map.of(
+                                ":one", new AttributeValue("1"),
+                                ":cutoff", new AttributeValue(cutoff)))
+                        .withExclusiveStartKey(lastEvaluatedKey));
+                for (Map<String, AttributeValue> item : result.getItems()) {
+                    deleteBlob(item.get(CONTENT_HASH).getS(), cutoff);
+                }
+                lastEvaluatedKey = result.getLastEvaluatedKey();
+            } while (lastEvaluatedKey != null && !lastEvaluatedKey.isEmpty());
+        } catch (RuntimeException e) {
+            System.out.println("Blob garbage collection failed: " + e.getMessage());
+        }
+    }
+
+    private void deleteBlob(String contentHash, String staleBefore) {
+        String now = Instant.now().toString();
+        try {
+            // Claim the blob so that concurrent uploads stop reusing it; a claim older than the
+            // grace period belongs to a collector that died half-way and can be taken over
+            amazonDynamoDB.updateItem(new UpdateItemRequest()
+                    .withTableName(TABLE_NAME)
+                    .withKey(key(contentHash))
+                    .withUpdateExpression("SET " + DELETING_SINCE + " = :now")
+                    .withConditionExpression(REF_COUNT + " <= :zero AND (attribute_not_exists(" + DELETING_SINCE + ") OR "
+                            + DELETING_SINCE + " < :stale)")
+                    .withExpressionAttributeValues(Map.of(
+                            ":now", new AttributeValue(now),
+                            ":zero", new AttributeValue().withN("0"),
+                            ":stale", new AttributeValue(staleBefore))));
+        } catch (ConditionalCheckFailedException e) {
+            return; // Referenced again or claimed by another instance
+        }
+
+        s3Client.deleteObject(DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(blobKey(contentHash))
+                .build());
+        diskObjectCache.invalidate(blobKey(contentHash));
+        // Thumbnails and CSV statistics are keyed by the blob, whatever the type of the files that shared it
+        derivativeService.delete(blobKey(contentHash));
+        csvStatsService.delete(blobKey(contentHash));
+        amazonDynamoDB.deleteItem(new DeleteItemRequest()
+                .withTableName(TABLE_NAME)
+                .withKey(key(contentHash)));
+        System.out.println("Deleted orphaned blob " + contentHash);
+    }
+
+    // The item after the increment, null if the blob does not exist or is being deleted
+    private Map<String, AttributeValue> tryIncrement(String contentHash) {
+        try {
+            return amazonDynamoDB.updateItem(new UpdateItemRequest()
+                    .withTableName(TABLE_NAME)
+                    .withKey(key(contentHash))
+                    .withUpdateExpression("ADD " + REF_COUNT + " :one REMOVE " + ORPHANED)
+                    .withConditionExpression("attribute_exists(" + CONTENT_HASH + ") AND attribute_not_exists(" + DELETING_SINCE + ")")
+                    .withExpressionAttributeValues(Map.of(":one", new AttributeValue().withN("1")))
+                    .withReturnValues(ReturnValue.ALL_NEW))
+                    .getAttributes();
+        } catch (ConditionalCheckFailedException e) {
+            return null;
+        }
+    }
+
+    private boolean tryCreate(String contentHash, long fileSize) {
+        Map<String, AttributeValue> item = new HashMap<>(key(contentHash));
+        item.put(S3_KEY, new AttributeValue(blobKey(contentHash)));
+        item.put(FILE_SIZE, new AttributeValue().withN(Long.toString(fileSize)));
+        item.put(REF_COUNT, new AttributeValue().withN("1"));
+        item.put(CREATED_AT, new AttributeValue(Instant.now().toString()));
+        try {
+            amazonDynamoDB.putItem(new PutItemRequest()
+                    .withTableName(TABLE_NAME)
+                    .withItem(item)
+                    .withConditionExpression("attribute_not_exists(" + CONTENT_HASH + ")"));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    private Map<String, AttributeValue> getItem(String contentHash) {
+        return amazonDynamoDB.getItem(new GetItemRequest()
+                .withTableName(TABLE_NAME)
+                .withKey(key(contentHash))
+                .withConsistentRead(true))
+                .getItem();
+    }
+
+    private static Map<String, AttributeValue> key(String contentHash) {
+        return Map.of(CONTENT_HASH, new AttributeValue(contentHash));
+    }
+}
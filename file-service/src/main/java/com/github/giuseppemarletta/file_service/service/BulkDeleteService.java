@@ -0,0 +1,325 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.RequestLimitExceededException;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.github.giuseppemarletta.file_service.dto.BulkDeleteResult;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.model.FileRoleEntry;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+
+/**
+ * Cancella più file con una sola richiesta, con le regole di FileStorageService.deleteFile: solo il
+ * proprietario può cancellare un file e il contenuto di un blob deduplicato viene solo rilasciato.
+ *
+ * Invece di una cancellazione per file, le righe di FileMetadata e FileRoleIndex vengono rimosse con
+ * BatchWriteItem (25 per richiesta), i riferimenti ai blob con una scrittura per blob e gli oggetti S3 non
+ * deduplicati, con le loro miniature, con DeleteObjects (1000 chiavi per richiesta). Le righe e le chiavi che
+ * DynamoDB o S3 lasciano indietro vengono ritentate con backoff esponenziale; quelle che falliscono ancora
+ * producono un errore solo per il file a cui appartengono.
+ */
+@Service
+public class BulkDeleteService {
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final String FILE_ROLE_INDEX_TABLE = "FileRoleIndex";
+    private static final int BATCH_WRITE_LIMIT = 25;
+    private static final int DELETE_OBJECTS_LIMIT = 1000;
+    private static final long BASE_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 2_000;
+
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final S3Client s3Client;
+    private final FileMetadataCache fileMetadataCache;
+    private final BlobStore blobStore;
+    private final QuotaService quotaService;
+    private final AclIndex aclIndex;
+    private final ContentIndexService contentIndexService;
+    private final DerivativeService derivativeService;
+    private final DiskObjectCache diskObjectCache;
+    private final FileVersionService fileVersionService;
+    private final DynamoDBMapper dynamoDBMapper;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    // Attempts of a batch before its leftovers are reported as failed
+    @Value("${file.bulk-delete.max-attempts:6}")
+    private int maxAttempts;
+
+    public BulkDeleteService(AmazonDynamoDB amazonDynamoDB, S3Client s3Client, FileMetadataCache fileMetadataCache,
+                             BlobStore blobStore, QuotaService quotaService, AclIndex aclIndex,
+                             ContentIndexService contentIndexService, DerivativeService derivativeService,
+                             DiskObjectCache diskObjectCache, FileVersionService fileVersionService) {
+        this.amazonDynamoDB = amazonDynamoDB;
+        this.s3Client = s3Client;
+        this.fileMetadataCache = fileMetadataCache;
+        this.blobStore = blobStore;
+        this.quotaService = quotaService;
+        this.aclIndex = aclIndex;
+        this.contentIndexService = contentIndexService;
+        this.derivativeService = derivativeService;
+        this.diskObjectCache = diskObjectCache;
+        this.fileVersionService = fileVersionService;
+        // Content and versions are released from these rows: the cache can still hold a replaced version
+        this.dynamoDBMapper = new DynamoDBMapper(amazonDynamoDB, DynamoDBMapperConfig.ConsistentReads.CONSISTENT.config());
+    }
+
+    /**
+     * @return per ogni fileId 204 se il file è stato cancellato, altrimenti l'errore, nell'ordine della richiesta
+     */
+    public Map<String, BulkDeleteResult> deleteFiles(List<String> fileIds, String userId) {
+        List<String> ids = fileIds.stream().distinct().toList();
+        Map<String, FileMetadata> files = loadFiles(ids);
+        Map<String, BulkDeleteResult> results = new LinkedHashMap<>();
+        List<FileMetadata> owned = new ArrayList<>();
+        for (String fileId : ids) {
+            FileMetadata file = files.get(fileId);
+            if (file == null) {
+                results.put(fileId, BulkDeleteResult.error(HttpStatus.NOT_FOUND.value(), "File not found"));
+            } else if (!file.getOwnerId().equals(userId)) {
+                results.put(fileId, BulkDeleteResult.error(HttpStatus.FORBIDDEN.value(), "You are not the owner of this file"));
+            } else {
+                owned.add(file);
+            }
+        }
+
+        List<FileMetadata> deleted = deleteMetadata(owned, results);
+        for (FileMetadata file : deleted) {
+            quotaService.recordDelete(file);
+            fileMetadataCache.invalidate(file.getFileId());
+            aclIndex.remove(file.getFileId());
+            contentIndexService.remove(file.getFileId());
+            results.put(file.getFileId(), BulkDeleteResult.ok());
+        }
+        releaseContent(deleted, results);
+        for (FileMetadata file : deleted) {
+            try {
+                fileVersionService.deleteHistory(file);
+            } catch (RuntimeException e) {
+                // The file is gone anyway: report it as deleted, the rows left behind are only logged
+                System.out.println("Failed to delete the versions of " + file.getFileId() + ": " + e.getMessage());
+            }
+        }
+
+        Map<String, BulkDeleteResult> ordered = new LinkedHashMap<>();
+        ids.forEach(fileId -> ordered.put(fileId, results.get(fileId)));
+        return ordered;
+    }
+
+    // Consistent BatchGetItem, 100 keys per request; the mapper retries the unprocessed keys
+    private Map<String, FileMetadata> loadFiles(List<String> ids) {
+        Map<String, FileMetadata> files = new HashMap<>();
+        List<FileMetadata> keys = ids.stream().map(fileId -> FileMetadata.builder().fileId(fileId).build()).toList();
+        for (Object loaded : dynamoDBMapper.batchLoad(keys).getOrDefault(FILE_METADATA_TABLE, List.of())) {
+            FileMetadata file = (FileMetadata) loaded;
+            files.put(file.getFileId(), file);
+        }
+        return files;
+    }
+
+    // Deletes the FileMetadata rows with their FileRoleIndex rows; returns the files whose metadata is gone
+    private List<FileMetadata> deleteMetadata(List<FileMetadata> files, Map<String, BulkDeleteResult> results) {
+        List<PendingWrite> writes = new ArrayList<>();
+        for (FileMetadata file : files) {
+            writes.add(new PendingWrite(file.getFileId(), FILE_METADATA_TABLE,
+                    Map.of("fileId", new AttributeValue(file.getFileId())), true));
+            for (FileRoleEntry entry : FileIndexService.roleEntries(file)) {
+                writes.add(new PendingWrite(file.getFileId(), FILE_ROLE_INDEX_TABLE,
+                        Map.of("role", new AttributeValue(entry.getRole()), "sortKey", new AttributeValue(entry.getSortKey())), false));
+            }
+            if (file.getContentHash() == null && CsvStatsService.isCsv(file)) {
+                // Statistics of a blob go with the blob, see BlobStore
+                writes.add(new PendingWrite(file.getFileId(), CsvStatsService.TABLE_NAME,
+                        Map.of("s3Key", new AttributeValue(file.getS3Key())), false));
+            }
+        }
+
+        Map<String, String> failedFiles = new HashMap<>();
+        for (int from = 0; from < writes.size(); from += BATCH_WRITE_LIMIT) {
+            for (PendingWrite failed : writeBatch(writes.subList(from, Math.min(writes.size(), from + BATCH_WRITE_LIMIT)))) {
+                if (failed.required) {
+                    failedFiles.putIfAbsent(failed.fileId, failed.error);
+                } else {
+                    // Like FileIndexService.removeRoles, a leftover index row is only logged
+                    System.out.println("Bulk delete left a " + failed.table + " row of " + failed.fileId + ": " + failed.error);
+                }
+            }
+        }
+
+        List<FileMetadata> deleted = new ArrayList<>();
+        for (FileMetadata file : files) {
+            String error = failedFiles.get(file.getFileId());
+            if (error == null) {
+                deleted.add(file);
+            } else {
+                results.put(file.getFileId(), BulkDeleteResult.error(HttpStatus.SERVICE_UNAVAILABLE.value(), error));
+            }
+        }
+        return deleted;
+    }
+
+    // Writes one batch, retrying the unprocessed items; returns the writes that did not succeed
+    private List<PendingWrite> writeBatch(List<PendingWrite> batch) {
+        List<PendingWrite> remaining = new ArrayList<>(batch);
+        String error = "Metadata could not be deleted, retry later";
+        for (int attempt = 0; attempt < maxAttempts && !remaining.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                backoff(attempt);
+            }
+            Map<String, List<WriteRequest>> requestItems = new HashMap<>();
+            for (PendingWrite write : remaining) {
+                requestItems.computeIfAbsent(write.table, table -> new ArrayList<>())
+                        .add(new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(write.key)));
+            }
+            Map<String, List<WriteRequest>> unprocessed;
+            try {
+                unprocessed = amazonDynamoDB.batchWriteItem(new BatchWriteItemRequest().withRequestItems(requestItems))
+                        .getUnprocessedItems();
+            } catch (ProvisionedThroughputExceededException | RequestLimitExceededException e) {
+                continue; // Nothing written, retry the whole batch
+            } catch (AmazonServiceException e) {
+                error = e.getErrorMessage();
+                break;
+            }
+            List<PendingWrite> next = new ArrayList<>();
+            for (PendingWrite write : remaining) {
+                List<WriteRequest> left = unprocessed.get(write.table);
+                if (left != null && left.stream().anyMatch(request -> request.getDeleteRequest().getKey().equals(write.key))) {
+                    next.add(write);
+                }
+            }
+            remaining = next;
+        }
+        String reason = error;
+        remaining.forEach(write -> write.error = reason);
+        return remaining;
+    }
+
+    // Releases the blobs, one write per blob, and deletes the other objects with their thumbnails
+    private void releaseContent(List<FileMetadata> files, Map<String, BulkDeleteResult> results) {
+        Map<String, List<String>> filesByBlob = new HashMap<>();
+        Map<String, String> fileByKey = new LinkedHashMap<>();
+        for (FileMetadata file : files) {
+            if (file.getContentHash() != null) {
+                filesByBlob.computeIfAbsent(file.getContentHash(), hash -> new ArrayList<>()).add(file.getFileId());
+            } else {
+                fileByKey.put(file.getS3Key(), file.getFileId());
+                if (DerivativeService.isSupported(file)) {
+                    derivativeService.derivedKeys(file.getS3Key()).forEach(key -> fileByKey.put(key, null));
+                }
+            }
+        }
+
+        filesByBlob.forEach((contentHash, fileIds) -> {
+            try {
+                blobStore.release(contentHash, fileIds.size());
+            } catch (RuntimeException e) {
+                System.out.println("Failed to release blob " + contentHash + ": " + e.getMessage());
+                fileIds.forEach(fileId -> results.put(fileId, BulkDeleteResult.error(HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                        "Metadata deleted but the content could not be released: " + e.getMessage())));
+            }
+        });
+
+        List<String> keys = new ArrayList<>(fileByKey.keySet());
+        for (int from = 0; from < keys.size(); from += DELETE_OBJECTS_LIMIT) {
+            Map<String, String> failed = deleteObjects(keys.subList(from, Math.min(keys.size(), from + DELETE_OBJECTS_LIMIT)));
+            failed.forEach((key, error) -> {
+                String fileId = fileByKey.get(key);
+                if (fileId != null) {
+                    results.put(fileId, BulkDeleteResult.error(HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                            "Metadata deleted but the object could not be removed: " + error));
+                } else {
+                    System.out.println("Failed to delete thumbnail " + key + ": " + error);
+                }
+            });
+        }
+        fileByKey.forEach((key, fileId) -> {
+            if (fileId != null) {
+                diskObjectCache.invalidate(key);
+            }
+        });
+    }
+
+    // One DeleteObjects per attempt, retrying the keys S3 reported as errors; returns the keys still failing
+    private Map<String, String> deleteObjects(List<String> keys) {
+        Map<String, String> failed = new HashMap<>();
+        List<String> remaining = keys;
+        for (int attempt = 0; attempt < maxAttempts && !remaining.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                backoff(attempt);
+            }
+            failed.clear();
+            try {
+                DeleteObjectsResponse response = s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                        .bucket(bucketName)
+                        // Quiet: only the errors are returned
+                        .delete(Delete.builder()
+                                .objects(remaining.stream().map(key -> ObjectIdentifier.builder().key(key).build()).toList())
+                                .quiet(true)
+                                .build())
+                        .build());
+                for (S3Error error : response.errors()) {
+                    failed.put(error.key(), error.code() + ": " + error.message());
+                }
+            } catch (RuntimeException e) {
+                remaining.forEach(key -> failed.put(key, e.getMessage()));
+            }
+            remaining = new ArrayList<>(failed.keySet());
+        }
+        return failed;
+    }
+
+    // Exponential backoff with full jitter
+    private static void backoff(int attempt) {
+        long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Una cancellazione da inviare con BatchWriteItem; required se il file resta finché non riesce.
+     */
+    private static final class PendingWrite {
+
+        private final String fileId;
+        private final String table;
+        private final Map<String, AttributeValue> key;
+        private final boolean required;
+        private String error;
+
+        private PendingWrite(String fileId, String table, Map<String, AttributeValue> key, boolean required) {
+            this.fileId = fileId;
+            this.table = table;
+            this.key = key;
+            this.required = required;
+        }
+    }
+}
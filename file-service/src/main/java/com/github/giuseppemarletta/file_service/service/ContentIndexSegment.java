@@ -0,0 +1,393 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Segmento immutabile dell'indice full-text, salvato su disco e letto con un memory map.
+ *
+ * Formato del file (interi big-endian):
+ * <pre>
+ * int magic, int versione, int numero di documenti
+ * per documento: stringa fileId, int numero di token
+ * posting: per ogni termine, coppie di varint (distanza dal documento precedente, occorrenze)
+ * dizionario: per ogni termine in ordine, stringa termine, int documenti, long offset dei posting
+ * int numero di termini, long offset di ogni voce del dizionario
+ * long offset della tabella, long offset del dizionario
+ * </pre>
+ * All'apertura solo la tabella dei documenti viene letta nello heap: dizionario e posting restano nel
+ * memory map, un termine si cerca con una ricerca binaria sulla tabella degli offset del dizionario.
+ */
+final class ContentIndexSegment implements ContentIndexService.Segment {
+
+    private static final int MAGIC = 0x46434958; // "FCIX"
+    private static final int VERSION = 1;
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final String[] fileIds;
+    private final int[] lengths;
+    private final long totalLength;
+    private final int termCount;
+    private final int termTable; // Position of the dictionary entry offsets
+
+    private ContentIndexSegment(Path path, ByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+        ByteBuffer in = buffer.duplicate();
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IllegalStateException("Not a content index segment: " + path);
+        }
+        int docCount = in.getInt();
+        fileIds = new String[docCount];
+        lengths = new int[docCount];
+        long total = 0;
+        for (int doc = 0; doc < docCount; doc++) {
+            fileIds[doc] = readString(in);
+            lengths[doc] = in.getInt();
+            total += lengths[doc];
+        }
+        totalLength = total;
+        int footer = buffer.limit() - 2 * Long.BYTES;
+        termTable = (int) buffer.getLong(footer);
+        termCount = buffer.getInt(termTable);
+    }
+
+    static ContentIndexSegment open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Segment too large to map: " + path);
+            }
+            // The mapping stays valid after the channel is closed
+            return new ContentIndexSegment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Unisce i segmenti in un nuovo segmento in path, togliendo i documenti dei file in removed. I documenti
+     * restano nell'ordine dei segmenti ricevuti e vengono rinumerati da 0.
+     */
+    static ContentIndexSegment merge(Path path, List<ContentIndexSegment> segments, Set<String> removed) throws IOException {
+        List<String> fileIds = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        int[][] docMap = new int[segments.size()][];
+        for (int s = 0; s < segments.size(); s++) {
+            ContentIndexSegment segment = segments.get(s);
+            docMap[s] = new int[segment.docCount()];
+            for (int doc = 0; doc < segment.docCount(); doc++) {
+                if (removed.contains(segment.fileId(doc))) {
+                    docMap[s][doc] = -1;
+                } else {
+                    docMap[s][doc] = fileIds.size();
+                    fileIds.add(segment.fileId(doc));
+                    lengths.add(segment.length(doc));
+                }
+            }
+        }
+
+        try (Writer writer = new Writer(path, fileIds, lengths.stream().mapToInt(Integer::intValue).toArray())) {
+            // k-way merge of the sorted dictionaries; a term's postings are taken segment by segment, so the
+            // renumbered docs stay in increasing order
+            record Head(int segment, int index, String term) {
+            }
+            PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparing(Head::term).thenComparingInt(Head::segment));
+            for (int s = 0; s < segments.size(); s++) {
+                if (segments.get(s).termCount() > 0) {
+                    heads.add(new Head(s, 0, segments.get(s).term(0)));
+                }
+            }
+            while (!heads.isEmpty()) {
+                String term = heads.peek().term();
+                writer.startTerm(term);
+                while (!heads.isEmpty() && heads.peek().term().equals(term)) {
+                    Head head = heads.poll();
+                    int[] map = docMap[head.segment()];
+                    segments.get(head.segment()).postings(head.index(), (doc, freq) -> {
+                        if (map[doc] >= 0) {
+                            try {
+                                writer.posting(map[doc], freq);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+                    });
+                    int next = head.index() + 1;
+                    if (next < segments.get(head.segment()).termCount()) {
+                        heads.add(new Head(head.segment(), next, segments.get(head.segment()).term(next)));
+                    }
+                }
+            }
+            writer.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return open(path);
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long sizeOnDisk() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public int docCount() {
+        return fileIds.length;
+    }
+
+    @Override
+    public String fileId(int doc) {
+        return fileIds[doc];
+    }
+
+    @Override
+    public int length(int doc) {
+        return lengths[doc];
+    }
+
+    @Override
+    public long totalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public int docFreq(String term) {
+        int entry = find(term);
+        return entry < 0 ? 0 : buffer.getInt(entry);
+    }
+
+    @Override
+    public void postings(String term, ContentIndexService.PostingConsumer consumer) {
+        int entry = find(term);
+        if (entry >= 0) {
+            readPostings(buffer.getInt(entry), (int) buffer.getLong(entry + Integer.BYTES), consumer);
+        }
+    }
+
+    int termCount() {
+        return termCount;
+    }
+
+    String term(int index) {
+        ByteBuffer in = buffer.duplicate();
+        in.position((int) buffer.getLong(termTable + Integer.BYTES + index * Long.BYTES));
+        return readString(in);
+    }
+
+    /**
+     * Come {@link #postings(String, ContentIndexService.PostingConsumer)} per il termine in posizione index.
+     */
+    void postings(int index, ContentIndexService.PostingConsumer consumer) {
+        ByteBuffer in = buffer.duplicate();
+        in.position((int) buffer.getLong(termTable + Integer.BYTES + index * Long.BYTES));
+        skipString(in);
+        readPostings(in.getInt(), (int) in.getLong(), consumer);
+    }
+
+    private void readPostings(int docFreq, int offset, ContentIndexService.PostingConsumer consumer) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        int doc = 0;
+        for (int i = 0; i < docFreq; i++) {
+            doc += readVarInt(in);
+            consumer.accept(doc, readVarInt(in));
+        }
+    }
+
+    // Position of the docFreq of the term's dictionary entry, -1 when missing
+    private int find(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = (int) buffer.getLong(termTable + Integer.BYTES + middle * Long.BYTES);
+            int length = buffer.getShort(entry) & 0xFFFF;
+            int cmp = compare(entry + Short.BYTES, length, key);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return entry + Short.BYTES + length;
+            }
+        }
+        return -1;
+    }
+
+    // Unsigned byte order, the same as String order for the UTF-8 of BMP characters
+    private int compare(int position, int length, byte[] key) {
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(buffer.get(position + i) & 0xFF, key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        in.position(in.position() + length);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Scrive un segmento: i documenti nel costruttore, poi i termini in ordine crescente con i loro posting
+     * in ordine di documento. Il file viene scritto accanto alla destinazione e spostato da finish, così un
+     * segmento interrotto a metà non viene mai aperto.
+     */
+    static final class Writer implements Closeable {
+        private final Path target;
+        private final Path temp;
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+        private final List<String> terms = new ArrayList<>();
+        private final List<long[]> entries = new ArrayList<>(); // {docFreq, postings offset}
+        private String pendingTerm;
+        private long termOffset;
+        private int docFreq;
+        private int lastDoc;
+
+        Writer(Path target, List<String> fileIds, int[] lengths) throws IOException {
+            this.target = target;
+            this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+            this.counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16));
+            this.out = new DataOutputStream(counter);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fileIds.size());
+            for (int doc = 0; doc < fileIds.size(); doc++) {
+                writeString(fileIds.get(doc));
+                out.writeInt(lengths[doc]);
+            }
+        }
+
+        void startTerm(String term) throws IOException {
+            endTerm();
+            pendingTerm = term;
+            termOffset = counter.count;
+            docFreq = 0;
+            lastDoc = 0;
+        }
+
+        // Docs in increasing order; a term with no posting is left out of the dictionary
+        void posting(int doc, int freq) throws IOException {
+            writeVarInt(doc - lastDoc);
+            writeVarInt(freq);
+            lastDoc = doc;
+            docFreq++;
+        }
+
+        private void endTerm() {
+            if (pendingTerm != null && docFreq > 0) {
+                terms.add(pendingTerm);
+                entries.add(new long[] {docFreq, termOffset});
+            }
+            pendingTerm = null;
+        }
+
+        /**
+         * Completa il segmento e lo sposta nella destinazione. Un Writer chiuso senza finish non lascia file.
+         */
+        void finish() throws IOException {
+            endTerm();
+            long[] entryOffsets = new long[terms.size()];
+            for (int i = 0; i < terms.size(); i++) {
+                entryOffsets[i] = counter.count;
+                writeString(terms.get(i));
+                out.writeInt((int) entries.get(i)[0]);
+                out.writeLong(entries.get(i)[1]);
+            }
+            long table = counter.count;
+            out.writeInt(terms.size());
+            for (long offset : entryOffsets) {
+                out.writeLong(offset);
+            }
+            out.writeLong(table);
+            out.writeLong(entryOffsets.length > 0 ? entryOffsets[0] : table);
+            out.close();
+            if (counter.count > Integer.MAX_VALUE) {
+                throw new IOException("Segment too large to map: " + counter.count + " bytes");
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            Files.deleteIfExists(temp);
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
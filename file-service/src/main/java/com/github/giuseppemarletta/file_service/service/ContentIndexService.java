@@ -0,0 +1,715 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.github.giuseppemarletta.file_service.dto.ContentSearchHit;
+import com.github.giuseppemarletta.file_service.dto.FileMetadataDto;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/**
+ * Indice full-text del contenuto dei file testuali (testo, CSV, JSON, XML, codice sorgente).
+ *
+ * Dopo l'upload il file viene messo in coda e un thread di indicizzazione lo legge in streaming da S3,
+ * dividendolo in token man mano, senza caricarlo in memoria. I documenti nuovi finiscono in un segmento in
+ * memoria che ogni content.index.flush-docs documenti, o ogni content.index.flush-interval, viene scritto su
+ * disco come segmento immutabile (ContentIndexSegment, posting codificati con delta e varint) e riaperto con
+ * un memory map; all'avvio i segmenti già presenti nella directory vengono solo mappati. Quando i segmenti
+ * superano content.index.max-segments i più piccoli vengono uniti, togliendo i file cancellati, che fino ad
+ * allora sono solo esclusi dai risultati (e salvati in deleted.log).
+ *
+ * Una scansione periodica di FileMetadata mette in coda i file testuali non ancora indicizzati: recupera i
+ * file caricati su altre istanze, quelli scartati con la coda piena e quelli del segmento in memoria perso
+ * con un arresto non pulito.
+ */
+@Service
+@RequiredArgsConstructor
+public class ContentIndexService {
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final String DELETED_LOG = "deleted.log";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".idx";
+    private static final int MIN_TOKEN_LENGTH = 2;
+    static final int MAX_TOKEN_LENGTH = 64; // Longer runs are hashes, base64 and the like
+    private static final long MAX_MERGED_SEGMENT_BYTES = 1L << 30; // Segments are mapped with a single buffer
+    // BM25 parameters
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final Set<String> TEXT_TYPES = Set.of(
+            "application/json", "application/xml", "application/csv", "application/yaml", "application/x-yaml",
+            "application/toml", "application/javascript", "application/x-javascript", "application/sql",
+            "application/x-sh", "application/x-httpd-php", "application/ld+json");
+    // Source code and text are often uploaded as application/octet-stream
+    private static final Set<String> TEXT_EXTENSIONS = Set.of(
+            "txt", "text", "md", "markdown", "rst", "log", "csv", "tsv", "json", "jsonl", "ndjson", "xml", "yaml",
+            "yml", "toml", "ini", "properties", "conf", "html", "htm", "css", "sql", "sh", "bash", "java", "kt",
+            "kts", "scala", "groovy", "gradle", "py", "rb", "php", "js", "mjs", "ts", "tsx", "jsx", "go", "rs",
+            "c", "h", "cc", "cpp", "hpp", "cs", "swift", "r", "pl", "lua", "dart", "vue");
+
+    private final S3Client s3Client;
+    private final ParallelScanner parallelScanner;
+    private final FileMetadataCache fileMetadataCache;
+    private final AclIndex aclIndex;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${content.index.enabled:true}")
+    private boolean enabled;
+
+    @Value("${content.index.dir:${java.io.tmpdir}/file-service-content-index}")
+    private Path directory;
+
+    // Characters read from a file, the rest of a larger file is not indexed
+    @Value("${content.index.max-chars-per-file:20000000}")
+    private long maxCharsPerFile;
+
+    @Value("${content.index.threads:2}")
+    private int threads;
+
+    @Value("${content.index.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${content.index.flush-docs:1000}")
+    private int flushDocs;
+
+    @Value("${content.index.flush-interval:PT30S}")
+    private Duration flushInterval;
+
+    @Value("${content.index.max-segments:8}")
+    private int maxSegments;
+
+    @Value("${content.index.scan-segments:4}")
+    private int scanSegments;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object flushMonitor = new Object();
+    private final Set<String> known = ConcurrentHashMap.newKeySet(); // Indexed or queued
+    private final Set<String> deleted = ConcurrentHashMap.newKeySet(); // Still in some segment
+    // A lock instead of a monitor: remove() writes deleted.log on the request thread, which may be virtual
+    private final Lock deletedLogLock = new ReentrantLock();
+    private final AtomicInteger nextSegment = new AtomicInteger();
+    private volatile List<Segment> segments = List.of(); // Replaced under the write lock
+    private LiveSegment live = new LiveSegment();
+    private FileJobQueue jobs;
+    private ScheduledExecutorService flusher;
+    private Counter indexed;
+    private Counter failed;
+
+    /**
+     * Un segmento dell'indice: i documenti sono numerati da 0 e i posting di ogni termine sono in ordine di documento.
+     */
+    interface Segment {
+        int docCount();
+
+        String fileId(int doc);
+
+        int length(int doc);
+
+        long totalLength();
+
+        int docFreq(String term);
+
+        void postings(String term, PostingConsumer consumer);
+    }
+
+    @FunctionalInterface
+    interface PostingConsumer {
+        void accept(int doc, int freq);
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        Path deletedLog = directory.resolve(DELETED_LOG);
+        if (Files.exists(deletedLog)) {
+            Files.readAllLines(deletedLog).stream().filter(line -> !line.isBlank()).forEach(deleted::add);
+        }
+        List<Segment> opened = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.sorted().toList()) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(path); // Left by a flush or merge that did not complete
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    nextSegment.set(Math.max(nextSegment.get(), segmentNumber(name) + 1));
+                    try {
+                        opened.add(ContentIndexSegment.open(path));
+                    } catch (IOException | RuntimeException e) {
+                        // Its files are indexed again by the next reconcile
+                        System.out.println("Discarding unreadable content index segment " + name + ": " + e.getMessage());
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+        }
+        for (Segment segment : opened) {
+            for (int doc = 0; doc < segment.docCount(); doc++) {
+                if (!deleted.contains(segment.fileId(doc))) {
+                    known.add(segment.fileId(doc));
+                }
+            }
+        }
+        segments = List.copyOf(opened);
+        System.out.println("Content index opened with " + known.size() + " files in " + opened.size() + " segments.");
+
+        jobs = FileJobQueue.builder()
+                .name("Content index")
+                .threadName("content-indexer")
+                .threads(threads)
+                .queueCapacity(queueCapacity)
+                .key(FileMetadata::getFileId) // The index holds a document per file, also for deduplicated blobs
+                .processor(this::index)
+                .onDiscard(file -> known.remove(file.getFileId()))
+                .parallelScanner(parallelScanner)
+                .meterRegistry(meterRegistry)
+                .jobsMetric("file.content.index.files")
+                .queueMetric("file.content.index.queue")
+                .build();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "content-index-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+
+        indexed = Counter.builder("file.content.index.files").tag("result", "indexed").register(meterRegistry);
+        failed = Counter.builder("file.content.index.files").tag("result", "failed").register(meterRegistry);
+        Gauge.builder("file.content.index.documents", this, ContentIndexService::documentCount).register(meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        // Queued files are picked up by the reconcile after the restart
+        jobs.shutdown();
+        jobs.awaitTermination(10, TimeUnit.SECONDS);
+        flusher.shutdown();
+        flusher.awaitTermination(30, TimeUnit.SECONDS);
+        flushQuietly();
+    }
+
+    private double documentCount() {
+        int docs = live.docCount();
+        for (Segment segment : segments) {
+            docs += segment.docCount();
+        }
+        return docs - deleted.size();
+    }
+
+    /**
+     * @return true se il contenuto del file viene indicizzato, in base a fileType o all'estensione del nome
+     */
+    public static boolean isTextLike(FileMetadata file) {
+        String type = file.getFileType() == null ? "" : file.getFileType().toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+        if (type.startsWith("text/") || TEXT_TYPES.contains(type) || type.endsWith("+json") || type.endsWith("+xml")) {
+            return true;
+        }
+        String name = file.getFileName() == null ? "" : file.getFileName();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && TEXT_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Mette in coda un file appena caricato. Con la coda piena il file viene scartato e indicizzato dalla
+     * prossima riconciliazione.
+     */
+    public void submit(FileMetadata file) {
+        if (!enabled || file.getS3Key() == null || EncryptionService.isEncrypted(file) || !isTextLike(file)
+                || !known.add(file.getFileId())) {
+            return;
+        }
+        jobs.submit(file);
+    }
+
+    /**
+     * Toglie un file cancellato: viene subito escluso dai risultati e tolto dai segmenti alla prossima unione.
+     */
+    public void remove(String fileId) {
+        if (!enabled || !known.remove(fileId)) {
+            return;
+        }
+        deleted.add(fileId);
+        deletedLogLock.lock();
+        try {
+            Files.writeString(directory.resolve(DELETED_LOG), fileId + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // Without the entry the file comes back after a restart, until the search finds no metadata for it
+            System.out.println("Failed to record deletion of " + fileId + " in the content index: " + e.getMessage());
+        } finally {
+            deletedLogLock.unlock();
+        }
+    }
+
+    /**
+     * Applica un upload o una cancellazione fatta da un'altra istanza.
+     */
+    public void refresh(String fileId) {
+        if (!enabled) {
+            return;
+        }
+        Optional<FileMetadata> file = fileMetadataCache.findById(fileId);
+        if (file.isPresent()) {
+            submit(file.get());
+        } else {
+            remove(fileId);
+        }
+    }
+
+    private void index(FileMetadata file) {
+        jobs.finish(file);
+        String fileId = file.getFileId();
+        if (deleted.contains(fileId)) {
+            return;
+        }
+        Map<String, int[]> freqs = new HashMap<>();
+        Tokenized tokenized;
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(file.getS3Key())
+                .build())) {
+            tokenized = tokenize(new InputStreamReader(in, StandardCharsets.UTF_8), maxCharsPerFile,
+                    token -> freqs.computeIfAbsent(token, t -> new int[1])[0]++);
+            if (!tokenized.complete()) {
+                in.abort(); // Do not drain the rest of a large object
+            }
+        } catch (IOException | UncheckedIOException | SdkException e) {
+            known.remove(fileId);
+            failed.increment();
+            System.out.println("Content indexing of " + fileId + " failed: " + e.getMessage());
+            return;
+        }
+        if (tokenized.binary()) {
+            // Indexed with no words, so that the reconcile does not read it again
+            freqs.clear();
+        }
+
+        boolean full;
+        lock.writeLock().lock();
+        try {
+            live.add(fileId, tokenized.binary() ? 0 : tokenized.tokens(), freqs);
+            full = live.docCount() >= flushDocs;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        indexed.increment();
+        if (full) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    record Tokenized(int tokens, boolean complete, boolean binary) {
+    }
+
+    /**
+     * Divide il testo in token di lettere e cifre, in minuscolo, leggendolo a blocchi. Un carattere NUL
+     * interrompe la lettura: il contenuto non è testo.
+     */
+    static Tokenized tokenize(Reader reader, long maxChars, Consumer<String> consumer) throws IOException {
+        char[] buffer = new char[8192];
+        StringBuilder token = new StringBuilder(MAX_TOKEN_LENGTH + 1);
+        int tokens = 0;
+        long read = 0;
+        int n;
+        while ((n = reader.read(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                char c = buffer[i];
+                if (c == 0) {
+                    return new Tokenized(tokens, false, true);
+                }
+                // Surrogates are not letters: tokens are BMP only, which keeps String and UTF-8 order the same
+                if (Character.isLetterOrDigit(c)) {
+                    if (token.length() <= MAX_TOKEN_LENGTH) {
+                        token.append(Character.toLowerCase(c));
+                    }
+                } else if (!token.isEmpty()) {
+                    tokens += emit(token, consumer);
+                }
+            }
+            read += n;
+            if (read >= maxChars) {
+                tokens += emit(token, consumer);
+                return new Tokenized(tokens, false, false);
+            }
+        }
+        tokens += emit(token, consumer);
+        return new Tokenized(tokens, true, false);
+    }
+
+    private static int emit(StringBuilder token, Consumer<String> consumer) {
+        int length = token.length();
+        if (length >= MIN_TOKEN_LENGTH && length <= MAX_TOKEN_LENGTH) {
+            consumer.accept(token.toString());
+        }
+        token.setLength(0);
+        return length >= MIN_TOKEN_LENGTH && length <= MAX_TOKEN_LENGTH ? 1 : 0;
+    }
+
+    /**
+     * Cerca i file visibili all'utente che contengono le parole della query, ordinati per rilevanza (BM25):
+     * non serve che le contengano tutte, ma chi ne contiene di più viene prima.
+     */
+    public List<ContentSearchHit> search(String userId, List<String> userRoles, String query, int limit) {
+        if (!enabled) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Content search is disabled");
+        }
+        List<String> terms = new ArrayList<>();
+        try {
+            tokenize(new StringReader(query == null ? "" : query), Long.MAX_VALUE, token -> {
+                if (!terms.contains(token)) {
+                    terms.add(token);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (terms.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "q must contain at least one word");
+        }
+
+        Map<String, Double> scores = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            List<Segment> all = new ArrayList<>(segments);
+            all.add(live);
+            long docs = 0;
+            long totalLength = 0;
+            for (Segment segment : all) {
+                docs += segment.docCount();
+                totalLength += segment.totalLength();
+            }
+            if (docs == 0) {
+                return List.of();
+            }
+            double averageLength = Math.max(1, (double) totalLength / docs);
+            for (String term : terms) {
+                long docFreq = 0;
+                for (Segment segment : all) {
+                    docFreq += segment.docFreq(term);
+                }
+                if (docFreq == 0) {
+                    continue;
+                }
+                double idf = Math.log(1 + (docs - docFreq + 0.5) / (docFreq + 0.5));
+                for (Segment segment : all) {
+                    segment.postings(term, (doc, freq) -> {
+                        String fileId = segment.fileId(doc);
+                        if (!deleted.contains(fileId)) {
+                            double norm = K1 * (1 - B + B * segment.length(doc) / averageLength);
+                            scores.merge(fileId, idf * freq * (K1 + 1) / (freq + norm), Double::sum);
+                        }
+                    });
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<String> ranked = scores.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .map(Map.Entry::getKey)
+                .toList();
+        if (aclIndex.isReady()) {
+            ranked = aclIndex.visibleFileIds(userId, userRoles, ranked);
+        }
+        // The metadata has the last word on visibility, and drops files deleted on another instance
+        List<ContentSearchHit> hits = new ArrayList<>();
+        for (int from = 0; from < ranked.size() && hits.size() < limit; from += limit) {
+            List<String> batch = ranked.subList(from, Math.min(ranked.size(), from + limit));
+            Map<String, FileMetadata> files = fileMetadataCache.findAllById(batch);
+            for (String fileId : batch) {
+                FileMetadata file = files.get(fileId);
+                if (file != null && AclIndex.canRead(file, userId, userRoles) && hits.size() < limit) {
+                    hits.add(new ContentSearchHit(new FileMetadataDto(file.getFileId(), file.getFileName(), file.getFileType(),
+                            file.getFileSize(), file.getUploadDate(), file.getVisibility()), scores.get(fileId)));
+                }
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Mette in coda i file testuali di FileMetadata non ancora indicizzati, in un thread dedicato per non
+     * occupare lo scheduler durante una scansione lunga.
+     */
+    @Scheduled(initialDelayString = "${content.index.reconcile-delay:PT1M}", fixedDelayString = "${content.index.reconcile-interval:PT1H}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        jobs.reconcile(ParallelScanner.ScanJob.builder()
+                .tableName(FILE_METADATA_TABLE)
+                .projectionExpression("fileId, fileName, fileType, s3Key")
+                // Encrypted files are never indexed, the index would hold their words in clear
+                .filterExpression("attribute_not_exists(encryptedKey)")
+                .segments(scanSegments)
+                .parallelism(scanSegments)
+                .build(), file -> isTextLike(file) && known.add(file.getFileId()));
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Content index flush failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Scrive su disco il segmento in memoria. Resta interrogabile mentre viene scritto e viene sostituito
+     * dal segmento mappato alla fine.
+     */
+    private void flush() throws IOException {
+        synchronized (flushMonitor) {
+            LiveSegment frozen;
+            lock.writeLock().lock();
+            try {
+                if (live.docCount() == 0) {
+                    return;
+                }
+                frozen = live;
+                live = new LiveSegment();
+                segments = append(segments, frozen);
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            // On failure the frozen segment stays in memory, its files are indexed again after a restart
+            ContentIndexSegment written = frozen.write(nextSegmentPath());
+            replace(List.of(frozen), written);
+            mergeIfNeeded();
+        }
+    }
+
+    private void mergeIfNeeded() throws IOException {
+        List<ContentIndexSegment> onDisk = segments.stream()
+                .filter(ContentIndexSegment.class::isInstance)
+                .map(ContentIndexSegment.class::cast)
+                .sorted(Comparator.comparingLong(ContentIndexSegment::sizeOnDisk))
+                .toList();
+        if (onDisk.size() <= maxSegments) {
+            return;
+        }
+        // The smallest segments first, up to the size a single mapping can hold
+        List<ContentIndexSegment> selected = new ArrayList<>();
+        long size = 0;
+        for (ContentIndexSegment segment : onDisk) {
+            if (size + segment.sizeOnDisk() > MAX_MERGED_SEGMENT_BYTES) {
+                break;
+            }
+            selected.add(segment);
+            size += segment.sizeOnDisk();
+        }
+        if (selected.size() < 2) {
+            return;
+        }
+
+        Set<String> removed = Set.copyOf(deleted);
+        Path path = nextSegmentPath();
+        ContentIndexSegment merged = ContentIndexSegment.merge(path, selected, removed);
+        replace(selected, merged);
+        for (ContentIndexSegment segment : selected) {
+            Files.deleteIfExists(segment.path());
+        }
+        // A file lives in one segment only: the deletions applied by the merge are no longer needed
+        Set<String> applied = new HashSet<>();
+        for (ContentIndexSegment segment : selected) {
+            for (int doc = 0; doc < segment.docCount(); doc++) {
+                if (removed.contains(segment.fileId(doc))) {
+                    applied.add(segment.fileId(doc));
+                }
+            }
+        }
+        deletedLogLock.lock();
+        try {
+            deleted.removeAll(applied);
+            Path temp = directory.resolve(DELETED_LOG + ".tmp");
+            Files.write(temp, deleted, StandardCharsets.UTF_8);
+            Files.move(temp, directory.resolve(DELETED_LOG), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            deletedLogLock.unlock();
+        }
+        System.out.println("Content index merged " + selected.size() + " segments into " + path.getFileName()
+                + " with " + merged.docCount() + " files.");
+    }
+
+    private void replace(List<? extends Segment> old, Segment replacement) {
+        lock.writeLock().lock();
+        try {
+            List<Segment> updated = new ArrayList<>(segments);
+            updated.removeAll(old);
+            updated.add(replacement);
+            segments = List.copyOf(updated);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static List<Segment> append(List<Segment> segments, Segment segment) {
+        List<Segment> updated = new ArrayList<>(segments);
+        updated.add(segment);
+        return List.copyOf(updated);
+    }
+
+    private Path nextSegmentPath() {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, nextSegment.getAndIncrement(), SEGMENT_SUFFIX));
+    }
+
+    private static int segmentNumber(String name) {
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * I documenti indicizzati dall'ultimo flush, modificati sotto il write lock.
+     */
+    private static final class LiveSegment implements Segment {
+        private final List<String> fileIds = new ArrayList<>();
+        private int[] lengths = new int[16];
+        private final Map<String, Postings> terms = new HashMap<>();
+        private long totalLength;
+
+        void add(String fileId, int length, Map<String, int[]> freqs) {
+            int doc = fileIds.size();
+            fileIds.add(fileId);
+            if (doc == lengths.length) {
+                lengths = Arrays.copyOf(lengths, doc * 2);
+            }
+            lengths[doc] = length;
+            totalLength += length;
+            freqs.forEach((term, freq) -> terms.computeIfAbsent(term, t -> new Postings()).add(doc, freq[0]));
+        }
+
+        ContentIndexSegment write(Path path) throws IOException {
+            try (ContentIndexSegment.Writer writer = new ContentIndexSegment.Writer(path, fileIds,
+                    Arrays.copyOf(lengths, fileIds.size()))) {
+                for (String term : terms.keySet().stream().sorted().toList()) {
+                    Postings postings = terms.get(term);
+                    writer.startTerm(term);
+                    for (int i = 0; i < postings.size; i++) {
+                        writer.posting(postings.docs[i], postings.freqs[i]);
+                    }
+                }
+                writer.finish();
+            }
+            return ContentIndexSegment.open(path);
+        }
+
+        @Override
+        public int docCount() {
+            return fileIds.size();
+        }
+
+        @Override
+        public String fileId(int doc) {
+            return fileIds.get(doc);
+        }
+
+        @Override
+        public int length(int doc) {
+            return lengths[doc];
+        }
+
+        @Override
+        public long totalLength() {
+            return totalLength;
+        }
+
+        @Override
+        public int docFreq(String term) {
+            Postings postings = terms.get(term);
+            return postings == null ? 0 : postings.size;
+        }
+
+        @Override
+        public void postings(String term, PostingConsumer consumer) {
+            Postings postings = terms.get(term);
+            if (postings != null) {
+                for (int i = 0; i < postings.size; i++) {
+                    consumer.accept(postings.docs[i], postings.freqs[i]);
+                }
+            }
+        }
+    }
+
+    private static final class Postings {
+        private int[] docs = new int[4];
+        private int[] freqs = new int[4];
+        private int size;
+
+        void add(int doc, int freq) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = freq;
+            size++;
+        }
+    }
+}
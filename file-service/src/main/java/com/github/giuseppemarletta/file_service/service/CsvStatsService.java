@@ -0,0 +1,664 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.giuseppemarletta.file_service.dto.CsvColumnStatsDto;
+import com.github.giuseppemarletta.file_service.dto.CsvStatsDto;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.HyperLogLog;
+import com.github.giuseppemarletta.file_service.util.KllSketch;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+/**
+ * Statistiche descrittive per colonna dei file CSV, calcolate in background dopo l'upload e salvate nella
+ * tabella FileStats, da cui GET /files/{fileId}/stats le legge senza rileggere il file.
+ *
+ * Il file viene letto da S3 in streaming una sola volta: un thread lo divide in blocchi di
+ * csv.stats.chunk-size byte, tagliati alla fine di un record (fuori dai campi tra virgolette), e i blocchi
+ * vengono analizzati in parallelo da csv.stats.parallelism thread. Ogni thread accumula le proprie statistiche
+ * parziali, unite alla fine: conteggi, min, max, media e varianza (Welford, unite con la formula di Chan),
+ * valori distinti stimati con HyperLogLog e quantili con uno sketch KLL. La memoria usata dipende dal numero
+ * di colonne e dai blocchi in lavorazione, non dalla dimensione del file.
+ *
+ * Come per le miniature (vedi DerivativeService) le statistiche sono per chiave S3, quindi condivise dai file
+ * deduplicati; i job sono in una coda limitata e quelli scartati vengono ripresi dalla riconciliazione.
+ */
+@Service
+@RequiredArgsConstructor
+public class CsvStatsService {
+
+    public static final String TABLE_NAME = "FileStats";
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final int HLL_PRECISION = 12;
+    private static final int KLL_K = 200;
+    private static final int MAX_RECORD_CHUNKS = 16;
+    private static final double[] RANKS = { 0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99 };
+    private static final String[] RANK_NAMES = { "p01", "p05", "p25", "p50", "p75", "p95", "p99" };
+    private static final Set<String> CSV_TYPES = Set.of("text/csv", "application/csv", "text/comma-separated-values");
+
+    private final S3Client s3Client;
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final ParallelScanner parallelScanner;
+    private final FileMetadataCache fileMetadataCache;
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${csv.stats.enabled:true}")
+    private boolean enabled;
+
+    // Threads parsing the chunks of a file, 0 for one per core
+    @Value("${csv.stats.parallelism:0}")
+    private int parallelism;
+
+    @Value("${csv.stats.chunk-size:4MB}")
+    private DataSize chunkSize;
+
+    @Value("${csv.stats.queue-capacity:100}")
+    private int queueCapacity;
+
+    // Columns after these are counted in ignoredColumns, so that the statistics fit in a DynamoDB item
+    @Value("${csv.stats.max-columns:256}")
+    private int maxColumns;
+
+    @Value("${csv.stats.delimiter:,}")
+    private char delimiter;
+
+    // One job per source key, shared by the files of a deduplicated blob
+    private FileJobQueue jobs;
+    private ExecutorService parsers;
+    private Counter computed;
+    private Counter reused;
+    private Counter failed;
+
+    @PostConstruct
+    void init() {
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        jobs = FileJobQueue.builder()
+                .name("CSV statistics")
+                .threadName("csv-stats")
+                .threads(1) // One file at a time, each file already uses every parser
+                .queueCapacity(queueCapacity)
+                .key(FileMetadata::getS3Key)
+                .processor(this::process)
+                .parallelScanner(parallelScanner)
+                .meterRegistry(meterRegistry)
+                .jobsMetric("file.csv.stats.jobs")
+                .queueMetric("file.csv.stats.queue")
+                .build();
+        AtomicInteger counter = new AtomicInteger();
+        parsers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "csv-stats-parser-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        computed = Counter.builder("file.csv.stats.jobs").tag("result", "computed").register(meterRegistry);
+        reused = Counter.builder("file.csv.stats.jobs").tag("result", "reused").register(meterRegistry);
+        failed = Counter.builder("file.csv.stats.jobs").tag("result", "failed").register(meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        jobs.shutdown();
+        parsers.shutdownNow();
+    }
+
+    /**
+     * @return true se il file è un CSV, in base a fileType o all'estensione del nome
+     */
+    public static boolean isCsv(FileMetadata file) {
+        String type = file.getFileType() == null ? "" : file.getFileType().toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        if (CSV_TYPES.contains(parameters >= 0 ? type.substring(0, parameters).trim() : type)) {
+            return true;
+        }
+        return file.getFileName() != null && file.getFileName().toLowerCase(Locale.ROOT).endsWith(".csv");
+    }
+
+    /**
+     * Mette in coda un file appena salvato, senza mai bloccare: con la coda piena il file viene scartato.
+     */
+    public void submit(FileMetadata file) {
+        if (!enabled || file.getS3Key() == null || EncryptionService.isEncrypted(file) || !isCsv(file)) {
+            return;
+        }
+        jobs.submit(file);
+    }
+
+    /**
+     * Legge le statistiche di un file; i permessi vanno controllati prima.
+     *
+     * @throws ResponseStatusException 400 se il file non è un CSV, 404 se le statistiche non sono ancora pronte,
+     *         422 se il file non è stato possibile analizzarlo
+     */
+    public CsvStatsDto getStats(FileMetadata file) {
+        if (!isCsv(file)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Statistics are only computed for CSV files");
+        }
+        if (EncryptionService.isEncrypted(file)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Statistics are not computed for encrypted files");
+        }
+        Map<String, AttributeValue> item = file.getStatsComputedAt() == null ? null : amazonDynamoDB.getItem(new GetItemRequest()
+                .withTableName(TABLE_NAME)
+                .withKey(Map.of("s3Key", new AttributeValue(file.getS3Key())))).getItem();
+        if (item == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Statistics not ready");
+        }
+        if (item.containsKey("error")) {
+            throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "Cannot compute statistics: " + item.get("error").getS());
+        }
+        try {
+            return new CsvStatsDto(file.getFileId(),
+                    Long.valueOf(item.get("rowCount").getN()),
+                    Integer.valueOf(item.get("ignoredColumns").getN()),
+                    item.get("computedAt").getS(),
+                    objectMapper.readValue(item.get("columns").getS(), new TypeReference<List<CsvColumnStatsDto>>() { }));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Corrupt statistics for " + file.getS3Key(), e);
+        }
+    }
+
+    /**
+     * Cancella le statistiche di un oggetto S3 cancellato.
+     */
+    public void delete(String s3Key) {
+        amazonDynamoDB.deleteItem(new DeleteItemRequest()
+                .withTableName(TABLE_NAME)
+                .withKey(Map.of("s3Key", new AttributeValue(s3Key))));
+    }
+
+    /**
+     * Mette in coda i CSV di FileMetadata senza statistiche, in un thread dedicato per non occupare lo
+     * scheduler durante una scansione lunga.
+     */
+    @Scheduled(initialDelayString = "${csv.stats.reconcile-delay:PT2M}", fixedDelayString = "${csv.stats.reconcile-interval:PT1H}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        jobs.reconcile(ParallelScanner.ScanJob.builder()
+                .tableName(FILE_METADATA_TABLE)
+                .projectionExpression("fileId, fileName, fileType, s3Key")
+                .filterExpression("attribute_not_exists(statsComputedAt) AND attribute_not_exists(encryptedKey)")
+                .build(), CsvStatsService::isCsv);
+    }
+
+    private void process(FileMetadata file) {
+        String s3Key = file.getS3Key();
+        try {
+            if (exists(s3Key)) {
+                reused.increment();
+            } else {
+                amazonDynamoDB.putItem(new PutItemRequest().withTableName(TABLE_NAME).withItem(analyze(file)));
+            }
+        } catch (SdkException | SdkClientException | UncheckedIOException e) {
+            // S3 or DynamoDB unavailable: left unmarked, retried by the next reconcile
+            jobs.finish(file);
+            failed.increment();
+            System.out.println("Failed to compute the statistics of " + file.getFileId() + ": " + e.getMessage());
+            return;
+        }
+
+        String now = Instant.now().toString();
+        for (String fileId : jobs.finish(file)) {
+            markComputed(fileId, s3Key, now);
+        }
+    }
+
+    // The statistics item, or one with the error when the content cannot be parsed
+    private Map<String, AttributeValue> analyze(FileMetadata file) {
+        long started = System.nanoTime();
+        Map<String, AttributeValue> item = new LinkedHashMap<>();
+        item.put("s3Key", new AttributeValue(file.getS3Key()));
+        item.put("computedAt", new AttributeValue(Instant.now().toString()));
+        try (InputStream in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(file.getS3Key())
+                .build())) {
+            Result result = compute(in);
+            item.put("rowCount", new AttributeValue().withN(Long.toString(result.rows)));
+            item.put("ignoredColumns", new AttributeValue().withN(Integer.toString(result.ignoredColumns)));
+            item.put("columns", new AttributeValue(objectMapper.writeValueAsString(result.columns)));
+            computed.increment();
+            System.out.println("Computed the statistics of " + file.getFileId() + ": " + result.rows + " rows, "
+                    + result.columns.size() + " columns in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            // Connection lost while streaming, like the other S3 errors
+            throw new UncheckedIOException(e);
+        } catch (CsvFormatException e) {
+            failed.increment();
+            item.put("error", new AttributeValue(String.valueOf(e.getMessage())));
+            System.out.println("Cannot compute the statistics of " + file.getFileId() + ": " + e.getMessage());
+        }
+        return item;
+    }
+
+    /**
+     * Legge il CSV dallo stream una volta sola e ne calcola le statistiche, analizzando i blocchi in parallelo.
+     *
+     * @throws CsvFormatException se il file non ha intestazione o ha virgolette non bilanciate
+     */
+    Result compute(InputStream in) throws IOException {
+        int size = (int) Math.max(64 * 1024, Math.min(Integer.MAX_VALUE / 2, chunkSize.toBytes()));
+        byte[] buffer = new byte[size];
+        int length = in.readNBytes(buffer, 0, buffer.length);
+        int start = 0;
+        // UTF-8 byte order mark
+        if (length >= 3 && buffer[0] == (byte) 0xEF && buffer[1] == (byte) 0xBB && buffer[2] == (byte) 0xBF) {
+            start = 3;
+        }
+        List<String> header = new ArrayList<>();
+        start = parseHeader(buffer, start, length, header);
+        if (header.isEmpty()) {
+            throw new CsvFormatException("No header row");
+        }
+        String[] names = header.stream().limit(maxColumns).toArray(String[]::new);
+
+        // At most 2 chunks per parser in flight, besides the one being read
+        Semaphore inFlight = new Semaphore(2 * parallelism);
+        ConcurrentLinkedQueue<Partial> idle = new ConcurrentLinkedQueue<>();
+        List<Partial> partials = new ArrayList<>();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        boolean inQuotes = false;
+        int scanned = start;
+        boolean eof = length < buffer.length;
+        try {
+            while (true) {
+                // Quote state up to the end of the data, and the end of the last complete record
+                int recordEnd = -1;
+                for (int i = scanned; i < length; i++) {
+                    byte b = buffer[i];
+                    if (b == '"') {
+                        inQuotes = !inQuotes;
+                    } else if (b == '\n' && !inQuotes) {
+                        recordEnd = i + 1;
+                    }
+                }
+                scanned = length;
+
+                if (eof || recordEnd > start) {
+                    int end = eof ? length : recordEnd;
+                    byte[] chunk = buffer;
+                    int chunkStart = start;
+                    inFlight.acquireUninterruptibly();
+                    if (failure.get() != null) {
+                        inFlight.release();
+                        break;
+                    }
+                    parsers.execute(() -> {
+                        Partial partial = idle.poll();
+                        try {
+                            if (partial == null) {
+                                partial = new Partial(names.length);
+                                synchronized (partials) {
+                                    partials.add(partial);
+                                }
+                            }
+                            parseChunk(chunk, chunkStart, end, partial);
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            if (partial != null) {
+                                idle.add(partial);
+                            }
+                            inFlight.release();
+                        }
+                    });
+                    if (eof) {
+                        break;
+                    }
+                    // The rest of the data starts the next chunk, the chunk just queued is now owned by its parser
+                    buffer = new byte[Math.max(size, length - end + size / 2)];
+                    System.arraycopy(chunk, end, buffer, 0, length - end);
+                    length -= end;
+                    scanned -= end;
+                    start = 0;
+                } else if (length == buffer.length) {
+                    // A single record longer than the buffer; a stray quote also looks like one, hence the bound
+                    if (buffer.length >= MAX_RECORD_CHUNKS * size) {
+                        throw new CsvFormatException("Unbalanced quotes or a record longer than " + buffer.length + " bytes");
+                    }
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int read = in.readNBytes(buffer, length, buffer.length - length);
+                length += read;
+                eof = length < buffer.length;
+            }
+        } finally {
+            inFlight.acquireUninterruptibly(2 * parallelism);
+        }
+        if (failure.get() != null) {
+            throw new CsvFormatException("Cannot parse the file: " + failure.get());
+        }
+
+        Partial total = new Partial(names.length);
+        partials.forEach(total::merge);
+        List<CsvColumnStatsDto> columns = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            columns.add(total.columns[i].toDto(names[i]));
+        }
+        return new Result(total.rows, header.size() - names.length, columns);
+    }
+
+    // Parses the first record into the column names; returns where the data starts
+    private int parseHeader(byte[] buffer, int start, int length, List<String> header) {
+        int end = start;
+        while (end < length && buffer[end] != '\n') {
+            end++;
+        }
+        byte[] line = Arrays.copyOfRange(buffer, start, end);
+        int pos = 0;
+        while (pos <= line.length) {
+            int[] field = new int[3];
+            pos = nextField(line, pos, line.length, field);
+            header.add(new String(line, field[0], field[1] - field[0], StandardCharsets.UTF_8).trim());
+            if (pos < 0) {
+                break;
+            }
+        }
+        if (header.size() == 1 && header.get(0).isEmpty()) {
+            header.clear();
+        }
+        return Math.min(length, end + 1);
+    }
+
+    /**
+     * Analizza i record tra start ed end (end è la fine di un record). I campi tra virgolette con "" al loro
+     * interno vengono ricompattati nel buffer stesso, che appartiene al blocco.
+     */
+    private void parseChunk(byte[] buffer, int start, int end, Partial partial) {
+        int[] field = new int[3];
+        int pos = start;
+        while (pos < end) {
+            // Empty line
+            if (buffer[pos] == '\n' || (buffer[pos] == '\r' && pos + 1 < end && buffer[pos + 1] == '\n')) {
+                pos += buffer[pos] == '\n' ? 1 : 2;
+                continue;
+            }
+            int column = 0;
+            while (true) {
+                int next = nextField(buffer, pos, end, field);
+                if (column < partial.columns.length) {
+                    partial.columns[column].add(buffer, field[0], field[1], field[2] == 1);
+                }
+                column++;
+                if (next < 0 || buffer[next - 1] == '\n') {
+                    pos = next < 0 ? end : next;
+                    break;
+                }
+                pos = next;
+            }
+            // Short row: the missing columns are nulls
+            for (int i = column; i < partial.columns.length; i++) {
+                partial.columns[i].nulls++;
+            }
+            partial.rows++;
+        }
+    }
+
+    /**
+     * Legge il campo che inizia in pos e ne mette in field inizio, fine e 1 se era tra virgolette.
+     *
+     * @return la posizione dopo il delimitatore o il fine riga che chiude il campo, -1 se il campo arriva a end
+     */
+    private int nextField(byte[] buffer, int pos, int end, int[] field) {
+        if (pos < end && buffer[pos] == '"') {
+            int write = pos + 1;
+            field[0] = write;
+            int i = pos + 1;
+            while (i < end) {
+                byte b = buffer[i];
+                if (b == '"') {
+                    if (i + 1 < end && buffer[i + 1] == '"') {
+                        buffer[write++] = '"';
+                        i += 2;
+                        continue;
+                    }
+                    i++;
+                    break;
+                }
+                buffer[write++] = b;
+                i++;
+            }
+            field[1] = write;
+            field[2] = 1;
+            // Anything between the closing quote and the delimiter is ignored
+            while (i < end && buffer[i] != delimiter && buffer[i] != '\n') {
+                i++;
+            }
+            return i < end ? i + 1 : -1;
+        }
+        int i = pos;
+        while (i < end && buffer[i] != delimiter && buffer[i] != '\n') {
+            i++;
+        }
+        field[0] = pos;
+        field[2] = 0;
+        field[1] = i > pos && buffer[i - 1] == '\r' && (i == end || buffer[i] == '\n') ? i - 1 : i;
+        return i < end ? i + 1 : -1;
+    }
+
+    private boolean exists(String s3Key) {
+        return amazonDynamoDB.getItem(new GetItemRequest()
+                .withTableName(TABLE_NAME)
+                .withKey(Map.of("s3Key", new AttributeValue(s3Key)))
+                .withProjectionExpression("s3Key")).getItem() != null;
+    }
+
+    private void markComputed(String fileId, String s3Key, String now) {
+        try {
+            amazonDynamoDB.updateItem(new UpdateItemRequest()
+                    .withTableName(FILE_METADATA_TABLE)
+                    .withKey(Map.of("fileId", new AttributeValue(fileId)))
+                    .withUpdateExpression("SET statsComputedAt = :now")
+                    // Deleted in the meantime: do not recreate the item; new version uploaded: not its content
+                    .withConditionExpression("attribute_exists(fileId) AND s3Key = :s3Key")
+                    .withExpressionAttributeValues(Map.of(":s3Key", new AttributeValue(s3Key), ":now", new AttributeValue(now))));
+            fileMetadataCache.invalidate(fileId);
+        } catch (ConditionalCheckFailedException e) {
+            // Deleted file, or replaced by a new version
+        } catch (RuntimeException e) {
+            System.out.println("Failed to record the statistics of " + fileId + ": " + e.getMessage());
+        }
+    }
+
+    record Result(long rows, int ignoredColumns, List<CsvColumnStatsDto> columns) {
+    }
+
+    private static final class CsvFormatException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CsvFormatException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Le statistiche accumulate da un parser sui blocchi che ha analizzato.
+     */
+    private static final class Partial {
+
+        private final Column[] columns;
+        private long rows;
+
+        private Partial(int columnCount) {
+            columns = new Column[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columns[i] = new Column();
+            }
+        }
+
+        void merge(Partial other) {
+            rows += other.rows;
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].merge(other.columns[i]);
+            }
+        }
+    }
+
+    /**
+     * Le statistiche di una colonna: conteggi, momenti dei valori numerici (Welford), distinti e quantili.
+     */
+    private static final class Column {
+
+        private long count;
+        private long nulls;
+        private long numericCount;
+        private double mean;
+        private double m2; // Sum of squared distances from the mean
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private final HyperLogLog distinct = new HyperLogLog(HLL_PRECISION);
+        private final KllSketch quantiles = new KllSketch(KLL_K);
+
+        void add(byte[] buffer, int start, int end, boolean quoted) {
+            if (start == end || (!quoted && isNull(buffer, start, end))) {
+                nulls++;
+                return;
+            }
+            count++;
+            distinct.add(HyperLogLog.hash(buffer, start, end - start));
+            double value = parseNumber(buffer, start, end);
+            if (Double.isNaN(value)) {
+                return;
+            }
+            numericCount++;
+            double delta = value - mean;
+            mean += delta / numericCount;
+            m2 += delta * (value - mean);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            quantiles.update(value);
+        }
+
+        void merge(Column other) {
+            count += other.count;
+            nulls += other.nulls;
+            if (other.numericCount > 0) {
+                // Chan et al., pairwise combination of the two means and sums of squares
+                long n = numericCount + other.numericCount;
+                double delta = other.mean - mean;
+                mean += delta * other.numericCount / n;
+                m2 += other.m2 + delta * delta * numericCount * other.numericCount / n;
+                numericCount = n;
+                min = Math.min(min, other.min);
+                max = Math.max(max, other.max);
+            }
+            distinct.merge(other.distinct);
+            quantiles.merge(other.quantiles);
+        }
+
+        CsvColumnStatsDto toDto(String name) {
+            CsvColumnStatsDto dto = new CsvColumnStatsDto();
+            dto.setName(name);
+            dto.setType(count == 0 ? "empty" : numericCount == count ? "numeric" : "text");
+            dto.setCount(count);
+            dto.setNulls(nulls);
+            dto.setDistinct(Math.min(count, distinct.estimate()));
+            if (numericCount > 0) {
+                dto.setNumericCount(numericCount);
+                dto.setMin(min);
+                dto.setMax(max);
+                dto.setMean(mean);
+                dto.setStddev(numericCount > 1 ? Math.sqrt(m2 / (numericCount - 1)) : 0.0);
+                double[] values = quantiles.quantiles(RANKS);
+                Map<String, Double> named = new LinkedHashMap<>();
+                for (int i = 0; i < values.length; i++) {
+                    named.put(RANK_NAMES[i], values[i]);
+                }
+                dto.setQuantiles(named);
+            }
+            return dto;
+        }
+
+        // Unquoted NULL in any case
+        private static boolean isNull(byte[] buffer, int start, int end) {
+            return end - start == 4 && (buffer[start] | 0x20) == 'n' && (buffer[start + 1] | 0x20) == 'u'
+                    && (buffer[start + 2] | 0x20) == 'l' && (buffer[start + 3] | 0x20) == 'l';
+        }
+
+        // The value as a number, NaN if it is not one; plain integers avoid the String allocation
+        private static double parseNumber(byte[] buffer, int start, int end) {
+            int i = start;
+            boolean negative = buffer[i] == '-';
+            if (negative || buffer[i] == '+') {
+                i++;
+            }
+            if (i < end && end - i <= 18) {
+                long value = 0;
+                int j = i;
+                for (; j < end; j++) {
+                    int digit = buffer[j] - '0';
+                    if (digit < 0 || digit > 9) {
+                        break;
+                    }
+                    value = value * 10 + digit;
+                }
+                if (j == end) {
+                    return negative ? -value : value;
+                }
+            }
+            byte first = buffer[i < end ? i : start];
+            if (!(first >= '0' && first <= '9') && first != '.') {
+                return Double.NaN; // Also rejects NaN and Infinity spelled out
+            }
+            try {
+                double value = Double.parseDouble(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1));
+                return Double.isFinite(value) ? value : Double.NaN;
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+    }
+}
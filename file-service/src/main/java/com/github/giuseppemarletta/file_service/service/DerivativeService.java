@@ -0,0 +1,401 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/**
+ * Miniature delle immagini e anteprime della prima pagina dei PDF, generate dopo l'upload.
+ *
+ * L'upload mette solo il file in una coda limitata (derivatives.queue-capacity) e ritorna; un pool fisso di
+ * derivatives.threads thread legge l'originale da S3 in streaming, lo riduce a ognuna delle dimensioni di
+ * derivatives.sizes (lato maggiore, in pixel) e salva i JPEG sotto derived/&lt;s3Key&gt;/thumb-&lt;size&gt;.jpg.
+ * I nomi pronti vengono poi scritti in derivatives su FileMetadata. Con la coda piena il file viene scartato e
+ * ripreso dalla riconciliazione periodica, che invece aspetta i worker.
+ *
+ * Le chiavi derivano dalla chiave S3 dell'originale, quindi i file che condividono un blob deduplicato
+ * condividono anche le miniature: i job per un blob già in coda vengono uniti, e un blob che le ha già non
+ * viene renderizzato di nuovo.
+ */
+@Service
+@RequiredArgsConstructor
+public class DerivativeService {
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final String PREFIX = "derived/";
+    private static final float JPEG_QUALITY = 0.85f;
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("jpg", "jpeg", "png", "gif", "bmp", "tif", "tiff", "wbmp");
+
+    private final S3Client s3Client;
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final ParallelScanner parallelScanner;
+    private final FileMetadataCache fileMetadataCache;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${derivatives.enabled:true}")
+    private boolean enabled;
+
+    @Value("${derivatives.sizes:128,512,1024}")
+    private int[] sizes;
+
+    @Value("${derivatives.threads:2}")
+    private int threads;
+
+    @Value("${derivatives.queue-capacity:1000}")
+    private int queueCapacity;
+
+    // Larger originals get no derivatives
+    @Value("${derivatives.max-source-size:200MB}")
+    private DataSize maxSourceSize;
+
+    // One job per source key, shared by the files of a deduplicated blob
+    private FileJobQueue jobs;
+    private Counter rendered;
+    private Counter reused;
+    private Counter failed;
+
+    @PostConstruct
+    void init() {
+        sizes = Arrays.stream(sizes).sorted().distinct().toArray();
+        jobs = FileJobQueue.builder()
+                .name("Derivative")
+                .threadName("derivative")
+                .threads(threads)
+                .queueCapacity(queueCapacity)
+                .key(FileMetadata::getS3Key)
+                .processor(this::process)
+                .parallelScanner(parallelScanner)
+                .meterRegistry(meterRegistry)
+                .jobsMetric("file.derivatives.jobs")
+                .queueMetric("file.derivatives.queue")
+                .build();
+
+        rendered = Counter.builder("file.derivatives.jobs").tag("result", "rendered").register(meterRegistry);
+        reused = Counter.builder("file.derivatives.jobs").tag("result", "reused").register(meterRegistry);
+        failed = Counter.builder("file.derivatives.jobs").tag("result", "failed").register(meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        jobs.shutdown();
+    }
+
+    public static String derivedKey(String s3Key, String name) {
+        return PREFIX + s3Key + "/" + name + ".jpg";
+    }
+
+    /**
+     * @return true se per il file vengono generate le miniature, in base a fileType o all'estensione del nome
+     */
+    public static boolean isSupported(FileMetadata file) {
+        return isPdf(file) || isImage(file);
+    }
+
+    /**
+     * Mette in coda un file appena salvato, senza mai bloccare: con la coda piena il file viene scartato.
+     */
+    public void submit(FileMetadata file) {
+        if (!enabled || file.getS3Key() == null || EncryptionService.isEncrypted(file) || !isSupported(file)) {
+            return;
+        }
+        jobs.submit(file);
+    }
+
+    /**
+     * @return le chiavi S3 di tutte le miniature di un oggetto, generate o no
+     */
+    public List<String> derivedKeys(String s3Key) {
+        return Arrays.stream(sizes).mapToObj(size -> derivedKey(s3Key, name(size))).toList();
+    }
+
+    /**
+     * Cancella le miniature di un oggetto S3 cancellato.
+     */
+    public void delete(String s3Key) {
+        List<ObjectIdentifier> keys = derivedKeys(s3Key).stream()
+                .map(key -> ObjectIdentifier.builder().key(key).build())
+                .toList();
+        s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                .bucket(bucketName)
+                .delete(Delete.builder().objects(keys).quiet(true).build())
+                .build());
+    }
+
+    /**
+     * Mette in coda i file supportati di FileMetadata che non hanno ancora miniature, in un thread dedicato per
+     * non occupare lo scheduler durante una scansione lunga.
+     */
+    @Scheduled(initialDelayString = "${derivatives.reconcile-delay:PT2M}", fixedDelayString = "${derivatives.reconcile-interval:PT1H}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        jobs.reconcile(ParallelScanner.ScanJob.builder()
+                .tableName(FILE_METADATA_TABLE)
+                .projectionExpression("fileId, fileName, fileType, fileSize, s3Key")
+                .filterExpression("attribute_not_exists(derivatives) AND attribute_not_exists(encryptedKey)")
+                .build(), DerivativeService::isSupported);
+    }
+
+    private void process(FileMetadata file) {
+        String s3Key = file.getS3Key();
+        List<String> names;
+        try {
+            names = exists(derivedKey(s3Key, name(sizes[sizes.length - 1]))) ? allNames() : render(file);
+        } catch (SdkException e) {
+            // S3 unavailable: left unmarked, retried by the next reconcile
+            jobs.finish(file);
+            failed.increment();
+            System.out.println("Failed to render the derivatives of " + file.getFileId() + ": " + e.getMessage());
+            return;
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or unsupported content, marked with no derivatives so that it is not tried again
+            names = List.of();
+            failed.increment();
+            System.out.println("Cannot render the derivatives of " + file.getFileId() + ": " + e.getMessage());
+        }
+
+        // Files that joined while rendering are marked too; later ones start a new job, which finds the derivatives
+        for (String fileId : jobs.finish(file)) {
+            markReady(fileId, s3Key, names);
+        }
+    }
+
+    private List<String> render(FileMetadata file) throws IOException {
+        if (file.getFileSize() != null && file.getFileSize() > maxSourceSize.toBytes()) {
+            return List.of();
+        }
+        int largest = sizes[sizes.length - 1];
+        BufferedImage source;
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(file.getS3Key())
+                .build())) {
+            source = isPdf(file) ? renderFirstPage(in, largest) : decode(in, largest);
+        }
+
+        List<String> names = new ArrayList<>();
+        // From the largest down, each size is scaled from the previous one
+        BufferedImage image = source;
+        for (int i = sizes.length - 1; i >= 0; i--) {
+            image = scale(image, sizes[i]);
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(derivedKey(file.getS3Key(), name(sizes[i])))
+                    .contentType("image/jpeg")
+                    .build(), RequestBody.fromBytes(jpeg(image)));
+            names.add(0, name(sizes[i]));
+        }
+        rendered.increment();
+        return names;
+    }
+
+    /**
+     * Decodifica l'immagine saltando pixel durante la lettura (subsampling), così che in memoria ci sia al più
+     * circa il doppio della dimensione più grande richiesta anche per foto da decine di megapixel.
+     */
+    private static BufferedImage decode(InputStream in, int largest) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = stream != null ? ImageIO.getImageReaders(stream) : null;
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / (2 * largest));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // PDFBox needs random access: the PDF is spooled to a temporary file instead of the heap
+    private static BufferedImage renderFirstPage(InputStream in, int largest) throws IOException {
+        Path spool = Files.createTempFile("derivative-", ".pdf");
+        try {
+            Files.copy(in, spool, StandardCopyOption.REPLACE_EXISTING);
+            try (PDDocument document = Loader.loadPDF(spool.toFile())) {
+                if (document.getNumberOfPages() == 0) {
+                    throw new IOException("PDF has no pages");
+                }
+                PDRectangle box = document.getPage(0).getCropBox();
+                float dpi = largest * 72f / Math.max(box.getWidth(), box.getHeight());
+                return new PDFRenderer(document).renderImageWithDPI(0, dpi, ImageType.RGB);
+            }
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    /**
+     * Riduce l'immagine in modo che il lato maggiore sia al più size, dimezzando a ogni passo (la bilineare in
+     * un passo solo perde dettaglio oltre il fattore 2). Le immagini più piccole non vengono ingrandite; la
+     * trasparenza diventa bianco, perché il JPEG non la supporta.
+     */
+    private static BufferedImage scale(BufferedImage image, int size) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double ratio = Math.min(1.0, (double) size / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(height * ratio));
+
+        BufferedImage current = image;
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage next = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(current, 0, 0, width, height, Color.WHITE, null);
+            } finally {
+                g.dispose();
+            }
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    private static byte[] jpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void markReady(String fileId, String s3Key, List<String> names) {
+        try {
+            amazonDynamoDB.updateItem(new UpdateItemRequest()
+                    .withTableName(FILE_METADATA_TABLE)
+                    .withKey(Map.of("fileId", new AttributeValue(fileId)))
+                    .withUpdateExpression("SET derivatives = :names")
+                    // Deleted in the meantime: do not recreate the item; new version uploaded: not its content
+                    .withConditionExpression("attribute_exists(fileId) AND s3Key = :s3Key")
+                    .withExpressionAttributeValues(Map.of(":s3Key", new AttributeValue(s3Key), ":names", new AttributeValue().withL(
+                            names.stream().map(AttributeValue::new).toList()))));
+            fileMetadataCache.invalidate(fileId);
+        } catch (ConditionalCheckFailedException e) {
+            // Deleted file, or replaced by a new version
+        } catch (RuntimeException e) {
+            System.out.println("Failed to record the derivatives of " + fileId + ": " + e.getMessage());
+        }
+    }
+
+    private boolean exists(String key) {
+        try {
+            s3Client.headObject(HeadObjectRequest.builder().bucket(bucketName).key(key).build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+    }
+
+    private List<String> allNames() {
+        reused.increment();
+        return Arrays.stream(sizes).mapToObj(DerivativeService::name).toList();
+    }
+
+    private static String name(int size) {
+        return "thumb-" + size;
+    }
+
+    private static boolean isPdf(FileMetadata file) {
+        return "application/pdf".equals(mediaType(file)) || "pdf".equals(extension(file));
+    }
+
+    private static boolean isImage(FileMetadata file) {
+        String type = mediaType(file);
+        if (type.startsWith("image/")) {
+            // e.g. SVG and WebP have no ImageIO reader
+            return ImageIO.getImageReadersByMIMEType(type).hasNext();
+        }
+        return IMAGE_EXTENSIONS.contains(extension(file));
+    }
+
+    private static String mediaType(FileMetadata file) {
+        String type = file.getFileType() == null ? "" : file.getFileType().toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        return parameters >= 0 ? type.substring(0, parameters).trim() : type;
+    }
+
+    private static String extension(FileMetadata file) {
+        String name = file.getFileName() == null ? "" : file.getFileName();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+    }
+
+}
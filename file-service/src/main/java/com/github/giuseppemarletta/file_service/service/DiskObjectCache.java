@@ -0,0 +1,215 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/**
+ * Cache su disco locale degli oggetti S3 più scaricati, usata dal download proxy.
+ *
+ * Gli oggetti sono indicizzati per chiave S3 e non cambiano mai sotto la stessa chiave (i blob sono indirizzati
+ * per contenuto, le altre chiavi contengono un UUID), quindi non serve rivalidarli: vengono tolti solo per
+ * far posto ad altri, secondo il budget in byte, o quando l'oggetto viene cancellato.
+ * Più richieste concorrenti per lo stesso oggetto mancante condividono un solo download da S3.
+ * La cache non sopravvive a un riavvio: la directory viene svuotata all'avvio.
+ */
+@Component
+@RequiredArgsConstructor
+public class DiskObjectCache {
+
+    private final S3Client s3Client;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${download.disk-cache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${download.disk-cache.dir:${java.io.tmpdir}/file-service-cache}")
+    private Path directory;
+
+    @Value("${download.disk-cache.max-size:10GB}")
+    private DataSize maxSize;
+
+    @Value("${download.disk-cache.max-object-size:512MB}")
+    private DataSize maxObjectSize;
+
+    // Evicted files are deleted late, a download may still be sending them
+    @Value("${download.disk-cache.delete-delay:60s}")
+    private Duration deleteDelay;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    private AsyncCache<String, CachedObject> cache;
+    private ExecutorService loadExecutor;
+    private ScheduledExecutorService deleteExecutor;
+    private Counter hits;
+    private Counter misses;
+    private Counter servedBytes;
+
+    /**
+     * Un oggetto presente su disco, con i validatori restituiti da S3 quando è stato scaricato.
+     */
+    public record CachedObject(Path path, long size, String eTag, Instant lastModified) {
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        try (Stream<Path> leftovers = Files.list(directory)) {
+            for (Path path : leftovers.toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        // A load is a blocking GetObject, with virtual threads it does not hold a platform thread
+        loadExecutor = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("disk-cache-load-", 1).factory())
+                : Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "disk-cache-load-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        deleteExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "disk-cache-delete");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Weighted by size in KB so that the budget can go beyond Integer.MAX_VALUE bytes
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize.toKilobytes())
+                .weigher((String key, CachedObject object) -> (int) Math.min(Integer.MAX_VALUE, Math.max(1, object.size() / 1024)))
+                .executor(loadExecutor)
+                .removalListener((String key, CachedObject object, RemovalCause cause) -> {
+                    if (object != null) {
+                        deleteExecutor.schedule(() -> deleteQuietly(object.path()), deleteDelay.toMillis(), TimeUnit.MILLISECONDS);
+                    }
+                })
+                .buildAsync();
+
+        hits = Counter.builder("file.disk.cache.requests").tag("result", "hit").register(meterRegistry);
+        misses = Counter.builder("file.disk.cache.requests").tag("result", "miss").register(meterRegistry);
+        servedBytes = Counter.builder("file.disk.cache.served").baseUnit("bytes")
+                .description("Bytes sent to clients from the local disk cache").register(meterRegistry);
+        Gauge.builder("file.disk.cache.size", cache, c -> c.synchronous().policy().eviction()
+                        .map(eviction -> eviction.weightedSize().orElse(0L) * 1024d).orElse(0d))
+                .baseUnit("bytes").register(meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (enabled) {
+            loadExecutor.shutdown();
+            deleteExecutor.shutdown();
+        }
+    }
+
+    /**
+     * @return true se un oggetto di questa dimensione può essere servito dalla cache
+     */
+    public boolean accepts(Long size) {
+        return enabled && size != null && size <= maxObjectSize.toBytes();
+    }
+
+    /**
+     * Restituisce l'oggetto dalla cache, scaricandolo da S3 se manca.
+     * Le richieste concorrenti per lo stesso oggetto aspettano lo stesso download.
+     */
+    public CachedObject get(String s3Key) {
+        AtomicBoolean loaded = new AtomicBoolean();
+        CompletableFuture<CachedObject> object = cache.get(s3Key, (key, executor) -> {
+            loaded.set(true);
+            return CompletableFuture.supplyAsync(() -> download(key), executor);
+        });
+        (loaded.get() ? misses : hits).increment();
+        try {
+            return object.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    public void recordServed(long bytes) {
+        servedBytes.increment(bytes);
+    }
+
+    /**
+     * Toglie un oggetto dalla cache, da chiamare quando viene cancellato da S3.
+     */
+    public void invalidate(String s3Key) {
+        if (enabled) {
+            cache.synchronous().invalidate(s3Key);
+        }
+    }
+
+    private CachedObject download(String s3Key) {
+        Path target = directory.resolve(UUID.randomUUID() + ".obj");
+        Path partial = directory.resolve(target.getFileName() + ".part");
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(s3Key)
+                .build())) {
+            long size = Files.copy((InputStream) in, partial);
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+            return new CachedObject(target, size, in.response().eTag(), in.response().lastModified());
+        } catch (IOException e) {
+            deleteQuietly(partial);
+            throw new UncheckedIOException("Failed to cache " + s3Key, e);
+        } catch (RuntimeException e) {
+            deleteQuietly(partial);
+            throw e;
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.out.println("Failed to delete cached file " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.ChunkedAesGcm;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Cifratura a busta dei file caricati con encrypted=true: il contenuto viene cifrato dal servizio prima di
+ * arrivare al bucket, con una chiave dati AES-256 generata per ogni file e il formato a blocchi di
+ * {@link ChunkedAesGcm}, quindi upload e download restano in streaming e un Range decifra solo i blocchi che
+ * tocca. La chiave dati viene salvata in FileMetadata cifrata con la chiave master encryption.master-key
+ * (AES-GCM, legata alla chiave S3 dell'oggetto), che non lascia mai il servizio.
+ *
+ * I file cifrati non sono deduplicati e non hanno miniature, statistiche né indicizzazione del contenuto, che
+ * salverebbero in chiaro parti del file; si scaricano solo attraverso il servizio, non con URL presigned.
+ */
+@Service
+public class EncryptionService {
+
+    private static final int DATA_KEY_LENGTH = 32;
+    private static final int WRAP_NONCE_LENGTH = 12;
+    private static final int WRAP_TAG_BITS = 128;
+
+    private final SecureRandom random = new SecureRandom();
+
+    // Base64 AES key of 16, 24 or 32 bytes; empty to disable encrypted uploads
+    @Value("${encryption.master-key:}")
+    private String masterKeyValue;
+
+    @Value("${encryption.chunk-size:64KB}")
+    private DataSize chunkSize;
+
+    @Value("${encryption.encrypt-by-default:false}")
+    private boolean encryptByDefault;
+
+    private SecretKey masterKey;
+
+    /**
+     * Una chiave dati nuova, in chiaro per cifrare e cifrata con la chiave master per FileMetadata.
+     */
+    public record Envelope(SecretKey dataKey, String encryptedKey, int chunkSize) {
+    }
+
+    @PostConstruct
+    void init() {
+        if (chunkSize.toBytes() < 1024 || chunkSize.toBytes() > DataSize.ofMegabytes(16).toBytes()) {
+            throw new IllegalStateException("encryption.chunk-size must be between 1KB and 16MB");
+        }
+        if (masterKeyValue == null || masterKeyValue.isBlank()) {
+            if (encryptByDefault) {
+                throw new IllegalStateException("encryption.encrypt-by-default needs encryption.master-key");
+            }
+            return;
+        }
+        byte[] key = Base64.getDecoder().decode(masterKeyValue.trim());
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalStateException("encryption.master-key must be a base64 AES key of 16, 24 or 32 bytes");
+        }
+        masterKey = new SecretKeySpec(key, "AES");
+    }
+
+    public static boolean isEncrypted(FileMetadata file) {
+        return file.getEncryptedKey() != null;
+    }
+
+    /**
+     * Se un upload va cifrato: la richiesta decide, altrimenti encryption.encrypt-by-default.
+     */
+    public boolean shouldEncrypt(Boolean requested) {
+        return requested != null ? requested : encryptByDefault;
+    }
+
+    /**
+     * Per gli upload che non passano da POST /files/upload e quindi non vengono cifrati (sessioni, upload diretti,
+     * asincroni e nuove versioni): con encryption.encrypt-by-default sono rifiutati invece di salvare il file in chiaro.
+     *
+     * @throws ResponseStatusException 400 se encryption.encrypt-by-default è attivo
+     */
+    public void requireCleartextAllowed() {
+        if (encryptByDefault) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Uploads are encrypted by default on this service, use POST /files/upload");
+        }
+    }
+
+    /**
+     * Genera la chiave dati di un nuovo oggetto.
+     *
+     * @param s3Key la chiave S3 dell'oggetto, a cui la chiave cifrata resta legata
+     * @throws ResponseStatusException 400 se encryption.master-key non è configurata
+     */
+    public Envelope newEnvelope(String s3Key) {
+        if (masterKey == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Encryption is not configured on this service");
+        }
+        byte[] dataKey = new byte[DATA_KEY_LENGTH];
+        random.nextBytes(dataKey);
+        byte[] nonce = new byte[WRAP_NONCE_LENGTH];
+        random.nextBytes(nonce);
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(WRAP_TAG_BITS, nonce));
+            cipher.updateAAD(s3Key.getBytes(StandardCharsets.UTF_8));
+            byte[] wrapped = cipher.doFinal(dataKey);
+            byte[] stored = Arrays.copyOf(nonce, WRAP_NONCE_LENGTH + wrapped.length);
+            System.arraycopy(wrapped, 0, stored, WRAP_NONCE_LENGTH, wrapped.length);
+            return new Envelope(new SecretKeySpec(dataKey, "AES"), Base64.getEncoder().encodeToString(stored),
+                    (int) chunkSize.toBytes());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot wrap the data key", e);
+        }
+    }
+
+    /**
+     * Cifra in streaming il contenuto di un nuovo oggetto.
+     */
+    public InputStream encrypt(Envelope envelope, InputStream plaintext, long length) {
+        return ChunkedAesGcm.encrypting(plaintext, envelope.dataKey(), envelope.chunkSize(), length);
+    }
+
+    /**
+     * Decifra in streaming tutto il contenuto di un file cifrato.
+     */
+    public InputStream decrypt(FileMetadata file, InputStream ciphertext) {
+        return decrypt(file, ciphertext, 0, file.getFileSize() - 1);
+    }
+
+    /**
+     * Decifra i byte in chiaro da start a end (inclusi) di un file cifrato.
+     *
+     * @param ciphertext l'oggetto su S3 letto con il Range di {@link #ciphertextRange}
+     */
+    public InputStream decrypt(FileMetadata file, InputStream ciphertext, long start, long end) {
+        return ChunkedAesGcm.decrypting(ciphertext, unwrap(file), file.getEncryptionChunkSize(), file.getFileSize(), start, end);
+    }
+
+    /**
+     * L'header Range da chiedere a S3 per decifrare i byte in chiaro da start a end.
+     */
+    public static String ciphertextRange(FileMetadata file, long start, long end) {
+        int chunk = file.getEncryptionChunkSize();
+        return "bytes=" + ChunkedAesGcm.ciphertextStart(start, chunk) + "-"
+                + ChunkedAesGcm.ciphertextEnd(end, file.getFileSize(), chunk);
+    }
+
+    private SecretKey unwrap(FileMetadata file) {
+        if (masterKey == null) {
+            throw new IllegalStateException("encryption.master-key is needed to read encrypted file " + file.getFileId());
+        }
+        byte[] stored = Base64.getDecoder().decode(file.getEncryptedKey());
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(WRAP_TAG_BITS, stored, 0, WRAP_NONCE_LENGTH));
+            cipher.updateAAD(file.getS3Key().getBytes(StandardCharsets.UTF_8));
+            return new SecretKeySpec(cipher.doFinal(stored, WRAP_NONCE_LENGTH, stored.length - WRAP_NONCE_LENGTH), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot unwrap the data key of " + file.getFileId(), e);
+        }
+    }
+}
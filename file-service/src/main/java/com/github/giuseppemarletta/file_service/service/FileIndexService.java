@@ -0,0 +1,510 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.QueryResultPage;
+import com.amazonaws.services.dynamodbv2.datamodeling.ScanResultPage;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.IndexStatus;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.github.giuseppemarletta.file_service.config.DynamoDBConfig;
+import com.github.giuseppemarletta.file_service.dto.FileMetadataDto;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.model.FileRoleEntry;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+/**
+ * Indici usati per elencare i file visibili a un utente senza scansionare la tabella FileMetadata.
+ *
+ * La lista è l'unione di query mirate: i file PRIVATE dell'utente (indice owner-index), i file PUBLIC
+ * (indice visibility-index) e, per ogni ruolo dell'utente, i file ROLE_BASED che lo ammettono
+ * (tabella FileRoleIndex, mantenuta qui a ogni upload e cancellazione). Il costo dipende quindi dal numero
+ * di file visibili e non dal numero totale di file.
+ *
+ * Le query sono lette in ordine di uploadDate decrescente e fuse una pagina alla volta, così la lista
+ * può essere paginata con un cursore (VisibleFilesCursor) e inviata al client mentre viene prodotta.
+ *
+ * Su una tabella esistente gli indici vengono costruiti in background da DynamoDB e FileRoleIndex va
+ * popolata con i file già presenti: finché non è tutto pronto la lista ricade sulla scansione completa.
+ */
+@Service
+public class FileIndexService {
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final String OWNER_INDEX = "owner-index";
+    private static final String VISIBILITY_INDEX = "visibility-index";
+
+    // Queries merged into the listing, named in the continuation token
+    private static final String OWN_SOURCE = "own";
+    private static final String PUBLIC_SOURCE = "public";
+    private static final String ROLE_SOURCE_PREFIX = "role:";
+    private static final String SCAN_SOURCE = "scan";
+    private static final int MAX_PAGE_SIZE = 100;
+
+    // Marker row written once every pre-existing ROLE_BASED file has been copied to FileRoleIndex
+    private static final String BACKFILL_MARKER_ROLE = "#backfill";
+    private static final String BACKFILL_MARKER_SORT_KEY = "#done";
+    private static final String ROLE_INDEX_BACKFILL_JOB = "file-role-index-backfill";
+
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final DynamoDBMapper dynamoDBMapper;
+    private final AclIndex aclIndex;
+    private final FileMetadataCache fileMetadataCache;
+    private final ParallelScanner parallelScanner;
+
+    private volatile boolean indexesReady;
+    private volatile boolean roleIndexReady;
+
+    public FileIndexService(AmazonDynamoDB amazonDynamoDB, AclIndex aclIndex, FileMetadataCache fileMetadataCache,
+                            ParallelScanner parallelScanner) {
+        this.amazonDynamoDB = amazonDynamoDB;
+        this.aclIndex = aclIndex;
+        this.fileMetadataCache = fileMetadataCache;
+        this.parallelScanner = parallelScanner;
+        // Query results are consumed once, there is no need to keep every page in memory
+        this.dynamoDBMapper = new DynamoDBMapper(amazonDynamoDB, DynamoDBMapperConfig.builder()
+                .withPaginationLoadingStrategy(DynamoDBMapperConfig.PaginationLoadingStrategy.ITERATION_ONLY)
+                .build());
+    }
+
+    /**
+     * Aggiunge a FileRoleIndex una riga per ogni ruolo ammesso di un file ROLE_BASED.
+     */
+    public void indexRoles(FileMetadata file) {
+        List<FileRoleEntry> entries = roleEntries(file);
+        if (!entries.isEmpty()) {
+            logFailures(dynamoDBMapper.batchSave(entries));
+        }
+    }
+
+    /**
+     * Rimuove da FileRoleIndex le righe di un file cancellato.
+     */
+    public void removeRoles(FileMetadata file) {
+        List<FileRoleEntry> entries = roleEntries(file);
+        if (!entries.isEmpty()) {
+            logFailures(dynamoDBMapper.batchDelete(entries));
+        }
+    }
+
+    /**
+     * Riceve i file della lista man mano che vengono prodotti.
+     */
+    public interface VisibleFileSink {
+        void accept(FileMetadataDto file) throws IOException;
+
+        /**
+         * Chiamato prima di ogni attesa su DynamoDB, per inviare subito al client quanto già prodotto.
+         */
+        void flush() throws IOException;
+    }
+
+    /**
+     * Legge il token di continuazione e controlla che appartenga alle query dell'utente.
+     *
+     * @return null se il token è assente, cioè dalla prima pagina
+     */
+    public VisibleFilesCursor openCursor(String nextToken, String userId) {
+        if (nextToken == null || nextToken.isBlank()) {
+            return null;
+        }
+        VisibleFilesCursor cursor = VisibleFilesCursor.decode(nextToken);
+        if (VisibleFilesCursor.MODE_SEARCH.equals(cursor.getMode())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid nextToken");
+        }
+        // A forged start key could only select another partition of the same index, reject it up front
+        cursor.getKeys().forEach((source, key) -> {
+            boolean valid = switch (source) {
+                case OWN_SOURCE -> userId.equals(key.get("ownerId"));
+                case PUBLIC_SOURCE -> "PUBLIC".equals(key.get("visibility"));
+                case SCAN_SOURCE -> key.containsKey("fileId");
+                default -> source.startsWith(ROLE_SOURCE_PREFIX) && source.substring(ROLE_SOURCE_PREFIX.length()).equals(key.get("role"));
+            };
+            if (!valid) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid nextToken");
+            }
+        });
+        return cursor;
+    }
+
+    /**
+     * Invia al sink i file visibili all'utente, dal più recente, fermandosi dopo {@code limit} file.
+     * Le query vengono lette una pagina alla volta e fuse man mano, quindi in memoria c'è al massimo
+     * una pagina per query qualunque sia il numero di file.
+     *
+     * @param limit il numero massimo di file, null per tutti
+     * @param cursor la posizione da cui riprendere, null per partire dall'inizio
+     * @return il token per la pagina successiva, null se non ci sono altri file
+     */
+    public String streamVisibleFiles(String userId, List<String> userRoles, Integer limit, VisibleFilesCursor cursor,
+                                     VisibleFileSink sink) throws IOException {
+        if (aclIndex.isReady() && (cursor == null || VisibleFilesCursor.MODE_INDEX.equals(cursor.getMode()))) {
+            return streamFromAclIndex(userId, userRoles, limit, cursor, sink);
+        }
+        String mode = cursor != null ? cursor.getMode()
+                : indexesReady && roleIndexReady ? VisibleFilesCursor.MODE_INDEX : VisibleFilesCursor.MODE_SCAN;
+        int pageSize = limit == null ? MAX_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+        List<String> roles = userRoles == null ? List.of() : userRoles.stream().distinct().toList();
+
+        List<Source> sources = new ArrayList<>();
+        if (VisibleFilesCursor.MODE_INDEX.equals(mode)) {
+            sources.add(new Source(OWN_SOURCE, (start, size) -> ownPage(userId, start, size)));
+            sources.add(new Source(PUBLIC_SOURCE, (start, size) -> publicPage(start, size)));
+            for (String role : roles) {
+                sources.add(new Source(ROLE_SOURCE_PREFIX + role, (start, size) -> rolePage(role, start, size)));
+            }
+        } else {
+            sources.add(new Source(SCAN_SOURCE, (start, size) -> scanPage(userId, roles, start, size)));
+        }
+        String position = cursor != null ? cursor.getPosition() : null;
+        if (cursor != null && VisibleFilesCursor.MODE_INDEX.equals(mode)) {
+            for (Source source : sources) {
+                source.resumeFrom(cursor.getKeys().get(source.name), cursor.getDone().contains(source.name));
+            }
+        } else if (cursor != null) {
+            sources.get(0).resumeFrom(cursor.getKeys().get(SCAN_SOURCE), cursor.getDone().contains(SCAN_SOURCE));
+            sources.get(0).filteredByPosition = false;
+        }
+
+        int emitted = 0;
+        boolean pending = false; // Files written since the last flush
+        while (limit == null || emitted < limit) {
+            Source newest = null;
+            for (Source source : sources) {
+                if (source.buffer.isEmpty() && !source.exhausted && pending) {
+                    sink.flush();
+                    pending = false;
+                }
+                if (source.fill(pageSize, position) && (newest == null || source.peek().sortKey().compareTo(newest.peek().sortKey()) > 0)) {
+                    newest = source;
+                }
+            }
+            if (newest == null) {
+                break;
+            }
+            Entry entry = newest.poll();
+            if (entry.sortKey().equals(position)) {
+                continue; // A ROLE_BASED file matching several roles comes back from each of those role queries
+            }
+            sink.accept(entry.file());
+            position = entry.sortKey();
+            emitted++;
+            pending = true;
+        }
+
+        if (sources.stream().allMatch(source -> source.exhausted && source.buffer.isEmpty())) {
+            return null;
+        }
+        VisibleFilesCursor next = new VisibleFilesCursor();
+        next.setMode(mode);
+        next.setPosition(position);
+        for (Source source : sources) {
+            if (source.exhausted && source.buffer.isEmpty()) {
+                next.getDone().add(source.name);
+            } else if (source.resumeKey() != null) {
+                next.getKeys().put(source.name, source.resumeKey());
+            }
+        }
+        return next.encode();
+    }
+
+    /**
+     * Come streamVisibleFiles, ma l'elenco viene calcolato dall'indice in memoria e solo i metadati delle
+     * pagine inviate vengono letti, dalla cache o con BatchGetItem. Il token ha la stessa forma di quello
+     * delle query sugli indici (solo la posizione), così può essere ripreso anche da un'istanza il cui
+     * indice in memoria non è ancora pronto.
+     */
+    private String streamFromAclIndex(String userId, List<String> userRoles, Integer limit, VisibleFilesCursor cursor,
+                                      VisibleFileSink sink) throws IOException {
+        String position = cursor != null ? cursor.getPosition() : null;
+        // One more than needed to know whether another page follows
+        List<String> sortKeys = aclIndex.visibleSortKeys(userId, userRoles, position, limit == null ? null : limit + 1);
+        boolean more = limit != null && sortKeys.size() > limit;
+        if (more) {
+            sortKeys = sortKeys.subList(0, limit);
+        }
+
+        for (int from = 0; from < sortKeys.size(); from += MAX_PAGE_SIZE) {
+            List<String> fileIds = sortKeys.subList(from, Math.min(sortKeys.size(), from + MAX_PAGE_SIZE)).stream()
+                    .map(sortKey -> sortKey.substring(sortKey.lastIndexOf('#') + 1))
+                    .toList();
+            if (from > 0) {
+                sink.flush();
+            }
+            Map<String, FileMetadata> files = fileMetadataCache.findAllById(fileIds);
+            for (String fileId : fileIds) {
+                FileMetadata file = files.get(fileId);
+                if (file != null) { // Missing when deleted since the index was read
+                    sink.accept(toDto(file));
+                }
+            }
+        }
+
+        if (!more) {
+            return null;
+        }
+        VisibleFilesCursor next = new VisibleFilesCursor();
+        next.setMode(VisibleFilesCursor.MODE_INDEX);
+        next.setPosition(sortKeys.get(sortKeys.size() - 1));
+        return next.encode();
+    }
+
+    private Page ownPage(String userId, Map<String, AttributeValue> start, int size) {
+        DynamoDBQueryExpression<FileMetadata> query = new DynamoDBQueryExpression<FileMetadata>()
+                .withIndexName(OWNER_INDEX)
+                .withHashKeyValues(FileMetadata.builder().ownerId(userId).build())
+                .withFilterExpression("visibility = :private")
+                .withExpressionAttributeValues(Map.of(":private", new AttributeValue("PRIVATE")))
+                .withScanIndexForward(false)
+                .withConsistentRead(false)
+                .withExclusiveStartKey(start)
+                .withLimit(size);
+        QueryResultPage<FileMetadata> page = dynamoDBMapper.queryPage(FileMetadata.class, query);
+        return new Page(page.getResults().stream()
+                .map(file -> new Entry(file.getUploadDate() + "#" + file.getFileId(), toDto(file),
+                        Map.of("fileId", file.getFileId(), "ownerId", file.getOwnerId(), "uploadDate", file.getUploadDate())))
+                .toList(), page.getLastEvaluatedKey());
+    }
+
+    private Page publicPage(Map<String, AttributeValue> start, int size) {
+        DynamoDBQueryExpression<FileMetadata> query = new DynamoDBQueryExpression<FileMetadata>()
+                .withIndexName(VISIBILITY_INDEX)
+                .withHashKeyValues(FileMetadata.builder().visibility("PUBLIC").build())
+                .withScanIndexForward(false)
+                .withConsistentRead(false)
+                .withExclusiveStartKey(start)
+                .withLimit(size);
+        QueryResultPage<FileMetadata> page = dynamoDBMapper.queryPage(FileMetadata.class, query);
+        return new Page(page.getResults().stream()
+                .map(file -> new Entry(file.getUploadDate() + "#" + file.getFileId(), toDto(file),
+                        Map.of("fileId", file.getFileId(), "visibility", file.getVisibility(), "uploadDate", file.getUploadDate())))
+                .toList(), page.getLastEvaluatedKey());
+    }
+
+    private Page rolePage(String role, Map<String, AttributeValue> start, int size) {
+        DynamoDBQueryExpression<FileRoleEntry> query = new DynamoDBQueryExpression<FileRoleEntry>()
+                .withHashKeyValues(FileRoleEntry.builder().role(role).build())
+                .withScanIndexForward(false)
+                .withExclusiveStartKey(start)
+                .withLimit(size);
+        QueryResultPage<FileRoleEntry> page = dynamoDBMapper.queryPage(FileRoleEntry.class, query);
+        return new Page(page.getResults().stream()
+                .map(entry -> new Entry(entry.getSortKey(), toDto(entry), Map.of("role", entry.getRole(), "sortKey", entry.getSortKey())))
+                .toList(), page.getLastEvaluatedKey());
+    }
+
+    // Fallback used while the indexes are being built: unordered, filtered in memory
+    private Page scanPage(String userId, List<String> userRoles, Map<String, AttributeValue> start, int size) {
+        DynamoDBScanExpression scan = new DynamoDBScanExpression()
+                .withExclusiveStartKey(start)
+                .withLimit(size);
+        ScanResultPage<FileMetadata> page = dynamoDBMapper.scanPage(FileMetadata.class, scan);
+        return new Page(page.getResults().stream()
+                .filter(file -> AclIndex.canRead(file, userId, userRoles))
+                .map(file -> new Entry(file.getFileId(), toDto(file), Map.of("fileId", file.getFileId())))
+                .toList(), page.getLastEvaluatedKey());
+    }
+
+    private record Entry(String sortKey, FileMetadataDto file, Map<String, String> key) {
+    }
+
+    private record Page(List<Entry> entries, Map<String, AttributeValue> lastEvaluatedKey) {
+    }
+
+    @FunctionalInterface
+    private interface PageReader {
+        Page read(Map<String, AttributeValue> exclusiveStartKey, int size);
+    }
+
+    /**
+     * Una delle query fuse nella lista, letta una pagina alla volta.
+     */
+    private static final class Source {
+        private final String name;
+        private final PageReader reader;
+        private final Deque<Entry> buffer = new ArrayDeque<>();
+        private Map<String, String> fetchKey; // Where the next page starts
+        private Map<String, String> pageStartKey; // Where the buffered page started
+        private Map<String, String> lastConsumedKey; // Last entry taken from the buffered page
+        private boolean exhausted;
+        private boolean filteredByPosition; // Source missing from the cursor: skip what the client already has
+
+        Source(String name, PageReader reader) {
+            this.name = name;
+            this.reader = reader;
+        }
+
+        void resumeFrom(Map<String, String> key, boolean done) {
+            fetchKey = key;
+            exhausted = done;
+            filteredByPosition = key == null && !done;
+        }
+
+        /**
+         * @return true if the buffer holds at least one entry
+         */
+        boolean fill(int pageSize, String position) {
+            // Filtered pages can come back empty while the query still has more items
+            while (buffer.isEmpty() && !exhausted) {
+                Page page = reader.read(toAttributes(fetchKey), pageSize);
+                pageStartKey = fetchKey;
+                lastConsumedKey = null;
+                for (Entry entry : page.entries()) {
+                    if (!filteredByPosition || position == null || entry.sortKey().compareTo(position) < 0) {
+                        buffer.add(entry);
+                    }
+                }
+                if (page.lastEvaluatedKey() == null || page.lastEvaluatedKey().isEmpty()) {
+                    exhausted = true;
+                } else {
+                    fetchKey = page.lastEvaluatedKey().entrySet().stream()
+                            .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getS()));
+                }
+            }
+            return !buffer.isEmpty();
+        }
+
+        Entry peek() {
+            return buffer.peek();
+        }
+
+        Entry poll() {
+            Entry entry = buffer.poll();
+            lastConsumedKey = entry.key();
+            return entry;
+        }
+
+        Map<String, String> resumeKey() {
+            if (buffer.isEmpty()) {
+                return fetchKey;
+            }
+            return lastConsumedKey != null ? lastConsumedKey : pageStartKey;
+        }
+
+        private static Map<String, AttributeValue> toAttributes(Map<String, String> key) {
+            if (key == null) {
+                return null;
+            }
+            return key.entrySet().stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, e -> new AttributeValue(e.getValue())));
+        }
+    }
+
+    /**
+     * Controlla se gli indici di FileMetadata sono attivi e popola FileRoleIndex con i file ROLE_BASED
+     * caricati prima della sua creazione. Una volta completato non fa più nulla.
+     */
+    @Scheduled(initialDelayString = "${file.index.check-interval:PT1M}", fixedDelayString = "${file.index.check-interval:PT1M}")
+    public void prepareIndexes() {
+        try {
+            if (!indexesReady) {
+                TableDescription table = amazonDynamoDB.describeTable(FILE_METADATA_TABLE).getTable();
+                indexesReady = table.getGlobalSecondaryIndexes() != null && table.getGlobalSecondaryIndexes().stream()
+                        .filter(index -> index.getIndexName().equals(OWNER_INDEX) || index.getIndexName().equals(VISIBILITY_INDEX))
+                        .filter(index -> IndexStatus.ACTIVE.toString().equals(index.getIndexStatus()))
+                        .count() == 2;
+                boolean building = table.getGlobalSecondaryIndexes() != null && table.getGlobalSecondaryIndexes().stream()
+                        .anyMatch(index -> !IndexStatus.ACTIVE.toString().equals(index.getIndexStatus()));
+                if (!indexesReady && !building) {
+                    // Only one index is built at a time, propose the next one
+                    DynamoDBConfig.addMissingIndexes(amazonDynamoDB, table, DynamoDBConfig.fileMetadataIndexes());
+                }
+            }
+            if (!roleIndexReady) {
+                if (dynamoDBMapper.load(FileRoleEntry.class, BACKFILL_MARKER_ROLE, BACKFILL_MARKER_SORT_KEY) == null) {
+                    backfillRoleIndex();
+                }
+                roleIndexReady = true;
+            }
+        } catch (RuntimeException e) {
+            System.out.println("File indexes not ready: " + e.getMessage());
+        }
+    }
+
+    private void backfillRoleIndex() {
+        // Resumable: an instance stopped half-way continues from the last page of each segment
+        ParallelScanner.ScanReport report = parallelScanner.run(ParallelScanner.ScanJob.builder()
+                .tableName(FILE_METADATA_TABLE)
+                .filterExpression("visibility = :roleBased")
+                .expressionAttributeValues(Map.of(":roleBased", new AttributeValue("ROLE_BASED")))
+                .checkpointId(ROLE_INDEX_BACKFILL_JOB)
+                .build(), (segment, items) -> {
+                    for (Map<String, AttributeValue> item : items) {
+                        indexRoles(dynamoDBMapper.marshallIntoObject(FileMetadata.class, item));
+                    }
+                });
+        dynamoDBMapper.save(FileRoleEntry.builder()
+                .role(BACKFILL_MARKER_ROLE)
+                .sortKey(BACKFILL_MARKER_SORT_KEY)
+                .uploadDate(Instant.now().toString())
+                .build());
+        System.out.println("FileRoleIndex backfilled with " + report.items() + " ROLE_BASED files.");
+    }
+
+    /**
+     * Le righe di FileRoleIndex di un file, una per ruolo ammesso; nessuna se il file non è ROLE_BASED.
+     */
+    static List<FileRoleEntry> roleEntries(FileMetadata file) {
+        if (!"ROLE_BASED".equals(file.getVisibility()) || file.getAllowedRoles() == null) {
+            return List.of();
+        }
+        return file.getAllowedRoles().stream()
+                .distinct()
+                .map(role -> FileRoleEntry.builder()
+                        .role(role)
+                        .sortKey(file.getUploadDate() + "#" + file.getFileId())
+                        .fileId(file.getFileId())
+                        .fileName(file.getFileName())
+                        .fileType(file.getFileType())
+                        .fileSize(file.getFileSize())
+                        .uploadDate(file.getUploadDate())
+                        .visibility(file.getVisibility())
+                        .build())
+                .toList();
+    }
+
+    private static void logFailures(List<DynamoDBMapper.FailedBatch> failedBatches) {
+        for (DynamoDBMapper.FailedBatch failed : failedBatches) {
+            System.out.println("FileRoleIndex batch write failed: " + failed.getException().getMessage());
+        }
+    }
+
+    private static FileMetadataDto toDto(FileMetadata file) {
+        return new FileMetadataDto(
+            file.getFileId(),
+            file.getFileName(),
+            file.getFileType(),
+            file.getFileSize(),
+            file.getUploadDate(),
+            file.getVisibility()
+        );
+    }
+
+    private static FileMetadataDto toDto(FileRoleEntry entry) {
+        return new FileMetadataDto(
+            entry.getFileId(),
+            entry.getFileName(),
+            entry.getFileType(),
+            entry.getFileSize(),
+            entry.getUploadDate(),
+            entry.getVisibility()
+        );
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Builder;
+
+/**
+ * La coda dei job in background sui file appena caricati, usata da miniature, statistiche CSV e indice del
+ * contenuto. Il job di un file viene eseguito da un pool fisso di thread con una coda di al più queueCapacity job.
+ *
+ * I job sono per chiave (per miniature e statistiche la chiave S3, condivisa dai file deduplicati): un file la
+ * cui chiave ha già un job in coda vi viene aggiunto invece di accodarne un altro, e il job prende con
+ * {@link #finish} tutti i file aggiunti fino a quel momento. {@link #submit} non blocca mai e con la coda piena
+ * scarta il file; {@link #reconcile} scansiona FileMetadata in un thread proprio e aspetta i worker, così
+ * riprende i file scartati e quelli persi con un riavvio.
+ */
+final class FileJobQueue {
+
+    private final String name;
+    private final Function<FileMetadata, String> key;
+    private final Consumer<FileMetadata> processor;
+    private final Consumer<FileMetadata> onDiscard;
+    private final ParallelScanner parallelScanner;
+
+    // Files waiting for each key, the job of a key takes all of them
+    private final ConcurrentHashMap<String, Set<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean reconciling = new AtomicBoolean();
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor reconciler;
+    private final Semaphore queueSlots;
+    private final Counter dropped;
+    private final Counter collapsed;
+
+    /**
+     * @param name il nome dei job nei log, per esempio "Derivative"
+     * @param threadName il prefisso dei thread, per esempio "derivative" per derivative-1 e derivative-reconcile
+     * @param key la chiave dei job di un file
+     * @param processor il job, che deve chiamare {@link #finish} per il file ricevuto
+     * @param onDiscard chiamato per un file scartato con la coda piena o durante lo spegnimento, può essere null
+     * @param jobsMetric il contatore dei job, con i tag result=dropped e result=collapsed
+     * @param queueMetric il gauge dei job in coda
+     */
+    @Builder
+    private FileJobQueue(String name, String threadName, int threads, int queueCapacity,
+                         Function<FileMetadata, String> key, Consumer<FileMetadata> processor, Consumer<FileMetadata> onDiscard,
+                         ParallelScanner parallelScanner, MeterRegistry meterRegistry, String jobsMetric, String queueMetric) {
+        this.name = name;
+        this.key = key;
+        this.processor = processor;
+        this.onDiscard = onDiscard != null ? onDiscard : file -> { };
+        this.parallelScanner = parallelScanner;
+
+        AtomicInteger counter = new AtomicInteger();
+        // The jobs are CPU or I/O bound on S3: a fixed number of platform threads, also with virtual threads enabled
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, threadName + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        reconciler = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, threadName + "-reconcile");
+            t.setDaemon(true);
+            return t;
+        });
+        queueSlots = new Semaphore(queueCapacity);
+
+        dropped = Counter.builder(jobsMetric).tag("result", "dropped").register(meterRegistry);
+        collapsed = Counter.builder(jobsMetric).tag("result", "collapsed").register(meterRegistry);
+        Gauge.builder(queueMetric, workers, executor -> executor.getQueue().size()).register(meterRegistry);
+    }
+
+    /**
+     * Mette in coda un file appena salvato, senza mai bloccare: con la coda piena il file viene scartato.
+     */
+    void submit(FileMetadata file) {
+        if (!join(file)) {
+            collapsed.increment(); // Taken by the job already queued for the same key
+            return;
+        }
+        if (!queueSlots.tryAcquire()) {
+            pending.remove(key.apply(file));
+            dropped.increment();
+            onDiscard.accept(file);
+            return;
+        }
+        execute(file);
+    }
+
+    /**
+     * Chiude il job del file: i file aggiunti dopo ne avviano uno nuovo.
+     *
+     * @return i fileId dei file del job, almeno quello del file ricevuto
+     */
+    Set<String> finish(FileMetadata file) {
+        Set<String> fileIds = pending.remove(key.apply(file));
+        return fileIds != null ? fileIds : Set.of(file.getFileId());
+    }
+
+    /**
+     * Mette in coda i file di FileMetadata trovati dalla scansione e accettati da accept, in un thread dedicato
+     * per non occupare lo scheduler durante una scansione lunga. Una riconciliazione ancora in corso non ne
+     * avvia un'altra.
+     *
+     * @param scan la scansione di FileMetadata; i file vengono costruiti con gli attributi proiettati tra fileId,
+     *        fileName, fileType, fileSize e s3Key
+     */
+    void reconcile(ParallelScanner.ScanJob scan, Predicate<FileMetadata> accept) {
+        if (!reconciling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reconciler.execute(() -> {
+                try {
+                    AtomicInteger queued = new AtomicInteger();
+                    parallelScanner.run(scan, (segment, items) -> {
+                        for (Map<String, AttributeValue> item : items) {
+                            FileMetadata file = toFile(item);
+                            if (file.getS3Key() != null && accept.test(file) && join(file)) {
+                                // Waits for the workers instead of dropping files like submit does
+                                queueSlots.acquireUninterruptibly();
+                                execute(file);
+                                queued.incrementAndGet();
+                            }
+                        }
+                    });
+                    if (queued.get() > 0) {
+                        System.out.println(name + " reconcile queued " + queued.get() + " files.");
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println(name + " reconcile failed: " + e.getMessage());
+                } finally {
+                    reconciling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) { // Shutting down
+            reconciling.set(false);
+        }
+    }
+
+    /**
+     * Ferma riconciliazione e worker; i file in coda vengono ripresi dalla riconciliazione dopo il riavvio.
+     */
+    void shutdown() {
+        reconciler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    // Adds the file to the job of its key; true if there was none and one has to be queued
+    private boolean join(FileMetadata file) {
+        AtomicBoolean created = new AtomicBoolean();
+        pending.compute(key.apply(file), (k, files) -> {
+            if (files == null) {
+                files = ConcurrentHashMap.newKeySet();
+                created.set(true);
+            }
+            files.add(file.getFileId());
+            return files;
+        });
+        return created.get();
+    }
+
+    private void execute(FileMetadata file) {
+        try {
+            workers.execute(() -> {
+                try {
+                    processor.accept(file);
+                } finally {
+                    queueSlots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) { // Shutting down
+            queueSlots.release();
+            pending.remove(key.apply(file));
+            onDiscard.accept(file);
+        }
+    }
+
+    private static FileMetadata toFile(Map<String, AttributeValue> item) {
+        return FileMetadata.builder()
+                .fileId(item.get("fileId").getS())
+                .fileName(stringValue(item.get("fileName")))
+                .fileType(stringValue(item.get("fileType")))
+                .fileSize(item.containsKey("fileSize") ? Long.valueOf(item.get("fileSize").getN()) : null)
+                .s3Key(stringValue(item.get("s3Key")))
+                .build();
+    }
+
+    private static String stringValue(AttributeValue value) {
+        return value != null ? value.getS() : null;
+    }
+}
@@ -0,0 +1,171 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.giuseppemarletta.file_service.config.MetadataCacheConfig;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Cache in memoria dei metadati dei file, davanti a DynamoDB per le letture dei download. I file mancanti
+ * vengono letti con letture consistenti: una voce appena tolta dopo una scrittura non viene ricaricata con
+ * la riga di prima, che resterebbe poi in cache fino al ttl.
+ *
+ * I metadati non cambiano quasi mai dopo l'upload: una voce resta valida fino al ttl o finché il file non
+ * viene salvato o cancellato da questa istanza, che la aggiorna o la toglie subito. Con più repliche del
+ * servizio ogni upload e cancellazione viene anche pubblicato su RabbitMQ (file.metadata.cache.broadcast.enabled),
+ * così le altre istanze tolgono il file dalla propria cache e aggiornano il proprio AclIndex; senza broadcast
+ * il ttl limita quanto a lungo un'altra istanza può vedere un file già cancellato. Ogni messaggio porta l'id
+ * dell'istanza che lo ha pubblicato, che lo ignora quando le torna indietro.
+ *
+ * Gli oggetti restituiti sono condivisi tra le richieste e non vanno modificati.
+ */
+@Service
+public class FileMetadataCache {
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final String ORIGIN_SEPARATOR = "/";
+
+    private final DynamoDBMapper dynamoDBMapper;
+    private final MeterRegistry meterRegistry;
+    private final ObjectProvider<RabbitTemplate> rabbitTemplate;
+    // Tags the broadcasts of this instance, see fromOtherInstance
+    private final String instanceId = UUID.randomUUID().toString();
+
+    @Value("${file.metadata.cache.ttl:10m}")
+    private Duration ttl;
+
+    @Value("${file.metadata.cache.max-size:100000}")
+    private long maxSize;
+
+    @Value("${file.metadata.cache.broadcast.enabled:false}")
+    private boolean broadcastEnabled;
+
+    private Cache<String, FileMetadata> cache;
+
+    public FileMetadataCache(AmazonDynamoDB amazonDynamoDB, MeterRegistry meterRegistry,
+                             ObjectProvider<RabbitTemplate> rabbitTemplate) {
+        // An eventually consistent read right after a write could cache the previous row for the whole ttl
+        this.dynamoDBMapper = new DynamoDBMapper(amazonDynamoDB, DynamoDBMapperConfig.ConsistentReads.CONSISTENT.config());
+        this.meterRegistry = meterRegistry;
+        this.rabbitTemplate = rabbitTemplate;
+    }
+
+    @PostConstruct
+    void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        // Exposed as cache.gets{cache=file-metadata,result=hit|miss} under /actuator/metrics
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "file-metadata");
+    }
+
+    public Optional<FileMetadata> findById(String fileId) {
+        // Missing files are not cached: the id of a file is known only once it has been saved
+        return Optional.ofNullable(cache.get(fileId, id -> dynamoDBMapper.load(FileMetadata.class, id)));
+    }
+
+    /**
+     * Come findById per più file: quelli assenti dalla cache vengono letti insieme con BatchGetItem (100 chiavi
+     * per richiesta, le chiavi non elaborate vengono ritentate).
+     *
+     * @return i file trovati, per fileId
+     */
+    public Map<String, FileMetadata> findAllById(Collection<String> fileIds) {
+        return cache.getAll(fileIds, missing -> {
+            Map<String, FileMetadata> loaded = new HashMap<>();
+            List<FileMetadata> keys = new ArrayList<>();
+            missing.forEach(fileId -> keys.add(FileMetadata.builder().fileId(fileId).build()));
+            for (Object file : dynamoDBMapper.batchLoad(keys).getOrDefault(FILE_METADATA_TABLE, List.of())) {
+                loaded.put(((FileMetadata) file).getFileId(), (FileMetadata) file);
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * La voce in cache, senza leggere DynamoDB: per chi legge i metadati con il client asincrono.
+     */
+    public Optional<FileMetadata> getIfPresent(String fileId) {
+        return Optional.ofNullable(cache.getIfPresent(fileId));
+    }
+
+    /**
+     * Aggiunge un file letto da DynamoDB fuori dalla cache, senza notificarlo alle altre istanze.
+     */
+    public void fill(FileMetadata file) {
+        cache.put(file.getFileId(), file);
+    }
+
+    /**
+     * Aggiorna la voce dopo un salvataggio su DynamoDB da parte di questa istanza.
+     */
+    public void put(FileMetadata file) {
+        cache.put(file.getFileId(), file);
+        broadcast(file.getFileId());
+    }
+
+    /**
+     * Toglie la voce dopo una modifica o una cancellazione, qui e, se abilitato, nelle altre istanze.
+     */
+    public void invalidate(String fileId) {
+        cache.invalidate(fileId);
+        broadcast(fileId);
+    }
+
+    private void broadcast(String fileId) {
+        if (!broadcastEnabled) {
+            return;
+        }
+        try {
+            rabbitTemplate.getObject().convertAndSend(MetadataCacheConfig.INVALIDATION_EXCHANGE, "", instanceId + ORIGIN_SEPARATOR + fileId);
+        } catch (AmqpException e) {
+            // The other instances fall back on the ttl
+            System.out.println("Failed to broadcast metadata change for " + fileId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Il fileId di un messaggio pubblicato da un'altra istanza.
+     *
+     * @return null se il messaggio è di questa istanza, che ha già aggiornato la propria cache
+     */
+    public String fromOtherInstance(String message) {
+        int separator = message.indexOf(ORIGIN_SEPARATOR);
+        if (separator < 0) {
+            // Published by an instance that does not tag its messages yet
+            return message;
+        }
+        return message.startsWith(instanceId + ORIGIN_SEPARATOR) ? null : message.substring(separator + 1);
+    }
+
+    /**
+     * Toglie la voce su richiesta di un'altra istanza, senza ripubblicarla.
+     */
+    public void evict(String fileId) {
+        cache.invalidate(fileId);
+    }
+}
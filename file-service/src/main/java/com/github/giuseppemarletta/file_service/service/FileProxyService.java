@@ -0,0 +1,320 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Download attraverso il servizio, per i client che non possono seguire l'URL presigned.
+ * Range e header condizionali vengono girati a S3, che risponde con la parte richiesta o senza corpo:
+ * il servizio non legge mai l'oggetto per intero. I file cifrati vengono decifrati in streaming, leggendo
+ * solo i blocchi che contengono il Range.
+ */
+@Service
+@RequiredArgsConstructor
+public class FileProxyService {
+
+    // S3 serves a single range, a multi-range request gets the whole object (allowed by RFC 9110)
+    private static final Pattern SINGLE_RANGE = Pattern.compile("bytes=(\\d+-\\d*|-\\d+)");
+
+    // Request attributes of Tomcat's sendfile support, the same ones its DefaultServlet uses
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final S3Client s3Client;
+    private final FileMetadataCache fileMetadataCache;
+    private final FileStorageService fileStorageService;
+    private final DiskObjectCache diskObjectCache;
+    private final EncryptionService encryptionService;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    /**
+     * Risposta di S3 per un download proxy.
+     *
+     * @param status 200, 206 o 304
+     * @param eTag l'ETag dell'oggetto
+     * @param lastModified la data di ultima modifica dell'oggetto, null se S3 non l'ha restituita
+     * @param contentLength la lunghezza del corpo, null per 304
+     * @param contentRange l'header Content-Range per 206, null altrimenti
+     * @param content il contenuto da copiare al client, null per 304 o se servito dalla cache su disco
+     * @param cached l'oggetto nella cache su disco, null se il contenuto arriva da S3
+     * @param offset la posizione del primo byte da inviare dal file in cache
+     */
+    public record FileContent(FileMetadata file, int status, String eTag, Instant lastModified, Long contentLength,
+                              String contentRange, ResponseInputStream<GetObjectResponse> content,
+                              DiskObjectCache.CachedObject cached, long offset) {
+    }
+
+    /**
+     * Apre il contenuto di un file dopo aver controllato i permessi come getDownloadUrl.
+     *
+     * @param range l'header Range, opzionale
+     * @param ifNoneMatch l'header If-None-Match, opzionale
+     * @param ifModifiedSince l'header If-Modified-Since, opzionale
+     * @param ifRange l'header If-Range, opzionale: se l'oggetto è cambiato il Range viene ignorato
+     */
+    public FileContent open(String fileId, String userId, List<String> userRoles, String range, String ifNoneMatch,
+                            Instant ifModifiedSince, String ifRange) {
+        FileMetadata file = fileMetadataCache.findById(fileId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found"));
+        try {
+            fileStorageService.checkDownloadAccess(file, userId, userRoles);
+        } catch (RuntimeException e) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, e.getMessage());
+        }
+        fileStorageService.recordRead(file);
+
+        String singleRange = range != null && SINGLE_RANGE.matcher(range.trim()).matches() ? range.trim() : null;
+        if (EncryptionService.isEncrypted(file)) {
+            return openEncrypted(file, singleRange, ifNoneMatch, ifModifiedSince, ifRange);
+        }
+        if (diskObjectCache.accepts(file.getFileSize())) {
+            return fromCache(file, diskObjectCache.get(file.getS3Key()), singleRange, ifNoneMatch, ifModifiedSince, ifRange);
+        }
+
+        GetObjectRequest.Builder request = GetObjectRequest.builder()
+            .bucket(bucketName)
+            .key(file.getS3Key())
+            .range(singleRange)
+            .ifNoneMatch(ifNoneMatch)
+            .ifModifiedSince(ifNoneMatch == null ? ifModifiedSince : null); // If-None-Match takes precedence
+
+        boolean conditionalRange = singleRange != null && ifRange != null;
+        if (conditionalRange) {
+            // If-Range: the range only applies while the validator still matches, expressed as a precondition
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                request.ifMatch(ifRange);
+            } else {
+                request.ifUnmodifiedSince(parseHttpDate(ifRange));
+            }
+        }
+
+        try {
+            return fetch(file, request.build());
+        } catch (S3Exception e) {
+            if (e.statusCode() == HttpStatus.PRECONDITION_FAILED.value() && conditionalRange) {
+                // Changed since the client got the first part: send the whole current object
+                return fetch(file, request.range(null).ifMatch(null).ifUnmodifiedSince(null).build());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Come open per un file cifrato, che non passa dalla cache su disco: il Range sul contenuto in chiaro
+     * diventa il Range dei blocchi cifrati che lo contengono, decifrati mentre vengono copiati al client.
+     * Gli header condizionali usano l'ETag dell'oggetto cifrato.
+     */
+    private FileContent openEncrypted(FileMetadata file, String range, String ifNoneMatch, Instant ifModifiedSince,
+                                      String ifRange) {
+        long size = file.getFileSize();
+        long[] bounds = range != null ? resolveRange(range, size) : null;
+        GetObjectRequest.Builder request = GetObjectRequest.builder()
+            .bucket(bucketName)
+            .key(file.getS3Key())
+            .ifNoneMatch(ifNoneMatch)
+            .ifModifiedSince(ifNoneMatch == null ? ifModifiedSince : null);
+        if (bounds != null) {
+            request.range(EncryptionService.ciphertextRange(file, bounds[0], bounds[1]));
+            if (ifRange != null) {
+                if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                    request.ifMatch(ifRange);
+                } else {
+                    request.ifUnmodifiedSince(parseHttpDate(ifRange));
+                }
+            }
+        }
+
+        FileContent content;
+        try {
+            content = fetch(file, request.build());
+        } catch (S3Exception e) {
+            if (e.statusCode() != HttpStatus.PRECONDITION_FAILED.value() || bounds == null || ifRange == null) {
+                throw e;
+            }
+            // Changed since the client got the first part: send the whole current object
+            bounds = null;
+            content = fetch(file, request.range(null).ifMatch(null).ifUnmodifiedSince(null).build());
+        }
+        if (content.status() == HttpStatus.NOT_MODIFIED.value()) {
+            return content;
+        }
+
+        long start = bounds != null ? bounds[0] : 0;
+        long end = bounds != null ? bounds[1] : size - 1;
+        ResponseInputStream<GetObjectResponse> ciphertext = content.content();
+        // Aborting the decrypted stream drops the S3 connection, like for a plain object
+        ResponseInputStream<GetObjectResponse> plaintext = new ResponseInputStream<>(ciphertext.response(),
+                AbortableInputStream.create(encryptionService.decrypt(file, ciphertext, start, end), ciphertext));
+        return bounds != null
+                ? new FileContent(file, HttpStatus.PARTIAL_CONTENT.value(), content.eTag(), content.lastModified(),
+                        end - start + 1, "bytes " + start + "-" + end + "/" + size, plaintext, null, 0)
+                : new FileContent(file, HttpStatus.OK.value(), content.eTag(), content.lastModified(), size, null,
+                        plaintext, null, 0);
+    }
+
+    private FileContent fetch(FileMetadata file, GetObjectRequest request) {
+        try {
+            ResponseInputStream<GetObjectResponse> content = s3Client.getObject(request);
+            GetObjectResponse object = content.response();
+            int status = object.contentRange() != null ? HttpStatus.PARTIAL_CONTENT.value() : HttpStatus.OK.value();
+            return new FileContent(file, status, object.eTag(), object.lastModified(), object.contentLength(),
+                    object.contentRange(), content, null, 0);
+        } catch (S3Exception e) {
+            if (e.statusCode() == HttpStatus.NOT_MODIFIED.value()) {
+                // The SDK reports 304 as an error, the validators are in its headers
+                SdkHttpResponse response = e.awsErrorDetails().sdkHttpResponse();
+                Instant lastModified = response.firstMatchingHeader(HttpHeaders.LAST_MODIFIED)
+                        .map(FileProxyService::parseHttpDate)
+                        .orElse(null);
+                return new FileContent(file, HttpStatus.NOT_MODIFIED.value(),
+                        response.firstMatchingHeader(HttpHeaders.ETAG).orElse(null), lastModified, null, null, null, null, 0);
+            }
+            if (e.statusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+                throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "Requested range not satisfiable");
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Invia al client la parte richiesta di un oggetto in cache senza copiarla nello heap: con il sendfile di
+     * Tomcat il file passa dal page cache al socket dopo il ritorno del controller, altrimenti con
+     * FileChannel.transferTo verso lo stream della risposta.
+     */
+    public void sendCached(FileContent content, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path path = content.cached().path();
+        long length = content.contentLength();
+        diskObjectCache.recordServed(length);
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, path.toString());
+            request.setAttribute(SENDFILE_START, content.offset());
+            request.setAttribute(SENDFILE_END, content.offset() + length);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = content.offset();
+            long remaining = length;
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, out);
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+
+    /**
+     * Valuta localmente, come farebbe S3, gli header condizionali e il Range su un oggetto in cache.
+     */
+    private FileContent fromCache(FileMetadata file, DiskObjectCache.CachedObject cached, String range, String ifNoneMatch,
+                                  Instant ifModifiedSince, String ifRange) {
+        // HTTP dates have second precision
+        Instant lastModified = cached.lastModified() != null ? cached.lastModified().truncatedTo(ChronoUnit.SECONDS) : null;
+        boolean notModified = ifNoneMatch != null
+                ? matchesAny(ifNoneMatch, cached.eTag())
+                : ifModifiedSince != null && lastModified != null && !lastModified.isAfter(ifModifiedSince);
+        if (notModified) {
+            return new FileContent(file, HttpStatus.NOT_MODIFIED.value(), cached.eTag(), lastModified, null, null, null, null, 0);
+        }
+
+        long size = cached.size();
+        boolean rangeApplies = range != null && (ifRange == null
+                || (ifRange.startsWith("\"") ? ifRange.equals(cached.eTag())
+                        : lastModified != null && lastModified.equals(parseHttpDate(ifRange))));
+        if (!rangeApplies) {
+            return new FileContent(file, HttpStatus.OK.value(), cached.eTag(), lastModified, size, null, null, cached, 0);
+        }
+
+        long[] bounds = resolveRange(range, size);
+        long start = bounds[0];
+        long end = bounds[1];
+        return new FileContent(file, HttpStatus.PARTIAL_CONTENT.value(), cached.eTag(), lastModified, end - start + 1,
+                "bytes " + start + "-" + end + "/" + size, null, cached, start);
+    }
+
+    /**
+     * Il primo e l'ultimo byte (inclusi) di un Range singolo su un oggetto di size byte, come li calcola S3.
+     *
+     * @throws ResponseStatusException 416 se il Range non contiene nessun byte dell'oggetto
+     */
+    private static long[] resolveRange(String range, long size) {
+        String spec = range.substring("bytes=".length());
+        int dash = spec.indexOf('-');
+        long start;
+        long end;
+        try {
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+        } catch (NumberFormatException e) {
+            start = size; // Beyond any object size
+            end = size;
+        }
+        if (start >= size || start > end) {
+            throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "Requested range not satisfiable");
+        }
+        return new long[] {start, end};
+    }
+
+    private static boolean matchesAny(String ifNoneMatch, String eTag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            // Weak comparison, as required for If-None-Match
+            if (value.equals("*") || (eTag != null && stripWeak(value).equals(stripWeak(eTag)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+    private static Instant parseHttpDate(String value) {
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException e) {
+            return Instant.EPOCH; // Unparseable validator: treat the object as changed
+        }
+    }
+}
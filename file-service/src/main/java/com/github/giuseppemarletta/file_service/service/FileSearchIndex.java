@@ -0,0 +1,191 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+
+/**
+ * Indici di ricerca sui metadati dei file, negli stessi ordinali di AclIndex che li contiene e li protegge
+ * con il proprio lock: il risultato di una ricerca è un BitSet da intersecare direttamente con quello
+ * dei file visibili.
+ *
+ * Il nome del file è diviso in token (lettere e cifre, in minuscolo) tenuti in ordine, così un prefisso
+ * corrisponde a un intervallo di token; fileType è indicizzato allo stesso modo per cercare "image/".
+ * fileSize e uploadDate hanno un indice ordinato per le ricerche per intervallo.
+ */
+final class FileSearchIndex {
+
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final NavigableMap<String, BitSet> nameTokens = new TreeMap<>();
+    private final NavigableMap<String, BitSet> types = new TreeMap<>();
+    private final RangeIndex sizes = new RangeIndex();
+    private final RangeIndex dates = new RangeIndex();
+    private final List<Indexed> indexed = new ArrayList<>(); // By ordinal, to undo an add
+
+    private record Indexed(List<String> tokens, String type, Long size, Long date) {
+    }
+
+    /**
+     * Filtri di una ricerca, tutti opzionali e combinati in AND.
+     *
+     * @param text parole del nome del file, ognuna cercata come prefisso di un token
+     * @param type fileType esatto, o prefisso se termina con "/" o "*"
+     * @param from uploadDate minimo, incluso
+     * @param to uploadDate massimo, escluso
+     */
+    public record Query(String text, String type, Long minSize, Long maxSize, Instant from, Instant to) {
+    }
+
+    static List<String> tokenize(String text) {
+        if (text == null) {
+            return List.of();
+        }
+        return TOKEN_SEPARATOR.splitAsStream(text.toLowerCase(Locale.ROOT))
+                .filter(token -> !token.isEmpty())
+                .distinct()
+                .toList();
+    }
+
+    void add(int ordinal, FileMetadata file) {
+        List<String> tokens = tokenize(file.getFileName());
+        for (String token : tokens) {
+            nameTokens.computeIfAbsent(token, t -> new BitSet()).set(ordinal);
+        }
+        String type = file.getFileType() != null ? file.getFileType().toLowerCase(Locale.ROOT) : null;
+        if (type != null) {
+            types.computeIfAbsent(type, t -> new BitSet()).set(ordinal);
+        }
+        Long size = file.getFileSize();
+        if (size != null) {
+            sizes.add(size, ordinal);
+        }
+        Long date = epochMillis(file.getUploadDate());
+        if (date != null) {
+            dates.add(date, ordinal);
+        }
+        while (indexed.size() <= ordinal) {
+            indexed.add(null);
+        }
+        indexed.set(ordinal, new Indexed(tokens, type, size, date));
+    }
+
+    void remove(int ordinal) {
+        Indexed entry = ordinal < indexed.size() ? indexed.set(ordinal, null) : null;
+        if (entry == null) {
+            return;
+        }
+        entry.tokens().forEach(token -> clear(nameTokens, token, ordinal));
+        if (entry.type() != null) {
+            clear(types, entry.type(), ordinal);
+        }
+        if (entry.size() != null) {
+            sizes.remove(entry.size(), ordinal);
+        }
+        if (entry.date() != null) {
+            dates.remove(entry.date(), ordinal);
+        }
+    }
+
+    /**
+     * Restringe {@code candidates} ai file che soddisfano la ricerca.
+     */
+    void filter(BitSet candidates, Query query) {
+        for (String word : tokenize(query.text())) {
+            if (candidates.isEmpty()) {
+                return;
+            }
+            candidates.and(union(nameTokens, word));
+        }
+        if (query.type() != null && !query.type().isBlank()) {
+            String type = query.type().toLowerCase(Locale.ROOT).trim();
+            if (type.endsWith("*")) {
+                candidates.and(union(types, type.substring(0, type.length() - 1)));
+            } else if (type.endsWith("/")) {
+                candidates.and(union(types, type));
+            } else {
+                candidates.and(types.getOrDefault(type, new BitSet()));
+            }
+        }
+        // Range lookups cost as much as the files in the range: skip them once nothing is left
+        if (!candidates.isEmpty() && (query.minSize() != null || query.maxSize() != null)) {
+            candidates.and(sizes.range(query.minSize(), true, query.maxSize(), true));
+        }
+        if (!candidates.isEmpty() && (query.from() != null || query.to() != null)) {
+            candidates.and(dates.range(query.from() != null ? query.from().toEpochMilli() : null, true,
+                    query.to() != null ? query.to().toEpochMilli() : null, false));
+        }
+    }
+
+    // Files with a key starting with the prefix
+    private static BitSet union(NavigableMap<String, BitSet> postings, String prefix) {
+        BitSet files = new BitSet();
+        for (BitSet posting : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            files.or(posting);
+        }
+        return files;
+    }
+
+    private static void clear(Map<String, BitSet> postings, String key, int ordinal) {
+        BitSet posting = postings.get(key);
+        if (posting != null) {
+            posting.clear(ordinal);
+            if (posting.isEmpty()) {
+                postings.remove(key);
+            }
+        }
+    }
+
+    private static Long epochMillis(String uploadDate) {
+        try {
+            return uploadDate != null ? Instant.parse(uploadDate).toEpochMilli() : null;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Coppie (valore, ordinale) in ordine di valore.
+     */
+    private static final class RangeIndex {
+        private record Point(long value, int ordinal) {
+        }
+
+        private final NavigableSet<Point> points = new TreeSet<>(
+                Comparator.comparingLong(Point::value).thenComparingInt(Point::ordinal));
+
+        void add(long value, int ordinal) {
+            points.add(new Point(value, ordinal));
+        }
+
+        void remove(long value, int ordinal) {
+            points.remove(new Point(value, ordinal));
+        }
+
+        BitSet range(Long min, boolean minInclusive, Long max, boolean maxInclusive) {
+            Point low = min == null ? null
+                    : minInclusive ? new Point(min, Integer.MIN_VALUE) : new Point(min, Integer.MAX_VALUE);
+            Point high = max == null ? null
+                    : maxInclusive ? new Point(max, Integer.MAX_VALUE) : new Point(max, Integer.MIN_VALUE);
+            NavigableSet<Point> selected = low == null && high == null ? points
+                    : low == null ? points.headSet(high, false)
+                    : high == null ? points.tailSet(low, false)
+                    : points.comparator().compare(low, high) > 0 ? new TreeSet<>() : points.subSet(low, false, high, false);
+            BitSet files = new BitSet();
+            selected.forEach(point -> files.set(point.ordinal()));
+            return files;
+        }
+    }
+}
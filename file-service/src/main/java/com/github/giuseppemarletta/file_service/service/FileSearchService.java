@@ -0,0 +1,92 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.github.giuseppemarletta.file_service.dto.FileMetadataDto;
+import com.github.giuseppemarletta.file_service.dto.FileSearchResponse;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Ricerca tra i file visibili all'utente per nome, tipo, dimensione e data di upload.
+ * I filtri sono valutati sugli indici in memoria di AclIndex e intersecati con i file visibili prima di
+ * leggere qualunque metadato: vengono caricati solo i file della pagina restituita.
+ */
+@Service
+@RequiredArgsConstructor
+public class FileSearchService {
+
+    private final AclIndex aclIndex;
+    private final FileMetadataCache fileMetadataCache;
+
+    /**
+     * @param from uploadDate minimo, incluso: istante ISO 8601 o data (yyyy-MM-dd, UTC)
+     * @param to uploadDate massimo, escluso, nello stesso formato
+     * @param nextToken il token della pagina precedente, null per la prima
+     */
+    public FileSearchResponse search(String userId, List<String> userRoles, String text, String type, Long minSize,
+                                     Long maxSize, String from, String to, int limit, String nextToken) {
+        if (!aclIndex.isReady()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Search index is not ready yet");
+        }
+        String position = null;
+        if (nextToken != null && !nextToken.isBlank()) {
+            VisibleFilesCursor cursor = VisibleFilesCursor.decode(nextToken);
+            if (!VisibleFilesCursor.MODE_SEARCH.equals(cursor.getMode())) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid nextToken");
+            }
+            position = cursor.getPosition();
+        }
+        FileSearchIndex.Query query = new FileSearchIndex.Query(text, type, minSize, maxSize, parseDate(from, "from"), parseDate(to, "to"));
+
+        // One more than needed to know whether another page follows
+        List<String> sortKeys = aclIndex.searchSortKeys(userId, userRoles, query, position, limit + 1);
+        boolean more = sortKeys.size() > limit;
+        if (more) {
+            sortKeys = sortKeys.subList(0, limit);
+        }
+        List<String> fileIds = sortKeys.stream()
+                .map(sortKey -> sortKey.substring(sortKey.lastIndexOf('#') + 1))
+                .toList();
+        Map<String, FileMetadata> files = fileMetadataCache.findAllById(fileIds);
+        List<FileMetadataDto> results = new ArrayList<>();
+        for (String fileId : fileIds) {
+            FileMetadata file = files.get(fileId);
+            if (file != null) { // Missing when deleted since the index was read
+                results.add(new FileMetadataDto(file.getFileId(), file.getFileName(), file.getFileType(),
+                        file.getFileSize(), file.getUploadDate(), file.getVisibility()));
+            }
+        }
+
+        String next = null;
+        if (more) {
+            VisibleFilesCursor cursor = new VisibleFilesCursor();
+            cursor.setMode(VisibleFilesCursor.MODE_SEARCH);
+            cursor.setPosition(sortKeys.get(sortKeys.size() - 1));
+            next = cursor.encode();
+        }
+        return new FileSearchResponse(results, next);
+    }
+
+    private static Instant parseDate(String value, String name) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return value.length() == 10 ? LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant() : Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, name + " must be an ISO 8601 date or instant");
+        }
+    }
+}
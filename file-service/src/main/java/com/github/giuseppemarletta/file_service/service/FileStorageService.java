@@ -1,160 +1,595 @@
 package com.github.giuseppemarletta.file_service.service;
 
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
 
 import com.amazonaws.HttpMethod;
 import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
 import com.github.giuseppemarletta.file_service.Repository.FileMetadataRepository;
-import com.github.giuseppemarletta.file_service.dto.FileMetadataDto;
+import com.github.giuseppemarletta.file_service.dto.CsvStatsDto;
+import com.github.giuseppemarletta.file_service.dto.DownloadUrlResult;
+import com.github.giuseppemarletta.file_service.dto.FileVersionDto;
 import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.ChunkedAesGcm;
+import com.github.giuseppemarletta.file_service.util.HashUtil;
 
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import org.springframework.beans.factory.annotation.Value;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 import java.time.Duration;
-import java.net.URI;
 
 @Service
 @RequiredArgsConstructor
 public class FileStorageService {
     
     private final S3Client s3Client;
+    private final S3Presigner s3Presigner;
+    private final MeterRegistry meterRegistry;
+    private final S3StreamingUploader s3StreamingUploader;
+    private final BlobStore blobStore;
+    private final DiskObjectCache diskObjectCache;
+    private final FileIndexService fileIndexService;
+    private final AclIndex aclIndex;
     private final FileMetadataRepository fileMetadataRepository;
+    private final FileMetadataCache fileMetadataCache;
+    private final ContentIndexService contentIndexService;
+    private final DerivativeService derivativeService;
+    private final CsvStatsService csvStatsService;
+    private final QuotaService quotaService;
+    private final AccessTracker accessTracker;
+    private final StorageTieringService storageTieringService;
+    private final FileVersionService fileVersionService;
+    private final EncryptionService encryptionService;
 
     @Value("${amazon.s3.bucket.name}")
     private String bucketName;
 
-    @Value("${amazon.s3.endpoint}")
-    private String endpoint;
+    @Value("${download.url.ttl:5m}")
+    private Duration downloadUrlTtl;
 
-    public FileMetadata uploadFile(MultipartFile file, String userId, String visibility, List<String> allowedRoles) throws IOException {
-        String key = UUID.randomUUID().toString() + "_" + file.getOriginalFilename(); // Generate a unique key for the file
+    // A cached URL is served only while at least this much of its validity is left
+    @Value("${download.url.cache.min-remaining:2m}")
+    private Duration downloadUrlMinRemaining;
 
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                .bucket(bucketName)
-                .key(key)
-                .contentType(file.getContentType())
+    @Value("${download.url.cache.max-size:10000}")
+    private long downloadUrlCacheMaxSize;
+
+    private Cache<String, String> downloadUrlCache;
+
+    @PostConstruct
+    void initDownloadUrlCache() {
+        if (downloadUrlMinRemaining.compareTo(downloadUrlTtl) >= 0) {
+            throw new IllegalStateException("download.url.cache.min-remaining must be shorter than download.url.ttl");
+        }
+        downloadUrlCache = Caffeine.newBuilder()
+                .maximumSize(downloadUrlCacheMaxSize)
+                .expireAfterWrite(downloadUrlTtl.minus(downloadUrlMinRemaining))
+                .recordStats()
                 .build();
+        // Exposed as cache.gets{cache=presigned-download-urls,result=hit|miss} under /actuator/metrics
+        CaffeineCacheMetrics.monitor(meterRegistry, downloadUrlCache, "presigned-download-urls");
+    }
+
+    public FileMetadata uploadFile(MultipartFile file, String userId, String visibility, List<String> allowedRoles) throws IOException {
+        return uploadFile(file, userId, visibility, allowedRoles, null);
+    }
+
+    /**
+     * Come uploadFile; con encrypted (o encryption.encrypt-by-default) il contenuto viene cifrato con
+     * EncryptionService mentre viene inviato a S3, sotto una chiave propria invece che come blob deduplicato.
+     */
+    public FileMetadata uploadFile(MultipartFile file, String userId, String visibility, List<String> allowedRoles,
+                                   Boolean encrypted) throws IOException {
+        if (encryptionService.shouldEncrypt(encrypted)) {
+            return uploadEncrypted(file, userId, visibility, allowedRoles);
+        }
+        // The multipart file is already spooled to local disk, so hashing it first is cheap
+        // and lets a duplicate upload skip the S3 transfer entirely
+        String contentHash;
+        try (InputStream in = file.getInputStream()) {
+            contentHash = HashUtil.sha256Hex(in);
+        }
+
+        // Rejected before anything is sent to S3; held until the file is counted by saveMetadata
+        try (QuotaService.Reservation reservation = quotaService.reserve(userId, file.getSize())) {
+            blobStore.acquire(contentHash, file.getSize(), blobKey -> {
+                // Stream the upload to S3 in parts instead of loading it into the heap with getBytes()
+                try (InputStream in = file.getInputStream()) {
+                    s3StreamingUploader.upload(blobKey, file.getContentType(), in, file.getSize());
+                }
+            });
+
+            FileMetadata saved;
+            try {
+                saved = saveMetadata(BlobStore.blobKey(contentHash), userId, file.getOriginalFilename(), file.getContentType(),
+                        file.getSize(), visibility, allowedRoles, contentHash);
+            } catch (RuntimeException e) {
+                blobStore.release(contentHash);
+                throw e;
+            }
+            reservation.commit();
+            return saved;
+        }
+    }
+
+    private FileMetadata uploadEncrypted(MultipartFile file, String userId, String visibility, List<String> allowedRoles)
+            throws IOException {
+        String key = newObjectKey(file.getOriginalFilename());
+        EncryptionService.Envelope envelope = encryptionService.newEnvelope(key);
+        try (QuotaService.Reservation reservation = quotaService.reserve(userId, file.getSize())) {
+            // Encrypted chunk by chunk while the uploader reads its parts, the content is never held in memory
+            try (InputStream in = encryptionService.encrypt(envelope, file.getInputStream(), file.getSize())) {
+                s3StreamingUploader.upload(key, MediaType.APPLICATION_OCTET_STREAM_VALUE, in,
+                        ChunkedAesGcm.ciphertextLength(file.getSize(), envelope.chunkSize()));
+            }
+            FileMetadata saved;
+            try {
+                saved = saveMetadata(key, userId, file.getOriginalFilename(), file.getContentType(), file.getSize(),
+                        visibility, allowedRoles, null, envelope);
+            } catch (RuntimeException e) {
+                s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucketName).key(key).build());
+                throw e;
+            }
+            reservation.commit();
+            return saved;
+        }
+    }
 
-        s3Client.putObject(putObjectRequest, RequestBody.fromBytes(file.getBytes()));
+    /**
+     * Carica una nuova versione di un file esistente: il fileId, la visibilità e i ruoli restano gli stessi,
+     * il contenuto precedente resta scaricabile come versione precedente finché la retention non lo elimina.
+     */
+    public FileMetadata uploadVersion(String fileId, MultipartFile file, String userId) throws IOException {
+        FileMetadata current = fileMetadataRepository.findById(fileId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found"));
+        if (!current.getOwnerId().equals(userId)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "You are not the owner of this file");
+        }
+        if (EncryptionService.isEncrypted(current)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Encrypted files cannot be versioned, upload a new file");
+        }
+        encryptionService.requireCleartextAllowed();
+
+        String contentHash;
+        try (InputStream in = file.getInputStream()) {
+            contentHash = HashUtil.sha256Hex(in);
+        }
+
+        // Previous versions stay counted in the owner's usage until they are pruned
+        try (QuotaService.Reservation reservation = quotaService.reserve(userId, file.getSize(), 0)) {
+            blobStore.acquire(contentHash, file.getSize(), blobKey -> {
+                try (InputStream in = file.getInputStream()) {
+                    s3StreamingUploader.upload(blobKey, file.getContentType(), in, file.getSize());
+                }
+            });
 
+            FileMetadata updated;
+            try {
+                updated = fileVersionService.addVersion(current, BlobStore.blobKey(contentHash), contentHash,
+                        file.getOriginalFilename(), file.getContentType(), file.getSize());
+            } catch (RuntimeException e) {
+                blobStore.release(contentHash);
+                throw e;
+            }
+            quotaService.recordBytes(userId, file.getSize());
+            reservation.commit();
+            fileMetadataCache.put(updated);
+            aclIndex.put(updated);
+            fileIndexService.indexRoles(updated);
+            derivativeService.submit(updated);
+            csvStatsService.submit(updated);
+            return updated;
+        }
+    }
+
+    /**
+     * Elenca le versioni di un file dalla più recente, con gli stessi permessi del download.
+     */
+    public List<FileVersionDto> listVersions(String fileId, String userId, List<String> userRoles, int limit, Long before) {
+        FileMetadata file = fileMetadataCache.findById(fileId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found"));
+        try {
+            checkDownloadAccess(file, userId, userRoles);
+        } catch (RuntimeException e) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, e.getMessage());
+        }
+        return fileVersionService.listVersions(file, limit, before);
+    }
+
+    /**
+     * Genera l'URL di download di una versione del file, con gli stessi permessi del download.
+     *
+     * @throws ResponseStatusException 404 se la versione non esiste o è stata eliminata dalla retention, 409 se il
+     *                                 suo contenuto è archiviato
+     */
+    public String getVersionDownloadUrl(String fileId, long version, String userId, List<String> userRoles) {
+        FileMetadata file = fileMetadataCache.findById(fileId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found"));
+        try {
+            checkDownloadAccess(file, userId, userRoles);
+        } catch (RuntimeException e) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, e.getMessage());
+        }
+        if (version == FileVersionService.currentVersion(file)) {
+            checkPresignable(file);
+            recordRead(file);
+            return generatePresignedUrl(file.getS3Key(), file.getFileName(), file.getFileType());
+        }
+        // Versions are not tiered themselves, but a deduplicated blob can be archived for the files sharing it
+        String s3Key = fileVersionService.getVersionS3Key(file, version);
+        storageTieringService.checkAvailable(s3Key);
+        return generatePresignedUrl(s3Key, file.getFileName(), file.getFileType());
+    }
+
+    /**
+     * Genera una chiave S3 univoca per un nuovo file.
+     */
+    public String newObjectKey(String fileName) {
+        return UUID.randomUUID().toString() + "_" + fileName;
+    }
+
+    /**
+     * Crea e salva su DynamoDB i metadati di un file già presente su S3 sotto la chiave indicata.
+     */
+    public FileMetadata saveMetadata(String key, String userId, String fileName, String fileType, long fileSize,
+                                     String visibility, List<String> allowedRoles, String contentHash) {
+        return saveMetadata(key, userId, fileName, fileType, fileSize, visibility, allowedRoles, contentHash, null);
+    }
+
+    private FileMetadata saveMetadata(String key, String userId, String fileName, String fileType, long fileSize,
+                                      String visibility, List<String> allowedRoles, String contentHash,
+                                      EncryptionService.Envelope envelope) {
         // Create FileMetadata object
         FileMetadata fileMetadata = FileMetadata.builder()
                 .fileId(UUID.randomUUID().toString())
                 .ownerId(userId)
-                .fileName(file.getOriginalFilename())
-                .fileType(file.getContentType())
-                .fileSize(file.getSize())
+                .fileName(fileName)
+                .fileType(fileType)
+                .fileSize(fileSize)
                 .uploadDate(java.time.Instant.now().toString()) // Use ISO 8601 format
                 .s3Key(key)
+                .contentHash(contentHash)
                 .visibility(visibility.toUpperCase()) // Default visibility, can be changed later
+                .encryptedKey(envelope != null ? envelope.encryptedKey() : null)
+                .encryptionChunkSize(envelope != null ? envelope.chunkSize() : null)
                 .build();
 
                 if("ROLE_BASED".equalsIgnoreCase(visibility)) {
                     fileMetadata.setAllowedRoles(allowedRoles != null ? allowedRoles : new ArrayList<>());
                 }
         // Save metadata to DynamoDB
-        return fileMetadataRepository.save(fileMetadata);
+        FileMetadata saved = fileMetadataRepository.save(fileMetadata);
+        fileIndexService.indexRoles(saved);
+        registerSaved(saved);
+        return saved;
+    }
+
+    /**
+     * Aggiorna gli indici in memoria, la cache e lo spazio usato dal proprietario dopo che un file è stato
+     * salvato su DynamoDB, insieme alle sue righe di FileRoleIndex.
+     */
+    void registerSaved(FileMetadata saved) {
+        quotaService.recordUpload(saved);
+        aclIndex.put(saved);
+        fileMetadataCache.put(saved);
+        contentIndexService.submit(saved);
+        derivativeService.submit(saved);
+        csvStatsService.submit(saved);
     }
 
     public String getDownloadUrl(String fileId, String userId, List<String> userRoles) {
-        FileMetadata file = fileMetadataRepository.findById(fileId)
+        FileMetadata file = fileMetadataCache.findById(fileId)
             .orElseThrow(() -> new RuntimeException("File not found"));
 
-        switch(file.getVisibility().toUpperCase()) {
-            case "PUBLIC":
-                break;
-            case "PRIVATE":
-                if(!file.getOwnerId().equals(userId)) {
-                    throw new RuntimeException("You are not the owner of this file");
-                }
-                break;
-            case "ROLE_BASED":
-                if(file.getAllowedRoles() == null || !file.getAllowedRoles().containsAll(userRoles)) {
-                    throw new RuntimeException("You do not have permission to download this file");
-                }
-                break;
-            default:
-                throw new RuntimeException("Invalid file visibility");
-        }
+        return getDownloadUrl(file, userId, userRoles);
+    }
+
+    /**
+     * Come getDownloadUrl, per un file di cui si hanno già i metadati.
+     */
+    public String getDownloadUrl(FileMetadata file, String userId, List<String> userRoles) {
+        checkDownloadAccess(file, userId, userRoles);
+        checkPresignable(file);
+        recordRead(file);
 
-        return generatePresignedUrl(file.getS3Key());
+        return generatePresignedUrl(file.getS3Key(), file.getFileName(), file.getFileType());
     }
 
-    public List<FileMetadataDto> getVisibleFiles(String userId, List<String> userRoles) {
-        Iterable<FileMetadata> allFiles = fileMetadataRepository.findAll();
+    /**
+     * Genera gli URL di download di più file con una sola richiesta: i metadati vengono letti con
+     * BatchGetItem, i permessi sono quelli di getDownloadUrl e gli URL vengono firmati in parallelo.
+     * Un file mancante o non accessibile produce un errore solo per quel file.
+     *
+     * @return per ogni fileId l'URL oppure l'errore, nell'ordine della richiesta
+     */
+    public Map<String, DownloadUrlResult> getDownloadUrls(List<String> fileIds, String userId, List<String> userRoles) {
+        List<String> ids = fileIds.stream().distinct().toList();
+        // Files not in the cache are loaded with BatchGetItem, 100 keys per request
+        Map<String, FileMetadata> files = fileMetadataCache.findAllById(ids);
 
-        return StreamSupport.stream(allFiles.spliterator(), false)
-                .filter(file -> {
-                    switch(file.getVisibility()) {
-                        case "PUBLIC":
-                            return true;
-                        case "PRIVATE":
-                            return file.getOwnerId().equals(userId);
-                        case "ROLE_BASED":
-                            return file.getAllowedRoles() != null && userRoles.stream().anyMatch(file.getAllowedRoles()::contains);
-                        default:
-                            return false;
+        // Signing is CPU bound (HMAC over the canonical request), spread it over the common pool
+        Map<String, DownloadUrlResult> results = ids.parallelStream()
+                .collect(Collectors.toConcurrentMap(Function.identity(), fileId -> {
+                    FileMetadata file = files.get(fileId);
+                    if (file == null) {
+                        return DownloadUrlResult.error(HttpStatus.NOT_FOUND.value(), "File not found");
+                    }
+                    try {
+                        checkDownloadAccess(file, userId, userRoles);
+                    } catch (RuntimeException e) {
+                        return DownloadUrlResult.error(HttpStatus.FORBIDDEN.value(), e.getMessage());
+                    }
+                    try {
+                        checkPresignable(file);
+                        recordRead(file);
+                    } catch (ResponseStatusException e) {
+                        return DownloadUrlResult.error(e.getStatusCode().value(), e.getReason());
+                    }
+                    try {
+                        return DownloadUrlResult.ok(generatePresignedUrl(file.getS3Key(), file.getFileName(), file.getFileType()));
+                    } catch (RuntimeException e) {
+                        return DownloadUrlResult.error(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
                     }
-                })
-                .map(file -> new FileMetadataDto(
-                    file.getFileId(),
-                    file.getFileName(),
-                    file.getFileType(),
-                    file.getFileSize(),
-                    file.getUploadDate(),
-                    file.getVisibility()
-                ))
-                .collect(Collectors.toList());
+                }));
+
+        Map<String, DownloadUrlResult> ordered = new LinkedHashMap<>();
+        ids.forEach(fileId -> ordered.put(fileId, results.get(fileId)));
+        return ordered;
+    }
+
+    /**
+     * Genera l'URL di una miniatura generata da DerivativeService, con gli stessi permessi del download.
+     * Le miniature non seguono il tiering dell'originale, quindi restano leggibili anche se è archiviato.
+     *
+     * @param name il nome della miniatura, per esempio thumb-512
+     * @throws ResponseStatusException 404 se la miniatura non è (ancora) pronta
+     */
+    public String getDerivativeUrl(String fileId, String name, String userId, List<String> userRoles) {
+        FileMetadata file = fileMetadataCache.findById(fileId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found"));
+        try {
+            checkDownloadAccess(file, userId, userRoles);
+        } catch (RuntimeException e) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, e.getMessage());
+        }
+        if (file.getDerivatives() == null || !file.getDerivatives().contains(name)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Derivative not ready");
+        }
+        return generatePresignedUrl(DerivativeService.derivedKey(file.getS3Key(), name), null, "image/jpeg");
+    }
+
+    /**
+     * Legge le statistiche per colonna di un CSV calcolate da CsvStatsService, con gli stessi permessi del download.
+     */
+    public CsvStatsDto getCsvStats(String fileId, String userId, List<String> userRoles) {
+        FileMetadata file = fileMetadataCache.findById(fileId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found"));
+        try {
+            checkDownloadAccess(file, userId, userRoles);
+        } catch (RuntimeException e) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, e.getMessage());
+        }
+        return csvStatsService.getStats(file);
+    }
+
+    void checkDownloadAccess(FileMetadata file, String userId, List<String> userRoles) {
+        // Same rule as the visible files listing
+        if (!AclIndex.canRead(file, userId, userRoles)) {
+            throw new RuntimeException(switch (String.valueOf(file.getVisibility()).toUpperCase()) {
+                case "PRIVATE" -> "You are not the owner of this file";
+                case "ROLE_BASED" -> "You do not have permission to download this file";
+                default -> "Invalid file visibility";
+            });
+        }
+    }
+
+    /**
+     * Un URL presigned scaricherebbe da S3 il testo cifrato: i file cifrati passano dal servizio, che li decifra.
+     *
+     * @throws ResponseStatusException 409 per un file cifrato
+     */
+    private void checkPresignable(FileMetadata file) {
+        if (EncryptionService.isEncrypted(file)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "File is encrypted, download it from /files/" + file.getFileId() + "/content");
+        }
+    }
+
+    /**
+     * Da chiamare prima di leggere il contenuto di un file, dopo il controllo dei permessi: verifica che non sia
+     * archiviato e conta la lettura per il tiering.
+     *
+     * @throws ResponseStatusException 409 se il file va prima ripristinato, vedi {@link #restoreFile}
+     */
+    void recordRead(FileMetadata file) {
+        storageTieringService.checkAvailable(file);
+        accessTracker.record(file);
+    }
+
+    /**
+     * Chiede il ripristino di un file archiviato da StorageTieringService, con gli stessi permessi del download.
+     *
+     * @return false se il file è già leggibile, true se il ripristino è stato avviato o è in corso
+     */
+    public boolean restoreFile(String fileId, String userId, List<String> userRoles) {
+        FileMetadata file = fileMetadataCache.findById(fileId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found"));
+        try {
+            checkDownloadAccess(file, userId, userRoles);
+        } catch (RuntimeException e) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, e.getMessage());
+        }
+        return storageTieringService.restore(file);
+    }
+
+    /**
+     * Cancella un file. Il contenuto su S3 viene rimosso solo quando nessun altro file lo referenzia.
+     *
+     * @throws ResponseStatusException 409 se il file riceve una nuova versione durante la cancellazione
+     */
+    public void deleteFile(String fileId, String userId) {
+        FileMetadata current = fileMetadataRepository.findById(fileId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found"));
+        if (!current.getOwnerId().equals(userId)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "You are not the owner of this file");
+        }
+
+        // Content, quota and history are released from the row actually deleted
+        FileMetadata file = fileVersionService.deleteMetadata(current);
+        quotaService.recordDelete(file);
+        fileMetadataCache.invalidate(fileId);
+        aclIndex.remove(fileId);
+        contentIndexService.remove(fileId);
+        fileIndexService.removeRoles(file);
+        if (file.getContentHash() != null) {
+            blobStore.release(file.getContentHash());
+        } else {
+            s3Client.deleteObject(DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(file.getS3Key())
+                .build());
+            diskObjectCache.invalidate(file.getS3Key());
+            if (DerivativeService.isSupported(file)) {
+                derivativeService.delete(file.getS3Key());
+            }
+            if (CsvStatsService.isCsv(file)) {
+                csvStatsService.delete(file.getS3Key());
+            }
+        }
+        fileVersionService.deleteHistory(file);
+    }
+
+    /**
+     * Invia al sink i file visibili all'utente, dal più recente, con query mirate sugli indici invece di una scansione.
+     *
+     * @return il token per la pagina successiva, null se non ci sono altri file
+     */
+    public String streamVisibleFiles(String userId, List<String> userRoles, Integer limit, VisibleFilesCursor cursor,
+                                     FileIndexService.VisibleFileSink sink) throws IOException {
+        return fileIndexService.streamVisibleFiles(userId, userRoles, limit, cursor, sink);
+    }
+
+    public VisibleFilesCursor openVisibleFilesCursor(String nextToken, String userId) {
+        return fileIndexService.openCursor(nextToken, userId);
     }
 
     /**
      * Genera un URL presigned per il download di un file da S3.
      * Un URL presigned è un URL temporaneo che permette di scaricare un file senza necessità di credenziali AWS.
+     * Gli URL già firmati vengono riusati finché resta almeno {@code download.url.cache.min-remaining} della loro validità;
+     * il controllo dei permessi avviene prima, in getDownloadUrl.
      * 
      * @param keyName Il nome/chiave del file in S3
+     * @param fileName Il nome con cui il browser salva il file, la chiave dei blob condivisi è solo un hash
+     * @param contentType Il content type restituito da S3, un blob condiviso può avere content type diversi
      * @return L'URL presigned come stringa
      */
-    private String generatePresignedUrl(String keyName) {
-        // Crea un S3Presigner usando la stessa regione e endpoint del client S3 esistente
-        S3Presigner presigner = S3Presigner.builder()
-            .region(s3Client.serviceClientConfiguration().region())
-            .endpointOverride(URI.create(endpoint))
+    private String generatePresignedUrl(String keyName, String fileName, String contentType) {
+        // The signed response headers are part of the URL, so they are part of the key too
+        String cacheKey = keyName + "\n" + fileName + "\n" + contentType;
+        return downloadUrlCache.get(cacheKey, key -> {
+            // Crea una richiesta per ottenere l'oggetto da S3
+            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucketName)    // Il nome del bucket dove è salvato il file
+                .key(keyName)         // Il nome/chiave del file in S3
+                .responseContentDisposition(fileName != null
+                    ? ContentDisposition.attachment().filename(fileName, StandardCharsets.UTF_8).build().toString()
+                    : null)
+                .responseContentType(contentType)
+                .build();
+
+            String presignedUrl = s3Presigner.presignGetObject(builder -> builder
+                .getObjectRequest(getObjectRequest)    // Usa la richiesta creata sopra
+                .signatureDuration(downloadUrlTtl)  // L'URL sarà valido per download.url.ttl
+                .build())
+                .url()
+                .toString();
+
+            return toClientUrl(presignedUrl);
+        });
+    }
+
+    /**
+     * Genera un URL presigned con cui il client carica un file direttamente su S3 con una PUT.
+     * Se la dimensione è nota viene firmata anche la Content-Length, così S3 rifiuta upload di dimensione diversa.
+     *
+     * @param keyName La chiave S3 di destinazione
+     * @param contentType Il content type che il client deve inviare
+     * @param contentLength La dimensione del file in byte, opzionale
+     * @param validity La durata di validità dell'URL
+     */
+    public String generatePresignedPutUrl(String keyName, String contentType, Long contentLength, Duration validity) {
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+            .bucket(bucketName)
+            .key(keyName)
+            .contentType(contentType)
+            .contentLength(contentLength)
             .build();
 
-        // Crea una richiesta per ottenere l'oggetto da S3
-        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-            .bucket(bucketName)    // Il nome del bucket dove è salvato il file
-            .key(keyName)         // Il nome/chiave del file in S3
+        String presignedUrl = s3Presigner.presignPutObject(builder -> builder
+            .putObjectRequest(putObjectRequest)
+            .signatureDuration(validity)
+            .build())
+            .url()
+            .toString();
+
+        return toClientUrl(presignedUrl);
+    }
+
+    /**
+     * Genera un URL presigned con cui il client carica direttamente su S3 una parte di una multipart upload.
+     */
+    public String generatePresignedUploadPartUrl(String keyName, String s3UploadId, int partNumber, Duration validity) {
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+            .bucket(bucketName)
+            .key(keyName)
+            .uploadId(s3UploadId)
+            .partNumber(partNumber)
             .build();
 
-        // Genera l'URL presigned con una validità di 5 minuti
-        String presignedUrl = presigner.presignGetObject(builder -> builder
-            .getObjectRequest(getObjectRequest)    // Usa la richiesta creata sopra
-            .signatureDuration(Duration.ofMinutes(5))  // L'URL sarà valido per 5 minuti
+        String presignedUrl = s3Presigner.presignUploadPart(builder -> builder
+            .uploadPartRequest(uploadPartRequest)
+            .signatureDuration(validity)
             .build())
             .url()
             .toString();
 
-        // Sostituisci l'host con localhost e aggiungi il bucket nel path
-        return presignedUrl.replace("localstack", "localhost")
-                         .replace("/" + keyName, "/" + bucketName + "/" + keyName);
+        return toClientUrl(presignedUrl);
+    }
+
+    private String toClientUrl(String presignedUrl) {
+        // Sostituisci l'host con localhost, il bucket è già nel path
+        return presignedUrl.replace("localstack", "localhost");
     }
 }
@@ -0,0 +1,509 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
+import com.github.giuseppemarletta.file_service.dto.FileVersionDto;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+
+/**
+ * Versioni di un file: caricare di nuovo un file con POST /files/{fileId}/versions ne crea una nuova versione
+ * con lo stesso fileId, invece di un nuovo file.
+ *
+ * La riga di FileMetadata descrive sempre la versione corrente (chiave S3, dimensione, hash), quindi leggere
+ * l'ultima versione resta una GetItem per fileId, come per i file mai versionati. Ogni versione, corrente
+ * compresa, è una riga immutabile della tabella FileVersion con partition key fileId e sort key il numero di
+ * versione a dieci cifre: la cronologia è una Query sulla partizione, dalla più recente. Una nuova versione
+ * scrive la sua riga e aggiorna FileMetadata in una sola transazione, condizionata sul numero di versione
+ * letto, così due upload concorrenti non possono creare la stessa versione. Un file mai versionato non ha
+ * righe: la versione 1 viene scritta dai suoi metadati al primo nuovo upload.
+ *
+ * Ogni riga di FileVersion possiede un riferimento al suo blob (vedi BlobStore), rilasciato quando la riga
+ * viene eliminata; la versione corrente lo condivide con FileMetadata. Ogni versions.retention.interval le
+ * versioni non correnti oltre versions.retention.max-versions o più vecchie di versions.retention.max-age
+ * vengono eliminate, versions.retention.batch-size alla volta.
+ */
+@Service
+@RequiredArgsConstructor
+public class FileVersionService {
+
+    public static final String TABLE_NAME = "FileVersion";
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final String VERSION_KEY = "versionKey";
+
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final S3Client s3Client;
+    private final ParallelScanner parallelScanner;
+    private final BlobStore blobStore;
+    private final QuotaService quotaService;
+    private final DiskObjectCache diskObjectCache;
+    private final DerivativeService derivativeService;
+    private final CsvStatsService csvStatsService;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${versions.retention.enabled:true}")
+    private boolean retentionEnabled;
+
+    // Versions kept per file, the current one included; 0 to keep them all
+    @Value("${versions.retention.max-versions:10}")
+    private int maxVersions;
+
+    // Older non-current versions are pruned; 0 to keep them regardless of age
+    @Value("${versions.retention.max-age:0d}")
+    private Duration maxAge;
+
+    @Value("${versions.retention.batch-size:25}")
+    private int batchSize;
+
+    // Pause between two batches, so that pruning does not compete with the uploads for write capacity
+    @Value("${versions.retention.batch-pause:PT0.2S}")
+    private Duration batchPause;
+
+    private final AtomicBoolean pruning = new AtomicBoolean();
+    private DynamoDBMapper dynamoDBMapper;
+    private ExecutorService pruner;
+
+    @PostConstruct
+    void init() {
+        dynamoDBMapper = new DynamoDBMapper(amazonDynamoDB);
+        pruner = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "version-retention");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        // The next run scans again for what is left to prune
+        pruner.shutdownNow();
+    }
+
+    static String versionKey(long version) {
+        return String.format("%010d", version);
+    }
+
+    public static long currentVersion(FileMetadata file) {
+        return file.getVersion() != null ? file.getVersion() : 1;
+    }
+
+    /**
+     * Registra come nuova versione corrente di file un contenuto già salvato su S3 (di solito un blob già
+     * acquisito), nella stessa transazione che aggiorna FileMetadata.
+     *
+     * @return i metadati della nuova versione corrente
+     * @throws ResponseStatusException 409 se nel frattempo il file ha ricevuto un'altra versione o è stato cancellato
+     */
+    public FileMetadata addVersion(FileMetadata file, String s3Key, String contentHash, String fileName, String fileType,
+                                   long fileSize) {
+        long previous = currentVersion(file);
+        FileMetadata updated = file.toBuilder()
+                .s3Key(s3Key)
+                .contentHash(contentHash)
+                .fileName(fileName != null ? fileName : file.getFileName())
+                .fileType(fileType)
+                .fileSize(fileSize)
+                .version(previous + 1)
+                // Properties of the previous content
+                .derivatives(null)
+                .statsComputedAt(null)
+                .storageClass(null)
+                .build();
+        String now = Instant.now().toString();
+
+        List<TransactWriteItem> writes = new ArrayList<>();
+        if (file.getVersion() == null) {
+            // First re-upload: version 1 is recorded from the metadata, it takes over their blob reference
+            writes.add(new TransactWriteItem().withPut(new Put()
+                    .withTableName(TABLE_NAME)
+                    .withItem(versionItem(file, 1, file.getUploadDate()))
+                    .withConditionExpression("attribute_not_exists(fileId)")));
+        }
+        writes.add(new TransactWriteItem().withPut(new Put()
+                .withTableName(TABLE_NAME)
+                .withItem(versionItem(updated, updated.getVersion(), now))
+                .withConditionExpression("attribute_not_exists(fileId)")));
+
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":s3Key", new AttributeValue(s3Key));
+        values.put(":fileName", new AttributeValue(updated.getFileName()));
+        values.put(":fileSize", new AttributeValue().withN(Long.toString(fileSize)));
+        values.put(":version", new AttributeValue().withN(Long.toString(updated.getVersion())));
+        StringBuilder set = new StringBuilder("SET s3Key = :s3Key, fileName = :fileName, fileSize = :fileSize, #version = :version");
+        StringBuilder remove = new StringBuilder(" REMOVE derivatives, statsComputedAt, storageClass");
+        if (contentHash != null) {
+            set.append(", contentHash = :contentHash");
+            values.put(":contentHash", new AttributeValue(contentHash));
+        } else {
+            remove.append(", contentHash");
+        }
+        if (fileType != null) {
+            set.append(", fileType = :fileType");
+            values.put(":fileType", new AttributeValue(fileType));
+        } else {
+            remove.append(", fileType");
+        }
+        String condition;
+        if (file.getVersion() == null) {
+            condition = "attribute_exists(fileId) AND attribute_not_exists(#version)";
+        } else {
+            condition = "#version = :previous";
+            values.put(":previous", new AttributeValue().withN(Long.toString(previous)));
+        }
+        writes.add(new TransactWriteItem().withUpdate(new Update()
+                .withTableName(FILE_METADATA_TABLE)
+                .withKey(Map.of("fileId", new AttributeValue(file.getFileId())))
+                .withUpdateExpression(set.toString() + remove)
+                .withConditionExpression(condition)
+                .withExpressionAttributeNames(Map.of("#version", "version")) // Reserved word
+                .withExpressionAttributeValues(values)));
+
+        try {
+            amazonDynamoDB.transactWriteItems(new TransactWriteItemsRequest().withTransactItems(writes));
+        } catch (TransactionCanceledException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "File was changed or deleted in the meantime, retry");
+        }
+        return updated;
+    }
+
+    /**
+     * Elenca le versioni di un file dalla più recente, con una Query sulla sua partizione.
+     *
+     * @param before se non null, solo le versioni con numero minore, per la pagina successiva
+     */
+    public List<FileVersionDto> listVersions(FileMetadata file, int limit, Long before) {
+        long current = currentVersion(file);
+        if (file.getVersion() == null) {
+            // Never re-uploaded: the metadata are the only version
+            return before != null && before <= 1 ? List.of() : List.of(new FileVersionDto(1, file.getFileName(),
+                    file.getFileType(), file.getFileSize(), file.getContentHash(), file.getUploadDate(), true));
+        }
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":fileId", new AttributeValue(file.getFileId()));
+        String keyCondition = "fileId = :fileId";
+        if (before != null) {
+            keyCondition += " AND " + VERSION_KEY + " < :before";
+            values.put(":before", new AttributeValue(versionKey(before)));
+        }
+        QueryResult result = amazonDynamoDB.query(new QueryRequest()
+                .withTableName(TABLE_NAME)
+                .withKeyConditionExpression(keyCondition)
+                .withExpressionAttributeValues(values)
+                .withScanIndexForward(false) // Newest first
+                .withLimit(limit));
+        return result.getItems().stream().map(item -> toDto(item, current)).toList();
+    }
+
+    /**
+     * La chiave S3 del contenuto di una versione, per scaricarla.
+     *
+     * @throws ResponseStatusException 404 se la versione non esiste o è stata eliminata dalla retention
+     */
+    public String getVersionS3Key(FileMetadata file, long version) {
+        if (version == currentVersion(file)) {
+            return file.getS3Key();
+        }
+        Map<String, AttributeValue> item = file.getVersion() == null ? null : amazonDynamoDB.getItem(new GetItemRequest()
+                .withTableName(TABLE_NAME)
+                .withKey(versionKeyOf(file.getFileId(), version))
+                .withProjectionExpression("s3Key")).getItem();
+        if (item == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Version not found");
+        }
+        return item.get("s3Key").getS();
+    }
+
+    /**
+     * Cancella la riga di FileMetadata di un file solo se descrive ancora la versione letta: una nuova
+     * versione registrata nel frattempo non viene cancellata con il contenuto e la cronologia di quella vecchia.
+     *
+     * @return i metadati cancellati, come erano su DynamoDB al momento della cancellazione
+     * @throws ResponseStatusException 409 se nel frattempo il file ha ricevuto un'altra versione o è stato cancellato
+     */
+    public FileMetadata deleteMetadata(FileMetadata file) {
+        Map<String, AttributeValue> values = null;
+        String condition;
+        if (file.getVersion() == null) {
+            condition = "attribute_exists(fileId) AND attribute_not_exists(#version)";
+        } else {
+            condition = "#version = :version";
+            values = Map.of(":version", new AttributeValue().withN(Long.toString(file.getVersion())));
+        }
+        DeleteItemResult result;
+        try {
+            result = amazonDynamoDB.deleteItem(new DeleteItemRequest()
+                    .withTableName(FILE_METADATA_TABLE)
+                    .withKey(Map.of("fileId", new AttributeValue(file.getFileId())))
+                    .withConditionExpression(condition)
+                    .withExpressionAttributeNames(Map.of("#version", "version"))
+                    .withExpressionAttributeValues(values)
+                    .withReturnValues(ReturnValue.ALL_OLD));
+        } catch (ConditionalCheckFailedException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "File was changed or deleted in the meantime, retry");
+        }
+        return dynamoDBMapper.marshallIntoObject(FileMetadata.class, result.getAttributes());
+    }
+
+    /**
+     * Elimina le versioni di un file cancellato. Il riferimento al contenuto di file è già stato rilasciato con
+     * i metadati, quello delle altre righe viene rilasciato qui. La partizione viene letta anche se file non ha
+     * versioni: i metadati di una cancellazione in blocco possono precedere di poco una nuova versione.
+     */
+    public void deleteHistory(FileMetadata file) {
+        // Only the row of the version released with the metadata is skipped, whatever is current now
+        String released = versionKey(currentVersion(file));
+        Map<String, AttributeValue> lastKey = null;
+        do {
+            QueryResult result = amazonDynamoDB.query(new QueryRequest()
+                    .withTableName(TABLE_NAME)
+                    .withKeyConditionExpression("fileId = :fileId")
+                    .withExpressionAttributeValues(Map.of(":fileId", new AttributeValue(file.getFileId())))
+                    .withProjectionExpression("fileId, " + VERSION_KEY)
+                    .withConsistentRead(true)
+                    .withExclusiveStartKey(lastKey));
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                deleteVersion(file.getOwnerId(), item, !item.get(VERSION_KEY).getS().equals(released));
+            }
+            lastKey = result.getLastEvaluatedKey();
+        } while (lastKey != null);
+    }
+
+    /**
+     * Applica la retention: scansiona i file con più di una versione ed elimina le versioni non correnti
+     * oltre il numero o l'età massima, a gruppi di versions.retention.batch-size con una pausa tra i gruppi,
+     * in un thread dedicato per non occupare lo scheduler con la scansione e le pause.
+     */
+    @Scheduled(initialDelayString = "${versions.retention.interval:PT1H}", fixedDelayString = "${versions.retention.interval:PT1H}")
+    public void prune() {
+        if (!retentionEnabled || (maxVersions <= 0 && maxAge.isZero()) || !pruning.compareAndSet(false, true)) {
+            return;
+        }
+        pruner.execute(() -> {
+            try {
+                pruneExpired();
+            } finally {
+                pruning.set(false);
+            }
+        });
+    }
+
+    private void pruneExpired() {
+        String ageCutoff = maxAge.isZero() ? null : Instant.now().minus(maxAge).toString();
+        List<Map<String, AttributeValue>> versioned = new ArrayList<>();
+        try {
+            parallelScanner.run(ParallelScanner.ScanJob.builder()
+                    .tableName(FILE_METADATA_TABLE)
+                    .projectionExpression("fileId, ownerId, #version")
+                    .filterExpression("#version > :one")
+                    .expressionAttributeNames(Map.of("#version", "version"))
+                    .expressionAttributeValues(Map.of(":one", new AttributeValue().withN("1")))
+                    .build(), (segment, items) -> {
+                        synchronized (versioned) {
+                            versioned.addAll(items);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            System.out.println("Version retention scan failed: " + e.getMessage());
+            return;
+        }
+
+        List<Expired> batch = new ArrayList<>();
+        int pruned = 0;
+        for (Map<String, AttributeValue> file : versioned) {
+            try {
+                for (Expired expired : expired(file, ageCutoff)) {
+                    batch.add(expired);
+                    if (batch.size() >= batchSize) {
+                        pruned += pruneBatch(batch);
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Version retention failed for " + file.get("fileId").getS() + ": " + e.getMessage());
+            }
+        }
+        pruned += pruneBatch(batch);
+        if (pruned > 0) {
+            System.out.println("Version retention pruned " + pruned + " versions of " + versioned.size() + " versioned files.");
+        }
+    }
+
+    // Non-current versions of a file beyond the limits, oldest first
+    private List<Expired> expired(Map<String, AttributeValue> file, String ageCutoff) {
+        String fileId = file.get("fileId").getS();
+        long current = Long.parseLong(file.get("version").getN());
+        List<Expired> expired = new ArrayList<>();
+        Map<String, AttributeValue> lastKey = null;
+        do {
+            // Sorted range query over the versions before the current one
+            QueryResult result = amazonDynamoDB.query(new QueryRequest()
+                    .withTableName(TABLE_NAME)
+                    .withKeyConditionExpression("fileId = :fileId AND " + VERSION_KEY + " < :current")
+                    .withExpressionAttributeValues(Map.of(
+                            ":fileId", new AttributeValue(fileId),
+                            ":current", new AttributeValue(versionKey(current))))
+                    .withProjectionExpression("fileId, " + VERSION_KEY + ", #version, uploadDate")
+                    .withExpressionAttributeNames(Map.of("#version", "version"))
+                    .withExclusiveStartKey(lastKey));
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                long version = Long.parseLong(item.get("version").getN());
+                boolean tooMany = maxVersions > 0 && version <= current - maxVersions;
+                boolean tooOld = ageCutoff != null && item.get("uploadDate").getS().compareTo(ageCutoff) < 0;
+                if (tooMany || tooOld) {
+                    expired.add(new Expired(file.get("ownerId").getS(), item));
+                }
+            }
+            lastKey = result.getLastEvaluatedKey();
+        } while (lastKey != null);
+        return expired;
+    }
+
+    private int pruneBatch(List<Expired> batch) {
+        int pruned = 0;
+        for (Expired expired : batch) {
+            try {
+                if (deleteVersion(expired.ownerId, expired.key, true)) {
+                    pruned++;
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Failed to prune version " + expired.key + ": " + e.getMessage());
+            }
+        }
+        if (!batch.isEmpty() && !batchPause.isZero()) {
+            try {
+                Thread.sleep(batchPause.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        batch.clear();
+        return pruned;
+    }
+
+    /**
+     * Elimina una riga di FileVersion e, con release, il contenuto che referenzia. La DeleteItem restituisce
+     * la riga eliminata, quindi il riferimento viene rilasciato una sola volta anche se la retention e la
+     * cancellazione del file eliminano la stessa versione insieme.
+     *
+     * @return false se la riga era già stata eliminata
+     */
+    private boolean deleteVersion(String ownerId, Map<String, AttributeValue> item, boolean release) {
+        Map<String, AttributeValue> deleted = amazonDynamoDB.deleteItem(new DeleteItemRequest()
+                .withTableName(TABLE_NAME)
+                .withKey(versionKeyOf(item.get("fileId").getS(), item.get(VERSION_KEY).getS()))
+                .withReturnValues(ReturnValue.ALL_OLD)).getAttributes();
+        if (deleted == null || deleted.isEmpty()) {
+            return false;
+        }
+        if (!release) {
+            return true;
+        }
+        if (deleted.containsKey("contentHash")) {
+            blobStore.release(deleted.get("contentHash").getS());
+        } else {
+            // Version 1 of a file uploaded straight to S3, not a shared blob
+            String s3Key = deleted.get("s3Key").getS();
+            s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucketName).key(s3Key).build());
+            diskObjectCache.invalidate(s3Key);
+            FileMetadata file = FileMetadata.builder()
+                    .fileName(stringValue(deleted.get("fileName")))
+                    .fileType(stringValue(deleted.get("fileType")))
+                    .build();
+            if (DerivativeService.isSupported(file)) {
+                derivativeService.delete(s3Key);
+            }
+            if (CsvStatsService.isCsv(file)) {
+                csvStatsService.delete(s3Key);
+            }
+        }
+        if (deleted.containsKey("fileSize")) {
+            quotaService.recordBytes(ownerId, -Long.parseLong(deleted.get("fileSize").getN()));
+        }
+        return true;
+    }
+
+    private static Map<String, AttributeValue> versionItem(FileMetadata file, long version, String uploadDate) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("fileId", new AttributeValue(file.getFileId()));
+        item.put(VERSION_KEY, new AttributeValue(versionKey(version)));
+        item.put("version", new AttributeValue().withN(Long.toString(version)));
+        item.put("s3Key", new AttributeValue(file.getS3Key()));
+        item.put("uploadDate", new AttributeValue(uploadDate));
+        if (file.getContentHash() != null) {
+            item.put("contentHash", new AttributeValue(file.getContentHash()));
+        }
+        if (file.getFileName() != null) {
+            item.put("fileName", new AttributeValue(file.getFileName()));
+        }
+        if (file.getFileType() != null) {
+            item.put("fileType", new AttributeValue(file.getFileType()));
+        }
+        if (file.getFileSize() != null) {
+            item.put("fileSize", new AttributeValue().withN(Long.toString(file.getFileSize())));
+        }
+        return item;
+    }
+
+    private static Map<String, AttributeValue> versionKeyOf(String fileId, long version) {
+        return versionKeyOf(fileId, versionKey(version));
+    }
+
+    private static Map<String, AttributeValue> versionKeyOf(String fileId, String versionKey) {
+        return Map.of("fileId", new AttributeValue(fileId), VERSION_KEY, new AttributeValue(versionKey));
+    }
+
+    private static FileVersionDto toDto(Map<String, AttributeValue> item, long current) {
+        long version = Long.parseLong(item.get("version").getN());
+        return new FileVersionDto(version,
+                stringValue(item.get("fileName")),
+                stringValue(item.get("fileType")),
+                item.containsKey("fileSize") ? Long.valueOf(item.get("fileSize").getN()) : null,
+                stringValue(item.get("contentHash")),
+                stringValue(item.get("uploadDate")),
+                version == current);
+    }
+
+    private static String stringValue(AttributeValue value) {
+        return value != null ? value.getS() : null;
+    }
+
+    private record Expired(String ownerId, Map<String, AttributeValue> key) {
+    }
+}
@@ -0,0 +1,380 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.giuseppemarletta.file_service.dto.StorageUsageDto;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Spazio occupato da ogni utente (byte e numero di file) e quota massima, salvati nella tabella UserQuota
+ * con una riga per ownerId.
+ *
+ * Upload e cancellazioni non scrivono su DynamoDB: aggiornano contatori in memoria (LongAdder, che
+ * distribuisce gli incrementi concorrenti su celle diverse) e un job li riversa periodicamente sulla riga
+ * dell'utente con un UpdateItem ADD, atomico rispetto alle altre istanze. Un utente che carica molti file
+ * insieme non fa quindi una scrittura sulla stessa riga per ogni file.
+ *
+ * Un upload riserva la sua dimensione prima di inviare il primo byte a S3 e viene rifiutato con 413 se
+ * l'uso salvato, più le variazioni non ancora riversate e gli upload in corso su questa istanza, supera
+ * la quota. L'uso delle altre istanze si vede dopo il loro flush e la rilettura della riga: con più repliche
+ * la quota può essere superata di quanto caricato nel frattempo.
+ *
+ * Si contano i byte logici dei file: due file con lo stesso contenuto deduplicato valgono due volte.
+ */
+@Service
+@RequiredArgsConstructor
+public class QuotaService {
+
+    public static final String QUOTA_TABLE = "UserQuota";
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    // Row written once by the instance that runs the backfill, see backfillIfEmpty
+    private static final String BACKFILL_MARKER = "#backfill";
+
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final ParallelScanner parallelScanner;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${quota.enabled:true}")
+    private boolean enabled;
+
+    @Value("${quota.max-bytes-per-user:10GB}")
+    private DataSize defaultMaxBytes;
+
+    // 0 for no limit on the number of files
+    @Value("${quota.max-files-per-user:0}")
+    private long defaultMaxFiles;
+
+    // How long the usage read from DynamoDB is trusted before reading it again
+    @Value("${quota.refresh-interval:PT1M}")
+    private Duration refreshInterval;
+
+    @Value("${quota.backfill.enabled:true}")
+    private boolean backfillEnabled;
+
+    private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+    // Accounts dropped by the last flush, drained once more in case an update raced with the removal
+    private List<Account> retired = new ArrayList<>();
+    private volatile boolean backfillChecked;
+    private Counter rejected;
+
+    @PostConstruct
+    void init() {
+        rejected = Counter.builder("file.quota.rejections").register(meterRegistry);
+    }
+
+    /**
+     * Riserva lo spazio per un upload che sta per iniziare. La riserva va chiusa quando l'upload termina,
+     * riuscito o no: se riesce, a quel punto il file è già stato contato da {@link #recordUpload}.
+     *
+     * @throws ResponseStatusException 413 se il file non rientra nella quota dell'utente
+     */
+    public Reservation reserve(String ownerId, long bytes) {
+        return reserve(ownerId, bytes, 1);
+    }
+
+    /**
+     * Come reserve, con il numero di file che l'upload aggiunge: 0 per una nuova versione di un file esistente.
+     */
+    public Reservation reserve(String ownerId, long bytes, int files) {
+        Account account = account(ownerId);
+        if (enabled) {
+            Usage stored = stored(account);
+            long maxBytes = stored.maxBytes() != null ? stored.maxBytes() : defaultMaxBytes.toBytes();
+            long maxFiles = stored.maxFiles() != null ? stored.maxFiles() : defaultMaxFiles;
+            if (files > 0 && maxFiles > 0 && stored.files() + account.files.sum() + account.reservedFiles.get() + files > maxFiles) {
+                throw quotaExceeded("Storage quota exceeded: at most " + maxFiles + " files");
+            }
+            // Check and reserve in one step, so concurrent uploads cannot all fit the same free space
+            long used = stored.bytes() + account.bytes.sum();
+            long reserved;
+            do {
+                reserved = account.reservedBytes.get();
+                if (used + reserved + bytes > maxBytes) {
+                    throw quotaExceeded("Storage quota exceeded: " + Math.max(0, maxBytes - used - reserved)
+                            + " of " + maxBytes + " bytes available");
+                }
+            } while (!account.reservedBytes.compareAndSet(reserved, reserved + bytes));
+        } else {
+            account.reservedBytes.addAndGet(bytes);
+        }
+        account.reservedFiles.addAndGet(files);
+        return new Reservation(account, bytes, files);
+    }
+
+    /**
+     * Verifica che un file della dimensione data rientri ora nella quota, senza riservare lo spazio: per
+     * gli upload i cui byte non passano dal servizio o che durano più di una richiesta.
+     */
+    public void check(String ownerId, long bytes) {
+        reserve(ownerId, bytes).close();
+    }
+
+    public void recordUpload(FileMetadata file) {
+        Account account = account(file.getOwnerId());
+        account.bytes.add(size(file));
+        account.files.increment();
+    }
+
+    public void recordDelete(FileMetadata file) {
+        Account account = account(file.getOwnerId());
+        account.bytes.add(-size(file));
+        account.files.decrement();
+    }
+
+    /**
+     * Conta byte che non cambiano il numero di file: versioni aggiunte (positivi) o eliminate (negativi).
+     */
+    public void recordBytes(String ownerId, long bytes) {
+        account(ownerId).bytes.add(bytes);
+    }
+
+    public StorageUsageDto getUsage(String ownerId) {
+        Account account = account(ownerId);
+        Usage stored = stored(account);
+        long maxFiles = stored.maxFiles() != null ? stored.maxFiles() : defaultMaxFiles;
+        return new StorageUsageDto(ownerId,
+                stored.bytes() + account.bytes.sum(),
+                stored.files() + account.files.sum(),
+                account.reservedBytes.get(),
+                stored.maxBytes() != null ? stored.maxBytes() : defaultMaxBytes.toBytes(),
+                maxFiles > 0 ? maxFiles : null);
+    }
+
+    /**
+     * Riversa su DynamoDB le variazioni accumulate, una UpdateItem ADD per utente, e aggiorna l'uso
+     * salvato con i totali restituiti. Se la scrittura fallisce le variazioni tornano nei contatori.
+     */
+    @Scheduled(initialDelayString = "${quota.flush-interval:PT5S}", fixedDelayString = "${quota.flush-interval:PT5S}")
+    public synchronized void flush() {
+        if (!backfillChecked) {
+            backfillChecked = true;
+            backfillIfEmpty();
+        }
+        List<Account> drained = retired;
+        retired = new ArrayList<>();
+        drained.forEach(this::flush);
+
+        long idleBefore = System.nanoTime() - 2 * refreshInterval.toNanos();
+        for (Account account : accounts.values()) {
+            flush(account);
+            if (account.lastUsed < idleBefore && account.reservedBytes.get() == 0 && account.reservedFiles.get() == 0
+                    && accounts.remove(account.ownerId, account)) {
+                retired.add(account);
+            }
+        }
+    }
+
+    @PreDestroy
+    void flushOnShutdown() {
+        flush();
+        retired.forEach(this::flush);
+    }
+
+    private void flush(Account account) {
+        long bytes = account.bytes.sumThenReset();
+        long files = account.files.sumThenReset();
+        if (bytes == 0 && files == 0) {
+            return;
+        }
+        try {
+            Map<String, AttributeValue> totals = add(account.ownerId, bytes, files);
+            Usage stored = account.stored;
+            account.stored = new Usage(number(totals.get("usedBytes")), number(totals.get("fileCount")),
+                    stored != null ? stored.maxBytes() : null, stored != null ? stored.maxFiles() : null, System.nanoTime());
+        } catch (RuntimeException e) {
+            account.bytes.add(bytes);
+            account.files.add(files);
+            System.out.println("Failed to flush the storage usage of " + account.ownerId + ": " + e.getMessage());
+        }
+    }
+
+    private Map<String, AttributeValue> add(String ownerId, long bytes, long files) {
+        return amazonDynamoDB.updateItem(new UpdateItemRequest()
+                .withTableName(QUOTA_TABLE)
+                .withKey(Map.of("ownerId", new AttributeValue(ownerId)))
+                .withUpdateExpression("ADD usedBytes :bytes, fileCount :files")
+                .withExpressionAttributeValues(Map.of(
+                        ":bytes", new AttributeValue().withN(Long.toString(bytes)),
+                        ":files", new AttributeValue().withN(Long.toString(files))))
+                .withReturnValues(ReturnValue.UPDATED_NEW))
+                .getAttributes();
+    }
+
+    /**
+     * Se UserQuota è ancora vuota, la riempie con l'uso dei file già presenti in FileMetadata. Solo
+     * l'istanza che riesce a scrivere la riga marker esegue la scansione; i file caricati mentre la
+     * scansione è in corso possono essere contati due volte.
+     */
+    private void backfillIfEmpty() {
+        if (!backfillEnabled) {
+            return;
+        }
+        try {
+            amazonDynamoDB.putItem(new PutItemRequest()
+                    .withTableName(QUOTA_TABLE)
+                    .withItem(Map.of("ownerId", new AttributeValue(BACKFILL_MARKER),
+                            "startedAt", new AttributeValue(Instant.now().toString())))
+                    .withConditionExpression("attribute_not_exists(ownerId)"));
+        } catch (ConditionalCheckFailedException e) {
+            return; // Done before, or running on another instance
+        } catch (RuntimeException e) {
+            System.out.println("Storage usage backfill skipped: " + e.getMessage());
+            return;
+        }
+
+        Map<String, long[]> usage = new HashMap<>();
+        try {
+            ParallelScanner.ScanReport report = parallelScanner.run(ParallelScanner.ScanJob.builder()
+                    .tableName(FILE_METADATA_TABLE)
+                    .projectionExpression("ownerId, fileSize")
+                    .build(), (segment, items) -> {
+                        synchronized (usage) {
+                            for (Map<String, AttributeValue> item : items) {
+                                if (item.get("ownerId") == null) {
+                                    continue;
+                                }
+                                long[] totals = usage.computeIfAbsent(item.get("ownerId").getS(), owner -> new long[2]);
+                                totals[0] += number(item.get("fileSize"));
+                                totals[1]++;
+                            }
+                        }
+                    });
+            usage.forEach((ownerId, totals) -> add(ownerId, totals[0], totals[1]));
+            System.out.println("Storage usage backfilled for " + usage.size() + " users from " + report.items() + " files.");
+        } catch (RuntimeException e) {
+            System.out.println("Storage usage backfill failed, remove the " + BACKFILL_MARKER
+                    + " row of " + QUOTA_TABLE + " to run it again: " + e.getMessage());
+        }
+    }
+
+    private Account account(String ownerId) {
+        Account account = accounts.computeIfAbsent(ownerId, Account::new);
+        account.lastUsed = System.nanoTime();
+        return account;
+    }
+
+    // Read again once older than the refresh interval, to see the uploads of the other instances
+    private Usage stored(Account account) {
+        Usage stored = account.stored;
+        if (stored != null && System.nanoTime() - stored.readAt() < refreshInterval.toNanos()) {
+            return stored;
+        }
+        try {
+            Map<String, AttributeValue> item = amazonDynamoDB.getItem(new GetItemRequest()
+                    .withTableName(QUOTA_TABLE)
+                    .withKey(Map.of("ownerId", new AttributeValue(account.ownerId)))
+                    .withConsistentRead(true))
+                    .getItem();
+            Usage read = item == null ? new Usage(0, 0, null, null, System.nanoTime())
+                    : new Usage(number(item.get("usedBytes")), number(item.get("fileCount")),
+                            item.containsKey("maxBytes") ? number(item.get("maxBytes")) : null,
+                            item.containsKey("maxFiles") ? number(item.get("maxFiles")) : null,
+                            System.nanoTime());
+            account.stored = read;
+            return read;
+        } catch (RuntimeException e) {
+            if (stored != null) {
+                return stored; // A stale usage is better than failing the upload
+            }
+            throw e;
+        }
+    }
+
+    private ResponseStatusException quotaExceeded(String message) {
+        rejected.increment();
+        return new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, message);
+    }
+
+    private static long size(FileMetadata file) {
+        return file.getFileSize() != null ? file.getFileSize() : 0;
+    }
+
+    private static long number(AttributeValue value) {
+        return value != null && value.getN() != null ? Long.parseLong(value.getN()) : 0;
+    }
+
+    /**
+     * Lo spazio riservato da un upload in corso: commit() quando il file è stato contato, close() lo restituisce
+     * comunque all'uscita, anche se l'upload fallisce.
+     */
+    public static final class Reservation implements AutoCloseable {
+
+        private final Account account;
+        private final long bytes;
+        private final int files;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Reservation(Account account, long bytes, int files) {
+            this.account = account;
+            this.bytes = bytes;
+            this.files = files;
+        }
+
+        /**
+         * Il file è stato contato da {@link QuotaService#recordUpload} o {@link QuotaService#recordBytes}: lo spazio
+         * passa dalla riserva all'uso dell'utente, senza restare contato due volte fino alla fine della richiesta.
+         */
+        public void commit() {
+            close();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                account.reservedBytes.addAndGet(-bytes);
+                account.reservedFiles.addAndGet(-files);
+            }
+        }
+    }
+
+    // The max* limits override the defaults for one user, they are set by hand on the row
+    private record Usage(long bytes, long files, Long maxBytes, Long maxFiles, long readAt) {
+    }
+
+    private static final class Account {
+
+        private final String ownerId;
+        // Changes not flushed to DynamoDB yet
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder files = new LongAdder();
+        // Uploads in progress on this instance
+        private final AtomicLong reservedBytes = new AtomicLong();
+        private final AtomicLong reservedFiles = new AtomicLong();
+        private volatile Usage stored;
+        private volatile long lastUsed;
+
+        private Account(String ownerId) {
+            this.ownerId = ownerId;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+/**
+ * Carica su S3 uno stream di dimensione arbitraria senza mai tenerlo tutto in memoria.
+ * Lo stream viene letto in parti di dimensione fissa, inviate con una multipart upload;
+ * al massimo {@code maxPartsInFlight} parti per upload sono in memoria contemporaneamente.
+ */
+@Component
+@RequiredArgsConstructor
+public class S3StreamingUploader {
+
+    private final S3Client s3Client;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${amazon.s3.upload.part-size:8MB}")
+    private DataSize partSize;
+
+    @Value("${amazon.s3.upload.max-parts-in-flight:4}")
+    private int maxPartsInFlight;
+
+    @Value("${amazon.s3.upload.threads:16}")
+    private int uploadThreads;
+
+    private ExecutorService partExecutor;
+
+    @PostConstruct
+    void init() {
+        // S3 rejects parts smaller than 5 MB (except the last one)
+        if (partSize.toBytes() < DataSize.ofMegabytes(5).toBytes()) {
+            throw new IllegalStateException("amazon.s3.upload.part-size must be at least 5MB");
+        }
+        AtomicInteger counter = new AtomicInteger();
+        partExecutor = Executors.newFixedThreadPool(uploadThreads, r -> {
+            Thread t = new Thread(r, "s3-part-upload-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        partExecutor.shutdown();
+    }
+
+    /**
+     * Carica il contenuto dello stream sotto la chiave indicata.
+     * Gli oggetti più piccoli di una parte vanno con una singola PutObject,
+     * gli altri con CreateMultipartUpload/UploadPart/CompleteMultipartUpload.
+     * In caso di errore la multipart upload viene abortita, così S3 non conserva parti orfane.
+     *
+     * @param key la chiave S3 di destinazione
+     * @param contentType il content type dell'oggetto
+     * @param in lo stream da caricare, non viene chiuso
+     * @param contentLength la lunghezza dello stream in byte
+     */
+    public void upload(String key, String contentType, InputStream in, long contentLength) throws IOException {
+        if (contentLength <= partSize.toBytes()) {
+            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .contentType(contentType)
+                    .build();
+            s3Client.putObject(putObjectRequest, RequestBody.fromInputStream(in, contentLength));
+            return;
+        }
+
+        String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType(contentType)
+                .build())
+                .uploadId();
+
+        try {
+            List<CompletedPart> parts = uploadParts(key, uploadId, in);
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                    .build());
+        } catch (IOException | RuntimeException e) {
+            abort(key, uploadId);
+            throw e;
+        }
+    }
+
+    private List<CompletedPart> uploadParts(String key, String uploadId, InputStream in) throws IOException {
+        int bufferSize = (int) partSize.toBytes();
+        // Each permit is one part buffer: the reader blocks here until an upload slot frees up
+        Semaphore inFlight = new Semaphore(maxPartsInFlight);
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(maxPartsInFlight);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<CompletableFuture<CompletedPart>> futures = new ArrayList<>();
+
+        try {
+            int partNumber = 1;
+            while (failure.get() == null) {
+                inFlight.acquire();
+                byte[] buffer = buffers.poll();
+                if (buffer == null) {
+                    buffer = new byte[bufferSize];
+                }
+                int read = in.readNBytes(buffer, 0, bufferSize);
+                if (read == 0) {
+                    inFlight.release();
+                    break;
+                }
+
+                final byte[] partBuffer = buffer;
+                final int partLength = read;
+                final int currentPart = partNumber++;
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        if (failure.get() != null) {
+                            throw new CancellationException(); // Another part or the reader already failed
+                        }
+                        String eTag = s3Client.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucketName)
+                                .key(key)
+                                .uploadId(uploadId)
+                                .partNumber(currentPart)
+                                .contentLength((long) partLength)
+                                .build(),
+                                RequestBody.fromInputStream(new ByteArrayInputStream(partBuffer, 0, partLength), partLength))
+                                .eTag();
+                        return CompletedPart.builder().partNumber(currentPart).eTag(eTag).build();
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                        throw e;
+                    } finally {
+                        buffers.offer(partBuffer);
+                        inFlight.release();
+                    }
+                }, partExecutor));
+
+                if (read < bufferSize) {
+                    break; // end of stream
+                }
+            }
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+            awaitOutstanding(futures);
+            Thread.currentThread().interrupt();
+            throw new IOException("Upload interrupted", e);
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+            awaitOutstanding(futures);
+            throw e;
+        }
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // The first failed part, not one of those that skipped after it
+            failure.compareAndSet(null, e.getCause() != null ? e.getCause() : e);
+        }
+        if (failure.get() != null) {
+            throw new IOException("Part upload failed: " + failure.get().getMessage(), failure.get());
+        }
+
+        return futures.stream()
+                .map(CompletableFuture::join)
+                .sorted(Comparator.comparing(CompletedPart::partNumber))
+                .toList();
+    }
+
+    /**
+     * Aspetta le parti già inviate all'executor (quelle non ancora partite vedono {@code failure} e si fermano subito),
+     * così l'abort della multipart upload non arriva a S3 mentre una UploadPart è ancora in volo.
+     */
+    private static void awaitOutstanding(List<CompletableFuture<CompletedPart>> futures) {
+        for (CompletableFuture<CompletedPart> future : futures) {
+            try {
+                future.join();
+            } catch (CancellationException | CompletionException e) {
+                // Failed or skipped, the reader's error is the one that matters
+            }
+        }
+    }
+
+    private void abort(String key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (RuntimeException e) {
+            System.out.println("Failed to abort multipart upload " + uploadId + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.util.ParallelScanner;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.GlacierJobParameters;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.MetadataDirective;
+import software.amazon.awssdk.services.s3.model.RestoreObjectRequest;
+import software.amazon.awssdk.services.s3.model.RestoreRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Sposta su classi di storage S3 più economiche gli oggetti che non vengono letti da tempo, in base a
+ * lastAccessAt (scritto da AccessTracker) o, per i file mai letti, alla data di upload.
+ *
+ * Il job scansiona FileMetadata e raggruppa i file per chiave S3, perché un blob deduplicato è condiviso da
+ * più file ed è freddo solo se lo sono tutti. Un oggetto non letto da tiering.infrequent-after passa a
+ * STANDARD_IA, uno non letto da tiering.archive-after a tiering.archive-storage-class; la classe viene
+ * cambiata con una CopyObject sulla stessa chiave e annotata in storageClass sui file (e sulla riga FileBlob).
+ * Gli oggetti non tornano automaticamente a STANDARD: lo fa solo un nuovo upload dello stesso contenuto,
+ * vedi BlobStore.
+ *
+ * Un file in GLACIER o DEEP_ARCHIVE non è leggibile finché non viene ripristinato: i download rispondono 409
+ * e il client chiede il ripristino con POST /files/{fileId}/restore.
+ */
+@Service
+@RequiredArgsConstructor
+public class StorageTieringService {
+
+    private static final String FILE_METADATA_TABLE = "FileMetadata";
+    private static final String FILE_BLOB_TABLE = "FileBlob";
+    private static final String STANDARD = "STANDARD";
+    // From the warmest to the coldest
+    private static final List<String> STORAGE_CLASSES = List.of(STANDARD, "STANDARD_IA", "GLACIER_IR", "GLACIER", "DEEP_ARCHIVE");
+    // Largest object a single CopyObject can copy
+    private static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final S3Client s3Client;
+    private final ParallelScanner parallelScanner;
+    private final FileMetadataCache fileMetadataCache;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${tiering.enabled:true}")
+    private boolean enabled;
+
+    @Value("${tiering.infrequent-after:30d}")
+    private Duration infrequentAfter;
+
+    @Value("${tiering.archive-after:180d}")
+    private Duration archiveAfter;
+
+    @Value("${tiering.archive-storage-class:GLACIER}")
+    private String archiveStorageClass;
+
+    // STANDARD_IA and the archive classes bill smaller objects as 128 KB
+    @Value("${tiering.min-object-size:128KB}")
+    private DataSize minObjectSize;
+
+    // How long a restored copy of an archived file stays readable
+    @Value("${tiering.restore-days:7}")
+    private int restoreDays;
+
+    // Expedited, Standard or Bulk: restore time against cost
+    @Value("${tiering.restore-tier:Standard}")
+    private String restoreTier;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private ExecutorService worker;
+
+    public static boolean needsRestore(String storageClass) {
+        return "GLACIER".equals(storageClass) || "DEEP_ARCHIVE".equals(storageClass);
+    }
+
+    @PostConstruct
+    void init() {
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "storage-tiering");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        // The next run starts over from the scan
+        worker.shutdownNow();
+    }
+
+    /**
+     * Avvia il job in un thread dedicato, per non occupare lo scheduler durante la scansione e le copie.
+     */
+    @Scheduled(initialDelayString = "${tiering.interval:PT6H}", fixedDelayString = "${tiering.interval:PT6H}")
+    public void run() {
+        if (!enabled || !running.compareAndSet(false, true)) {
+            return;
+        }
+        worker.execute(() -> {
+            try {
+                tier();
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    private void tier() {
+        Instant started = Instant.now();
+        Map<String, StoredObject> objects = new HashMap<>();
+        try {
+            parallelScanner.run(ParallelScanner.ScanJob.builder()
+                    .tableName(FILE_METADATA_TABLE)
+                    .projectionExpression("fileId, s3Key, contentHash, fileSize, uploadDate, lastAccessAt, storageClass")
+                    .build(), (segment, items) -> {
+                        synchronized (objects) {
+                            for (Map<String, AttributeValue> item : items) {
+                                if (item.containsKey("s3Key")) {
+                                    objects.computeIfAbsent(item.get("s3Key").getS(), StoredObject::new).add(item);
+                                }
+                            }
+                        }
+                    });
+        } catch (RuntimeException e) {
+            System.out.println("Storage tiering scan failed: " + e.getMessage());
+            return;
+        }
+
+        int moved = 0;
+        for (StoredObject object : objects.values()) {
+            try {
+                if (object.mixedClasses) {
+                    // e.g. a new file deduplicated onto an archived blob, which rewrote it to STANDARD
+                    setStorageClass(object, storageClass(head(object.s3Key)));
+                    continue;
+                }
+                String target = target(object, started);
+                if (rank(target) > rank(object.storageClass) && transition(object, target, started)) {
+                    moved++;
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Storage tiering failed for " + object.s3Key + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Storage tiering checked " + objects.size() + " objects, moved " + moved + ".");
+    }
+
+    /**
+     * Verifica che il contenuto di un file sia leggibile da S3.
+     *
+     * @throws ResponseStatusException 409 se il file è archiviato e non ancora ripristinato
+     */
+    public void checkAvailable(FileMetadata file) {
+        if (!needsRestore(file.getStorageClass())) {
+            return;
+        }
+        HeadObjectResponse head = head(file.getS3Key());
+        if (isReadable(head)) {
+            return;
+        }
+        throw new ResponseStatusException(HttpStatus.CONFLICT, head.restore() != null
+                ? "File is being restored from " + storageClass(head) + ", retry later"
+                : "File is archived in " + storageClass(head) + ", request a restore with POST /files/" + file.getFileId() + "/restore");
+    }
+
+    /**
+     * Verifica che una versione non corrente sia leggibile da S3. Le versioni non annotano la classe di
+     * storage, quindi l'oggetto viene letto con una HEAD: il blob di una versione deduplicata può essere stato
+     * archiviato insieme ai file che lo condividono.
+     *
+     * @throws ResponseStatusException 409 se l'oggetto è archiviato e non ancora ripristinato
+     */
+    public void checkAvailable(String s3Key) {
+        HeadObjectResponse head = head(s3Key);
+        if (isReadable(head)) {
+            return;
+        }
+        throw new ResponseStatusException(HttpStatus.CONFLICT, head.restore() != null
+                ? "Version is being restored from " + storageClass(head) + ", retry later"
+                : "Version is archived in " + storageClass(head) + " and cannot be downloaded until its content is restored");
+    }
+
+    /**
+     * Chiede a S3 una copia temporanea (tiering.restore-days giorni) di un file archiviato.
+     *
+     * @return false se il file è già leggibile, true se il ripristino è stato avviato o è già in corso
+     */
+    public boolean restore(FileMetadata file) {
+        if (!needsRestore(file.getStorageClass()) || isReadable(head(file.getS3Key()))) {
+            return false;
+        }
+        try {
+            s3Client.restoreObject(RestoreObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(file.getS3Key())
+                    .restoreRequest(RestoreRequest.builder()
+                            .days(restoreDays)
+                            .glacierJobParameters(GlacierJobParameters.builder().tier(restoreTier).build())
+                            .build())
+                    .build());
+        } catch (S3Exception e) {
+            if (e.statusCode() != HttpStatus.CONFLICT.value()) { // RestoreAlreadyInProgress
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    private boolean transition(StoredObject object, String target, Instant started) {
+        if (needsRestore(object.storageClass) || object.size < minObjectSize.toBytes() || object.size > MAX_COPY_SIZE) {
+            return false;
+        }
+        HeadObjectResponse head = head(object.s3Key);
+        if (head.lastModified().isAfter(started) || !storageClass(head).equals(storageClass(object.storageClass))) {
+            // Rewritten or moved since the scan, the next run sees its current state
+            return false;
+        }
+        s3Client.copyObject(CopyObjectRequest.builder()
+                .sourceBucket(bucketName)
+                .sourceKey(object.s3Key)
+                .destinationBucket(bucketName)
+                .destinationKey(object.s3Key)
+                .storageClass(target)
+                .metadataDirective(MetadataDirective.COPY)
+                .build());
+        setStorageClass(object, target);
+        return true;
+    }
+
+    private void setStorageClass(StoredObject object, String storageClass) {
+        for (String fileId : object.fileIds) {
+            update(FILE_METADATA_TABLE, "fileId", fileId, storageClass);
+            fileMetadataCache.invalidate(fileId);
+        }
+        if (object.contentHash != null) {
+            update(FILE_BLOB_TABLE, "contentHash", object.contentHash, storageClass);
+        }
+    }
+
+    private void update(String table, String keyName, String key, String storageClass) {
+        UpdateItemRequest request = new UpdateItemRequest()
+                .withTableName(table)
+                .withKey(Map.of(keyName, new AttributeValue(key)))
+                // Deleted in the meantime: do not recreate the item
+                .withConditionExpression("attribute_exists(" + keyName + ")");
+        if (STANDARD.equals(storageClass)) {
+            request.withUpdateExpression("REMOVE storageClass");
+        } else {
+            request.withUpdateExpression("SET storageClass = :class")
+                    .withExpressionAttributeValues(Map.of(":class", new AttributeValue(storageClass)));
+        }
+        try {
+            amazonDynamoDB.updateItem(request);
+        } catch (ConditionalCheckFailedException e) {
+            // Deleted
+        }
+    }
+
+    private String target(StoredObject object, Instant now) {
+        if (object.lastUsed == null) {
+            return STANDARD;
+        }
+        if (object.lastUsed.isBefore(now.minus(archiveAfter))) {
+            return archiveStorageClass;
+        }
+        if (object.lastUsed.isBefore(now.minus(infrequentAfter))) {
+            return "STANDARD_IA";
+        }
+        return STANDARD;
+    }
+
+    private HeadObjectResponse head(String key) {
+        return s3Client.headObject(HeadObjectRequest.builder().bucket(bucketName).key(key).build());
+    }
+
+    // Readable when not archived, or when a restored copy is ready
+    private static boolean isReadable(HeadObjectResponse head) {
+        return !needsRestore(storageClass(head))
+                || (head.restore() != null && head.restore().contains("ongoing-request=\"false\""));
+    }
+
+    // S3 omits the storage class of STANDARD objects
+    private static String storageClass(HeadObjectResponse head) {
+        return storageClass(head.storageClassAsString());
+    }
+
+    private static String storageClass(String storageClass) {
+        return storageClass != null ? storageClass : STANDARD;
+    }
+
+    private static int rank(String storageClass) {
+        return Math.max(0, STORAGE_CLASSES.indexOf(storageClass(storageClass)));
+    }
+
+    /**
+     * Un oggetto S3 e i file che lo referenziano.
+     */
+    private static final class StoredObject {
+
+        private final String s3Key;
+        private final List<String> fileIds = new ArrayList<>();
+        private String contentHash;
+        private long size;
+        private String storageClass;
+        private boolean mixedClasses;
+        private Instant lastUsed; // Most recent read or upload among its files
+
+        private StoredObject(String s3Key) {
+            this.s3Key = s3Key;
+        }
+
+        void add(Map<String, AttributeValue> item) {
+            String itemClass = storageClass(item.containsKey("storageClass") ? item.get("storageClass").getS() : null);
+            if (fileIds.isEmpty()) {
+                storageClass = itemClass;
+            } else if (!itemClass.equals(storageClass)) {
+                mixedClasses = true;
+            }
+            fileIds.add(item.get("fileId").getS());
+            if (item.containsKey("contentHash")) {
+                contentHash = item.get("contentHash").getS();
+            }
+            if (item.containsKey("fileSize")) {
+                size = Long.parseLong(item.get("fileSize").getN());
+            }
+            AttributeValue used = item.containsKey("lastAccessAt") ? item.get("lastAccessAt") : item.get("uploadDate");
+            if (used != null) {
+                Instant instant = Instant.parse(used.getS());
+                if (lastUsed == null || instant.isAfter(lastUsed)) {
+                    lastUsed = instant;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.github.giuseppemarletta.file_service.Repository.UploadSessionRepository;
+import com.github.giuseppemarletta.file_service.dto.DirectUploadDto;
+import com.github.giuseppemarletta.file_service.dto.UploadChunkDto;
+import com.github.giuseppemarletta.file_service.dto.UploadSessionRequest;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.model.UploadSession;
+
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.Part;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+/**
+ * Gestisce le sessioni di upload riprendibili.
+ * Ogni sessione è una multipart upload S3: i chunk sono le parti, S3 tiene traccia di quelle ricevute
+ * e la sessione salvata su DynamoDB permette di riprendere l'upload anche dopo un riavvio del servizio.
+ * Le sessioni DIRECT invece vengono caricate dal client su S3 con un'unica PUT presigned.
+ * Commit, finalize e abort lasciano IN_PROGRESS con una scrittura condizionata, così due richieste
+ * concorrenti sulla stessa sessione non creano due file per lo stesso oggetto.
+ */
+@Service
+@RequiredArgsConstructor
+public class UploadSessionService {
+
+    public static final String STATUS_IN_PROGRESS = "IN_PROGRESS";
+    public static final String STATUS_COMMITTING = "COMMITTING";
+    public static final String STATUS_COMMITTED = "COMMITTED";
+    public static final String STATUS_ABORTING = "ABORTING";
+
+    public static final String MODE_MULTIPART = "MULTIPART";
+    public static final String MODE_DIRECT = "DIRECT";
+
+    // S3 multipart upload limits
+    private static final int MAX_CHUNKS = 10000;
+
+    private static final String TABLE_NAME = "UploadSession";
+
+    private final AmazonDynamoDB amazonDynamoDB;
+    private final S3Client s3Client;
+    private final UploadSessionRepository uploadSessionRepository;
+    private final FileStorageService fileStorageService;
+    private final QuotaService quotaService;
+    private final EncryptionService encryptionService;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${upload.session.ttl:24h}")
+    private Duration sessionTtl;
+
+    @Value("${upload.direct.url-ttl:15m}")
+    private Duration directUrlTtl;
+
+    @Value("${quota.enabled:true}")
+    private boolean quotaEnabled;
+
+    public UploadSession initSession(UploadSessionRequest request, String userId) {
+        validate(request);
+        encryptionService.requireCleartextAllowed();
+        if (request.getFileSize() != null) {
+            quotaService.check(userId, request.getFileSize());
+        }
+
+        String key = fileStorageService.newObjectKey(request.getFileName());
+        String s3UploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType(request.getFileType())
+                .build())
+                .uploadId();
+
+        return uploadSessionRepository.save(newSession(request, userId, key, MODE_MULTIPART, s3UploadId));
+    }
+
+    /**
+     * Apre un upload diretto: il client carica il file su S3 con l'URL presigned restituito,
+     * senza che i byte passino dal servizio, e poi chiama {@link #finalizeDirectUpload}.
+     * Con le quote attive la dimensione è obbligatoria: viene firmata nell'URL, così S3 rifiuta un file più
+     * grande di quello verificato sulla quota.
+     */
+    public DirectUploadDto initDirectUpload(UploadSessionRequest request, String userId) {
+        validate(request);
+        encryptionService.requireCleartextAllowed();
+        if (quotaEnabled && request.getFileSize() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "fileSize is required");
+        }
+        if (request.getFileSize() != null) {
+            quotaService.check(userId, request.getFileSize());
+        }
+
+        String key = fileStorageService.newObjectKey(request.getFileName());
+        UploadSession session = uploadSessionRepository.save(newSession(request, userId, key, MODE_DIRECT, null));
+
+        Instant urlExpiresAt = Instant.now().plus(directUrlTtl);
+        String uploadUrl = fileStorageService.generatePresignedPutUrl(key, request.getFileType(), request.getFileSize(), directUrlTtl);
+        return new DirectUploadDto(session.getUploadId(), uploadUrl, urlExpiresAt.toString(), session.getExpiresAt());
+    }
+
+    /**
+     * Restituisce un URL presigned con cui il client carica un chunk della sessione direttamente su S3.
+     * Il chunk risulta poi tra quelli ricevuti e la sessione si completa con il normale commit.
+     * La dimensione della parte non è firmata: l'URL viene negato solo se l'utente ha già esaurito la quota,
+     * il totale viene verificato al commit.
+     */
+    public String getChunkUploadUrl(String uploadId, String userId, int chunkNumber) {
+        validateChunkNumber(chunkNumber);
+        UploadSession session = getActiveSession(uploadId, userId, MODE_MULTIPART);
+        quotaService.check(userId, 0);
+        return fileStorageService.generatePresignedUploadPartUrl(session.getS3Key(), session.getS3UploadId(), chunkNumber, directUrlTtl);
+    }
+
+    /**
+     * Verifica con una HeadObject che il client abbia caricato il file e ne salva i metadati.
+     */
+    public FileMetadata finalizeDirectUpload(String uploadId, String userId) {
+        UploadSession session = getActiveSession(uploadId, userId, MODE_DIRECT);
+        transition(session, STATUS_IN_PROGRESS, STATUS_COMMITTING);
+
+        HeadObjectResponse head;
+        try {
+            head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(session.getS3Key())
+                    .build());
+        } catch (NoSuchKeyException e) {
+            transition(session, STATUS_COMMITTING, STATUS_IN_PROGRESS);
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "The file has not been uploaded yet");
+        } catch (RuntimeException e) {
+            transition(session, STATUS_COMMITTING, STATUS_IN_PROGRESS);
+            throw e;
+        }
+        long size = head.contentLength();
+        if (session.getFileSize() != null && session.getFileSize() != size) {
+            transition(session, STATUS_COMMITTING, STATUS_IN_PROGRESS);
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "Uploaded " + size + " bytes, expected " + session.getFileSize());
+        }
+        String fileType = head.contentType() != null ? head.contentType() : session.getFileType();
+        try {
+            // Checked at init as well, other uploads may have used the space since then
+            quotaService.check(userId, size);
+        } catch (ResponseStatusException e) {
+            abortSession(session);
+            throw e;
+        }
+
+        FileMetadata saved;
+        try {
+            saved = fileStorageService.saveMetadata(session.getS3Key(), session.getOwnerId(), session.getFileName(),
+                    fileType, size, session.getVisibility(), session.getAllowedRoles(), null);
+        } catch (RuntimeException e) {
+            // The object is still there, the client can finalize again
+            transition(session, STATUS_COMMITTING, STATUS_IN_PROGRESS);
+            throw e;
+        }
+        transition(session, STATUS_COMMITTING, STATUS_COMMITTED);
+        return saved;
+    }
+
+    private void validate(UploadSessionRequest request) {
+        if (request.getFileName() == null || request.getFileName().isBlank()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "fileName is required");
+        }
+        if (request.getVisibility() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "visibility is required");
+        }
+    }
+
+    private void validateChunkNumber(int chunkNumber) {
+        if (chunkNumber < 1 || chunkNumber > MAX_CHUNKS) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "chunkNumber must be between 1 and " + MAX_CHUNKS);
+        }
+    }
+
+    private UploadSession newSession(UploadSessionRequest request, String userId, String key, String mode, String s3UploadId) {
+        Instant now = Instant.now();
+        return UploadSession.builder()
+                .uploadId(UUID.randomUUID().toString())
+                .ownerId(userId)
+                .fileName(request.getFileName())
+                .fileType(request.getFileType())
+                .fileSize(request.getFileSize())
+                .visibility(request.getVisibility().toUpperCase())
+                .allowedRoles(request.getAllowedRoles())
+                .s3Key(key)
+                .uploadMode(mode)
+                .s3UploadId(s3UploadId)
+                .status(STATUS_IN_PROGRESS)
+                .createdAt(now.toString())
+                .expiresAt(now.plus(sessionTtl).toString())
+                .build();
+    }
+
+    /**
+     * Carica un chunk della sessione. I chunk possono arrivare in parallelo e in qualsiasi ordine;
+     * ricaricare lo stesso numero di chunk sostituisce quello precedente.
+     * Tutti i chunk tranne l'ultimo devono essere di almeno 5 MB (limite di S3).
+     */
+    public UploadChunkDto uploadChunk(String uploadId, String userId, int chunkNumber, InputStream in, long contentLength) {
+        validateChunkNumber(chunkNumber);
+        if (contentLength < 0) {
+            throw new ResponseStatusException(HttpStatus.LENGTH_REQUIRED, "Content-Length is required");
+        }
+        UploadSession session = getActiveSession(uploadId, userId, MODE_MULTIPART);
+        // The chunks already received are not counted until the commit, which checks the total
+        quotaService.check(userId, contentLength);
+
+        String eTag = s3Client.uploadPart(UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(session.getS3Key())
+                .uploadId(session.getS3UploadId())
+                .partNumber(chunkNumber)
+                .contentLength(contentLength)
+                .build(),
+                RequestBody.fromInputStream(in, contentLength))
+                .eTag();
+        return new UploadChunkDto(chunkNumber, contentLength, eTag);
+    }
+
+    public List<UploadChunkDto> getReceivedChunks(String uploadId, String userId) {
+        UploadSession session = getActiveSession(uploadId, userId, MODE_MULTIPART);
+        return listParts(session).stream()
+                .map(part -> new UploadChunkDto(part.partNumber(), part.size(), part.eTag()))
+                .toList();
+    }
+
+    /**
+     * Completa la multipart upload e salva i metadati del file.
+     * I chunk ricevuti devono essere numerati in modo contiguo a partire da 1.
+     */
+    public FileMetadata commit(String uploadId, String userId) {
+        UploadSession session = getActiveSession(uploadId, userId, MODE_MULTIPART);
+        List<Part> parts = listParts(session);
+        if (parts.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "No chunks received");
+        }
+
+        long totalSize = 0;
+        List<CompletedPart> completedParts = new ArrayList<>(parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            Part part = parts.get(i);
+            if (part.partNumber() != i + 1) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "Missing chunk " + (i + 1));
+            }
+            totalSize += part.size();
+            completedParts.add(CompletedPart.builder().partNumber(part.partNumber()).eTag(part.eTag()).build());
+        }
+        if (session.getFileSize() != null && session.getFileSize() != totalSize) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "Received " + totalSize + " bytes, expected " + session.getFileSize());
+        }
+        // The parts stay in S3 until the session is aborted, they do not become a file
+        quotaService.check(userId, totalSize);
+
+        // S3 accepts a repeated Complete: only the request that wins this write completes the upload
+        transition(session, STATUS_IN_PROGRESS, STATUS_COMMITTING);
+        try {
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(session.getS3Key())
+                    .uploadId(session.getS3UploadId())
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build());
+        } catch (S3Exception e) {
+            // e.g. EntityTooSmall when a chunk other than the last one is below 5 MB: the client can fix it and retry
+            transition(session, STATUS_COMMITTING, STATUS_IN_PROGRESS);
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Commit failed: " + e.getMessage(), e);
+        }
+
+        FileMetadata saved = fileStorageService.saveMetadata(session.getS3Key(), session.getOwnerId(), session.getFileName(),
+                session.getFileType(), totalSize, session.getVisibility(), session.getAllowedRoles(), null);
+        transition(session, STATUS_COMMITTING, STATUS_COMMITTED);
+        return saved;
+    }
+
+    public void abort(String uploadId, String userId) {
+        UploadSession session = getActiveSession(uploadId, userId, null);
+        transition(session, STATUS_IN_PROGRESS, STATUS_ABORTING);
+        abortSession(session);
+    }
+
+    /**
+     * Abortisce le sessioni scadute, così S3 libera lo spazio occupato dalle loro parti,
+     * e rimuove quelle già completate.
+     */
+    @Scheduled(initialDelayString = "${upload.session.reaper-interval:PT15M}", fixedDelayString = "${upload.session.reaper-interval:PT15M}")
+    public void reapExpiredSessions() {
+        Instant now = Instant.now();
+        try {
+            for (UploadSession session : uploadSessionRepository.findAll()) {
+                if (session.getExpiresAt() == null || !Instant.parse(session.getExpiresAt()).isBefore(now)) {
+                    continue;
+                }
+                if (STATUS_IN_PROGRESS.equals(session.getStatus())) {
+                    try {
+                        transition(session, STATUS_IN_PROGRESS, STATUS_ABORTING);
+                    } catch (ResponseStatusException e) {
+                        continue; // Committed or aborted in the meantime
+                    }
+                    abortSession(session);
+                    System.out.println("Aborted expired upload session " + session.getUploadId());
+                } else {
+                    uploadSessionRepository.delete(session);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Upload session reaper failed: " + e.getMessage());
+        }
+    }
+
+    private void abortSession(UploadSession session) {
+        if (MODE_DIRECT.equals(session.getUploadMode())) {
+            // The client may have uploaded the object without finalizing it
+            s3Client.deleteObject(DeleteObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(session.getS3Key())
+                    .build());
+        } else {
+            try {
+                s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(session.getS3Key())
+                        .uploadId(session.getS3UploadId())
+                        .build());
+            } catch (NoSuchUploadException e) {
+                // Already aborted, e.g. by another instance's reaper
+            }
+        }
+        uploadSessionRepository.delete(session);
+    }
+
+    /**
+     * Cambia lo stato della sessione solo se è ancora {@code from}: di due commit, finalize o abort concorrenti
+     * della stessa sessione prosegue solo il primo.
+     *
+     * @throws ResponseStatusException 409 se un'altra richiesta ha già cambiato lo stato
+     */
+    private void transition(UploadSession session, String from, String to) {
+        try {
+            amazonDynamoDB.updateItem(new UpdateItemRequest()
+                    .withTableName(TABLE_NAME)
+                    .withKey(Map.of("uploadId", new AttributeValue(session.getUploadId())))
+                    .withUpdateExpression("SET #status = :to")
+                    .withConditionExpression("#status = :from")
+                    .withExpressionAttributeNames(Map.of("#status", "status")) // Reserved word
+                    .withExpressionAttributeValues(Map.of(":from", new AttributeValue(from), ":to", new AttributeValue(to))));
+        } catch (ConditionalCheckFailedException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload session is already being committed or aborted");
+        }
+        session.setStatus(to);
+    }
+
+    /**
+     * @param mode la modalità richiesta dall'operazione, null se vanno bene entrambe
+     */
+    private UploadSession getActiveSession(String uploadId, String userId, String mode) {
+        UploadSession session = uploadSessionRepository.findById(uploadId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload session not found"));
+        if (!session.getOwnerId().equals(userId)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "You are not the owner of this upload session");
+        }
+        if (mode != null && !mode.equals(session.getUploadMode())) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Operation not supported by a " + session.getUploadMode() + " upload");
+        }
+        if (!STATUS_IN_PROGRESS.equals(session.getStatus())) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload session is " + session.getStatus());
+        }
+        if (Instant.parse(session.getExpiresAt()).isBefore(Instant.now())) {
+            throw new ResponseStatusException(HttpStatus.GONE, "Upload session expired");
+        }
+        return session;
+    }
+
+    private List<Part> listParts(UploadSession session) {
+        List<Part> parts = new ArrayList<>();
+        s3Client.listPartsPaginator(ListPartsRequest.builder()
+                .bucket(bucketName)
+                .key(session.getS3Key())
+                .uploadId(session.getS3UploadId())
+                .build())
+                .parts()
+                .forEach(parts::add);
+        return parts;
+    }
+}
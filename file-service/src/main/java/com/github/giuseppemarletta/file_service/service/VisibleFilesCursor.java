@@ -0,0 +1,69 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Posizione raggiunta nella lista dei file visibili, restituita al client come token opaco.
+ *
+ * La lista è la fusione di più query DynamoDB (vedi FileIndexService): per ognuna il cursore conserva
+ * la chiave dell'ultimo elemento consumato, da usare come ExclusiveStartKey alla pagina successiva,
+ * oppure la segna come esaurita.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VisibleFilesCursor {
+
+    public static final String MODE_INDEX = "index";
+    public static final String MODE_SCAN = "scan"; // Fallback while the indexes are being built
+    public static final String MODE_SEARCH = "search"; // GET /files/search, position only
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private String mode;
+    private String position; // uploadDate#fileId of the last file returned, in index mode
+    private Map<String, Map<String, String>> keys = new HashMap<>(); // Source name -> last consumed key
+    private List<String> done = new ArrayList<>(); // Exhausted sources
+
+    public String encode() {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(OBJECT_MAPPER.writeValueAsBytes(this));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot encode cursor", e);
+        }
+    }
+
+    public static VisibleFilesCursor decode(String token) {
+        try {
+            VisibleFilesCursor cursor = OBJECT_MAPPER.readValue(
+                    new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8), VisibleFilesCursor.class);
+            if (!MODE_INDEX.equals(cursor.getMode()) && !MODE_SCAN.equals(cursor.getMode()) && !MODE_SEARCH.equals(cursor.getMode())) {
+                throw new IllegalArgumentException("Unknown cursor mode");
+            }
+            if (cursor.getKeys() == null) {
+                cursor.setKeys(new HashMap<>());
+            }
+            if (cursor.getDone() == null) {
+                cursor.setDone(new ArrayList<>());
+            }
+            return cursor;
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid nextToken");
+        }
+    }
+}
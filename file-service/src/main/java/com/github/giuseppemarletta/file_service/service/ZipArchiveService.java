@@ -0,0 +1,297 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.github.giuseppemarletta.file_service.dto.FileMetadataDto;
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/**
+ * Costruisce al volo un archivio ZIP di più file, leggendo gli oggetti da S3 e scrivendoli direttamente
+ * sullo stream della risposta: niente file temporanei e nessun oggetto tenuto per intero in memoria.
+ * Mentre un file viene scritto, la GetObject del successivo è già partita, così la latenza di S3 non si
+ * somma file per file.
+ */
+@Service
+@RequiredArgsConstructor
+public class ZipArchiveService {
+
+    // Files listed per BatchGetItem when archiving the whole visible listing
+    private static final int METADATA_BATCH_SIZE = 100;
+
+    // Content that deflate would only waste CPU on
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.rar", "application/x-bzip2", "application/x-xz",
+            "application/zstd", "application/pdf", "application/java-archive", "application/epub+zip");
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "7z", "rar", "bz2", "xz", "zst", "jar", "pdf", "epub",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp3", "aac", "ogg", "flac", "m4a", "mp4", "m4v", "mov", "mkv", "webm", "avi");
+
+    private final S3Client s3Client;
+    private final FileMetadataCache fileMetadataCache;
+    private final FileStorageService fileStorageService;
+    private final EncryptionService encryptionService;
+
+    @Value("${amazon.s3.bucket.name}")
+    private String bucketName;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    private ExecutorService prefetchExecutor;
+
+    @PostConstruct
+    void init() {
+        AtomicInteger counter = new AtomicInteger();
+        prefetchExecutor = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("zip-prefetch-", 1).factory())
+                : Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "zip-prefetch-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        prefetchExecutor.shutdown();
+    }
+
+    /**
+     * Carica i metadati dei file richiesti e controlla che l'utente possa scaricarli tutti,
+     * prima che la risposta venga scritta.
+     *
+     * @return i file nell'ordine della richiesta
+     */
+    public List<FileMetadata> resolveFiles(List<String> fileIds, String userId, List<String> userRoles) {
+        List<String> ids = fileIds.stream().distinct().toList();
+        Map<String, FileMetadata> files = fileMetadataCache.findAllById(ids);
+
+        List<FileMetadata> resolved = new ArrayList<>();
+        for (String fileId : ids) {
+            FileMetadata file = files.get(fileId);
+            if (file == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found: " + fileId);
+            }
+            try {
+                fileStorageService.checkDownloadAccess(file, userId, userRoles);
+            } catch (RuntimeException e) {
+                throw new ResponseStatusException(HttpStatus.FORBIDDEN, e.getMessage() + ": " + fileId);
+            }
+            fileStorageService.recordRead(file);
+            resolved.add(file);
+        }
+        return resolved;
+    }
+
+    /**
+     * Scrive sullo stream l'archivio dei file indicati.
+     */
+    public void writeArchive(List<FileMetadata> files, OutputStream out) throws IOException {
+        try (ZipWriter zip = new ZipWriter(out)) {
+            for (FileMetadata file : files) {
+                zip.add(file);
+            }
+            zip.finish();
+        }
+    }
+
+    /**
+     * Scrive sullo stream l'archivio di tutti i file visibili all'utente. La lista viene letta in streaming
+     * e i metadati completi caricati a blocchi, quindi la memoria usata non dipende dal numero di file.
+     */
+    public void writeVisibleArchive(String userId, List<String> userRoles, OutputStream out) throws IOException {
+        try (ZipWriter zip = new ZipWriter(out)) {
+            List<String> batch = new ArrayList<>(METADATA_BATCH_SIZE);
+            fileStorageService.streamVisibleFiles(userId, userRoles, null, null, new FileIndexService.VisibleFileSink() {
+                @Override
+                public void accept(FileMetadataDto file) throws IOException {
+                    batch.add(file.getFileId());
+                    if (batch.size() == METADATA_BATCH_SIZE) {
+                        addBatch(zip, batch);
+                    }
+                }
+
+                @Override
+                public void flush() {
+                }
+            });
+            addBatch(zip, batch);
+            zip.finish();
+        }
+    }
+
+    private void addBatch(ZipWriter zip, List<String> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Map<String, FileMetadata> files = fileMetadataCache.findAllById(batch);
+        for (String fileId : batch) {
+            FileMetadata file = files.get(fileId);
+            if (file == null) {
+                continue; // Deleted since it was listed
+            }
+            try {
+                fileStorageService.recordRead(file);
+            } catch (ResponseStatusException e) {
+                continue; // Archived, not readable until restored
+            }
+            zip.add(file);
+        }
+        batch.clear();
+    }
+
+    static boolean isCompressed(String fileName, String contentType) {
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.ROOT);
+            int parameters = type.indexOf(';');
+            if (parameters >= 0) {
+                type = type.substring(0, parameters).trim();
+            }
+            if (COMPRESSED_TYPES.contains(type) || type.startsWith("video/") || type.startsWith("audio/")
+                    || (type.startsWith("image/") && !type.equals("image/svg+xml") && !type.equals("image/bmp"))) {
+                return true;
+            }
+        }
+        if (fileName != null && fileName.lastIndexOf('.') >= 0) {
+            return COMPRESSED_EXTENSIONS.contains(fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT));
+        }
+        return false;
+    }
+
+    private record Pending(FileMetadata file, CompletableFuture<ResponseInputStream<GetObjectResponse>> content) {
+    }
+
+    /**
+     * Scrive le entry una alla volta tenendo aperta al più una GetObject in anticipo.
+     */
+    private final class ZipWriter implements AutoCloseable {
+        private final ZipOutputStream zip;
+        private final Set<String> names = new HashSet<>();
+        private Pending pending;
+        private boolean finished;
+
+        ZipWriter(OutputStream out) {
+            this.zip = new ZipOutputStream(out);
+        }
+
+        void add(FileMetadata file) throws IOException {
+            // Start fetching this file before writing the previous one
+            Pending next = new Pending(file, CompletableFuture.supplyAsync(() -> s3Client.getObject(GetObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(file.getS3Key())
+                    .build()), prefetchExecutor));
+            if (pending != null) {
+                Pending current = pending;
+                pending = next;
+                write(current);
+            } else {
+                pending = next;
+            }
+        }
+
+        void finish() throws IOException {
+            if (pending != null) {
+                Pending current = pending;
+                pending = null;
+                write(current);
+            }
+            zip.finish();
+            finished = true;
+        }
+
+        private void write(Pending entry) throws IOException {
+            FileMetadata file = entry.file();
+            ResponseInputStream<GetObjectResponse> content;
+            try {
+                content = entry.content().join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                throw new IOException("Failed to read " + file.getFileId() + " from S3: " + cause.getMessage(), cause);
+            }
+
+            // Encrypted files go into the archive in clear, like through /files/{fileId}/content
+            InputStream in = content;
+            try {
+                if (EncryptionService.isEncrypted(file)) {
+                    in = encryptionService.decrypt(file, content);
+                }
+                ZipEntry zipEntry = new ZipEntry(entryName(file.getFileName()));
+                if (file.getUploadDate() != null) {
+                    zipEntry.setTime(Instant.parse(file.getUploadDate()).toEpochMilli());
+                }
+                // STORED would need the CRC before the data, which is unknown while streaming:
+                // level 0 deflate only wraps the bytes in stored blocks and still allows a trailing data descriptor
+                zip.setLevel(isCompressed(file.getFileName(), file.getFileType()) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+                zip.putNextEntry(zipEntry);
+                in.transferTo(zip);
+                zip.closeEntry();
+            } catch (IOException | RuntimeException e) {
+                // Client gone: drop the connection of this entry before closing it, close() would drain the rest
+                content.abort();
+                throw e;
+            }
+            in.close();
+        }
+
+        private String entryName(String fileName) {
+            // Entries are flat: no directories, no path traversal when extracted
+            String name = fileName == null || fileName.isBlank() ? "file" : fileName.replaceAll("[/\\\\]", "_");
+            if (name.equals(".") || name.equals("..")) {
+                name = "file";
+            }
+            String unique = name;
+            int dot = name.lastIndexOf('.');
+            for (int i = 2; !names.add(unique); i++) {
+                unique = dot > 0 ? name.substring(0, dot) + " (" + i + ")" + name.substring(dot) : name + " (" + i + ")";
+            }
+            return unique;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (pending != null) {
+                // Aborted half-way: drop the connection of the prefetched object instead of draining it
+                pending.content().thenAccept(ResponseInputStream::abort);
+                pending = null;
+            }
+            if (finished) {
+                zip.close();
+            }
+            // Otherwise the central directory is deliberately not written, so the client sees a broken
+            // archive instead of a valid one with a truncated last entry
+        }
+    }
+}
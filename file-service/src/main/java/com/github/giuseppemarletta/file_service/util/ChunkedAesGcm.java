@@ -0,0 +1,239 @@
+package com.github.giuseppemarletta.file_service.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Cifratura a blocchi con AES-GCM, per cifrare e decifrare un oggetto come stream in memoria costante.
+ *
+ * Il testo in chiaro è diviso in blocchi di chunkSize byte (l'ultimo più corto, vuoto per un file vuoto) e
+ * ogni blocco è cifrato a sé, seguito dal suo tag di 16 byte: il blocco i del testo cifrato inizia quindi a
+ * i * (chunkSize + 16) e una lettura parziale decifra solo i blocchi che tocca. Il nonce di un blocco è il suo
+ * indice più un flag per l'ultimo blocco, così blocchi scambiati, copiati da un'altra posizione o un oggetto
+ * troncato a un confine di blocco non passano la verifica. I nonce si ripetono tra oggetti diversi: ogni
+ * chiave va usata per un solo oggetto.
+ */
+public final class ChunkedAesGcm {
+
+    public static final int TAG_LENGTH = 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+
+    private ChunkedAesGcm() {
+    }
+
+    /**
+     * La lunghezza del testo cifrato di un testo in chiaro di plaintextLength byte.
+     */
+    public static long ciphertextLength(long plaintextLength, int chunkSize) {
+        return plaintextLength + chunkCount(plaintextLength, chunkSize) * TAG_LENGTH;
+    }
+
+    /**
+     * Il primo byte del testo cifrato da leggere per decifrare a partire dal byte in chiaro start.
+     */
+    public static long ciphertextStart(long start, int chunkSize) {
+        return start / chunkSize * (chunkSize + TAG_LENGTH);
+    }
+
+    /**
+     * L'ultimo byte (incluso) del testo cifrato da leggere per decifrare fino al byte in chiaro end.
+     */
+    public static long ciphertextEnd(long end, long plaintextLength, int chunkSize) {
+        return Math.min(ciphertextLength(plaintextLength, chunkSize), (end / chunkSize + 1) * (chunkSize + TAG_LENGTH)) - 1;
+    }
+
+    /**
+     * Cifra lo stream, che deve contenere esattamente plaintextLength byte; chiudere lo stream restituito
+     * chiude quello letto.
+     */
+    public static InputStream encrypting(InputStream in, SecretKey key, int chunkSize, long plaintextLength) {
+        return new Encrypting(in, key, chunkSize, plaintextLength);
+    }
+
+    /**
+     * Decifra i byte in chiaro da start a end (inclusi) di un oggetto di plaintextLength byte.
+     *
+     * @param in il testo cifrato da {@link #ciphertextStart} a {@link #ciphertextEnd}
+     */
+    public static InputStream decrypting(InputStream in, SecretKey key, int chunkSize, long plaintextLength, long start, long end) {
+        return new Decrypting(in, key, chunkSize, plaintextLength, start, end);
+    }
+
+    private static long chunkCount(long plaintextLength, int chunkSize) {
+        // An empty object is still one (empty, authenticated) chunk
+        return Math.max(1, (plaintextLength + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Stream che produce un blocco alla volta in un buffer riusato.
+     */
+    private abstract static class ChunkStream extends InputStream {
+        protected final InputStream in;
+        protected final Cipher cipher;
+        protected final SecretKey key;
+        protected final int chunkSize;
+        protected final long lastChunk;
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+        protected byte[] out;
+        protected int position;
+        protected int limit;
+
+        ChunkStream(InputStream in, SecretKey key, int chunkSize, long plaintextLength) {
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("chunkSize must be positive");
+            }
+            this.in = in;
+            this.key = key;
+            this.chunkSize = chunkSize;
+            this.lastChunk = chunkCount(plaintextLength, chunkSize) - 1;
+            try {
+                this.cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+            }
+        }
+
+        /**
+         * Prepara il blocco successivo in out, da position a limit.
+         *
+         * @return false a fine stream
+         */
+        protected abstract boolean nextChunk() throws IOException;
+
+        protected GCMParameterSpec parameters(long index) {
+            for (int i = 0; i < 8; i++) {
+                nonce[i] = (byte) (index >>> (56 - 8 * i));
+            }
+            nonce[NONCE_LENGTH - 1] = (byte) (index == lastChunk ? 1 : 0);
+            return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(out, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class Encrypting extends ChunkStream {
+        private final byte[] plain;
+        private final long plaintextLength;
+        private long index;
+        private long consumed;
+
+        Encrypting(InputStream in, SecretKey key, int chunkSize, long plaintextLength) {
+            super(in, key, chunkSize, plaintextLength);
+            this.plaintextLength = plaintextLength;
+            this.plain = new byte[chunkSize];
+            this.out = new byte[chunkSize + TAG_LENGTH];
+        }
+
+        @Override
+        protected boolean nextChunk() throws IOException {
+            if (index > lastChunk) {
+                return false;
+            }
+            int length = (int) Math.min(chunkSize, plaintextLength - consumed);
+            if (in.readNBytes(plain, 0, length) < length) {
+                throw new IOException("Stream ended before " + plaintextLength + " bytes");
+            }
+            consumed += length;
+            if (index == lastChunk && in.read() >= 0) {
+                throw new IOException("Stream is longer than " + plaintextLength + " bytes");
+            }
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, parameters(index));
+                limit = cipher.doFinal(plain, 0, length, out, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encryption failed", e);
+            }
+            position = 0;
+            index++;
+            return true;
+        }
+    }
+
+    private static final class Decrypting extends ChunkStream {
+        private final byte[] sealed;
+        private final long plaintextLength;
+        private final long endChunk;
+        private long index;
+        // Bytes of the first chunk before start, and bytes of the last chunk after end
+        private int skip;
+        private final int trim;
+
+        Decrypting(InputStream in, SecretKey key, int chunkSize, long plaintextLength, long start, long end) {
+            super(in, key, chunkSize, plaintextLength);
+            if (plaintextLength > 0 && (start < 0 || start > end || end >= plaintextLength)) {
+                throw new IllegalArgumentException("Range " + start + "-" + end + " is outside 0-" + (plaintextLength - 1));
+            }
+            this.plaintextLength = plaintextLength;
+            this.sealed = new byte[chunkSize + TAG_LENGTH];
+            this.out = new byte[chunkSize];
+            this.index = plaintextLength > 0 ? start / chunkSize : 0;
+            this.endChunk = plaintextLength > 0 ? end / chunkSize : 0;
+            this.skip = plaintextLength > 0 ? (int) (start % chunkSize) : 0;
+            this.trim = plaintextLength > 0 ? (int) (Math.min(plaintextLength, (endChunk + 1) * chunkSize) - 1 - end) : 0;
+        }
+
+        @Override
+        protected boolean nextChunk() throws IOException {
+            if (index > endChunk) {
+                return false;
+            }
+            int length = (int) Math.min(chunkSize, plaintextLength - index * chunkSize) + TAG_LENGTH;
+            if (in.readNBytes(sealed, 0, length) < length) {
+                throw new IOException("Encrypted object is truncated at chunk " + index);
+            }
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, parameters(index));
+                limit = cipher.doFinal(sealed, 0, length, out, 0);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Chunk " + index + " of the encrypted object failed authentication", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Decryption failed", e);
+            }
+            position = skip;
+            skip = 0;
+            if (index == endChunk) {
+                limit -= trim;
+            }
+            index++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.giuseppemarletta.file_service.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.http.ExecutableHttpRequest;
+import software.amazon.awssdk.http.HttpExecuteRequest;
+import software.amazon.awssdk.http.HttpExecuteResponse;
+import software.amazon.awssdk.http.SdkHttpClient;
+
+/**
+ * Limita le richieste in corso di un client HTTP dell'SDK al numero di connessioni del suo pool. Con i
+ * virtual thread un thread che aspetta una connessione libera dentro Apache HttpClient blocca anche il suo
+ * carrier (la lease avviene in un blocco synchronized): se tutti i carrier aspettano, i thread che tengono
+ * le connessioni non possono più girare per restituirle. Qui l'attesa avviene su un Semaphore, che libera
+ * il carrier, con lo stesso limite di attesa del pool (connectionAcquisitionTimeout).
+ *
+ * Il permesso viene restituito quando il body della risposta viene chiuso, cioè quando la connessione
+ * torna nel pool: per GetObject anche molto dopo la fine della chiamata.
+ */
+public class GatedSdkHttpClient implements SdkHttpClient {
+
+    private final SdkHttpClient delegate;
+    private final Semaphore permits;
+    private final Duration acquisitionTimeout;
+
+    public GatedSdkHttpClient(SdkHttpClient delegate, int maxConnections, Duration acquisitionTimeout) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConnections);
+        this.acquisitionTimeout = acquisitionTimeout;
+    }
+
+    @Override
+    public ExecutableHttpRequest prepareRequest(HttpExecuteRequest request) {
+        ExecutableHttpRequest executable = delegate.prepareRequest(request);
+        return new ExecutableHttpRequest() {
+            @Override
+            public HttpExecuteResponse call() throws IOException {
+                try {
+                    if (!permits.tryAcquire(acquisitionTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                        // What the pool itself throws when no connection frees up in time
+                        throw SdkClientException.create("Timed out after " + acquisitionTimeout.toMillis()
+                                + " ms waiting for a connection from the pool");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a connection");
+                }
+                boolean held = false;
+                try {
+                    HttpExecuteResponse response = executable.call();
+                    if (response.responseBody().isEmpty()) {
+                        return response;
+                    }
+                    AbortableInputStream body = response.responseBody().get();
+                    AtomicBoolean released = new AtomicBoolean();
+                    Runnable release = () -> {
+                        if (released.compareAndSet(false, true)) {
+                            permits.release();
+                        }
+                    };
+                    held = true;
+                    return HttpExecuteResponse.builder()
+                            .response(response.httpResponse())
+                            .responseBody(AbortableInputStream.create(new FilterInputStream(body) {
+                                @Override
+                                public void close() throws IOException {
+                                    try {
+                                        super.close();
+                                    } finally {
+                                        release.run();
+                                    }
+                                }
+                            }, () -> {
+                                try {
+                                    body.abort();
+                                } finally {
+                                    release.run();
+                                }
+                            }))
+                            .build();
+                } finally {
+                    if (!held) {
+                        permits.release();
+                    }
+                }
+            }
+
+            @Override
+            public void abort() {
+                executable.abort();
+            }
+        };
+    }
+
+    @Override
+    public String clientName() {
+        return delegate.clientName();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
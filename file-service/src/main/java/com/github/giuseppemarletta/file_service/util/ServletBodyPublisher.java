@@ -0,0 +1,159 @@
+package com.github.giuseppemarletta.file_service.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+
+/**
+ * Il body di una richiesta servlet come Publisher di ByteBuffer, letto con l'I/O non bloccante della
+ * Servlet API: nessun thread resta fermo ad aspettare i byte di un client lento. I byte vengono letti
+ * solo quando il subscriber (il client S3 asincrono) ne chiede, quindi un S3 lento rallenta la lettura
+ * invece di riempire la memoria.
+ *
+ * La richiesta deve essere già in modalità asincrona. Il body può essere consumato una sola volta: un
+ * secondo subscriber, per esempio un retry dell'SDK, riceve subito un errore.
+ */
+public class ServletBodyPublisher implements Publisher<ByteBuffer>, ReadListener {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ServletInputStream input;
+    private final long contentLength;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final AtomicBoolean terminated = new AtomicBoolean();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger(); // Serializes the reads, see drain()
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private volatile Subscriber<? super ByteBuffer> subscriber;
+    private volatile boolean cancelled;
+    private volatile boolean allDataRead;
+    private volatile Throwable error;
+    private long received;
+
+    public ServletBodyPublisher(ServletInputStream input, long contentLength) {
+        this.input = input;
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> s) {
+        if (!subscribed.compareAndSet(false, true)) {
+            s.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("The request body can be read only once"));
+            return;
+        }
+        subscriber = s;
+        s.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("Non-positive request: " + n));
+                    return;
+                }
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+            }
+        });
+        // Registering the listener makes the container call onDataAvailable once data can be read
+        input.setReadListener(this);
+    }
+
+    @Override
+    public void onDataAvailable() {
+        drain();
+    }
+
+    @Override
+    public void onAllDataRead() {
+        // Completed by drain(), after the last chunk it may still be delivering on another thread
+        allDataRead = true;
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // Usually the client went away in the middle of the upload
+        fail(t);
+    }
+
+    /**
+     * Legge finché ci sono richieste del subscriber e byte disponibili senza bloccare. Può essere chiamato
+     * sia dal container (onDataAvailable) sia dal thread dell'SDK che chiede altri byte: solo un thread alla
+     * volta legge, gli altri segnalano soltanto di ricontrollare.
+     */
+    private void drain() {
+        if (subscriber == null || wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            try {
+                // isReady() false means the container calls onDataAvailable when more bytes arrive
+                while (demand.get() > 0 && !cancelled && !terminated.get() && !input.isFinished() && input.isReady()) {
+                    int read = input.read(chunk);
+                    if (read < 0) {
+                        break;
+                    }
+                    if (read == 0) {
+                        continue;
+                    }
+                    received += read;
+                    if (received > contentLength) {
+                        fail(new IOException("Request body is longer than its Content-Length"));
+                        return;
+                    }
+                    demand.decrementAndGet();
+                    byte[] copy = new byte[read];
+                    System.arraycopy(chunk, 0, copy, 0, read);
+                    subscriber.onNext(ByteBuffer.wrap(copy));
+                }
+                if (allDataRead) {
+                    if (received != contentLength) {
+                        fail(new IOException("Request body ended after " + received + " of " + contentLength + " bytes"));
+                    } else if (terminated.compareAndSet(false, true) && !cancelled) {
+                        subscriber.onComplete();
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+
+    /**
+     * L'errore con cui è terminata la lettura del body, null se il body è stato letto tutto o non ancora.
+     * Permette di distinguere un client che si è disconnesso da un errore di S3.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    private void fail(Throwable t) {
+        if (terminated.compareAndSet(false, true) && subscriber != null && !cancelled) {
+            error = t;
+            subscriber.onError(t);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.giuseppemarletta.file_service;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Confronta POST /files/upload (bloccante) con PUT /files/async/upload su un'istanza in esecuzione, con
+ * molti upload lenti in parallelo. Non fa parte della build, si lancia a mano:
+ *
+ * mvn test -Dtest=AsyncUploadBenchmark -Dbenchmark.url=http://localhost:8080 -Dbenchmark.token=JWT
+ *
+ * Opzioni: benchmark.uploads (upload in parallelo, 200), benchmark.size (byte per file, 262144),
+ * benchmark.rate (byte al secondo per client, 65536). Per ogni percorso stampa la latenza, il throughput
+ * e il picco di jvm.threads.live del servizio letto da /actuator/metrics.
+ *
+ * Su loopback i buffer dei socket del kernel assorbono diversi MB per connessione, e un client lento
+ * sembra veloce al servizio: per vedere la differenza servono file più grandi di quei buffer (es. 12 MB)
+ * o un client su un'altra macchina. Con pochi thread di Tomcat (server.tomcat.threads.max) il percorso
+ * bloccante mette in coda gli upload oltre quel numero, quello asincrono no.
+ */
+@EnabledIfSystemProperty(named = "benchmark.url", matches = ".+")
+class AsyncUploadBenchmark {
+
+    private static final Pattern METRIC_VALUE = Pattern.compile("\"value\"\\s*:\\s*([0-9.E]+)");
+    private static final int SLICE = 4096;
+
+    private final String url = System.getProperty("benchmark.url");
+    private final String token = System.getProperty("benchmark.token", "");
+    private final int uploads = Integer.getInteger("benchmark.uploads", 200);
+    private final int size = Integer.getInteger("benchmark.size", 256 * 1024);
+    private final int rate = Integer.getInteger("benchmark.rate", 64 * 1024);
+
+    // Throttled bodies wait on the scheduler, so the client itself needs few threads
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .build();
+
+    @Test
+    void compareBlockingAndAsyncUploads() throws Exception {
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) 'a');
+
+        // Warm up both paths before measuring
+        run("blocking (warm-up)", Math.min(uploads, 10), content, false);
+        run("async (warm-up)", Math.min(uploads, 10), content, true);
+
+        run("blocking", uploads, content, false);
+        run("async", uploads, content, true);
+        scheduler.shutdownNow();
+    }
+
+    private void run(String name, int count, byte[] content, boolean async) throws Exception {
+        AtomicLong peakThreads = new AtomicLong(threadsLive());
+        ScheduledFuture<?> sampler = scheduler.scheduleAtFixedRate(() -> {
+            try {
+                peakThreads.accumulateAndGet(threadsLive(), Math::max);
+            } catch (Exception e) {
+                // A missed sample only lowers the peak
+            }
+        }, 0, 200, TimeUnit.MILLISECONDS);
+
+        AtomicInteger failed = new AtomicInteger();
+        long[] latencies = new long[count];
+        List<CompletableFuture<?>> requests = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            long requestStart = System.nanoTime();
+            requests.add(client.sendAsync(async ? asyncRequest(content) : blockingRequest(content),
+                            HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, e) -> {
+                        latencies[index] = System.nanoTime() - requestStart;
+                        if (e != null || response.statusCode() != 201) {
+                            failed.incrementAndGet();
+                        }
+                    }));
+        }
+        CompletableFuture.allOf(requests.toArray(CompletableFuture[]::new)).exceptionally(e -> null).join();
+        long elapsed = System.nanoTime() - start;
+        sampler.cancel(false);
+
+        Arrays.sort(latencies);
+        System.out.printf("%-20s uploads=%d failed=%d elapsed=%dms throughput=%.1f uploads/s p50=%dms p99=%dms peak threads=%d%n",
+                name, count, failed.get(), elapsed / 1_000_000, count / (elapsed / 1e9),
+                latencies[count / 2] / 1_000_000, latencies[Math.min(count - 1, count * 99 / 100)] / 1_000_000,
+                peakThreads.get());
+    }
+
+    private HttpRequest blockingRequest(byte[] content) {
+        String boundary = UUID.randomUUID().toString();
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"visibility\"\r\n\r\nPUBLIC\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"benchmark.txt\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[head.length + content.length + tail.length];
+        System.arraycopy(head, 0, body, 0, head.length);
+        System.arraycopy(content, 0, body, head.length, content.length);
+        System.arraycopy(tail, 0, body, head.length + content.length, tail.length);
+
+        return HttpRequest.newBuilder(URI.create(url + "/files/upload"))
+                .header("Authorization", "Bearer " + token)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.fromPublisher(new SlowBody(body), body.length))
+                .build();
+    }
+
+    private HttpRequest asyncRequest(byte[] content) {
+        return HttpRequest.newBuilder(URI.create(url + "/files/async/upload?fileName=benchmark.txt&visibility=PUBLIC"))
+                .header("Authorization", "Bearer " + token)
+                .header("Content-Type", "text/plain")
+                .PUT(HttpRequest.BodyPublishers.fromPublisher(new SlowBody(content), content.length))
+                .build();
+    }
+
+    private long threadsLive() throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(url + "/actuator/metrics/jvm.threads.live"))
+                .timeout(Duration.ofSeconds(5))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        Matcher matcher = METRIC_VALUE.matcher(response.body());
+        return matcher.find() ? (long) Double.parseDouble(matcher.group(1)) : 0;
+    }
+
+    /**
+     * Un body che arriva a benchmark.rate byte al secondo, come da un client su una rete lenta.
+     */
+    private class SlowBody implements Flow.Publisher<ByteBuffer> {
+
+        private final byte[] body;
+
+        SlowBody(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            AtomicLong demand = new AtomicLong();
+            AtomicInteger position = new AtomicInteger();
+            long periodMicros = Math.max(1, SLICE * 1_000_000L / rate);
+            ScheduledFuture<?>[] task = new ScheduledFuture<?>[1];
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    demand.addAndGet(n);
+                }
+
+                @Override
+                public void cancel() {
+                    task[0].cancel(false);
+                }
+            });
+            task[0] = scheduler.scheduleAtFixedRate(() -> {
+                if (demand.get() == 0) {
+                    return;
+                }
+                int from = position.get();
+                if (from >= body.length) {
+                    task[0].cancel(false);
+                    subscriber.onComplete();
+                    return;
+                }
+                int to = Math.min(body.length, from + SLICE);
+                position.set(to);
+                demand.decrementAndGet();
+                subscriber.onNext(ByteBuffer.wrap(body, from, to - from));
+            }, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.giuseppemarletta.file_service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import com.github.giuseppemarletta.file_service.util.ChunkedAesGcm;
+
+/**
+ * Misura il costo della cifratura a blocchi di ChunkedAesGcm rispetto alla semplice copia dello stream, per
+ * diverse dimensioni di blocco (encryption.chunk-size). Non fa parte della build, si lancia a mano:
+ *
+ * mvn test -Dtest=EncryptionBenchmark -Dbenchmark.encryption=true
+ *
+ * Opzioni: benchmark.size (byte in chiaro, 268435456), benchmark.chunk-sizes ("16384,65536,262144,1048576"),
+ * benchmark.rounds (ripetizioni misurate, 5), benchmark.range (byte di ogni lettura parziale, 1048576).
+ * Per ogni dimensione stampa il throughput di copia, cifratura e decifratura in MB/s, l'overhead rispetto
+ * alla copia e la latenza media di una lettura parziale in un punto a caso, che decifra solo i blocchi toccati.
+ */
+@EnabledIfSystemProperty(named = "benchmark.encryption", matches = "true")
+class EncryptionBenchmark {
+
+    private final int size = Integer.getInteger("benchmark.size", 256 * 1024 * 1024);
+    private final String chunkSizes = System.getProperty("benchmark.chunk-sizes", "16384,65536,262144,1048576");
+    private final int rounds = Integer.getInteger("benchmark.rounds", 5);
+    private final int range = Integer.getInteger("benchmark.range", 1024 * 1024);
+
+    private final SecretKey key = new SecretKeySpec(randomBytes(32), "AES");
+
+    // Every path copies its output here, as the service copies it to the socket
+    private final OutputStream sink = new OutputStream() {
+        private final byte[] scratch = new byte[64 * 1024];
+
+        @Override
+        public void write(int b) {
+            scratch[0] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int n; len > 0; off += n, len -= n) {
+                n = Math.min(len, scratch.length);
+                System.arraycopy(b, off, scratch, 0, n);
+            }
+        }
+    };
+
+    @Test
+    void measureEncryptionOverhead() throws Exception {
+        byte[] plaintext = randomBytes(size);
+        // AES-GCM runs on the AES and CLMUL intrinsics of the JIT where the CPU has them
+        System.out.println("JVM " + Runtime.version() + " on " + System.getProperty("os.arch"));
+
+        for (String value : chunkSizes.split(",")) {
+            int chunkSize = Integer.parseInt(value.trim());
+            byte[] ciphertext = encrypt(plaintext, chunkSize);
+            if (!Arrays.equals(plaintext, decrypt(ciphertext, chunkSize, 0, size - 1))) {
+                throw new IllegalStateException("Round trip failed with chunk size " + chunkSize);
+            }
+
+            // Warm-up, then the best of the measured rounds
+            double copy = 0;
+            double encrypt = 0;
+            double decrypt = 0;
+            for (int round = -2; round < rounds; round++) {
+                double copyRate = rate(() -> new ByteArrayInputStream(plaintext).transferTo(sink));
+                double encryptRate = rate(() -> ChunkedAesGcm.encrypting(new ByteArrayInputStream(plaintext), key, chunkSize, size)
+                        .transferTo(sink));
+                double decryptRate = rate(() -> ChunkedAesGcm.decrypting(new ByteArrayInputStream(ciphertext), key, chunkSize, size, 0, size - 1)
+                        .transferTo(sink));
+                if (round >= 0) {
+                    copy = Math.max(copy, copyRate);
+                    encrypt = Math.max(encrypt, encryptRate);
+                    decrypt = Math.max(decrypt, decryptRate);
+                }
+            }
+
+            long rangeNanos = 0;
+            int ranges = 200;
+            for (int i = 0; i < ranges; i++) {
+                long start = ThreadLocalRandom.current().nextLong(Math.max(1, size - range));
+                long end = Math.min(size - 1, start + range - 1);
+                long began = System.nanoTime();
+                decrypt(ciphertext, chunkSize, start, end);
+                rangeNanos += System.nanoTime() - began;
+            }
+
+            System.out.printf("chunk=%-8d copy=%8.0f MB/s encrypt=%7.0f MB/s (%5.1fx) decrypt=%7.0f MB/s (%5.1fx) "
+                    + "range(%d B)=%6.0f us size overhead=%.3f%%%n",
+                    chunkSize, copy, encrypt, copy / encrypt, decrypt, copy / decrypt, range,
+                    rangeNanos / 1000.0 / ranges, 100.0 * (ciphertext.length - size) / size);
+        }
+    }
+
+    private byte[] encrypt(byte[] plaintext, int chunkSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) ChunkedAesGcm.ciphertextLength(plaintext.length, chunkSize));
+        try (InputStream in = ChunkedAesGcm.encrypting(new ByteArrayInputStream(plaintext), key, chunkSize, plaintext.length)) {
+            in.transferTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    // Reads only the chunks holding start-end, as FileProxyService asks S3 for them
+    private byte[] decrypt(byte[] ciphertext, int chunkSize, long start, long end) throws IOException {
+        int from = (int) ChunkedAesGcm.ciphertextStart(start, chunkSize);
+        int to = (int) ChunkedAesGcm.ciphertextEnd(end, size, chunkSize);
+        try (InputStream in = ChunkedAesGcm.decrypting(new ByteArrayInputStream(ciphertext, from, to - from + 1),
+                key, chunkSize, size, start, end)) {
+            return in.readAllBytes();
+        }
+    }
+
+    // MB per second of one run over the whole plaintext
+    private double rate(Run run) throws IOException {
+        long began = System.nanoTime();
+        run.run();
+        return size / 1e6 / ((System.nanoTime() - began) / 1e9);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+
+    @FunctionalInterface
+    private interface Run {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.giuseppemarletta.file_service;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Carico a concorrenza crescente su un endpoint di un'istanza in esecuzione, per trovare il livello a cui
+ * il servizio satura con i thread di piattaforma e con i virtual thread (spring.threads.virtual.enabled).
+ * Non fa parte della build, si lancia a mano contro il servizio avviato in uno dei due modi. È un client HTTP
+ * generico e serve anche per auth-service, che non ne ha una copia:
+ *
+ * mvn test -Dtest=ThreadModeLoadTest -Dloadtest.url=http://localhost:8080/files/ID/content -Dloadtest.token=JWT
+ * mvn test -Dtest=ThreadModeLoadTest -Dloadtest.url=http://localhost:8080/auth/login -Dloadtest.method=POST \
+ * -Dloadtest.body={"email":"...","password":"..."}
+ *
+ * Opzioni: loadtest.method (GET), loadtest.body (JSON, per POST), loadtest.levels (client concorrenti per
+ * livello, "8,16,32,64,128,256,512,1024"), loadtest.duration (durata di ogni livello, PT10S).
+ * Ogni client invia la richiesta successiva appena riceve la risposta. Per ogni livello stampa throughput,
+ * latenze ed errori; il servizio è saturo al primo livello in cui raddoppiare i client non aumenta il
+ * throughput di almeno il 10%.
+ */
+@EnabledIfSystemProperty(named = "loadtest.url", matches = ".+")
+class ThreadModeLoadTest {
+
+    // Latencies kept per client, beyond that requests are only counted
+    private static final int SAMPLES_PER_CLIENT = 4096;
+
+    private final String url = System.getProperty("loadtest.url");
+    private final String token = System.getProperty("loadtest.token", "");
+    private final String method = System.getProperty("loadtest.method", "GET");
+    private final String body = System.getProperty("loadtest.body");
+    private final String levels = System.getProperty("loadtest.levels", "8,16,32,64,128,256,512,1024");
+    private final Duration duration = Duration.parse(System.getProperty("loadtest.duration", "PT10S"));
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .build();
+
+    @Test
+    void findSaturationPoint() throws Exception {
+        HttpRequest request = request();
+        // Warm-up: JIT, connection pools and caches of the service
+        run(request, 8, Duration.ofSeconds(5));
+
+        double best = 0;
+        Integer saturatedAt = null;
+        for (String level : levels.split(",")) {
+            int clients = Integer.parseInt(level.trim());
+            Result result = run(request, clients, duration);
+            System.out.printf("clients=%-5d throughput=%8.1f req/s p50=%6dms p99=%6dms errors=%d%n",
+                    clients, result.throughput(), result.p50(), result.p99(), result.errors());
+            if (saturatedAt == null && best > 0 && result.throughput() < best * 1.1) {
+                saturatedAt = clients;
+            }
+            best = Math.max(best, result.throughput());
+        }
+        System.out.println(saturatedAt != null
+                ? "Saturated at " + saturatedAt + " clients, peak " + Math.round(best) + " req/s"
+                : "Not saturated, peak " + Math.round(best) + " req/s");
+    }
+
+    private HttpRequest request() {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofSeconds(60))
+                .header("Authorization", "Bearer " + token);
+        if (body != null) {
+            builder.header("Content-Type", "application/json");
+        }
+        return builder.method(method, body != null
+                ? HttpRequest.BodyPublishers.ofString(body)
+                : HttpRequest.BodyPublishers.noBody()).build();
+    }
+
+    private Result run(HttpRequest request, int clients, Duration length) throws InterruptedException {
+        long deadline = System.nanoTime() + length.toNanos();
+        AtomicLong errors = new AtomicLong();
+        List<long[]> latencies = new ArrayList<>();
+        int[] counts = new int[clients];
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                int index = c;
+                long[] own = new long[SAMPLES_PER_CLIENT];
+                latencies.add(own);
+                executor.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        try {
+                            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                            if (response.statusCode() >= 400) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        long end = System.nanoTime();
+                        if (end > deadline) {
+                            break; // Finished after the window, counting it would inflate the throughput
+                        }
+                        if (counts[index] < own.length) {
+                            own[counts[index]] = end - start;
+                        }
+                        counts[index]++;
+                    }
+                });
+            }
+        }
+
+        long total = Arrays.stream(counts).asLongStream().sum();
+        long[] all = new long[Arrays.stream(counts).map(n -> Math.min(n, SAMPLES_PER_CLIENT)).sum()];
+        int position = 0;
+        for (int c = 0; c < clients; c++) {
+            int n = Math.min(counts[c], SAMPLES_PER_CLIENT);
+            System.arraycopy(latencies.get(c), 0, all, position, n);
+            position += n;
+        }
+        Arrays.sort(all);
+        long p50 = all.length > 0 ? all[all.length / 2] / 1_000_000 : 0;
+        long p99 = all.length > 0 ? all[Math.min(all.length - 1, (int) (all.length * 0.99))] / 1_000_000 : 0;
+        return new Result(total / (length.toNanos() / 1e9), p50, p99, errors.get());
+    }
+
+    private record Result(double throughput, long p50, long p99, long errors) {
+    }
+}
@@ -0,0 +1,177 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ContentIndexSegmentTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatTheWriterWrote() throws IOException {
+        int docs = 40_000;
+        List<String> fileIds = new ArrayList<>();
+        int[] lengths = new int[docs];
+        for (int doc = 0; doc < docs; doc++) {
+            fileIds.add("file-" + doc);
+            lengths[doc] = doc * 3;
+        }
+        // Gaps and frequencies of one, two and three varint bytes, and a non-ASCII term between the ASCII ones
+        Map<String, int[][]> postings = new TreeMap<>();
+        postings.put("alpha", new int[][] { { 0, 1 }, { 1, 127 }, { 128, 128 }, { 16_511, 16_384 }, { docs - 1, 1 } });
+        postings.put("città", new int[][] { { 5, 2 }, { 6, 3 } });
+        postings.put("cittadino", new int[][] { { 0, 4 } });
+        postings.put("zeta", new int[][] { { 200, 1_000_000 } });
+
+        ContentIndexSegment segment = write("segment-0.idx", fileIds, lengths, postings);
+
+        assertEquals(docs, segment.docCount());
+        assertEquals("file-12345", segment.fileId(12_345));
+        assertEquals(12_345 * 3, segment.length(12_345));
+        assertEquals(3L * docs * (docs - 1) / 2, segment.totalLength());
+        assertEquals(postings.size(), segment.termCount());
+        int index = 0;
+        for (Map.Entry<String, int[][]> term : postings.entrySet()) {
+            assertEquals(term.getKey(), segment.term(index));
+            assertEquals(term.getValue().length, segment.docFreq(term.getKey()));
+            assertPostings(term.getValue(), collect(segment, term.getKey()));
+            List<int[]> byIndex = new ArrayList<>();
+            segment.postings(index, (doc, freq) -> byIndex.add(new int[] { doc, freq }));
+            assertPostings(term.getValue(), byIndex);
+            index++;
+        }
+        // Before the first term, between two terms, a prefix and after the last one
+        for (String missing : List.of("a", "beta", "citt", "zz")) {
+            assertEquals(0, segment.docFreq(missing), missing);
+            assertTrue(collect(segment, missing).isEmpty(), missing);
+        }
+    }
+
+    @Test
+    void leavesOutTermsWithoutPostingsAndUnfinishedSegments() throws IOException {
+        Path path = directory.resolve("segment-0.idx");
+        try (ContentIndexSegment.Writer writer = new ContentIndexSegment.Writer(path, List.of("a"), new int[] { 1 })) {
+            writer.startTerm("empty");
+            writer.startTerm("word");
+            writer.posting(0, 1);
+            writer.finish();
+        }
+        ContentIndexSegment segment = ContentIndexSegment.open(path);
+        assertEquals(1, segment.termCount());
+        assertEquals("word", segment.term(0));
+        assertEquals(0, segment.docFreq("empty"));
+
+        Path unfinished = directory.resolve("segment-1.idx");
+        try (ContentIndexSegment.Writer writer = new ContentIndexSegment.Writer(unfinished, List.of("a"), new int[] { 1 })) {
+            writer.startTerm("word");
+            writer.posting(0, 1);
+        }
+        try (var files = Files.list(directory)) {
+            assertEquals(List.of(path), files.toList());
+        }
+    }
+
+    @Test
+    void mergeDropsDeletedDocsAndRenumbersTheRest() throws IOException {
+        ContentIndexSegment first = write("segment-0.idx", List.of("a0", "a1", "a2"), new int[] { 10, 11, 12 }, Map.of(
+                "common", new int[][] { { 0, 1 }, { 1, 2 }, { 2, 3 } },
+                "gone", new int[][] { { 1, 5 } },
+                "only", new int[][] { { 2, 7 } }));
+        ContentIndexSegment second = write("segment-1.idx", List.of("b0", "b1"), new int[] { 20, 21 }, Map.of(
+                "common", new int[][] { { 0, 4 }, { 1, 5 } },
+                "gone", new int[][] { { 0, 6 } },
+                "zeta", new int[][] { { 1, 8 } }));
+        ContentIndexSegment third = write("segment-2.idx", List.of("c0"), new int[] { 30 }, Map.of(
+                "alpha", new int[][] { { 0, 9 } },
+                "common", new int[][] { { 0, 6 } }));
+
+        ContentIndexSegment merged = ContentIndexSegment.merge(directory.resolve("segment-3.idx"),
+                List.of(first, second, third), Set.of("a1", "b0"));
+
+        assertEquals(4, merged.docCount());
+        assertEquals(List.of("a0", "a2", "b1", "c0"), List.of(merged.fileId(0), merged.fileId(1), merged.fileId(2), merged.fileId(3)));
+        assertEquals(List.of(10, 12, 21, 30), List.of(merged.length(0), merged.length(1), merged.length(2), merged.length(3)));
+        assertEquals(73, merged.totalLength());
+        // "gone" only appeared in deleted docs and is no longer in the dictionary
+        assertEquals(4, merged.termCount());
+        assertEquals(List.of("alpha", "common", "only", "zeta"),
+                List.of(merged.term(0), merged.term(1), merged.term(2), merged.term(3)));
+        assertEquals(0, merged.docFreq("gone"));
+        assertPostings(new int[][] { { 0, 1 }, { 1, 3 }, { 2, 5 }, { 3, 6 } }, collect(merged, "common"));
+        assertPostings(new int[][] { { 1, 7 } }, collect(merged, "only"));
+        assertPostings(new int[][] { { 2, 8 } }, collect(merged, "zeta"));
+        assertPostings(new int[][] { { 3, 9 } }, collect(merged, "alpha"));
+    }
+
+    @Test
+    void keepsTokensUpToTheMaximumLength() throws IOException {
+        String longest = "a".repeat(ContentIndexService.MAX_TOKEN_LENGTH);
+        String tooLong = "b".repeat(ContentIndexService.MAX_TOKEN_LENGTH + 1);
+        List<String> tokens = new ArrayList<>();
+
+        ContentIndexService.Tokenized tokenized = ContentIndexService.tokenize(
+                new StringReader(longest + " " + tooLong + " x Hello," + "c".repeat(500) + "\nwo"), Long.MAX_VALUE, tokens::add);
+
+        // Longer runs are dropped whole, not cut, and single characters are not words
+        assertEquals(List.of(longest, "hello", "wo"), tokens);
+        assertEquals(3, tokenized.tokens());
+        assertTrue(tokenized.complete());
+        assertFalse(tokenized.binary());
+    }
+
+    @Test
+    void keepsATokenSplitAcrossReads() throws IOException {
+        // The reader fills 8192 characters at a time: the longest token straddles the first boundary
+        String token = "d".repeat(ContentIndexService.MAX_TOKEN_LENGTH);
+        String text = " ".repeat(8192 - ContentIndexService.MAX_TOKEN_LENGTH / 2) + token + " end";
+        List<String> tokens = new ArrayList<>();
+
+        ContentIndexService.tokenize(new StringReader(text), Long.MAX_VALUE, tokens::add);
+
+        assertEquals(List.of(token, "end"), tokens);
+    }
+
+    private ContentIndexSegment write(String name, List<String> fileIds, int[] lengths, Map<String, int[][]> postings)
+            throws IOException {
+        Path path = directory.resolve(name);
+        try (ContentIndexSegment.Writer writer = new ContentIndexSegment.Writer(path, fileIds, lengths)) {
+            for (Map.Entry<String, int[][]> term : new TreeMap<>(postings).entrySet()) {
+                writer.startTerm(term.getKey());
+                for (int[] posting : term.getValue()) {
+                    writer.posting(posting[0], posting[1]);
+                }
+            }
+            writer.finish();
+        }
+        return ContentIndexSegment.open(path);
+    }
+
+    private static List<int[]> collect(ContentIndexSegment segment, String term) {
+        List<int[]> postings = new ArrayList<>();
+        segment.postings(term, (doc, freq) -> postings.add(new int[] { doc, freq }));
+        return postings;
+    }
+
+    private static void assertPostings(int[][] expected, List<int[]> actual) {
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], actual.get(i)[0], "doc of posting " + i);
+            assertEquals(expected[i][1], actual.get(i)[1], "freq of posting " + i);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.giuseppemarletta.file_service.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import com.github.giuseppemarletta.file_service.dto.CsvColumnStatsDto;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CsvStatsServiceTest {
+
+    // The smallest buffer compute() uses, whatever csv.stats.chunk-size says
+    private static final int CHUNK = 64 * 1024;
+
+    private CsvStatsService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new CsvStatsService(null, null, null, null, new SimpleMeterRegistry(), null);
+        ReflectionTestUtils.setField(service, "parallelism", 4);
+        ReflectionTestUtils.setField(service, "chunkSize", DataSize.ofKilobytes(64));
+        ReflectionTestUtils.setField(service, "queueCapacity", 1);
+        ReflectionTestUtils.setField(service, "maxColumns", 256);
+        ReflectionTestUtils.setField(service, "delimiter", ',');
+        service.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    void parsesQuotedFieldsWithNewlinesAndEscapedQuotes() throws IOException {
+        CsvStatsService.Result result = compute("""
+                id,text,value
+                1,"hello, ""world""
+                second line",10
+                2,plain,20
+                3,"a ""quoted"", value",NULL
+                4,"",30
+                """);
+
+        assertEquals(4, result.rows());
+        CsvColumnStatsDto text = column(result, "text");
+        assertEquals("text", text.getType());
+        assertEquals(3, text.getCount());
+        assertEquals(1, text.getNulls()); // The empty quoted field
+        assertEquals(3, text.getDistinct());
+        // Had a quote or the newline ended a field early, the values would have shifted into this column
+        CsvColumnStatsDto value = column(result, "value");
+        assertEquals("numeric", value.getType());
+        assertEquals(3, value.getNumericCount());
+        assertEquals(1, value.getNulls());
+        assertEquals(10.0, value.getMin());
+        assertEquals(30.0, value.getMax());
+        assertEquals(20.0, value.getMean());
+    }
+
+    @Test
+    void stripsCarriageReturnsAndSkipsEmptyLines() throws IOException {
+        CsvStatsService.Result result = compute("\uFEFFname,score\r\n"
+                + "a,1\r\n"
+                + "\r\n"
+                + "b,2\r\n"
+                + "c,\"3\"\r\n"
+                + "d,4"); // No line break after the last record
+
+        assertEquals(4, result.rows());
+        assertEquals(List.of("name", "score"), result.columns().stream().map(CsvColumnStatsDto::getName).toList());
+        CsvColumnStatsDto score = column(result, "score");
+        assertEquals("numeric", score.getType());
+        assertEquals(4, score.getNumericCount());
+        assertEquals(1.0, score.getMin());
+        assertEquals(4.0, score.getMax());
+        assertEquals(0, score.getNulls());
+    }
+
+    @Test
+    void splitsChunksOutsideQuotes() throws IOException {
+        // Most of each record is a quoted field spanning lines, so the chunk boundaries fall inside quotes
+        String filler = "x".repeat(300) + "\n" + "y\"\"z, ".repeat(50) + "\r\n" + "w".repeat(200);
+        StringBuilder csv = new StringBuilder("id,note,value\r\n");
+        int rows = 2000;
+        for (int i = 0; i < rows; i++) {
+            csv.append(i).append(",\"").append(filler).append(i % 7).append("\",").append(i).append("\r\n");
+        }
+        byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+        assertTrue(bytes.length > 10 * CHUNK);
+        // The first read ends between the two quotes of an escaped quote, the hardest place to cut
+        assertEquals('"', bytes[CHUNK - 1]);
+        assertEquals('"', bytes[CHUNK]);
+
+        CsvStatsService.Result result = service.compute(new ByteArrayInputStream(bytes));
+
+        assertEquals(rows, result.rows());
+        CsvColumnStatsDto id = column(result, "id");
+        assertEquals(rows, id.getNumericCount());
+        assertEquals(rows, id.getDistinct(), 0.02 * rows);
+        CsvColumnStatsDto note = column(result, "note");
+        assertEquals(rows, note.getCount());
+        assertEquals(7, note.getDistinct());
+        CsvColumnStatsDto value = column(result, "value");
+        assertEquals(0.0, value.getMin());
+        assertEquals(rows - 1.0, value.getMax());
+        assertEquals((rows - 1) / 2.0, value.getMean(), 1e-9);
+        assertEquals(0, value.getNulls());
+    }
+
+    @Test
+    void countsShortRowsAsNullsAndIgnoresExtraColumns() throws IOException {
+        ReflectionTestUtils.setField(service, "maxColumns", 2);
+        CsvStatsService.Result result = compute("a,b,c\n1,2,3\n4\n");
+
+        assertEquals(2, result.rows());
+        assertEquals(1, result.ignoredColumns());
+        assertEquals(2, result.columns().size());
+        CsvColumnStatsDto b = column(result, "b");
+        assertEquals(1, b.getCount());
+        assertEquals(1, b.getNulls()); // Missing in the short row
+        assertEquals(2.0, b.getMax());
+    }
+
+    @Test
+    void rejectsAFileWithoutHeader() {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> compute(""));
+        assertEquals("No header row", e.getMessage());
+    }
+
+    @Test
+    void rejectsAnUnbalancedQuote() {
+        // The stray quote makes the rest of the file one record, which outgrows the buffer bound
+        String csv = "id,text\n1,\"never closed\n" + "2,filler\n".repeat(20 * CHUNK / 9);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> compute(csv));
+        assertTrue(e.getMessage().contains("Unbalanced quotes"), e.getMessage());
+    }
+
+    private CsvStatsService.Result compute(String csv) throws IOException {
+        return service.compute(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static CsvColumnStatsDto column(CsvStatsService.Result result, String name) {
+        return result.columns().stream().filter(column -> column.getName().equals(name)).findFirst().orElseThrow();
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.giuseppemarletta.file_service.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.giuseppemarletta.file_service.model.FileMetadata;
+import com.github.giuseppemarletta.file_service.service.EncryptionService;
+
+class ChunkedAesGcmTest {
+
+    private static final int CHUNK = 1024;
+    private static final int SEALED = CHUNK + ChunkedAesGcm.TAG_LENGTH;
+
+    private final Random random = new Random(42);
+    private final SecretKey key = new SecretKeySpec(randomBytes(32), "AES");
+
+    @Test
+    void roundTripsAroundChunkSizes() throws IOException {
+        for (int size : new int[] { 0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK + 7 }) {
+            byte[] plaintext = randomBytes(size);
+            byte[] ciphertext = encrypt(plaintext, key);
+
+            assertEquals(ChunkedAesGcm.ciphertextLength(size, CHUNK), ciphertext.length, "ciphertext length of " + size);
+            long end = Math.max(0, size - 1);
+            assertArrayEquals(plaintext, decrypt(ciphertext, key, size, 0, end), "round trip of " + size);
+        }
+    }
+
+    @Test
+    void decryptsRangesOnAndAroundChunkBoundaries() throws IOException {
+        int size = 3 * CHUNK + 100;
+        byte[] plaintext = randomBytes(size);
+        byte[] ciphertext = encrypt(plaintext, key);
+
+        TreeSet<Long> positions = new TreeSet<>();
+        for (long boundary = 0; boundary <= size; boundary += CHUNK) {
+            for (long offset = -1; offset <= 1; offset++) {
+                if (boundary + offset >= 0 && boundary + offset < size) {
+                    positions.add(boundary + offset);
+                }
+            }
+        }
+        positions.add((long) size - 1);
+
+        for (long start : positions) {
+            for (long end : positions.tailSet(start)) {
+                byte[] expected = Arrays.copyOfRange(plaintext, (int) start, (int) end + 1);
+                assertArrayEquals(expected, decrypt(ciphertext, key, size, start, end), "range " + start + "-" + end);
+            }
+        }
+    }
+
+    @Test
+    void ciphertextRangeCoversWholeChunksOnly() throws IOException {
+        int size = 3 * CHUNK + 100;
+        byte[] plaintext = randomBytes(size);
+        byte[] ciphertext = encrypt(plaintext, key);
+        FileMetadata file = FileMetadata.builder().fileSize((long) size).encryptionChunkSize(CHUNK).build();
+
+        long[][] ranges = { { 0, 0 }, { 0, CHUNK - 1 }, { CHUNK - 1, CHUNK }, { CHUNK, 2 * CHUNK - 1 },
+                { CHUNK + 1, 3 * CHUNK }, { 3 * CHUNK, size - 1 }, { size - 1, size - 1 }, { 0, size - 1 } };
+        for (long[] range : ranges) {
+            // The Range header FileProxyService.openEncrypted sends to S3
+            String header = EncryptionService.ciphertextRange(file, range[0], range[1]);
+            String[] bounds = header.substring("bytes=".length()).split("-");
+            long from = Long.parseLong(bounds[0]);
+            long to = Long.parseLong(bounds[1]);
+
+            assertEquals("bytes=" + ChunkedAesGcm.ciphertextStart(range[0], CHUNK) + "-"
+                    + ChunkedAesGcm.ciphertextEnd(range[1], size, CHUNK), header);
+            assertEquals(range[0] / CHUNK * SEALED, from, "first chunk of " + header);
+            assertEquals(Math.min(ciphertext.length, (range[1] / CHUNK + 1) * SEALED) - 1, to, "last chunk of " + header);
+            assertTrue(to < ciphertext.length, header + " is beyond the object");
+
+            try (InputStream in = ChunkedAesGcm.decrypting(new ByteArrayInputStream(ciphertext, (int) from, (int) (to - from + 1)),
+                    key, CHUNK, size, range[0], range[1])) {
+                assertArrayEquals(Arrays.copyOfRange(plaintext, (int) range[0], (int) range[1] + 1), in.readAllBytes(), header);
+            }
+        }
+    }
+
+    @Test
+    void rejectsAFlippedByte() throws IOException {
+        int size = 3 * CHUNK;
+        byte[] ciphertext = encrypt(randomBytes(size), key);
+        ciphertext[SEALED + 10] ^= 1;
+
+        IOException e = assertThrows(IOException.class, () -> decrypt(ciphertext, key, size, 0, size - 1));
+        assertTrue(e.getMessage().contains("Chunk 1"), e.getMessage());
+        // Chunk 0 is still readable on its own
+        decrypt(ciphertext, key, size, 0, CHUNK - 1);
+    }
+
+    @Test
+    void rejectsSwappedChunks() throws IOException {
+        int size = 3 * CHUNK;
+        byte[] ciphertext = encrypt(randomBytes(size), key);
+        byte[] swapped = ciphertext.clone();
+        System.arraycopy(ciphertext, 0, swapped, SEALED, SEALED);
+        System.arraycopy(ciphertext, SEALED, swapped, 0, SEALED);
+
+        IOException e = assertThrows(IOException.class, () -> decrypt(swapped, key, size, 0, size - 1));
+        assertTrue(e.getMessage().contains("Chunk 0"), e.getMessage());
+    }
+
+    @Test
+    void rejectsTruncationAtAChunkBoundary() throws IOException {
+        int size = 3 * CHUNK;
+        byte[] ciphertext = encrypt(randomBytes(size), key);
+        byte[] truncated = Arrays.copyOf(ciphertext, 2 * SEALED);
+
+        IOException e = assertThrows(IOException.class, () -> decrypt(truncated, key, size, 0, size - 1));
+        assertTrue(e.getMessage().contains("truncated at chunk 2"), e.getMessage());
+        // Passed off as a shorter object, the last chunk lacks the final flag
+        e = assertThrows(IOException.class, () -> decrypt(truncated, key, 2 * CHUNK, 0, 2 * CHUNK - 1));
+        assertTrue(e.getMessage().contains("Chunk 1"), e.getMessage());
+    }
+
+    @Test
+    void rejectsAWrongKey() throws IOException {
+        int size = CHUNK + 1;
+        byte[] ciphertext = encrypt(randomBytes(size), key);
+        SecretKey other = new SecretKeySpec(randomBytes(32), "AES");
+
+        assertThrows(IOException.class, () -> decrypt(ciphertext, other, size, 0, size - 1));
+        // An empty object still carries a tag
+        byte[] empty = encrypt(new byte[0], key);
+        assertThrows(IOException.class, () -> decrypt(empty, other, 0, 0, 0));
+    }
+
+    @Test
+    void rejectsAStreamOfTheWrongLength() {
+        byte[] plaintext = randomBytes(CHUNK + 1);
+
+        assertThrows(IOException.class, () -> ChunkedAesGcm.encrypting(new ByteArrayInputStream(plaintext), key, CHUNK,
+                plaintext.length + 1).readAllBytes());
+        assertThrows(IOException.class, () -> ChunkedAesGcm.encrypting(new ByteArrayInputStream(plaintext), key, CHUNK,
+                plaintext.length - 1).readAllBytes());
+    }
+
+    private byte[] encrypt(byte[] plaintext, SecretKey key) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = ChunkedAesGcm.encrypting(new ByteArrayInputStream(plaintext), key, CHUNK, plaintext.length)) {
+            in.transferTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    // Reads only the chunks holding start-end, as FileProxyService asks S3 for them
+    private static byte[] decrypt(byte[] ciphertext, SecretKey key, long size, long start, long end) throws IOException {
+        int from = (int) ChunkedAesGcm.ciphertextStart(start, CHUNK);
+        int to = (int) Math.min(ciphertext.length - 1, ChunkedAesGcm.ciphertextEnd(end, size, CHUNK));
+        try (InputStream in = ChunkedAesGcm.decrypting(new ByteArrayInputStream(ciphertext, from, to - from + 1),
+                key, CHUNK, size, start, end)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.giuseppemarletta.file_service.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class HyperLogLogTest {
+
+    private static final int PRECISION = 12;
+
+    @Test
+    void smallCardinalitiesUseLinearCounting() {
+        for (int n : new int[] { 0, 1, 10, 100, 1000 }) {
+            HyperLogLog hll = new HyperLogLog(PRECISION);
+            for (int i = 0; i < n; i++) {
+                hll.add(hash("value-" + i));
+            }
+            // Linear counting on the empty registers: exact up to about a hundred values, then within a few percent
+            assertEquals(n, hll.estimate(), Math.max(1, 0.03 * n), "estimate of " + n);
+        }
+    }
+
+    @Test
+    void largeCardinalitiesStayWithinTheStandardError() {
+        int n = 1_000_000;
+        HyperLogLog hll = new HyperLogLog(PRECISION);
+        for (int i = 0; i < n; i++) {
+            hll.add(hash("value-" + i));
+        }
+        // Three standard errors, 1.04 / sqrt(4096) each
+        assertEquals(n, hll.estimate(), 3 * 0.0163 * n);
+    }
+
+    @Test
+    void ignoresDuplicates() {
+        HyperLogLog hll = new HyperLogLog(PRECISION);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 5000; i++) {
+                hll.add(hash("value-" + i));
+            }
+        }
+        assertEquals(5000, hll.estimate(), 3 * 0.0163 * 5000);
+    }
+
+    @Test
+    void mergeEqualsTheSketchOfTheUnion() {
+        HyperLogLog left = new HyperLogLog(PRECISION);
+        HyperLogLog right = new HyperLogLog(PRECISION);
+        HyperLogLog union = new HyperLogLog(PRECISION);
+        for (int i = 0; i < 60_000; i++) {
+            long hash = hash("value-" + i);
+            // Overlapping halves, as two parsers can both see a value
+            if (i < 40_000) {
+                left.add(hash);
+            }
+            if (i >= 20_000) {
+                right.add(hash);
+            }
+            union.add(hash);
+        }
+
+        left.merge(right);
+        assertEquals(union.estimate(), left.estimate());
+    }
+
+    @Test
+    void rejectsMergingDifferentPrecisions() {
+        assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(PRECISION).merge(new HyperLogLog(PRECISION + 1)));
+        assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(3));
+        assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(19));
+    }
+
+    @Test
+    void hashesOnlyTheGivenRange() {
+        Random random = new Random(42);
+        // Lengths around the 8-byte lanes, at offsets that are not aligned
+        for (int length = 0; length <= 25; length++) {
+            byte[] value = new byte[length];
+            random.nextBytes(value);
+            byte[] padded = new byte[length + 7];
+            random.nextBytes(padded);
+            System.arraycopy(value, 0, padded, 3, length);
+
+            assertEquals(HyperLogLog.hash(value, 0, length), HyperLogLog.hash(padded, 3, length), "length " + length);
+            if (length > 0) {
+                byte[] changed = Arrays.copyOf(value, length);
+                changed[length - 1] ^= 1;
+                assertNotEquals(HyperLogLog.hash(value, 0, length), HyperLogLog.hash(changed, 0, length), "length " + length);
+            }
+        }
+        // The length is part of the hash, trailing zeros are not ignored
+        assertNotEquals(HyperLogLog.hash(new byte[1], 0, 1), HyperLogLog.hash(new byte[2], 0, 2));
+    }
+
+    private static long hash(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return HyperLogLog.hash(bytes, 0, bytes.length);
+    }
+}
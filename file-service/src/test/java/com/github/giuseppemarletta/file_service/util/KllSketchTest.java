@@ -0,0 +1,93 @@
+package com.github.giuseppemarletta.file_service.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class KllSketchTest {
+
+    private static final int K = 200;
+    private static final double[] RANKS = { 0.0, 0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99, 1.0 };
+
+    @Test
+    void isExactBelowTheFirstCompaction() {
+        KllSketch sketch = new KllSketch(K);
+        for (int value : shuffled(100, new Random(42))) {
+            sketch.update(value);
+        }
+
+        assertEquals(100, sketch.getCount());
+        // The first value whose rank reaches the target, on the values 0..99
+        assertArrayEquals(new double[] { 0, 0, 4, 24, 49, 74, 94, 98, 99 }, sketch.quantiles(RANKS));
+    }
+
+    @Test
+    void hasNoQuantilesWithoutValues() {
+        assertEquals(0, new KllSketch(K).quantiles(RANKS).length);
+    }
+
+    @Test
+    void keepsTheRankErrorSmallOnALongStream() {
+        int n = 1_000_000;
+        KllSketch sketch = new KllSketch(K);
+        for (int value : shuffled(n, new Random(42))) {
+            sketch.update(value);
+        }
+
+        assertEquals(n, sketch.getCount());
+        assertRanks(sketch, n);
+    }
+
+    @Test
+    void mergedSketchesKeepTheRankError() {
+        int n = 400_000;
+        KllSketch[] parts = new KllSketch[4];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new KllSketch(K);
+        }
+        // Like the CSV parsers, each sees an arbitrary share of the values
+        Random random = new Random(7);
+        for (int value : shuffled(n, random)) {
+            parts[random.nextInt(parts.length)].update(value);
+        }
+
+        KllSketch merged = new KllSketch(K);
+        for (KllSketch part : parts) {
+            merged.merge(part);
+        }
+        assertEquals(n, merged.getCount());
+        assertRanks(merged, n);
+    }
+
+    @Test
+    void rejectsMergingDifferentK() {
+        assertThrows(IllegalArgumentException.class, () -> new KllSketch(K).merge(new KllSketch(K + 1)));
+        assertThrows(IllegalArgumentException.class, () -> new KllSketch(4));
+    }
+
+    // The values are 0..n-1, so a value is its own rank; the compactions are random, hence the margin
+    private static void assertRanks(KllSketch sketch, int n) {
+        double[] quantiles = sketch.quantiles(RANKS);
+        for (int i = 0; i < RANKS.length; i++) {
+            assertEquals(RANKS[i] * (n - 1), quantiles[i], 0.03 * n, "rank " + RANKS[i]);
+        }
+    }
+
+    private static int[] shuffled(int n, Random random) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+        return values;
+    }
+}